@@ -28,6 +28,12 @@ public class XTraceReporter {
 
     public void sendReport(String report) throws TException;
 
+    /**
+     * Sends a batch of encoded reports (text or binary).  The call is async
+     * (one-way): the client does not wait for a reply.
+     */
+    public void sendReports(ArrayList<byte[]> reports) throws TException;
+
   }
 
   public static class Client implements Iface {
@@ -106,6 +112,21 @@ public class XTraceReporter {
       return;
     }
 
+    public void sendReports(ArrayList<byte[]> reports) throws TException
+    {
+      send_sendReports(reports);
+    }
+
+    public void send_sendReports(ArrayList<byte[]> reports) throws TException
+    {
+      oprot_.writeMessageBegin(new TMessage("sendReports", TMessageType.CALL, seqid_));
+      sendReports_args args = new sendReports_args();
+      args.reports = reports;
+      args.write(oprot_);
+      oprot_.writeMessageEnd();
+      oprot_.getTransport().flush();
+    }
+
   }
   public static class Processor implements TProcessor {
     public Processor(Iface iface)
@@ -113,6 +134,7 @@ public class XTraceReporter {
       iface_ = iface;
       processMap_.put("ping", new ping());
       processMap_.put("sendReport", new sendReport());
+      processMap_.put("sendReports", new sendReports());
     }
 
     protected static interface ProcessFunction {
@@ -172,6 +194,17 @@ public class XTraceReporter {
 
     }
 
+    private class sendReports implements ProcessFunction {
+      public void process(int seqid, TProtocol iprot, TProtocol oprot) throws TException
+      {
+        sendReports_args args = new sendReports_args();
+        args.read(iprot);
+        iprot.readMessageEnd();
+        iface_.sendReports(args.reports);
+        return;
+      }
+    }
+
   }
 
   public static class ping_args implements java.io.Serializable   {
@@ -366,4 +399,93 @@ public class XTraceReporter {
 
   }
 
+  public static class sendReports_args implements java.io.Serializable   {
+    public ArrayList<byte[]> reports;
+
+    public final Isset __isset = new Isset();
+    public static final class Isset {
+      public boolean reports = false;
+    }
+
+    public sendReports_args() {
+    }
+
+    public sendReports_args(
+      ArrayList<byte[]> reports)
+    {
+      this();
+      this.reports = reports;
+      this.__isset.reports = true;
+    }
+
+    public void read(TProtocol iprot) throws TException {
+      TField field;
+      iprot.readStructBegin();
+      while (true)
+      {
+        field = iprot.readFieldBegin();
+        if (field.type == TType.STOP) { 
+          break;
+        }
+        switch (field.id)
+        {
+          case 1:
+            if (field.type == TType.LIST) {
+              {
+                TList _list0 = iprot.readListBegin();
+                this.reports = new ArrayList<byte[]>(_list0.size);
+                for (int _i1 = 0; _i1 < _list0.size; ++_i1)
+                {
+                  byte[] _elem2 = null;
+                  _elem2 = iprot.readBinary();
+                  this.reports.add(_elem2);
+                }
+                iprot.readListEnd();
+              }
+              this.__isset.reports = true;
+            } else { 
+              TProtocolUtil.skip(iprot, field.type);
+            }
+            break;
+          default:
+            TProtocolUtil.skip(iprot, field.type);
+            break;
+        }
+        iprot.readFieldEnd();
+      }
+      iprot.readStructEnd();
+    }
+
+    public void write(TProtocol oprot) throws TException {
+      TStruct struct = new TStruct("sendReports_args");
+      oprot.writeStructBegin(struct);
+      TField field = new TField();
+      if (this.reports != null) {
+        field.name = "reports";
+        field.type = TType.LIST;
+        field.id = 1;
+        oprot.writeFieldBegin(field);
+        {
+          oprot.writeListBegin(new TList(TType.STRING, this.reports.size()));
+          for (byte[] _iter3 : this.reports)          {
+            oprot.writeBinary(_iter3);
+          }
+          oprot.writeListEnd();
+        }
+        oprot.writeFieldEnd();
+      }
+      oprot.writeFieldStop();
+      oprot.writeStructEnd();
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder("sendReports_args(");
+      sb.append("reports:");
+      sb.append(this.reports);
+      sb.append(")");
+      return sb.toString();
+    }
+
+  }
+
 }
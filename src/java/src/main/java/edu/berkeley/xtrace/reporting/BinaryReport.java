@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import edu.berkeley.xtrace.TaskID;
+
+/**
+ * The compact binary encoding of X-Trace reports.
+ * 
+ * A binary report starts with the byte {@link #MAGIC} (which can never
+ * start a text report) and a version byte, followed by fields.  Each field
+ * begins with a varint field ID.  The well-known fields have their own IDs
+ * and compact values:
+ * 
+ * <pre>
+ *   1 X-Trace    raw metadata bytes (varint length, then the bytes)
+ *   2 Edge       raw operation ID bytes (varint length, then the bytes)
+ *   3 Timestamp  varint milliseconds since the epoch
+ *   4 Host, 5 Agent, 6 Label, 7 Title, 8 Tag
+ *                UTF-8 value (varint length, then the bytes)
+ * </pre>
+ * 
+ * Any other field, or a well-known field whose value does not have the
+ * usual form, is written with ID 0 followed by its name and its value, both
+ * as varint-length-prefixed UTF-8.  The encoding is therefore lossless:
+ * decoding a binary report gives back the text of the original report.
+ * 
+ * Neither direction goes through the text form: reports are encoded from
+ * their fields, and decoded field by field with a {@link FieldReader},
+ * which can also pick single fields out of a report without decoding the
+ * rest.
+ */
+public final class BinaryReport {
+	
+	/** First byte of every binary report */
+	public static final byte MAGIC = (byte) 0xB7;
+	
+	public static final byte VERSION = 1;
+	
+	/** Field IDs, as returned by {@link FieldReader#id()} */
+	public static final int LITERAL = 0;
+	public static final int XTRACE = 1;
+	public static final int EDGE = 2;
+	public static final int TIMESTAMP = 3;
+	public static final int HOST = 4;
+	public static final int AGENT = 5;
+	public static final int LABEL = 6;
+	public static final int TITLE = 7;
+	public static final int TAG = 8;
+	private static final String[] FIELD_NAMES = {
+		null, "X-Trace", "Edge", "Timestamp", "Host", "Agent", "Label", "Title", "Tag"
+	};
+	private static final byte[][] FIELD_NAME_BYTES = new byte[FIELD_NAMES.length][];
+	static {
+		for (int i = 1; i < FIELD_NAMES.length; i++) {
+			FIELD_NAME_BYTES[i] = ascii(FIELD_NAMES[i]);
+		}
+	}
+	
+	private static final byte[] HEADER = ascii("X-Trace Report ver 1.0\n");
+	private static final byte[] SEPARATOR = { ':', ' ' };
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	
+	private BinaryReport() {
+	}
+	
+	/**
+	 * Returns whether the given bytes hold a binary report, as opposed to a
+	 * text one
+	 */
+	public static boolean isBinary(byte[] b, int offset, int length) {
+		return length >= 2 && b[offset] == MAGIC;
+	}
+	
+	/**
+	 * Encodes a report in the binary encoding
+	 */
+	public static byte[] encode(Report r) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		out.write(MAGIC);
+		out.write(VERSION);
+		r.forEachField(new Report.FieldVisitor() {
+			public void field(String key, String value) {
+				writeField(out, key, value);
+			}
+		});
+		return out.toByteArray();
+	}
+	
+	private static void writeField(ByteArrayOutputStream out, String key, String value) {
+		int id = fieldId(key);
+		switch (id) {
+		case XTRACE:
+		case EDGE:
+			if (isUpperHex(value)) {
+				writeVarint(out, id);
+				writeVarint(out, value.length() / 2);
+				for (int i = 0; i < value.length(); i += 2) {
+					out.write((hexDigit(value.charAt(i)) << 4) | hexDigit(value.charAt(i + 1)));
+				}
+				return;
+			}
+			break;
+		case TIMESTAMP:
+			long millis = parseTimestamp(value);
+			if (millis >= 0) {
+				writeVarint(out, id);
+				writeVarint(out, millis);
+				return;
+			}
+			break;
+		case LITERAL:
+			break;
+		default:
+			writeVarint(out, id);
+			writeString(out, value);
+			return;
+		}
+		writeVarint(out, LITERAL);
+		writeString(out, key);
+		writeString(out, value);
+	}
+	
+	/**
+	 * Decodes a binary report.  Each field is put into the report as it is
+	 * read.
+	 * 
+	 * @throws IOException if the bytes are not a valid binary report
+	 */
+	public static Report decode(byte[] b, int offset, int length) throws IOException {
+		FieldReader fields = new FieldReader(b, offset, length);
+		Report r = new Report();
+		while (fields.next()) {
+			r.put(fields.name(), fields.value());
+		}
+		return r;
+	}
+	
+	/**
+	 * Decodes a binary report into the text form of the same report
+	 * 
+	 * @throws IOException if the bytes are not a valid binary report
+	 */
+	public static String toText(byte[] b, int offset, int length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2);
+		writeText(b, offset, length, out);
+		return out.toString("UTF-8");
+	}
+	
+	/**
+	 * Writes the text form of a binary report, as UTF-8, to a stream.  String
+	 * values are copied over as they are, since both forms hold them in
+	 * UTF-8.
+	 * 
+	 * @throws IOException if the bytes are not a valid binary report, or
+	 *             the stream fails
+	 */
+	public static void writeText(byte[] b, int offset, int length, OutputStream out)
+			throws IOException {
+		FieldReader fields = new FieldReader(b, offset, length);
+		byte[] scratch = new byte[32];
+		out.write(HEADER);
+		while (fields.next()) {
+			int id = fields.id();
+			if (id == LITERAL) {
+				out.write(b, fields.nameStart, fields.nameLength);
+			} else {
+				out.write(FIELD_NAME_BYTES[id]);
+			}
+			out.write(SEPARATOR);
+			switch (id) {
+			case XTRACE:
+			case EDGE:
+				for (int i = 0; i < fields.valueLength; i += scratch.length / 2) {
+					int n = Math.min(scratch.length / 2, fields.valueLength - i);
+					for (int j = 0; j < n; j++) {
+						int v = b[fields.valueStart + i + j] & 0xff;
+						scratch[2 * j] = (byte) HEX[v >>> 4];
+						scratch[2 * j + 1] = (byte) HEX[v & 0x0f];
+					}
+					out.write(scratch, 0, 2 * n);
+				}
+				break;
+			case TIMESTAMP:
+				out.write(ascii(formatTimestamp(fields.number)));
+				break;
+			default:
+				out.write(b, fields.valueStart, fields.valueLength);
+				break;
+			}
+			out.write('\n');
+		}
+	}
+	
+	/**
+	 * Returns whether the given bytes are a well-formed binary report, one
+	 * that {@link #writeText} can write out in full
+	 */
+	public static boolean isValid(byte[] b, int offset, int length) {
+		try {
+			FieldReader fields = new FieldReader(b, offset, length);
+			while (fields.next()) {
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the task ID held in a binary report's X-Trace field, or null
+	 * if the report has none.  Only the fields before the X-Trace field are
+	 * looked at, and only the task ID is decoded.
+	 */
+	public static TaskID extractTaskId(byte[] b, int offset, int length) {
+		try {
+			FieldReader fields = new FieldReader(b, offset, length);
+			while (fields.next()) {
+				if (fields.id() == XTRACE) {
+					return fields.taskId();
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads the fields of a binary report one at a time, straight from its
+	 * bytes.  A value is only decoded when asked for; the raw bytes of a
+	 * string value can also be had from {@link #valueOffset()} and
+	 * {@link #valueLength()}.
+	 */
+	public static final class FieldReader {
+		private final byte[] b;
+		private final int end;
+		private final int[] pos = new int[1];
+		private int id = -1;
+		private int nameStart, nameLength;
+		private int valueStart, valueLength;
+		private long number;
+		
+		/**
+		 * @throws IOException if the bytes are not a binary report of a
+		 *             supported version
+		 */
+		public FieldReader(byte[] b, int offset, int length) throws IOException {
+			if (!isBinary(b, offset, length)) {
+				throw new IOException("Not a binary report");
+			}
+			if (b[offset + 1] != VERSION) {
+				throw new IOException("Unsupported binary report version: " + b[offset + 1]);
+			}
+			this.b = b;
+			this.end = offset + length;
+			this.pos[0] = offset + 2;
+		}
+		
+		/**
+		 * Moves to the next field
+		 * 
+		 * @return false if there are no more fields
+		 * @throws IOException if the field is truncated or unknown
+		 */
+		public boolean next() throws IOException {
+			if (pos[0] >= end) {
+				return false;
+			}
+			id = (int) readVarint(b, pos, end);
+			nameLength = valueLength = 0;
+			if (id == TIMESTAMP) {
+				number = readVarint(b, pos, end);
+				return true;
+			}
+			if (id == LITERAL) {
+				nameLength = (int) readVarint(b, pos, end);
+				checkLength(nameLength, pos[0], end);
+				nameStart = pos[0];
+				pos[0] += nameLength;
+			} else if (id < 0 || id >= FIELD_NAMES.length) {
+				throw new IOException("Unknown binary report field: " + id);
+			}
+			valueLength = (int) readVarint(b, pos, end);
+			checkLength(valueLength, pos[0], end);
+			valueStart = pos[0];
+			pos[0] += valueLength;
+			return true;
+		}
+		
+		/** The ID of the field, {@link #LITERAL} for a named field */
+		public int id() {
+			return id;
+		}
+		
+		/** The name of the field, as it appears in the text form */
+		public String name() throws IOException {
+			return id == LITERAL ? utf8(b, nameStart, nameLength) : FIELD_NAMES[id];
+		}
+		
+		/** Whether the field's name is the given ASCII name */
+		public boolean nameIs(String name) {
+			if (id != LITERAL) {
+				return FIELD_NAMES[id].equals(name);
+			}
+			if (nameLength != name.length()) {
+				return false;
+			}
+			for (int i = 0; i < nameLength; i++) {
+				if (b[nameStart + i] != name.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/** The value of the field, as it appears in the text form */
+		public String value() throws IOException {
+			switch (id) {
+			case XTRACE:
+			case EDGE:
+				char[] hex = new char[2 * valueLength];
+				for (int i = 0; i < valueLength; i++) {
+					int v = b[valueStart + i] & 0xff;
+					hex[2 * i] = HEX[v >>> 4];
+					hex[2 * i + 1] = HEX[v & 0x0f];
+				}
+				return new String(hex);
+			case TIMESTAMP:
+				return formatTimestamp(number);
+			default:
+				return utf8(b, valueStart, valueLength);
+			}
+		}
+		
+		/**
+		 * The offset of the value's bytes: raw bytes for the X-Trace and
+		 * Edge fields, UTF-8 text for the other fields but Timestamp
+		 */
+		public int valueOffset() {
+			return valueStart;
+		}
+		
+		public int valueLength() {
+			return valueLength;
+		}
+		
+		/**
+		 * The task ID in the metadata of an {@link #XTRACE} field, or null
+		 * if the metadata is too short
+		 */
+		public TaskID taskId() {
+			if (id != XTRACE || valueLength < 1) {
+				return null;
+			}
+			int taskIdLength;
+			switch (b[valueStart] & 0x03) {
+			case 0x00: taskIdLength = 4; break;
+			case 0x01: taskIdLength = 8; break;
+			case 0x02: taskIdLength = 12; break;
+			default: taskIdLength = 20; break;
+			}
+			if (valueLength < 1 + taskIdLength) {
+				return null;
+			}
+			return TaskID.createFromBytes(b, valueStart + 1, taskIdLength);
+		}
+	}
+	
+	private static int fieldId(String key) {
+		for (int i = 1; i < FIELD_NAMES.length; i++) {
+			if (FIELD_NAMES[i].equals(key)) {
+				return i;
+			}
+		}
+		return LITERAL;
+	}
+	
+	/**
+	 * Parses a timestamp of the form written by XTraceEvent ("%d.%03d"
+	 * seconds), returning milliseconds, or -1 if the value has any other form
+	 * and so would not survive a round trip.
+	 */
+	private static long parseTimestamp(String value) {
+		int dot = value.indexOf('.');
+		if (dot < 1 || dot > 15 || value.length() != dot + 4) {
+			return -1;
+		}
+		if (value.charAt(0) == '0' && dot > 1) {
+			return -1;
+		}
+		long millis = 0;
+		for (int i = 0; i < value.length(); i++) {
+			if (i == dot) {
+				continue;
+			}
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			millis = millis * 10 + (c - '0');
+		}
+		return millis;
+	}
+	
+	private static String formatTimestamp(long millis) {
+		StringBuilder sb = new StringBuilder(20);
+		sb.append(millis / 1000).append('.');
+		long ms = millis % 1000;
+		if (ms < 100) sb.append('0');
+		if (ms < 10) sb.append('0');
+		sb.append(ms);
+		return sb.toString();
+	}
+	
+	private static boolean isUpperHex(String s) {
+		if (s.length() == 0 || s.length() % 2 != 0) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int hexDigit(char c) {
+		return c <= '9' ? c - '0' : c - 'A' + 10;
+	}
+	
+	private static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+	
+	private static long readVarint(byte[] b, int[] pos, int end) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (pos[0] >= end) {
+				throw new IOException("Truncated binary report");
+			}
+			int c = b[pos[0]++];
+			v |= (long) (c & 0x7F) << shift;
+			if ((c & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint in binary report");
+	}
+	
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = s.getBytes();
+		}
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+	
+	private static String utf8(byte[] b, int offset, int length) throws IOException {
+		return new String(b, offset, length, "UTF-8");
+	}
+	
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+	
+	private static void checkLength(int n, int pos, int end) throws IOException {
+		if (n < 0 || n > end - pos) {
+			throw new IOException("Truncated binary report");
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.reporting;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses blocks of bytes with one of a small set of
+ * codecs: none, deflate, and LZF, a fast LZ77-style codec that trades some
+ * compression ratio for much cheaper compression than deflate.
+ * 
+ * A BlockCodec keeps per-instance state (the deflate streams and the LZF
+ * hash table), so each thread or connection should use its own instance,
+ * and call {@link #end()} when done with it.
+ * 
+ * This class also defines the block framing used between
+ * <code>TcpReporter</code> and the TCP report sources.  A client that wants
+ * block framing starts the connection with {@link #MAGIC} and the codec it
+ * would like to use; the server answers with a single byte naming the codec
+ * it accepted.  The client then sends blocks, each made of a codec byte,
+ * the uncompressed length, the compressed length, and the compressed bytes.
+ * An uncompressed block holds reports in the classic framing: a 4-byte
+ * length followed by that many bytes of report.
+ * 
+ * Servers that predate block framing read the magic number as an invalid
+ * report length and close the connection, so clients can fall back to the
+ * classic framing.
+ */
+public final class BlockCodec {
+	
+	public static final byte NONE = 0;
+	public static final byte DEFLATE = 1;
+	public static final byte LZF = 2;
+	
+	/** First four bytes of a connection that uses block framing */
+	public static final int MAGIC = 0xFF585442;
+	
+	/** Size of the header in front of every block */
+	public static final int BLOCK_HEADER_LENGTH = 9;
+	
+	/** Largest uncompressed or compressed block a server accepts */
+	public static final int MAX_BLOCK_LENGTH = 4*1024*1024;
+	
+	private static final int LZF_HASH_LOG = 14;
+	private static final int LZF_MAX_LITERAL = 32;
+	private static final int LZF_MAX_OFFSET = 8192;
+	private static final int LZF_MAX_MATCH = 264;
+	
+	private final byte codec;
+	private Deflater deflater;
+	private Inflater inflater;
+	private int[] hashTable;
+	
+	public BlockCodec(byte codec) {
+		if (!isSupported(codec)) {
+			throw new IllegalArgumentException("Unknown codec: " + codec);
+		}
+		this.codec = codec;
+	}
+	
+	public byte getCodec() {
+		return codec;
+	}
+	
+	public static boolean isSupported(byte codec) {
+		return codec == NONE || codec == DEFLATE || codec == LZF;
+	}
+	
+	/**
+	 * Returns the codec with the given name (none, deflate or lzf), or -1 if
+	 * there is no such codec.
+	 */
+	public static byte forName(String name) {
+		if (name.equalsIgnoreCase("none")) {
+			return NONE;
+		} else if (name.equalsIgnoreCase("deflate")) {
+			return DEFLATE;
+		} else if (name.equalsIgnoreCase("lzf")) {
+			return LZF;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the size of output buffer that {@link #compress} needs for an
+	 * input of the given length.
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 16 + 64;
+	}
+	
+	/**
+	 * Compresses <code>src[off..off+len)</code> into <code>dst</code>
+	 * starting at <code>dstOff</code>.  <code>dst</code> must have room for
+	 * at least {@link #maxCompressedLength(int)} bytes there.
+	 * 
+	 * @return the compressed length, or -1 if compressing did not make the
+	 *         data any smaller (in which case it should be sent as is)
+	 */
+	public int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		int n;
+		switch (codec) {
+		case DEFLATE:
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			}
+			deflater.reset();
+			deflater.setInput(src, off, len);
+			deflater.finish();
+			n = 0;
+			while (!deflater.finished() && dstOff + n < dst.length) {
+				n += deflater.deflate(dst, dstOff + n, dst.length - dstOff - n);
+			}
+			if (!deflater.finished()) {
+				return -1;
+			}
+			break;
+		case LZF:
+			n = lzfCompress(src, off, len, dst, dstOff);
+			break;
+		default:
+			return -1;
+		}
+		return n < len ? n : -1;
+	}
+	
+	/**
+	 * Decompresses <code>src[off..off+len)</code> into exactly
+	 * <code>dstLen</code> bytes starting at <code>dst[dstOff]</code>.
+	 * 
+	 * @throws IOException if the input is corrupt
+	 */
+	public void decompress(byte codec, byte[] src, int off, int len,
+			byte[] dst, int dstOff, int dstLen) throws IOException {
+		switch (codec) {
+		case NONE:
+			if (len != dstLen) {
+				throw new IOException("Uncompressed block length mismatch");
+			}
+			System.arraycopy(src, off, dst, dstOff, len);
+			break;
+		case DEFLATE:
+			if (inflater == null) {
+				inflater = new Inflater(true);
+			}
+			inflater.reset();
+			inflater.setInput(src, off, len);
+			try {
+				int n = 0;
+				while (n < dstLen && !inflater.finished()) {
+					int k = inflater.inflate(dst, dstOff + n, dstLen - n);
+					if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					n += k;
+				}
+				if (n != dstLen) {
+					throw new IOException("Truncated deflate block");
+				}
+			} catch (DataFormatException e) {
+				IOException ioe = new IOException("Corrupt deflate block");
+				ioe.initCause(e);
+				throw ioe;
+			}
+			break;
+		case LZF:
+			try {
+				lzfDecompress(src, off, len, dst, dstOff, dstLen);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Corrupt LZF block");
+			}
+			break;
+		default:
+			throw new IOException("Unknown codec: " + codec);
+		}
+	}
+	
+	/**
+	 * Releases the native resources held by this codec
+	 */
+	public void end() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+	
+	/*
+	 * LZF: a control byte below 32 starts a run of (ctrl + 1) literal bytes.
+	 * Otherwise its top three bits hold (length - 2) of a back reference,
+	 * or 7 to say that the next byte adds to the length, and its low five
+	 * bits with the byte after that hold (offset - 1) into the output.
+	 */
+	
+	private int lzfCompress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+		if (hashTable == null) {
+			hashTable = new int[1 << LZF_HASH_LOG];
+		} else {
+			Arrays.fill(hashTable, 0);
+		}
+		int[] htab = hashTable;
+		int ip = inOff;
+		int end = inOff + inLen;
+		int op = outOff + 1; // leave room for the first literal run's control byte
+		int lit = 0;
+		
+		while (ip + 2 < end) {
+			int h = (((in[ip] & 0xff) << 16) | ((in[ip + 1] & 0xff) << 8)
+					| (in[ip + 2] & 0xff)) * 0x9E3779B1 >>> (32 - LZF_HASH_LOG);
+			// Table entries are positions plus one, so that zero means empty
+			int ref = htab[h] - 1;
+			htab[h] = ip + 1;
+			int distance = ip - ref - 1;
+			if (ref >= inOff && distance < LZF_MAX_OFFSET
+					&& in[ref] == in[ip] && in[ref + 1] == in[ip + 1]
+					&& in[ref + 2] == in[ip + 2]) {
+				int len = 3;
+				int maxLen = Math.min(end - ip, LZF_MAX_MATCH);
+				while (len < maxLen && in[ref + len] == in[ip + len]) {
+					len++;
+				}
+				if (lit > 0) {
+					out[op - lit - 1] = (byte) (lit - 1);
+				} else {
+					op--; // no literals: drop the reserved control byte
+				}
+				lit = 0;
+				int l = len - 2;
+				if (l < 7) {
+					out[op++] = (byte) ((distance >>> 8) + (l << 5));
+				} else {
+					out[op++] = (byte) ((distance >>> 8) + (7 << 5));
+					out[op++] = (byte) (l - 7);
+				}
+				out[op++] = (byte) distance;
+				op++;
+				ip += len;
+			} else {
+				out[op++] = in[ip++];
+				if (++lit == LZF_MAX_LITERAL) {
+					out[op - lit - 1] = (byte) (lit - 1);
+					lit = 0;
+					op++;
+				}
+			}
+		}
+		while (ip < end) {
+			out[op++] = in[ip++];
+			if (++lit == LZF_MAX_LITERAL) {
+				out[op - lit - 1] = (byte) (lit - 1);
+				lit = 0;
+				op++;
+			}
+		}
+		if (lit > 0) {
+			out[op - lit - 1] = (byte) (lit - 1);
+		} else {
+			op--;
+		}
+		return op - outOff;
+	}
+	
+	private static void lzfDecompress(byte[] in, int inOff, int inLen,
+			byte[] out, int outOff, int outLen) throws IOException {
+		int ip = inOff;
+		int end = inOff + inLen;
+		int op = outOff;
+		int outEnd = outOff + outLen;
+		while (ip < end) {
+			int ctrl = in[ip++] & 0xff;
+			if (ctrl < 32) {
+				int n = ctrl + 1;
+				if (ip + n > end || op + n > outEnd) {
+					throw new IOException("Corrupt LZF block");
+				}
+				System.arraycopy(in, ip, out, op, n);
+				ip += n;
+				op += n;
+			} else {
+				int len = ctrl >>> 5;
+				if (len == 7) {
+					len += in[ip++] & 0xff;
+				}
+				len += 2;
+				int ref = op - ((ctrl & 0x1f) << 8) - (in[ip++] & 0xff) - 1;
+				if (ip > end || ref < outOff || op + len > outEnd) {
+					throw new IOException("Corrupt LZF block");
+				}
+				// Byte by byte, since the reference may overlap the output
+				for (int i = 0; i < len; i++) {
+					out[op++] = out[ref++];
+				}
+			}
+		}
+		if (op != outEnd) {
+			throw new IOException("Truncated LZF block");
+		}
+	}
+}
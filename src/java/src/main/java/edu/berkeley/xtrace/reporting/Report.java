@@ -58,6 +58,9 @@ import edu.berkeley.xtrace.XTraceMetadata;
  * Key3: Value3
  * </pre>
  * 
+ * Reports can also be carried in a compact binary encoding; see
+ * {@link BinaryReport}.
+ * 
  * While this class can be used to construct X-Trace reports, it is
  * recommended that they should be created through
  * the {@link edu.berkeley.xtrace.Event} class or the higher-level 
@@ -218,6 +221,72 @@ public class Report {
 		return new Report(s);
 	}
 
+	/**
+	 * Creates a new <code>Report</code> from its encoded bytes, which may
+	 * be either UTF-8 text or the binary encoding
+	 *
+	 * @throws IOException if the bytes are a malformed binary report
+	 */
+	public static Report createFromBytes(final byte[] b, int offset, int length)
+			throws IOException {
+		if (BinaryReport.isBinary(b, offset, length)) {
+			return BinaryReport.decode(b, offset, length);
+		}
+		return new Report(new String(b, offset, length, "UTF-8"));
+	}
+	
+	/**
+	 * Encodes this report in the compact binary encoding
+	 * 
+	 * @see BinaryReport
+	 */
+	public byte[] toBinary() {
+		return BinaryReport.encode(this);
+	}
+
+	/**
+	 * Receives the fields of a report, see {@link #forEachField}
+	 */
+	interface FieldVisitor {
+		void field(String key, String value);
+	}
+
+	/**
+	 * Hands each field of this report to <code>v</code>, in order, without
+	 * rendering the report as text first.  Keys and values are trimmed, as
+	 * by {@link #get(String)}.
+	 */
+	void forEachField(FieldVisitor v) {
+		if (map != null) {
+			for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+				for (String value : entry.getValue()) {
+					v.field(entry.getKey(), value);
+				}
+			}
+			return;
+		}
+		// Skip the header line, then read "key: value" lines in place
+		int n = buf.length();
+		int pos = 0;
+		while (pos < n && buf.charAt(pos) != '\n') {
+			pos++;
+		}
+		for (pos++; pos < n; pos++) {
+			int colon = -1;
+			int eol = pos;
+			for (; eol < n && buf.charAt(eol) != '\n'; eol++) {
+				if (colon < 0 && buf.charAt(eol) == ':') {
+					colon = eol;
+				}
+			}
+			if (colon >= 0) {
+				v.field(buf.substring(pos, colon).trim(), buf.substring(colon + 1,
+						eol).trim());
+			}
+			pos = eol;
+		}
+	}
+
 	private void convertToMap() {
 		if (map != null) {
 			return;
@@ -27,6 +27,8 @@
 
 package edu.berkeley.xtrace.reporting;
 
+import java.io.UnsupportedEncodingException;
+
 //import org.apache.log4j.Logger;
 
 /**
@@ -40,6 +42,11 @@ package edu.berkeley.xtrace.reporting;
  *     
  *    java -Dxtrace.reportctx=edu.berkeley.reporting.classname
  *
+ * Reporters send reports as text by default.  Setting the
+ * 'xtrace.reporter.encoding' system property to "binary" makes them use the
+ * compact {@link BinaryReport} encoding instead; the server detects the
+ * encoding of each report.
+ *
  * @author George Porter
  */
 public abstract class Reporter
@@ -47,6 +54,9 @@ public abstract class Reporter
 	//private static final Logger LOG = Logger.getLogger(Reporter.class);
 
 	static Reporter reporter;
+	
+	private final boolean binaryEncoding =
+		"binary".equalsIgnoreCase(System.getProperty("xtrace.reporter.encoding"));
 
 	/**
 	 * Retrieve a handle to the reporter.  Once a reporter
@@ -101,6 +111,22 @@ public abstract class Reporter
 	 * Closes this reporter, releasing any resources
 	 */
 	public abstract void close();
+	
+	/**
+	 * Encodes a report for sending, as UTF-8 text or in the binary encoding
+	 * depending on the xtrace.reporter.encoding property
+	 */
+	protected byte[] encode(Report r) {
+		if (binaryEncoding) {
+			return r.toBinary();
+		}
+		try {
+			return r.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// We use the default encoding if UTF-8 is unavailable
+			return r.toString().getBytes();
+		}
+	}
 
 	/**
 	 * Send any pending reports, blocking if necessary.
@@ -29,8 +29,11 @@ package edu.berkeley.xtrace.reporting;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.apache.log4j.Logger;
 
@@ -42,6 +45,15 @@ import org.apache.log4j.Logger;
  *   java -Dxtrace.reporter="edu.berkeley.xtrace.reporting.TcpReporter" \
  *        -Dxtrace.tcpdest="reports.x-trace.net:7000"
  *
+ * By default each report is written as soon as it is sent.  Setting
+ * xtrace.tcp.framing to "block" instead packs reports into blocks of about
+ * xtrace.tcp.blocksize bytes (64 KB by default), compressed with the codec
+ * named by xtrace.tcp.compression (lzf, the default, deflate or none).  A
+ * partial block is sent every xtrace.tcp.flushinterval milliseconds (100 by
+ * default) and on flush().  If the server does not support block framing,
+ * the reporter falls back to sending reports one at a time.
+ * See {@link BlockCodec} for the wire format.
+ *
  * @author Matei Zaharia
  */
 public final class TcpReporter extends Reporter
@@ -52,13 +64,21 @@ public final class TcpReporter extends Reporter
 	private Socket socket;
 	private DataOutputStream out;
 	
+	private InetAddress host = null;
+	private int port = 0;
+	
+	// Block framing state; codec is null when sending reports one at a time
+	private BlockCodec codec;
+	private int blockSize;
+	private byte[] block;
+	private int blockLength;
+	private byte[] compressed;
+	private Timer flushTimer;
+	
 	TcpReporter()
 	{
 		LOG.info("Creating TcpReportingContext");
 		
-		InetAddress host = null;
-		int port = 0;
-		
 		String tcpDest = System.getProperty("xtrace.tcpdest");
 		if (tcpDest == null) {
 			LOG.warn("TcpReportingContext was used, but no xtrace.tcpdest "
@@ -79,16 +99,118 @@ public final class TcpReporter extends Reporter
 			System.exit(1);
 		}
 		
+		boolean useBlocks = "block".equalsIgnoreCase(System.getProperty("xtrace.tcp.framing"));
+		byte requestedCodec = BlockCodec.LZF;
+		long flushInterval = 100;
+		if (useBlocks) {
+			String codecName = System.getProperty("xtrace.tcp.compression", "lzf");
+			requestedCodec = BlockCodec.forName(codecName);
+			if (requestedCodec < 0) {
+				LOG.warn("Unknown xtrace.tcp.compression codec: " + codecName + ", using lzf");
+				requestedCodec = BlockCodec.LZF;
+			}
+			try {
+				blockSize = Integer.parseInt(System.getProperty("xtrace.tcp.blocksize", "65536"));
+				flushInterval = Long.parseLong(System.getProperty("xtrace.tcp.flushinterval", "100"));
+			} catch (NumberFormatException e) {
+				LOG.warn("Invalid block framing property, using defaults", e);
+				blockSize = 65536;
+			}
+			blockSize = Math.max(1024, Math.min(blockSize, BlockCodec.MAX_BLOCK_LENGTH / 2));
+		}
+		
 		try {
 			socket = new Socket(host, port);
-			// TODO: Maybe use BufferedOutputStream? In that case, make sure
-			// to call flush() periodically for timely reporting.
 			out = new DataOutputStream(socket.getOutputStream());
+			if (useBlocks) {
+				byte accepted = negotiate(requestedCodec);
+				if (accepted >= 0) {
+					codec = new BlockCodec(accepted);
+					block = new byte[blockSize];
+				} else {
+					LOG.warn("Server does not support block framing, sending reports one at a time");
+					socket.close();
+					socket = new Socket(host, port);
+					out = new DataOutputStream(socket.getOutputStream());
+				}
+			}
 			
 		} catch (Exception se) {
 			LOG.warn("Failed to create X-Trace TCP socket", se);
 			socket = null;
 		}
+		
+		if (codec != null) {
+			flushTimer = new Timer(true);
+			flushTimer.schedule(new TimerTask() {
+				public void run() {
+					flush();
+				}
+			}, flushInterval, flushInterval);
+		}
+	}
+	
+	/**
+	 * Asks the server for block framing with the given codec.
+	 * 
+	 * @return the codec the server accepted, or -1 if it does not support
+	 *         block framing
+	 */
+	private byte negotiate(byte requestedCodec) throws IOException {
+		out.writeInt(BlockCodec.MAGIC);
+		out.writeByte(requestedCodec);
+		out.flush();
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout(5000);
+		try {
+			InputStream in = socket.getInputStream();
+			int accepted = in.read();
+			if (accepted < 0 || !BlockCodec.isSupported((byte) accepted)) {
+				return -1;
+			}
+			return (byte) accepted;
+		} catch (IOException e) {
+			// Older servers close the connection when they see the magic number
+			return -1;
+		} finally {
+			if (!socket.isClosed()) {
+				socket.setSoTimeout(timeout);
+			}
+		}
+	}
+	
+	/**
+	 * Compresses and writes out the current block, if it holds any reports
+	 */
+	private void sendBlock() throws IOException {
+		if (blockLength == 0) {
+			return;
+		}
+		int needed = BlockCodec.BLOCK_HEADER_LENGTH
+				+ BlockCodec.maxCompressedLength(blockLength);
+		if (compressed == null || compressed.length < needed) {
+			compressed = new byte[needed];
+		}
+		int n = codec.compress(block, 0, blockLength, compressed,
+				BlockCodec.BLOCK_HEADER_LENGTH);
+		byte blockCodec = codec.getCodec();
+		if (n < 0) {
+			blockCodec = BlockCodec.NONE;
+			n = blockLength;
+			System.arraycopy(block, 0, compressed, BlockCodec.BLOCK_HEADER_LENGTH, n);
+		}
+		compressed[0] = blockCodec;
+		putInt(compressed, 1, blockLength);
+		putInt(compressed, 5, n);
+		blockLength = 0;
+		out.write(compressed, 0, BlockCodec.BLOCK_HEADER_LENGTH + n);
+	}
+	
+	private static void putInt(byte[] b, int pos, int v) {
+		b[pos] = (byte) (v >>> 24);
+		b[pos + 1] = (byte) (v >>> 16);
+		b[pos + 2] = (byte) (v >>> 8);
+		b[pos + 3] = (byte) v;
 	}
 
 	/**
@@ -96,13 +218,23 @@ public final class TcpReporter extends Reporter
 	 */
 	public synchronized void close()
 	{
+		if (flushTimer != null) {
+			flushTimer.cancel();
+			flushTimer = null;
+		}
 		if (socket != null) {
 			LOG.info("Closing TcpReporter");
 			try {
+				if (codec != null) {
+					sendBlock();
+				}
 				out.flush();
 				socket.close();
 			} catch (IOException e) {;}
 			socket = null;
+			if (codec != null) {
+				codec.end();
+			}
 		}
 	}
 	
@@ -110,8 +242,16 @@ public final class TcpReporter extends Reporter
 		super.flush();
 		if (socket != null) {
 			try {
+				if (codec != null) {
+					sendBlock();
+				}
 				out.flush();
-			} catch (IOException e) {;}
+			} catch (IOException e) {
+				if (codec != null) {
+					LOG.warn("Couldn't send reports", e);
+					close();
+				}
+			}
 		}
 	}
 
@@ -124,13 +264,33 @@ public final class TcpReporter extends Reporter
 	public synchronized void sendReport(Report r) {
 		try {
 			if (socket != null) {
-				byte[] bytes = r.toString().getBytes("UTF-8");
-				out.writeInt(bytes.length);
-				out.write(bytes);
+				byte[] bytes = encode(r);
+				if (codec != null) {
+					appendToBlock(bytes);
+				} else {
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
 			}
 		} catch (IOException e) {
 			LOG.warn("Couldn't send report", e);
 			close();
 		}
 	}
+	
+	private void appendToBlock(byte[] bytes) throws IOException {
+		int needed = 4 + bytes.length;
+		if (blockLength > 0 && blockLength + needed > blockSize) {
+			sendBlock();
+		}
+		if (needed > block.length) {
+			block = new byte[needed];
+		}
+		putInt(block, blockLength, bytes.length);
+		System.arraycopy(bytes, 0, block, blockLength + 4, bytes.length);
+		blockLength += needed;
+		if (blockLength >= blockSize) {
+			sendBlock();
+		}
+	}
 }
@@ -31,6 +31,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.apache.log4j.Logger;
 
@@ -52,6 +55,14 @@ import edu.berkeley.xtrace.reporting.XTraceReporter.Client;
  *   java -Dxtrace.reporter="edu.berkeley.xtrace.reporting.ThriftReporter" \
  *        -Dxtrace.thriftdest="reports.x-trace.net:7832"
  *
+ * Reports are sent in batches with the one-way sendReports call.  A batch
+ * is sent once it holds xtrace.thrift.batchsize reports (default 64) or
+ * xtrace.thrift.batchbytes bytes (default 64 KB), and at least every
+ * xtrace.thrift.batchinterval milliseconds (default 100).  Setting
+ * xtrace.thrift.batchsize to 1 sends each report with the synchronous
+ * sendReport call, for servers that predate sendReports; that call always
+ * sends reports as text.
+ *
  */
 public final class ThriftReporter extends Reporter
 {
@@ -65,6 +76,12 @@ public final class ThriftReporter extends Reporter
 	private TSocket transport;
 	private Client client;
 	
+	private int batchSize;
+	private int batchBytes;
+	private ArrayList<byte[]> batch;
+	private int pendingBytes;
+	private Timer flushTimer;
+	
 	ThriftReporter()
 	{
 		LOG.info("Creating ThriftReportingContext");
@@ -92,7 +109,28 @@ public final class ThriftReporter extends Reporter
 			System.exit(1);
 		}
 		
+		long batchInterval = 100;
+		try {
+			batchSize = Integer.parseInt(System.getProperty("xtrace.thrift.batchsize", "64"));
+			batchBytes = Integer.parseInt(System.getProperty("xtrace.thrift.batchbytes", "65536"));
+			batchInterval = Long.parseLong(System.getProperty("xtrace.thrift.batchinterval", "100"));
+		} catch (NumberFormatException e) {
+			LOG.warn("Invalid Thrift batching property, using defaults", e);
+			batchSize = 64;
+			batchBytes = 65536;
+		}
+		
 		open();
+		
+		if (batchSize > 1) {
+			batch = new ArrayList<byte[]>(batchSize);
+			flushTimer = new Timer(true);
+			flushTimer.schedule(new TimerTask() {
+				public void run() {
+					sendBatch();
+				}
+			}, batchInterval, batchInterval);
+		}
 	}
 	
 	private synchronized void open()
@@ -123,6 +161,17 @@ public final class ThriftReporter extends Reporter
 	 */
 	public synchronized void close()
 	{
+		if (flushTimer != null) {
+			flushTimer.cancel();
+			flushTimer = null;
+		}
+		disconnect();
+	}
+	
+	/* Closes the connection; the batching timer keeps running across reopens */
+	private synchronized void disconnect()
+	{
+		sendBatch();
 		if (client != null) {
 			LOG.info("Closing ThriftReporter");
 			transport.close();
@@ -133,12 +182,13 @@ public final class ThriftReporter extends Reporter
 	
 	public synchronized void flush() {
 		super.flush();
+		sendBatch();
 		if (client != null) {
 			try {
 				transport.flush();
 			} catch (TTransportException e) {
 				LOG.warn("Error flushing Thrift connection...reopening", e);
-				close();
+				disconnect();
 				open();
 			}
 		}
@@ -151,6 +201,19 @@ public final class ThriftReporter extends Reporter
 	 */
 	@Override
 	public synchronized void sendReport(Report r) {
+		if (batch != null) {
+			if (client == null) {
+				return;
+			}
+			byte[] msg = encode(r);
+			batch.add(msg);
+			pendingBytes += msg.length;
+			if (batch.size() >= batchSize || pendingBytes >= batchBytes) {
+				sendBatch();
+			}
+			return;
+		}
+		
 		try {
 			if (client != null) {
 				String reportstr = r.toString();
@@ -158,7 +221,26 @@ public final class ThriftReporter extends Reporter
 			}
 		} catch (TException e) {
 			LOG.warn("Unable to send report...reopening", e);
-			close();
+			disconnect();
+			open();
+		}
+	}
+	
+	/**
+	 * Sends the pending batch of reports, if any
+	 */
+	private synchronized void sendBatch() {
+		if (batch == null || batch.isEmpty() || client == null) {
+			return;
+		}
+		ArrayList<byte[]> reports = batch;
+		batch = new ArrayList<byte[]>(batchSize);
+		pendingBytes = 0;
+		try {
+			client.sendReports(reports);
+		} catch (TException e) {
+			LOG.warn("Unable to send " + reports.size() + " reports...reopening", e);
+			disconnect();
 			open();
 		}
 	}
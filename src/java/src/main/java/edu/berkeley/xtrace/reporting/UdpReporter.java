@@ -28,7 +28,6 @@
 package edu.berkeley.xtrace.reporting;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -128,14 +127,7 @@ public final class UdpReporter extends Reporter
 			return;
 		}
 		
-		byte[] msg;
-		try {
-			msg = r.toString().getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e1) {
-			
-			// We use the default encoding if UTF-8 is unavailable
-			msg = r.toString().getBytes();
-		}
+		byte[] msg = encode(r);
 		DatagramPacket pkt =
 			new DatagramPacket(msg, 0, msg.length, localAddr, localPort);
 		try {
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.xtrace.reporting.BlockCodec;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * A task file rewritten as independently compressed blocks.
+ * <p>
+ * The file starts with {@link #MAGIC}, followed by blocks in the framing
+ * of {@link BlockCodec} (codec, uncompressed length, compressed length,
+ * data). Uncompressed, a block holds whole reports, each a 4-byte length
+ * followed by the report text. After the blocks comes the block index,
+ * which gives the file offset of each block and the number of the first
+ * report in it, and a fixed-size footer: the number of blocks, the number
+ * of reports, the generation, the offset of the index and the magic
+ * number again.
+ * <p>
+ * The generation counts how many times the task's plain text file has
+ * been folded into this one, which is how an interrupted compaction is
+ * recognized (see {@link FileTreeReportStore}).
+ */
+final class CompressedTaskFile {
+	private static final Logger LOG = Logger
+			.getLogger(CompressedTaskFile.class);
+
+	static final String SUFFIX = ".xtz";
+	static final int MAGIC = 0x58545A31;
+	private static final int FOOTER_LENGTH = 28;
+
+	private final File file;
+	private final long[] blockOffsets;
+	private final long[] firstReports;
+	private final long numReports;
+	private final int generation;
+
+	private CompressedTaskFile(File file, long[] blockOffsets,
+			long[] firstReports, long numReports, int generation) {
+		this.file = file;
+		this.blockOffsets = blockOffsets;
+		this.firstReports = firstReports;
+		this.numReports = numReports;
+		this.generation = generation;
+	}
+
+	/**
+	 * Reads the block index of a compressed task file
+	 *
+	 * @throws IOException
+	 *             if the file can't be read or isn't a complete compressed
+	 *             task file
+	 */
+	static CompressedTaskFile open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < 4 + FOOTER_LENGTH) {
+				throw new IOException("Truncated compressed task file " + file);
+			}
+			raf.seek(0);
+			int magic = raf.readInt();
+			raf.seek(length - FOOTER_LENGTH);
+			int numBlocks = raf.readInt();
+			long numReports = raf.readLong();
+			int generation = raf.readInt();
+			long indexOffset = raf.readLong();
+			if (magic != MAGIC || raf.readInt() != MAGIC || numBlocks < 0
+					|| indexOffset + 16L * numBlocks != length - FOOTER_LENGTH) {
+				throw new IOException("Not a compressed task file: " + file);
+			}
+			long[] blockOffsets = new long[numBlocks];
+			long[] firstReports = new long[numBlocks];
+			raf.seek(indexOffset);
+			for (int i = 0; i < numBlocks; i++) {
+				blockOffsets[i] = raf.readLong();
+				firstReports[i] = raf.readLong();
+			}
+			return new CompressedTaskFile(file, blockOffsets, firstReports,
+					numReports, generation);
+		} finally {
+			raf.close();
+		}
+	}
+
+	int getGeneration() {
+		return generation;
+	}
+
+	long getNumReports() {
+		return numReports;
+	}
+
+	int getNumBlocks() {
+		return blockOffsets.length;
+	}
+
+	/**
+	 * Returns the block holding report number <code>report</code> (counting
+	 * from 0), or the number of blocks if there is no such report.
+	 */
+	int blockOf(long report) {
+		if (report >= numReports) {
+			return blockOffsets.length;
+		}
+		int lo = 0, hi = blockOffsets.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstReports[mid] <= report) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the number of the first report in a block
+	 */
+	long firstReportOf(int block) {
+		return block < firstReports.length ? firstReports[block] : numReports;
+	}
+
+	/**
+	 * Iterates over the reports, starting with the first one of block
+	 * <code>firstBlock</code>. Blocks are read and decompressed one at a
+	 * time.
+	 */
+	Iterator<Report> reports(int firstBlock) {
+		return new BlockIterator(firstBlock);
+	}
+
+	/**
+	 * Writes a new compressed task file to <code>target</code>, holding the
+	 * reports of <code>previous</code> (if not null) followed by those of
+	 * the plain text task file <code>source</code>. The blocks of
+	 * <code>previous</code> are copied as they are, so they keep their
+	 * offsets. The file is written under a temporary name and renamed into
+	 * place.
+	 *
+	 * @return the number of reports taken from <code>source</code>
+	 */
+	static long write(File target, CompressedTaskFile previous, File source,
+			byte codec, int blockSize, int generation) throws IOException {
+		File tmp = new File(target.getPath() + ".tmp");
+		BlockWriter w = new BlockWriter(tmp, codec, blockSize);
+		long added;
+		boolean done = false;
+		try {
+			if (previous != null) {
+				w.copyBlocks(previous);
+			}
+			long start = w.numReports;
+			Iterator<Report> it = new FileTreeReportStore.FileTreeIterator(
+					source);
+			while (it.hasNext()) {
+				w.add(it.next().toString().getBytes("UTF-8"));
+			}
+			added = w.numReports - start;
+			w.finish(generation);
+			done = true;
+		} finally {
+			w.close();
+			if (!done) {
+				tmp.delete();
+			}
+		}
+		if (!tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp + " to " + target);
+		}
+		return added;
+	}
+
+	private long indexOffset() {
+		return file.length() - FOOTER_LENGTH - 16L * blockOffsets.length;
+	}
+
+	/**
+	 * Packs reports into blocks and keeps track of the block index
+	 */
+	private static final class BlockWriter {
+		private final DataOutputStream out;
+		private final BlockCodec codec;
+		private final int blockSize;
+		private byte[] raw;
+		private byte[] compressed;
+		private int rawLength = 0;
+		private long blockFirst = 0;
+		private long[] offsets = new long[16];
+		private long[] firsts = new long[16];
+		private int numBlocks = 0;
+		private long offset = 0;
+		long numReports = 0;
+
+		BlockWriter(File f, byte codec, int blockSize) throws IOException {
+			this.codec = new BlockCodec(codec);
+			this.blockSize = blockSize;
+			raw = new byte[blockSize];
+			compressed = new byte[BlockCodec.maxCompressedLength(blockSize)];
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(f), 65536));
+			out.writeInt(MAGIC);
+			offset = 4;
+		}
+
+		void copyBlocks(CompressedTaskFile previous) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(previous.file, "r");
+			try {
+				long end = previous.indexOffset();
+				byte[] buf = new byte[65536];
+				raf.seek(offset);
+				for (long left = end - offset; left > 0;) {
+					int n = (int) Math.min(left, buf.length);
+					raf.readFully(buf, 0, n);
+					out.write(buf, 0, n);
+					left -= n;
+				}
+			} finally {
+				raf.close();
+			}
+			for (int i = 0; i < previous.blockOffsets.length; i++) {
+				addBlock(previous.blockOffsets[i], previous.firstReports[i]);
+			}
+			offset = previous.indexOffset();
+			numReports = previous.numReports;
+		}
+
+		void add(byte[] report) throws IOException {
+			if (rawLength > 0 && rawLength + 4 + report.length > blockSize) {
+				endBlock();
+			}
+			if (4 + report.length > raw.length) {
+				// A report larger than a block gets a block of its own
+				raw = new byte[4 + report.length];
+				compressed = new byte[BlockCodec.maxCompressedLength(raw.length)];
+			}
+			if (rawLength == 0) {
+				blockFirst = numReports;
+			}
+			putInt(raw, rawLength, report.length);
+			System.arraycopy(report, 0, raw, rawLength + 4, report.length);
+			rawLength += 4 + report.length;
+			numReports++;
+		}
+
+		void finish(int generation) throws IOException {
+			if (rawLength > 0) {
+				endBlock();
+			}
+			for (int i = 0; i < numBlocks; i++) {
+				out.writeLong(offsets[i]);
+				out.writeLong(firsts[i]);
+			}
+			out.writeInt(numBlocks);
+			out.writeLong(numReports);
+			out.writeInt(generation);
+			out.writeLong(offset);
+			out.writeInt(MAGIC);
+			out.flush();
+		}
+
+		void close() throws IOException {
+			codec.end();
+			out.close();
+		}
+
+		private void endBlock() throws IOException {
+			addBlock(offset, blockFirst);
+			int n = codec.compress(raw, 0, rawLength, compressed, 0);
+			if (n < 0) {
+				out.writeByte(BlockCodec.NONE);
+				out.writeInt(rawLength);
+				out.writeInt(rawLength);
+				out.write(raw, 0, rawLength);
+				n = rawLength;
+			} else {
+				out.writeByte(codec.getCodec());
+				out.writeInt(rawLength);
+				out.writeInt(n);
+				out.write(compressed, 0, n);
+			}
+			offset += BlockCodec.BLOCK_HEADER_LENGTH + n;
+			rawLength = 0;
+		}
+
+		private void addBlock(long blockOffset, long firstReport) {
+			if (numBlocks == offsets.length) {
+				offsets = grow(offsets);
+				firsts = grow(firsts);
+			}
+			offsets[numBlocks] = blockOffset;
+			firsts[numBlocks] = firstReport;
+			numBlocks++;
+		}
+	}
+
+	private static long[] grow(long[] a) {
+		long[] b = new long[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+				| ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * Decompresses one block at a time, opening the file only while a
+	 * block is being read.
+	 */
+	private final class BlockIterator implements Iterator<Report> {
+		private int nextBlock;
+		private byte[] raw = new byte[0];
+		private int rawLength = 0;
+		private int pos = 0;
+		private final BlockCodec codec = new BlockCodec(BlockCodec.NONE);
+
+		BlockIterator(int firstBlock) {
+			nextBlock = Math.max(firstBlock, 0);
+		}
+
+		public boolean hasNext() {
+			while (pos >= rawLength && nextBlock < blockOffsets.length) {
+				readBlock(nextBlock++);
+			}
+			return pos < rawLength;
+		}
+
+		public Report next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int len = getInt(raw, pos);
+			Report r;
+			try {
+				r = Report.createFromString(new String(raw, pos + 4, len,
+						"UTF-8"));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			pos += 4 + len;
+			return r;
+		}
+
+		private void readBlock(int block) {
+			pos = 0;
+			rawLength = 0;
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					raf.seek(blockOffsets[block]);
+					byte blockCodec = raf.readByte();
+					int uncompressed = raf.readInt();
+					int compressedLength = raf.readInt();
+					if (uncompressed < 0 || compressedLength < 0) {
+						throw new IOException("Corrupt block header");
+					}
+					byte[] compressed = new byte[compressedLength];
+					raf.readFully(compressed);
+					if (raw.length < uncompressed) {
+						raw = new byte[uncompressed];
+					}
+					codec.decompress(blockCodec, compressed, 0,
+							compressedLength, raw, 0, uncompressed);
+					rawLength = uncompressed;
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				LOG.warn("Unable to read block " + block + " of " + file, e);
+				nextBlock = blockOffsets.length;
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -52,7 +52,7 @@ public final class DummyReportSource implements ReportSource {
 	private int reportsPerSecond;
 	private int reportsPerTask;
 	private AtomicReference<TaskID[]> taskList;
-	private BlockingQueue<String> q;
+	private BlockingQueue<ReportFrame> q;
 
 	private Timer updaterTask;
 
@@ -86,7 +86,7 @@ public final class DummyReportSource implements ReportSource {
 		this.generator.start();
 	}
 
-	public void setReportQueue(BlockingQueue<String> q) {
+	public void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.q = q;
 	}
 
@@ -140,7 +140,10 @@ public final class DummyReportSource implements ReportSource {
 			r.put("Key3", "Value3.2");
 			
 			LOG.debug("Sending report");
-			q.offer(r.toString());
+			ReportFrame frame = ReportFrame.fromString(r.toString());
+			if (!q.offer(frame)) {
+				frame.release();
+			}
 		}
 	}
 
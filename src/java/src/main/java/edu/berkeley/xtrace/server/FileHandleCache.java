@@ -0,0 +1,531 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.xtrace.TaskID;
+
+/**
+ * The open task files of a {@link FileTreeReportStore}.
+ * <p>
+ * At most <code>xtrace.server.filecache.size</code> files (default 256)
+ * are kept open, split over <code>xtrace.server.filecache.stripes</code>
+ * independently locked LRU stripes (default 16) chosen by task ID. Files
+ * unused for <code>xtrace.server.filecache.idletimeout</code> milliseconds
+ * (default 30000, 0 to disable) are closed as well. Evicted files are
+ * flushed and closed by a background thread, so the ingest thread only
+ * pays for opening files; a task whose file is still waiting to be closed
+ * has it closed right away when it is reopened, so its reports stay in
+ * order. Files waiting to be closed still count against the budget: an
+ * eighth of each stripe is set aside for them, and once that is used up
+ * the ingest thread closes the oldest itself.
+ */
+final class FileHandleCache {
+	private static final Logger LOG = Logger.getLogger(FileHandleCache.class);
+
+	private final File dataRootDir;
+	private final Stripe[] stripes;
+	private final long idleTimeout;
+	private final Timer idleTimer;
+	private final ExecutorService closer;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong idleEvictions = new AtomicLong();
+	private final AtomicLong inlineCloses = new AtomicLong();
+	private final AtomicLong openNanos = new AtomicLong();
+	private final AtomicLong closeNanos = new AtomicLong();
+	private volatile long lastSynched;
+	private volatile boolean syncOnClose = false;
+
+	/**
+	 * Creates a cache configured from the system properties, holding one
+	 * of <code>shares</code> equal parts of the open file budget.
+	 */
+	FileHandleCache(File dataRootDir, int shares) {
+		this(dataRootDir, Math.max(1, Integer.parseInt(System.getProperty(
+				"xtrace.server.filecache.size", "256"))
+				/ shares), Integer
+				.parseInt(System.getProperty("xtrace.server.filecache.stripes",
+						"16")), Long.parseLong(System.getProperty(
+				"xtrace.server.filecache.idletimeout", "30000")));
+	}
+
+	FileHandleCache(File dataRootDir, int size, int numStripes,
+			long idleTimeout) {
+		this.dataRootDir = dataRootDir;
+		this.idleTimeout = idleTimeout;
+		numStripes = Math.max(1, Math.min(numStripes, size));
+		stripes = new Stripe[numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			// Spread the budget; the first stripes take the remainder
+			stripes[i] = new Stripe(size / numStripes
+					+ (i < size % numStripes ? 1 : 0));
+		}
+		lastSynched = System.currentTimeMillis();
+
+		closer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "FileHandleCache closer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (idleTimeout > 0) {
+			idleTimer = new Timer("FileHandleCache idle eviction", true);
+			long period = Math.max(idleTimeout / 2, 1);
+			idleTimer.schedule(new TimerTask() {
+				public void run() {
+					evictIdle();
+				}
+			}, period, period);
+		} else {
+			idleTimer = null;
+		}
+	}
+
+	/**
+	 * Appends a report, followed by the report separator, to the task's
+	 * file, opening the file if needed.
+	 */
+	void write(TaskID task, ReportFrame frame) throws IOException {
+		String taskstr = task.toString();
+		if (taskstr.length() < 6) {
+			throw new IllegalArgumentException("Invalid task id: " + taskstr);
+		}
+		Stripe stripe = stripes[(taskstr.hashCode() & 0x7fffffff)
+				% stripes.length];
+		while (true) {
+			Handle h = stripe.get(taskstr);
+			synchronized (h) {
+				// Evicted since we looked it up: get a fresh one
+				if (h.out != null) {
+					frame.writeWithSeparatorTo(h.out);
+					h.lastUsed = System.currentTimeMillis();
+					h.dirty = true;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes files sync to disk when they are closed, which
+	 * {@link #syncAll()} relies on for the files it no longer sees.
+	 */
+	void setSyncOnClose(boolean syncOnClose) {
+		this.syncOnClose = syncOnClose;
+	}
+
+	/**
+	 * Flushes and syncs to disk every file written since it was last
+	 * synced, including those waiting to be closed.
+	 *
+	 * @return the number of files synced
+	 */
+	int syncAll() {
+		int synced = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			List<Handle> handles = stripes[i].handles();
+			for (int j = 0; j < handles.size(); j++) {
+				if (handles.get(j).sync()) {
+					synced++;
+				}
+			}
+		}
+		lastSynched = System.currentTimeMillis();
+		return synced;
+	}
+
+	/**
+	 * Flushes every open file, including those waiting to be closed.
+	 */
+	void flushAll() {
+		for (int i = 0; i < stripes.length; i++) {
+			List<Handle> handles = stripes[i].handles();
+			for (int j = 0; j < handles.size(); j++) {
+				handles.get(j).flush();
+			}
+		}
+		lastSynched = System.currentTimeMillis();
+	}
+
+	/**
+	 * Closes every file and stops the background threads.
+	 */
+	void closeAll() {
+		if (idleTimer != null) {
+			idleTimer.cancel();
+		}
+		for (int i = 0; i < stripes.length; i++) {
+			List<Handle> handles = stripes[i].clear();
+			for (int j = 0; j < handles.size(); j++) {
+				handles.get(j).close();
+			}
+		}
+		closer.shutdown();
+		try {
+			closer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lastSynched = System.currentTimeMillis();
+	}
+
+	long lastSynched() {
+		return lastSynched;
+	}
+
+	/**
+	 * Closes the task's file and renames it to <code>to</code>. Reports
+	 * written for the task afterwards go to a new file.
+	 *
+	 * @return false if the task has no file
+	 */
+	boolean detach(TaskID task, File from, File to) throws IOException {
+		String taskstr = task.toString();
+		return stripes[(taskstr.hashCode() & 0x7fffffff) % stripes.length]
+				.detach(taskstr, from, to);
+	}
+
+	/**
+	 * Closes the task's file and deletes the given files.
+	 *
+	 * @return the number of bytes deleted
+	 */
+	long delete(TaskID task, File[] files) {
+		String taskstr = task.toString();
+		return stripes[(taskstr.hashCode() & 0x7fffffff) % stripes.length]
+				.delete(taskstr, files);
+	}
+
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i].evictIdle(cutoff);
+		}
+	}
+
+	/* Statistics */
+
+	/** Writes that found their file already open */
+	long getHits() {
+		return hits.get();
+	}
+
+	/** Writes that had to open their file */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/** Files closed to stay within the size budget */
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Files closed for being idle */
+	long getIdleEvictions() {
+		return idleEvictions.get();
+	}
+
+	/** Evicted files the ingest thread had to close to stay in budget */
+	long getInlineCloses() {
+		return inlineCloses.get();
+	}
+
+	/** Total time spent opening files (and creating their directories) */
+	long getOpenNanos() {
+		return openNanos.get();
+	}
+
+	/** Total time the background thread spent flushing and closing files */
+	long getCloseNanos() {
+		return closeNanos.get();
+	}
+
+	int getOpenFiles() {
+		int n = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			n += stripes[i].size();
+		}
+		return n;
+	}
+
+	/** Evicted files still waiting for the background thread */
+	int getClosingFiles() {
+		int n = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			n += stripes[i].closingSize();
+		}
+		return n;
+	}
+
+	/**
+	 * An open task file. The stream is null once the file is closed.
+	 */
+	private final class Handle {
+		final String taskstr;
+		final FileOutputStream file;
+		OutputStream out;
+		volatile long lastUsed;
+		// Written since last synced to disk
+		boolean dirty = false;
+
+		Handle(String taskstr, FileOutputStream file) {
+			this.taskstr = taskstr;
+			this.file = file;
+			this.out = new BufferedOutputStream(file);
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		synchronized boolean sync() {
+			if (out == null || !dirty) {
+				return false;
+			}
+			try {
+				out.flush();
+				file.getFD().sync();
+			} catch (IOException e) {
+				LOG.warn("I/O error while syncing file for task " + taskstr, e);
+			}
+			dirty = false;
+			return true;
+		}
+
+		synchronized void flush() {
+			if (out != null) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					LOG.warn("I/O error while flushing file for task "
+							+ taskstr, e);
+				}
+			}
+		}
+
+		synchronized void close() {
+			if (out != null) {
+				long start = System.nanoTime();
+				if (syncOnClose) {
+					sync();
+				}
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.warn("Error evicting file for task: " + taskstr, e);
+				}
+				out = null;
+				closeNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * One lock's worth of the cache: an LRU map of open files plus the
+	 * evicted ones the background thread hasn't closed yet, which together
+	 * hold at most <code>capacity</code> descriptors.
+	 */
+	private final class Stripe {
+		private final int capacity;
+		private final int openCapacity;
+		private final LinkedHashMap<String, Handle> open;
+		// In eviction order
+		private final Map<String, Handle> closing = new LinkedHashMap<String, Handle>();
+
+		Stripe(int capacity) {
+			this.capacity = capacity;
+			this.openCapacity = Math.max(1, capacity - capacity / 8);
+			this.open = new LinkedHashMap<String, Handle>(16, .75F, true);
+		}
+
+		synchronized Handle get(String taskstr) throws IOException {
+			Handle h = open.get(taskstr);
+			if (h != null) {
+				hits.incrementAndGet();
+				return h;
+			}
+			misses.incrementAndGet();
+
+			// Its previous handle must be closed before writing again
+			Handle old = closing.remove(taskstr);
+			if (old != null) {
+				old.close();
+			}
+
+			h = new Handle(taskstr, openFile(taskstr));
+			open.put(taskstr, h);
+			if (open.size() > openCapacity) {
+				Iterator<Handle> eldest = open.values().iterator();
+				evict(eldest.next());
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+			// The background thread is behind: don't wait for it
+			while (open.size() + closing.size() > capacity && !closing.isEmpty()) {
+				Iterator<Handle> oldest = closing.values().iterator();
+				Handle c = oldest.next();
+				oldest.remove();
+				c.close();
+				inlineCloses.incrementAndGet();
+			}
+			return h;
+		}
+
+		synchronized boolean detach(String taskstr, File from, File to)
+				throws IOException {
+			// Holding the stripe keeps the task from reopening the file
+			close(taskstr);
+			if (!from.exists()) {
+				return false;
+			}
+			if (!from.renameTo(to)) {
+				throw new IOException("Unable to rename " + from + " to " + to);
+			}
+			return true;
+		}
+
+		synchronized long delete(String taskstr, File[] files) {
+			close(taskstr);
+			long bytes = 0;
+			for (int i = 0; i < files.length; i++) {
+				long length = files[i].length();
+				if (files[i].delete()) {
+					bytes += length;
+				}
+			}
+			return bytes;
+		}
+
+		private void close(String taskstr) {
+			Handle h = open.remove(taskstr);
+			if (h != null) {
+				h.close();
+			}
+			h = closing.remove(taskstr);
+			if (h != null) {
+				h.close();
+			}
+		}
+
+		synchronized void evictIdle(long cutoff) {
+			// Access order puts the least recently used first
+			for (Iterator<Handle> it = open.values().iterator(); it.hasNext();) {
+				Handle h = it.next();
+				if (h.lastUsed >= cutoff) {
+					break;
+				}
+				evict(h);
+				it.remove();
+				idleEvictions.incrementAndGet();
+			}
+		}
+
+		private void evict(final Handle h) {
+			closing.put(h.taskstr, h);
+			closer.execute(new Runnable() {
+				public void run() {
+					h.close();
+					synchronized (Stripe.this) {
+						if (closing.get(h.taskstr) == h) {
+							closing.remove(h.taskstr);
+						}
+					}
+				}
+			});
+		}
+
+		synchronized List<Handle> handles() {
+			List<Handle> handles = new ArrayList<Handle>(open.values());
+			handles.addAll(closing.values());
+			return handles;
+		}
+
+		synchronized List<Handle> clear() {
+			List<Handle> handles = handles();
+			open.clear();
+			closing.clear();
+			return handles;
+		}
+
+		synchronized int size() {
+			return open.size();
+		}
+
+		synchronized int closingSize() {
+			return closing.size();
+		}
+	}
+
+	private FileOutputStream openFile(String taskstr) throws IOException {
+		long start = System.nanoTime();
+		try {
+			// Create the appropriate three-level directories (l1, l2, and l3)
+			File l1 = new File(dataRootDir, taskstr.substring(0, 2));
+			File l2 = new File(l1, taskstr.substring(2, 4));
+			File l3 = new File(l2, taskstr.substring(4, 6));
+			File taskFile = new File(l3, taskstr + ".txt");
+			for (int attempt = 0;; attempt++) {
+				if (!l3.isDirectory() && !l3.mkdirs() && !l3.isDirectory()) {
+					throw new IOException("Error creating directory "
+							+ l3.toString());
+				}
+				try {
+					return new FileOutputStream(taskFile, true);
+				} catch (FileNotFoundException e) {
+					// Retention may have just removed the empty directory
+					if (attempt > 0) {
+						throw e;
+					}
+				}
+			}
+		} finally {
+			openNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+}
@@ -27,69 +27,93 @@
 
 package edu.berkeley.xtrace.server;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.Timestamp;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import edu.berkeley.xtrace.TaskID;
 import edu.berkeley.xtrace.XTraceException;
-import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.BlockCodec;
 import edu.berkeley.xtrace.reporting.Report;
 
 public final class FileTreeReportStore implements QueryableReportStore {
 	private static final Logger LOG = Logger
 			.getLogger(FileTreeReportStore.class);
 	// TODO: support user-specified jdbc connect strings
-	// TODO: when the FileTreeReportStore loads up, fill in the derby database
-	// with
-	// metdata about the already stored reports
 
 	private String dataDirName;
 	private File dataRootDir;
-	private BlockingQueue<String> incomingReports;
-	private LRUFileHandleCache fileCache;
-	private Connection conn;
-	private PreparedStatement countTasks, insert, update, updateTitle,
-			updateTags, updatedSince, numByTask, getByTag, totalNumReports,
-			totalNumTasks, lastUpdatedByTask, lastTasks, getTags, getByTitle,
-			getByTitleApprox;
+	private BlockingQueue<ReportFrame> incomingReports;
+	private FileHandleCache[] fileCaches;
+	private TaskIndex index;
 	private boolean shouldOperate = false;
-	private boolean databaseInitialized = false;
-
-	private static final Pattern XTRACE_LINE = Pattern.compile(
-			"^X-Trace:\\s+([0-9A-Fa-f]+)$", Pattern.MULTILINE);
-
-	public synchronized void setReportQueue(BlockingQueue<String> q) {
+	private Thread[] shardThreads;
+	// The thread routing reports to the shards, until shutdown()
+	private volatile Thread dispatcher;
+	private GroupCommitter.Durability durability;
+	private GroupCommitter committer;
+
+	// Compression of idle task files
+	private long compressIdle;
+	private byte compressCodec;
+	private int compressBlockSize;
+	private long compactedUpTo = 0;
+	private final Object compactionLock = new Object();
+
+	// Expiry of old tasks
+	private long retentionTtl;
+	private long retentionMaxBytes;
+	private int retentionBatchSize;
+	private int retentionRate;
+	private final AtomicLong diskUsage = new AtomicLong(-1);
+
+	// Held from writing a report until it is recorded in the index, so
+	// expiry never sees one without the other; striped by task
+	private final Object[] ingestLocks = new Object[64];
+
+	// Compaction and expiry run one at a time on this timer
+	private Timer maintenance;
+	private final Object maintenanceLock = new Object();
+	private volatile boolean stopping = false;
+
+	// Maximum number of reports taken from the queue per wakeup
+	private static final int BATCH_SIZE = 256;
+
+	// Bytes read at a time when looking for reports in a task file
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	public synchronized void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.incomingReports = q;
 	}
 
 	@SuppressWarnings("serial")
 	public synchronized void initialize() throws XTraceException {
+		for (int i = 0; i < ingestLocks.length; i++) {
+			ingestLocks[i] = new Object();
+		}
+
 		// Directory to store reports into
 		dataDirName = System.getProperty("xtrace.server.storedirectory");
 		if (dataDirName == null) {
@@ -106,437 +130,693 @@ public final class FileTreeReportStore implements QueryableReportStore {
 			throw new XTraceException("Can't write to data store directory");
 		}
 
-		// 25-element LRU file handle cache. The report data is stored here
-		fileCache = new LRUFileHandleCache(25, dataRootDir);
+		// The report data is stored here. With more than one writer shard,
+		// each shard has its own cache and a share of the open file budget
+		int numShards = Integer.parseInt(System.getProperty(
+				"xtrace.server.store.shards", "1"));
+		durability = GroupCommitter.Durability.configured();
+		if (durability == null) {
+			throw new XTraceException("Unknown durability: "
+					+ System.getProperty("xtrace.server.durability"));
+		}
+		fileCaches = new FileHandleCache[Math.max(numShards, 1)];
+		for (int i = 0; i < fileCaches.length; i++) {
+			fileCaches[i] = new FileHandleCache(dataRootDir, fileCaches.length);
+		}
 
-		// the embedded database keeps metadata about the reports
-		initializeDatabase();
+		// the embedded database keeps metadata about the reports. If it is
+		// missing, was left incomplete by a rebuild that didn't finish, or a
+		// rebuild is asked for, fill it in from the task files
+		boolean rebuild = Boolean.getBoolean("xtrace.server.index.rebuild");
+		if (rebuild) {
+			TaskIndex.drop(dataRootDir);
+		}
+		// Group commits write the index themselves, after the files
+		index = new TaskIndex(dataRootDir,
+				durability != GroupCommitter.Durability.FSYNC);
+		if (rebuild || !index.isComplete()) {
+			new TaskIndexRebuilder(this, dataRootDir, index).rebuild();
+		}
 
-		shouldOperate = true;
-	}
+		// Task files idle for this long are rewritten as compressed blocks
+		compressIdle = Long.parseLong(System.getProperty(
+				"xtrace.server.compress.idle", "0"));
+		String codecName = System.getProperty("xtrace.server.compress.codec",
+				"deflate");
+		compressCodec = BlockCodec.forName(codecName);
+		if (compressCodec < 0) {
+			throw new XTraceException("Unknown compression codec: " + codecName);
+		}
+		compressBlockSize = Integer.parseInt(System.getProperty(
+				"xtrace.server.compress.blocksize", "65536"));
+
+		// Tasks not updated for this long, or the oldest tasks once the task
+		// files take up more than this many bytes, are deleted
+		retentionTtl = Long.parseLong(System.getProperty(
+				"xtrace.server.retention.ttl", "0"));
+		retentionMaxBytes = Long.parseLong(System.getProperty(
+				"xtrace.server.retention.maxbytes", "0"));
+		retentionBatchSize = Integer.parseInt(System.getProperty(
+				"xtrace.server.retention.batchsize", "1000"));
+		retentionRate = Integer.parseInt(System.getProperty(
+				"xtrace.server.retention.rate", "2000"));
+		long retentionInterval = Long.parseLong(System.getProperty(
+				"xtrace.server.retention.interval", "60000"));
+
+		if (durability == GroupCommitter.Durability.FSYNC) {
+			for (int i = 0; i < fileCaches.length; i++) {
+				fileCaches[i].setSyncOnClose(true);
+			}
+			committer = new GroupCommitter("FileTreeReportStore group commit",
+					new Runnable() {
+						public void run() {
+							index.flush(new Runnable() {
+								public void run() {
+									for (int i = 0; i < fileCaches.length; i++) {
+										fileCaches[i].syncAll();
+									}
+								}
+							});
+						}
+					});
+			committer.start();
+		}
 
-	private void initializeDatabase() throws XTraceException {
-		// This embedded SQL database contains metadata about the reports
-		System.setProperty("derby.system.home", dataDirName);
-		try {
-			Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
-		} catch (InstantiationException e) {
-			throw new XTraceException(
-					"Unable to instantiate internal database", e);
-		} catch (IllegalAccessException e) {
-			throw new XTraceException(
-					"Unable to access internal database class", e);
-		} catch (ClassNotFoundException e) {
-			throw new XTraceException(
-					"Unable to locate internal database class", e);
+		stopping = false;
+		if (compressIdle > 0 || retentionTtl > 0 || retentionMaxBytes > 0) {
+			maintenance = new Timer("FileTreeReportStore maintenance", true);
+		}
+		if (compressIdle > 0) {
+			long period = Math.min(Math.max(compressIdle / 2, 1), 60000);
+			maintenance.schedule(new TimerTask() {
+				public void run() {
+					compactIdleTasks(System.currentTimeMillis() - compressIdle);
+				}
+			}, period, period);
+		}
+		if (retentionTtl > 0 || retentionMaxBytes > 0) {
+			maintenance.schedule(new TimerTask() {
+				public void run() {
+					expireTasks(System.currentTimeMillis());
+				}
+			}, retentionInterval, retentionInterval);
 		}
-		try {
-			try {
-				// Connect to existing DB
-				conn = DriverManager.getConnection("jdbc:derby:tasks");
-			} catch (SQLException e) {
-				// DB does not exist - create it
-				conn = DriverManager
-						.getConnection("jdbc:derby:tasks;create=true");
-				createTables();
-				conn.commit();
-			}
-			conn.setAutoCommit(false);
-		} catch (SQLException e) {
-			throw new XTraceException("Unable to connect to interal database: "
-					+ e.getSQLState(), e);
-		}
-		LOG.info("Successfully connected to the internal Derby database");
 
-		try {
-			createPreparedStatements();
-		} catch (SQLException e) {
-			throw new XTraceException("Unable to setup prepared statements", e);
-		}
-		databaseInitialized = true;
-	}
-
-	private void createTables() throws SQLException {
-		Statement s = conn.createStatement();
-		s.executeUpdate("create table tasks("
-				+ "taskId varchar(40) not null primary key, "
-				+ "firstSeen timestamp default current_timestamp not null, "
-				+ "lastUpdated timestamp default current_timestamp not null, "
-				+ "numReports integer default 1 not null, "
-				+ "tags varchar(512), " + "title varchar(128))");
-		s.executeUpdate("create index idx_tasks on tasks(taskid)");
-		s.executeUpdate("create index idx_firstseen on tasks(firstSeen)");
-		s.executeUpdate("create index idx_lastUpdated on tasks(lastUpdated)");
-		s.executeUpdate("create index idx_tags on tasks(tags)");
-		s.executeUpdate("create index idx_title on tasks(title)");
-		s.close();
-	}
-
-	private void createPreparedStatements() throws SQLException {
-		countTasks = conn
-				.prepareStatement("select count(taskid) as rowcount from tasks where taskid = ?");
-		insert = conn
-				.prepareStatement("insert into tasks (taskid, tags, title) values (?, ?, ?)");
-		update = conn
-				.prepareStatement("update tasks set lastUpdated = current_timestamp, "
-						+ "numReports = numReports + 1 where taskId = ?");
-		updateTitle = conn
-				.prepareStatement("update tasks set title = ? where taskid = ?");
-		updateTags = conn
-				.prepareStatement("update tasks set tags = ? where taskid = ?");
-		updatedSince = conn
-				.prepareStatement("select * from tasks where firstseen >= ? order by lastUpdated desc");
-		numByTask = conn
-				.prepareStatement("select numReports from tasks where taskid = ?");
-		totalNumReports = conn
-				.prepareStatement("select sum(numReports) as totalreports from tasks");
-		totalNumTasks = conn
-				.prepareStatement("select count(distinct taskid) as numtasks from tasks");
-		lastUpdatedByTask = conn
-				.prepareStatement("select lastUpdated from tasks where taskid = ?");
-		lastTasks = conn
-				.prepareStatement("select * from tasks order by lastUpdated desc");
-		getByTag = conn
-				.prepareStatement("select * from tasks where upper(tags) like upper('%'||?||'%') order by lastUpdated desc");
-		getTags = conn
-				.prepareStatement("select tags from tasks where taskid = ?");
-		getByTitle = conn
-				.prepareStatement("select * from tasks where upper(title) = upper(?) order by lastUpdated desc");
-		getByTitleApprox = conn
-				.prepareStatement("select * from tasks where upper(title) like upper('%'||?||'%') order by lastUpdated desc");
+		shouldOperate = true;
 	}
 
+	/**
+	 * Does what <code>xtrace.server.durability</code> asks for: nothing
+	 * (none), flushing the files and writing the index (flush, the
+	 * default), or a group commit that syncs the files to disk and then
+	 * writes the index (fsync).
+	 */
 	public void sync() {
-		fileCache.flushAll();
+		switch (durability) {
+		case NONE:
+			break;
+		case FLUSH:
+			for (int i = 0; i < fileCaches.length; i++) {
+				fileCaches[i].flushAll();
+			}
+			index.flush();
+			break;
+		case FSYNC:
+			committer.commit();
+			break;
+		}
 	}
 
 	public synchronized void shutdown() {
 		LOG.info("Shutting down the FileTreeReportStore");
-		if (fileCache != null)
-			fileCache.closeAll();
-
-		if (databaseInitialized) {
+		if (maintenance != null) {
+			stopping = true;
+			maintenance.cancel();
+			maintenance = null;
+			// Wait for a running compaction or expiry to give up
+			synchronized (maintenanceLock) {
+			}
+		}
+		// Stop routing reports first, so none are left blocked on a full
+		// shard queue
+		Thread d = dispatcher;
+		if (d != null) {
+			dispatcher = null;
+			d.interrupt();
 			try {
-				DriverManager.getConnection("jdbc:derby:tasks;shutdown=true");
-			} catch (SQLException e) {
-				if (!e.getSQLState().equals("08006")) {
-					LOG.warn("Unable to shutdown embedded database", e);
-				}
+				d.join(1000);
+			} catch (InterruptedException e) {
 			}
-			databaseInitialized = false;
 		}
-	}
-
-	void receiveReport(String msg) {
-		Matcher matcher = XTRACE_LINE.matcher(msg);
-		if (matcher.find()) {
-			Report r = Report.createFromString(msg);
-			String xtraceLine = matcher.group(1);
-			XTraceMetadata meta = XTraceMetadata.createFromString(xtraceLine);
-
-			if (meta.getTaskId() != null) {
-				TaskID task = meta.getTaskId();
-				String taskId = task.toString().toUpperCase();
-				BufferedWriter fout = fileCache.getHandle(task);
-				if (fout == null) {
-					LOG
-							.warn("Discarding a report due to internal fileCache error: "
-									+ msg);
-					return;
-				}
+		if (shardThreads != null) {
+			for (int i = 0; i < shardThreads.length; i++) {
+				shardThreads[i].interrupt();
+			}
+			for (int i = 0; i < shardThreads.length; i++) {
 				try {
-					fout.write(msg);
-					fout.newLine();
-					fout.newLine();
-					LOG.debug("Wrote " + msg.length() + " bytes to the stream");
-				} catch (IOException e) {
-					LOG.warn("I/O error while writing the report", e);
+					shardThreads[i].join(1000);
+				} catch (InterruptedException e) {
+					break;
 				}
+			}
+			shardThreads = null;
+		}
+		if (committer != null) {
+			committer.stop();
+		}
+		if (fileCaches != null) {
+			for (int i = 0; i < fileCaches.length; i++) {
+				fileCaches[i].closeAll();
+			}
+		}
 
-				// Update index
-				try {
-					// Extract title
-					String title = null;
-					List<String> titleVals = r.get("Title");
-					if (titleVals != null && titleVals.size() > 0) {
-						// There should be only one title field, but if there
-						// are more, just
-						// arbitrarily take the first one.
-						title = titleVals.get(0);
-					}
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+	}
 
-					// Extract tags
-					TreeSet<String> newTags = null;
-					List<String> list = r.get("Tag");
-					if (list != null) {
-						newTags = new TreeSet<String>(list);
-					}
+	void receiveReport(String msg) {
+		ReportFrame frame = ReportFrame.fromString(msg);
+		receiveReport(frame);
+		frame.release();
+	}
 
-					// Find out whether to do an insert or an update
-					countTasks.setString(1, taskId);
-					ResultSet rs = countTasks.executeQuery();
-					rs.next();
-					if (rs.getInt("rowcount") == 0) {
-						if (title == null) {
-							title = taskId;
-						}
-						insert.setString(1, taskId);
-						insert.setString(2, joinWithCommas(newTags));
-						insert.setString(3, title);
-						insert.executeUpdate();
-					} else {
-						// Update title if necessary
-						if (title != null) {
-							updateTitle.setString(1, title);
-							updateTitle.setString(2, taskId);
-							updateTitle.executeUpdate();
-						}
-						// Update tags if necessary
-						if (newTags != null) {
-							getTags.setString(1, taskId);
-							ResultSet tagsRs = getTags.executeQuery();
-							tagsRs.next();
-							String oldTags = tagsRs.getString("tags");
-							tagsRs.close();
-							newTags.addAll(Arrays.asList(oldTags.split(",")));
-							updateTags.setString(1, joinWithCommas(newTags));
-							updateTags.setString(2, taskId);
-							updateTags.executeUpdate();
-						}
-						// Update report count and last-updated date
-						update.setString(1, taskId);
-						update.executeUpdate();
-					}
-					rs.close();
-					conn.commit();
+	void receiveReport(ReportFrame frame) {
+		// One pass over the raw bytes gives everything the index needs
+		ReportHeaders headers = ReportHeaders.scan(frame);
+		TaskID task = headers.getTaskId();
+		if (task == null) {
+			LOG.debug("Ignoring a report without an X-Trace taskID");
+			return;
+		}
 
-				} catch (SQLException e) {
-					LOG.warn("Unable to update metadata about task "
-							+ task.toString(), e);
+		synchronized (ingestLock(task)) {
+			try {
+				fileCaches[shardOf(task)].write(task, frame);
+				if (retentionMaxBytes > 0) {
+					diskUsage.addAndGet(frame.length() + 2);
 				}
-			} else {
-				LOG
-						.debug("Ignoring a report without an X-Trace taskID: "
-								+ msg);
+			} catch (IOException e) {
+				LOG.warn("I/O error while writing the report", e);
 			}
+
+			// Update index; the report count, title and tags are buffered
+			// and written in batches
+			index.record(task, headers.getTitle(), headers.getTags());
+		}
+		GroupCommitter c = committer;
+		if (c != null) {
+			c.added();
 		}
 	}
 
-	private String joinWithCommas(Collection<String> strings) {
-		if (strings == null)
-			return "";
-		StringBuilder sb = new StringBuilder();
-		for (Iterator<String> it = strings.iterator(); it.hasNext();) {
-			sb.append(it.next());
-			if (it.hasNext())
-				sb.append(",");
-		}
-		return sb.toString();
+	private int shardOf(TaskID task) {
+		return (task.hashCode() & 0x7fffffff) % fileCaches.length;
+	}
+
+	private Object ingestLock(TaskID task) {
+		return ingestLocks[(task.hashCode() & 0x7fffffff) % ingestLocks.length];
 	}
 
 	public void run() {
 		LOG.info("FileTreeReportStore running with datadir " + dataDirName);
+		if (fileCaches.length > 1) {
+			runSharded();
+			return;
+		}
 
+		List<ReportFrame> batch = new ArrayList<ReportFrame>(BATCH_SIZE);
 		while (true) {
 			if (shouldOperate) {
-				String msg;
 				try {
-					msg = incomingReports.take();
+					batch.add(incomingReports.take());
 				} catch (InterruptedException e1) {
 					continue;
 				}
-				receiveReport(msg);
+				incomingReports.drainTo(batch, BATCH_SIZE - 1);
+				for (int i = 0; i < batch.size(); i++) {
+					ReportFrame msg = batch.get(i);
+					receiveReport(msg);
+					msg.release();
+				}
+				batch.clear();
 			}
 		}
 	}
 
-	public Iterator<Report> getReportsByTask(TaskID task) {
-		return new FileTreeIterator(taskIdtoFile(task.toString()));
+	/*
+	 * Routes each report to the writer shard that owns its task. A task
+	 * always goes to the same shard, and each shard handles its reports in
+	 * arrival order, so reports stay in order within a task.
+	 */
+	private void runSharded() {
+		int queueSize = Integer.parseInt(System.getProperty(
+				"xtrace.server.store.shardqueue", "1024"));
+		List<BlockingQueue<ReportFrame>> shardQueues = new ArrayList<BlockingQueue<ReportFrame>>(
+				fileCaches.length);
+		for (int i = 0; i < fileCaches.length; i++) {
+			shardQueues.add(new ArrayBlockingQueue<ReportFrame>(queueSize));
+		}
+		synchronized (this) {
+			dispatcher = Thread.currentThread();
+			shardThreads = new Thread[fileCaches.length];
+			for (int i = 0; i < shardThreads.length; i++) {
+				shardThreads[i] = new Thread(new Shard(shardQueues.get(i)),
+						"FileTreeReportStore shard " + i);
+				shardThreads[i].setDaemon(true);
+				shardThreads[i].start();
+			}
+		}
+		LOG.info("Writing reports with " + shardThreads.length
+				+ " writer shards");
+
+		List<ReportFrame> batch = new ArrayList<ReportFrame>(BATCH_SIZE);
+		while (dispatcher != null) {
+			try {
+				batch.add(incomingReports.take());
+			} catch (InterruptedException e1) {
+				continue;
+			}
+			incomingReports.drainTo(batch, BATCH_SIZE - 1);
+			for (int i = 0; i < batch.size(); i++) {
+				ReportFrame msg = batch.get(i);
+				TaskID task = msg.getTaskId();
+				if (task == null) {
+					LOG.debug("Ignoring a report without an X-Trace taskID");
+					msg.release();
+					continue;
+				}
+				try {
+					shardQueues.get(shardOf(task)).put(msg);
+				} catch (InterruptedException e) {
+					msg.release();
+					if (dispatcher == null) {
+						// Shutting down: give back the rest of the batch
+						for (int j = i + 1; j < batch.size(); j++) {
+							batch.get(j).release();
+						}
+						break;
+					}
+				}
+			}
+			batch.clear();
+		}
 	}
 
-	public List<TaskRecord> getTasksSince(long milliSecondsSince1970,
-			int offset, int limit) {
-		ArrayList<TaskRecord> lst = new ArrayList<TaskRecord>();
+	/**
+	 * A writer thread for the tasks of one shard
+	 */
+	private final class Shard implements Runnable {
+		private final BlockingQueue<ReportFrame> queue;
 
-		try {
-			if (offset + limit + 1 < 0) {
-				updatedSince.setMaxRows(Integer.MAX_VALUE);
-			} else {
-				updatedSince.setMaxRows(offset + limit + 1);
-			}
-			updatedSince.setString(1, (new Timestamp(milliSecondsSince1970))
-					.toString());
-			ResultSet rs = updatedSince.executeQuery();
-			int i = 0;
-			while (rs.next()) {
-				if (i >= offset && i < offset + limit)
-					lst.add(readTaskRecord(rs));
-				i++;
+		Shard(BlockingQueue<ReportFrame> queue) {
+			this.queue = queue;
+		}
+
+		public void run() {
+			List<ReportFrame> batch = new ArrayList<ReportFrame>(BATCH_SIZE);
+			while (true) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					// Shutting down: give back the reports still queued
+					for (ReportFrame msg; (msg = queue.poll()) != null;) {
+						msg.release();
+					}
+					return;
+				}
+				queue.drainTo(batch, BATCH_SIZE - 1);
+				for (int i = 0; i < batch.size(); i++) {
+					ReportFrame msg = batch.get(i);
+					receiveReport(msg);
+					msg.release();
+				}
+				batch.clear();
 			}
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
 		}
+	}
 
-		return lst;
+	public Iterator<Report> getReportsByTask(TaskID task) {
+		return getReportsByTask(task, 0);
 	}
 
-	public List<TaskRecord> getLatestTasks(int offset, int limit) {
-		int numToFetch = offset + limit;
-		List<TaskRecord> lst = new ArrayList<TaskRecord>();
-		try {
-			if (offset + limit + 1 < 0) {
-				lastTasks.setMaxRows(Integer.MAX_VALUE);
-			} else {
-				lastTasks.setMaxRows(offset + limit + 1);
+	/**
+	 * Returns the reports of a task, skipping the first <code>skip</code>.
+	 * Reports in a compressed task file are skipped a block at a time
+	 * without being decompressed.
+	 */
+	Iterator<Report> getReportsByTask(TaskID task, long skip) {
+		String taskstr = task.toString();
+		File txt = taskIdtoFile(taskstr);
+		List<Iterator<Report>> parts = new ArrayList<Iterator<Report>>(3);
+		/*
+		 * Resolve the files under the lock, so that a concurrent compaction
+		 * can't move reports from one to another in between. The iterators
+		 * map their first window right away, and the mapping outlives the
+		 * file being renamed or deleted.
+		 */
+		synchronized (compactionLock) {
+			CompressedTaskFile xtz = openCompressed(txt);
+			int generation = 0;
+			if (xtz != null) {
+				generation = xtz.getGeneration();
+				int block = xtz.blockOf(skip);
+				skip -= xtz.firstReportOf(block);
+				parts.add(xtz.reports(block));
 			}
-			ResultSet rs = lastTasks.executeQuery();
-			int i = 0;
-			while (rs.next() && numToFetch > 0) {
-				if (i >= offset && i < offset + limit)
-					lst.add(readTaskRecord(rs));
-				numToFetch -= 1;
-				i++;
+			File compacting = compactingFile(txt, generation + 1);
+			if (compacting.exists()) {
+				parts.add(new FileTreeIterator(compacting));
 			}
-			rs.close();
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
+			parts.add(new FileTreeIterator(txt));
+		}
+		Iterator<Report> it = new ChainedIterator(parts);
+		for (; skip > 0 && it.hasNext(); skip--) {
+			it.next();
 		}
-		return lst;
+		return it;
 	}
 
-	public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
-		List<TaskRecord> lst = new ArrayList<TaskRecord>();
-		try {
-			if (offset + limit + 1 < 0) {
-				getByTag.setMaxRows(Integer.MAX_VALUE);
-			} else {
-				getByTag.setMaxRows(offset + limit + 1);
+	/**
+	 * Returns the reports of a task that come after <code>since</code>,
+	 * as the bytes to send to a client, along with the position to ask
+	 * from next time.
+	 * <p>
+	 * When <code>since</code> carries a byte offset into the task's text
+	 * file, and the file hasn't been compacted since, the range is just the
+	 * text file from that offset on. Otherwise the reports are counted from
+	 * the start: whole blocks of the compressed file are skipped, the rest
+	 * decompressed, and the text files are scanned for report headers. Only
+	 * reports followed by their blank line are included, so a report the
+	 * writer has only partly flushed is left for the next call.
+	 */
+	ReportRange getReportRange(TaskID task, ReportPosition since)
+			throws IOException {
+		File txt = taskIdtoFile(task.toString());
+		ReportRange range = new ReportRange();
+		boolean done = false;
+		// The channels opened under the lock outlive renames and deletes
+		synchronized (compactionLock) {
+			try {
+				CompressedTaskFile xtz = openCompressed(txt);
+				int generation = xtz == null ? 0 : xtz.getGeneration();
+				File compacting = compactingFile(txt, generation + 1);
+				FileChannel txtChannel = range.open(txt);
+				long txtEnd = txtChannel == null ? 0 : completeEnd(txtChannel);
+				long offset = since.getOffset();
+				if (offset >= 0 && since.getGeneration() == generation
+						&& !compacting.exists() && offset <= txtEnd
+						&& (offset == txtEnd || isReportAt(txtChannel, offset))) {
+					long[] count = new long[1];
+					findReport(txtChannel, offset, txtEnd, Long.MAX_VALUE, count);
+					range.add(txtChannel, offset, txtEnd);
+					range.end = new ReportPosition(since.getReports() + count[0],
+							generation, txtEnd);
+				} else {
+					long skip = since.getReports();
+					long total = 0;
+					if (xtz != null) {
+						int block = xtz.blockOf(skip);
+						range.compressed = xtz;
+						range.firstBlock = block;
+						range.skip = skip - xtz.firstReportOf(block);
+						total = xtz.getNumReports();
+					}
+					FileChannel ch = range.open(compacting);
+					if (ch != null) {
+						total += addReports(range, ch, ch.size(), skip - total);
+					}
+					if (txtChannel != null) {
+						total += addReports(range, txtChannel, txtEnd, skip - total);
+					}
+					range.end = new ReportPosition(total, generation, txtEnd);
+				}
+				done = true;
+			} finally {
+				if (!done) {
+					range.close();
+				}
 			}
-			getByTag.setString(1, tag);
-			ResultSet rs = getByTag.executeQuery();
-			int i = 0;
-			while (rs.next()) {
-				TaskRecord rec = readTaskRecord(rs);
-				if (rec.getTags().contains(tag)) { // Make sure the SQL "LIKE"
-													// match is exact
-					if (i >= offset && i < offset + limit)
-						lst.add(rec);
+		}
+		return range;
+	}
+
+	/*
+	 * Adds the reports of a text file up to end to a range, but the first
+	 * skip, and returns how many there are.
+	 */
+	private static long addReports(ReportRange range, FileChannel ch,
+			long end, long skip) throws IOException {
+		long[] count = new long[1];
+		long start = findReport(ch, 0, end, Math.max(skip, 0), count);
+		long total = count[0];
+		if (start < end) {
+			range.add(ch, start, end);
+			findReport(ch, start, end, Long.MAX_VALUE, count);
+			total += count[0];
+		}
+		return total;
+	}
+
+	/*
+	 * Scans the lines between from (which starts a line) and end for report
+	 * headers. Returns the position of the header numbered stop, counting
+	 * from 0, or end if there are fewer; count[0] is set to the number of
+	 * headers before that position.
+	 */
+	private static long findReport(FileChannel ch, long from, long end,
+			long stop, long[] count) throws IOException {
+		byte[] header = FileTreeIterator.HEADER;
+		ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		long n = 0;
+		long lineStart = from;
+		int matched = 0;
+		for (long p = from; p < end;) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end - p));
+			readFully(ch, buf, p);
+			for (int i = 0; i < buf.limit(); i++, p++) {
+				byte b = buf.get(i);
+				if (matched >= 0) {
+					if (b != header[matched]) {
+						matched = -1;
+					} else if (++matched == header.length) {
+						if (n == stop) {
+							count[0] = n;
+							return lineStart;
+						}
+						n++;
+						matched = -1;
+					}
+				}
+				if (b == '\n') {
+					matched = 0;
+					lineStart = p + 1;
 				}
-				i++;
 			}
-			rs.close();
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
 		}
-		return lst;
+		count[0] = n;
+		return end;
 	}
 
-	public int countByTaskId(TaskID taskId) {
-		try {
-			numByTask.setString(1, taskId.toString().toUpperCase());
-			ResultSet rs = numByTask.executeQuery();
-			if (rs.next()) {
-				return rs.getInt("numreports");
+	private static boolean isReportAt(FileChannel ch, long p)
+			throws IOException {
+		byte[] header = FileTreeIterator.HEADER;
+		if (p + header.length > ch.size()) {
+			return false;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(header.length);
+		readFully(ch, buf, p);
+		return Arrays.equals(buf.array(), header);
+	}
+
+	/*
+	 * Returns the position just after the last blank line of a text file,
+	 * which is where the last complete report ends.
+	 */
+	private static long completeEnd(FileChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		long hi = ch.size();
+		while (hi > 0) {
+			long lo = Math.max(0, hi - buf.capacity());
+			buf.clear();
+			buf.limit((int) (hi - lo));
+			readFully(ch, buf, lo);
+			for (int i = buf.limit() - 1; i > 0; i--) {
+				if (buf.get(i) == '\n'
+						&& (buf.get(i - 1) == '\n' || (i > 1
+								&& buf.get(i - 1) == '\r' && buf.get(i - 2) == '\n'))) {
+					return lo + i + 1;
+				}
+			}
+			if (lo == 0) {
+				break;
 			}
-			rs.close();
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
+			// Overlap, for a blank line across the two reads
+			hi = lo + 2;
 		}
 		return 0;
 	}
 
-	public long lastUpdatedByTaskId(TaskID taskId) {
-		long ret = 0L;
+	private static void readFully(FileChannel ch, ByteBuffer buf, long p)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, p + buf.position()) < 0) {
+				throw new EOFException("Unexpected end of task file");
+			}
+		}
+	}
 
-		try {
-			lastUpdatedByTask.setString(1, taskId.toString());
-			ResultSet rs = lastUpdatedByTask.executeQuery();
-			if (rs.next()) {
-				Timestamp ts = rs.getTimestamp("lastUpdated");
-				ret = ts.getTime();
+	/**
+	 * Reports of a task, as found by {@link #getReportRange}: those of the
+	 * compressed file from a block on, then byte ranges of text files. The
+	 * files stay open until the range is written or closed.
+	 */
+	static final class ReportRange {
+		private CompressedTaskFile compressed = null;
+		private int firstBlock;
+		private long skip;
+		private final List<FileChannel> channels = new ArrayList<FileChannel>(2);
+		private final List<FileChannel> parts = new ArrayList<FileChannel>(2);
+		private final List<long[]> bounds = new ArrayList<long[]>(2);
+		private ReportPosition end;
+
+		/** The position after the last report of the range */
+		ReportPosition getEnd() {
+			return end;
+		}
+
+		/**
+		 * Writes the reports, separated by blank lines, and closes the
+		 * files. Text file ranges are copied by the channel, without going
+		 * through the Java heap when <code>out</code> allows it.
+		 */
+		void writeTo(OutputStream out) throws IOException {
+			try {
+				if (compressed != null) {
+					Iterator<Report> it = compressed.reports(firstBlock);
+					for (long i = 0; it.hasNext(); i++) {
+						Report r = it.next();
+						if (i >= skip) {
+							out.write(r.toString().getBytes("UTF-8"));
+							out.write('\n');
+						}
+					}
+				}
+				WritableByteChannel target = Channels.newChannel(out);
+				for (int i = 0; i < parts.size(); i++) {
+					FileChannel ch = parts.get(i);
+					long p = bounds.get(i)[0], limit = bounds.get(i)[1];
+					while (p < limit) {
+						long n = ch.transferTo(p, limit - p, target);
+						if (n <= 0) {
+							throw new EOFException("Unexpected end of task file");
+						}
+						p += n;
+					}
+				}
+				out.flush();
+			} finally {
+				close();
 			}
-			rs.close();
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
 		}
 
-		return ret;
-	}
+		void close() {
+			for (int i = 0; i < channels.size(); i++) {
+				try {
+					channels.get(i).close();
+				} catch (IOException e) {
+					LOG.warn("Unable to close task file", e);
+				}
+			}
+			channels.clear();
+		}
 
-	public List<TaskRecord> createRecordList(ResultSet rs, int offset, int limit)
-			throws SQLException {
-		List<TaskRecord> lst = new ArrayList<TaskRecord>();
-		int i = 0;
-		while (rs.next()) {
-			if (i >= offset && i < offset + limit)
-				lst.add(readTaskRecord(rs));
-			i++;
+		private FileChannel open(File f) throws IOException {
+			if (!f.exists()) {
+				return null;
+			}
+			FileChannel ch;
+			try {
+				ch = new RandomAccessFile(f, "r").getChannel();
+			} catch (FileNotFoundException e) {
+				return null; // Deleted by now
+			}
+			channels.add(ch);
+			return ch;
 		}
-		return lst;
-	}
 
-	public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
-		List<TaskRecord> lst = new ArrayList<TaskRecord>();
-		try {
-			if (offset + limit + 1 < 0) {
-				getByTitle.setMaxRows(Integer.MAX_VALUE);
-			} else {
-				getByTitle.setMaxRows(offset + limit + 1);
+		private void add(FileChannel ch, long start, long end) {
+			if (start < end) {
+				parts.add(ch);
+				bounds.add(new long[] { start, end });
 			}
-			getByTitle.setString(1, title);
-			lst = createRecordList(getByTitle.executeQuery(), offset, limit);
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
 		}
-		return lst;
+	}
+
+	public List<TaskRecord> getTasksSince(long milliSecondsSince1970,
+			int offset, int limit) {
+		return index.getTasksSince(milliSecondsSince1970, offset, limit);
+	}
+
+	public List<TaskRecord> getLatestTasks(int offset, int limit) {
+		return index.getLatestTasks(offset, limit);
+	}
+
+	public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
+		return index.getTasksByTag(tag, offset, limit);
+	}
+
+	public int countByTaskId(TaskID taskId) {
+		TaskRecord rec = index.getTask(taskId);
+		return rec == null ? 0 : rec.getNumReports();
+	}
+
+	public long lastUpdatedByTaskId(TaskID taskId) {
+		TaskRecord rec = index.getTask(taskId);
+		return rec == null ? 0L : rec.getLastUpdated().getTime();
+	}
+
+	public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+		return index.getTasksByTitle(title, offset, limit);
 	}
 
 	public List<TaskRecord> getTasksByTitleSubstring(String title, int offset,
 			int limit) {
-		List<TaskRecord> lst = new ArrayList<TaskRecord>();
-		try {
-			if (offset + limit + 1 < 0) {
-				getByTitleApprox.setMaxRows(Integer.MAX_VALUE);
-			} else {
-				getByTitleApprox.setMaxRows(offset + limit + 1);
-			}
-			getByTitleApprox.setString(1, title);
-			lst = createRecordList(getByTitleApprox.executeQuery(), offset,
-					limit);
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
-		}
-		return lst;
+		return index.getTasksByTitleSubstring(title, offset, limit);
 	}
 
-	public int numReports() {
-		int total = 0;
+	public List<TaskRecord> getTasksSince(long milliSecondsSince1970,
+			TaskCursor after, int limit) {
+		return index.getTasksSince(milliSecondsSince1970, after, limit);
+	}
 
-		try {
-			ResultSet rs = totalNumReports.executeQuery();
-			rs.next();
-			total = rs.getInt("totalreports");
-			rs.close();
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
-		}
+	public List<TaskRecord> getLatestTasks(TaskCursor after, int limit) {
+		return index.getLatestTasks(after, limit);
+	}
 
-		return total;
+	public List<TaskRecord> getTasksByTag(String tag, TaskCursor after,
+			int limit) {
+		return index.getTasksByTag(tag, after, limit);
 	}
 
-	public int numTasks() {
-		int total = 0;
+	public List<TaskRecord> getTasksByTitle(String title, TaskCursor after,
+			int limit) {
+		return index.getTasksByTitle(title, after, limit);
+	}
 
-		try {
-			ResultSet rs = totalNumTasks.executeQuery();
-			rs.next();
-			total = rs.getInt("numtasks");
-			rs.close();
-		} catch (SQLException e) {
-			LOG.warn("Internal SQL error", e);
-		}
+	public List<TaskRecord> getTasksByTitleSubstring(String title,
+			TaskCursor after, int limit) {
+		return index.getTasksByTitleSubstring(title, after, limit);
+	}
 
-		return total;
+	public int numReports() {
+		return index.numReports();
+	}
+
+	public int numTasks() {
+		return index.numTasks();
 	}
 
 	private File taskIdtoFile(String taskId) {
@@ -547,164 +827,356 @@ public final class FileTreeReportStore implements QueryableReportStore {
 		return taskFile;
 	}
 
-	public long dataAsOf() {
-		return fileCache.lastSynched();
-	}
-
-	private TaskRecord readTaskRecord(ResultSet rs) throws SQLException {
-		TaskID taskId = TaskID.createFromString(rs.getString("taskId"));
-		Date firstSeen = new Date(rs.getTimestamp("firstSeen").getTime());
-		Date lastUpdated = new Date(rs.getTimestamp("lastUpdated").getTime());
-		String title = rs.getString("title");
-		int numReports = rs.getInt("numReports");
-		List<String> tags = Arrays.asList(rs.getString("tags").split(","));
-		return new TaskRecord(taskId, firstSeen, lastUpdated, numReports,
-				title, tags);
-	}
-
-	private final static class LRUFileHandleCache {
-
-		private File dataRootDir;
-		private final int CACHE_SIZE;
-
-		private Map<String, BufferedWriter> fCache = null;
-		private long lastSynched;
-
-		@SuppressWarnings("serial")
-		public LRUFileHandleCache(int size, File dataRootDir)
-				throws XTraceException {
-			CACHE_SIZE = size;
-			lastSynched = System.currentTimeMillis();
-			this.dataRootDir = dataRootDir;
-
-			// a 25-entry, LRU file handle cache
-			fCache = new LinkedHashMap<String, BufferedWriter>(CACHE_SIZE,
-					.75F, true) {
-				protected boolean removeEldestEntry(
-						java.util.Map.Entry<String, BufferedWriter> eldest) {
-					if (size() > CACHE_SIZE) {
-						BufferedWriter evicted = eldest.getValue();
-						try {
-							evicted.flush();
-							evicted.close();
-						} catch (IOException e) {
-							LOG.warn("Error evicting file for task: "
-									+ eldest.getKey(), e);
-						}
-					}
+	private static File compressedFile(File txt) {
+		String name = txt.getName();
+		return new File(txt.getParentFile(), name.substring(0,
+				name.length() - 4)
+				+ CompressedTaskFile.SUFFIX);
+	}
 
-					return size() > CACHE_SIZE;
-				}
-			};
+	/* Where a task file is moved while it is being compressed */
+	private static File compactingFile(File txt, int generation) {
+		String name = txt.getName();
+		return new File(txt.getParentFile(), name.substring(0,
+				name.length() - 4)
+				+ "." + generation + ".compacting");
+	}
+
+	private static CompressedTaskFile openCompressed(File txt) {
+		File f = compressedFile(txt);
+		if (!f.exists()) {
+			return null;
+		}
+		try {
+			return CompressedTaskFile.open(f);
+		} catch (IOException e) {
+			LOG.warn("Unable to read compressed task file " + f, e);
+			return null;
 		}
+	}
 
-		public synchronized BufferedWriter getHandle(TaskID task)
-				throws IllegalArgumentException {
-			String taskstr = task.toString();
-			LOG.debug("Getting handle for task: " + taskstr);
-			if (taskstr.length() < 6) {
-				throw new IllegalArgumentException("Invalid task id: "
-						+ taskstr);
+	/**
+	 * Compresses the files of the tasks last updated before
+	 * <code>cutoff</code>, and not since the previous call.
+	 */
+	void compactIdleTasks(long cutoff) {
+		synchronized (maintenanceLock) {
+			if (!stopping && cutoff > compactedUpTo) {
+				compactIdleTasksLocked(cutoff);
 			}
+		}
+	}
 
-			if (!fCache.containsKey(taskstr)) {
-				// Create the appropriate three-level directories (l1, l2, and
-				// l3)
-				File l1 = new File(dataRootDir, taskstr.substring(0, 2));
-				File l2 = new File(l1, taskstr.substring(2, 4));
-				File l3 = new File(l2, taskstr.substring(4, 6));
-
-				if (!l3.exists()) {
-					LOG.debug("Creating directory for task " + taskstr + ": "
-							+ l3.toString());
-					if (!l3.mkdirs()) {
-						LOG.warn("Error creating directory " + l3.toString());
-						return null;
-					}
-				} else {
-					LOG.debug("Directory " + l3.toString()
-							+ " already exists; not creating");
+	private void compactIdleTasksLocked(long cutoff) {
+		int compacted = 0;
+		long start = System.currentTimeMillis();
+		List<TaskID> tasks = index.getTasksUpdatedBetween(compactedUpTo,
+				cutoff);
+		for (int i = 0; i < tasks.size(); i++) {
+			if (stopping) {
+				return;
+			}
+			TaskID task = tasks.get(i);
+			// Reports may have arrived since the index was written
+			TaskRecord rec = index.getTask(task);
+			if (rec == null || rec.getLastUpdated().getTime() >= cutoff) {
+				continue;
+			}
+			try {
+				if (compact(task)) {
+					compacted++;
 				}
+			} catch (IOException e) {
+				LOG.warn("Unable to compress the file of task " + task, e);
+			}
+		}
+		compactedUpTo = cutoff;
+		if (compacted > 0) {
+			LOG.info("Compressed the files of " + compacted + " idle tasks in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
 
-				// create the file
-				File taskFile = new File(l3, taskstr + ".txt");
-
-				// insert the PrintWriter into the cache
-				try {
-					BufferedWriter writer = new BufferedWriter(new FileWriter(
-							taskFile, true));
-					fCache.put(taskstr, writer);
-					LOG
-							.debug("Inserting new BufferedWriter into the file cache for task "
-									+ taskstr);
-				} catch (IOException e) {
-					LOG.warn("Interal I/O error", e);
-					return null;
+	/*
+	 * Folds the task's text file into its compressed file. The text file is
+	 * first renamed to <task>.<generation>.compacting, then appended to a
+	 * copy of the compressed file, which replaces the old one. Should the
+	 * server stop half way, the next compaction of the task picks up the
+	 * leftover file again, and readers take it into account in the
+	 * meantime, since its generation is newer than the compressed file's.
+	 */
+	private boolean compact(TaskID task) throws IOException {
+		File txt = taskIdtoFile(task.toString());
+		File xtzFile = compressedFile(txt);
+		CompressedTaskFile xtz = openCompressed(txt);
+		int generation = xtz == null ? 0 : xtz.getGeneration();
+
+		File stale = compactingFile(txt, generation);
+		if (stale.exists()) {
+			stale.delete();
+		}
+		File compacting = compactingFile(txt, generation + 1);
+		if (!compacting.exists()) {
+			synchronized (compactionLock) {
+				if (!fileCaches[shardOf(task)].detach(task, txt, compacting)) {
+					return false;
 				}
-			} else {
-				LOG.debug("Task " + taskstr
-						+ " was already in the cache, no need to insert");
 			}
+		}
 
-			return fCache.get(taskstr);
+		long before = xtzFile.length() + compacting.length();
+		long n = CompressedTaskFile.write(xtzFile, xtz, compacting,
+				compressCodec, compressBlockSize, generation + 1);
+		synchronized (compactionLock) {
+			// Readers that resolved the previous compressed file still
+			// find these reports here until they are done resolving
+			compacting.delete();
+		}
+		if (retentionMaxBytes > 0) {
+			diskUsage.addAndGet(xtzFile.length() - before);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Compressed " + n + " reports of task " + task);
 		}
+		return true;
+	}
 
-		public synchronized void flushAll() {
-			Iterator<BufferedWriter> iter = fCache.values().iterator();
-			while (iter.hasNext()) {
-				BufferedWriter writer = iter.next();
-				try {
-					writer.flush();
-				} catch (IOException e) {
-					LOG.warn("I/O error while flushing file", e);
+	/**
+	 * Deletes the tasks last updated more than the TTL before
+	 * <code>now</code>, then the least recently updated tasks until the task
+	 * files fit the disk budget. Tasks are deleted in batches: first their
+	 * index records, in one transaction, then their files. Batches are
+	 * paced to at most <code>xtrace.server.retention.rate</code> tasks per
+	 * second, to leave the disks and the index to ingest.
+	 */
+	void expireTasks(long now) {
+		synchronized (maintenanceLock) {
+			if (stopping) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			long[] totals = new long[2];
+			if (retentionTtl > 0) {
+				long cutoff = now - retentionTtl;
+				while (!stopping && expireBatch(cutoff, totals)) {
+				}
+			}
+			if (retentionMaxBytes > 0) {
+				if (diskUsage.get() < 0) {
+					diskUsage.set(measureDiskUsage());
+				}
+				while (!stopping && diskUsage.get() > retentionMaxBytes
+						&& expireBatch(now, totals)) {
 				}
 			}
+			if (totals[0] > 0) {
+				LOG.info("Expired " + totals[0] + " tasks (" + totals[1]
+						+ " bytes) in " + (System.currentTimeMillis() - start)
+						+ " ms");
+			}
+		}
+	}
 
-			lastSynched = System.currentTimeMillis();
+	/*
+	 * Deletes a batch of the oldest tasks last updated before cutoff. Adds
+	 * the tasks and bytes deleted to totals, and returns false once there
+	 * is nothing left to delete.
+	 */
+	private boolean expireBatch(long cutoff, long[] totals) {
+		long start = System.currentTimeMillis();
+		List<TaskID> tasks = index.getTasksUpdatedBefore(cutoff,
+				retentionBatchSize);
+		if (tasks.isEmpty()) {
+			return false;
 		}
+		// Tasks with pending reports are kept
+		List<TaskID> deleted = deleteRecords(tasks, cutoff);
+		for (int i = 0; i < deleted.size(); i++) {
+			long bytes = deleteFiles(deleted.get(i));
+			totals[1] += bytes;
+			if (diskUsage.get() >= 0) {
+				diskUsage.addAndGet(-bytes);
+			}
+		}
+		totals[0] += deleted.size();
 
-		public synchronized void closeAll() {
-			flushAll();
+		long pause = deleted.size() * 1000L / Math.max(retentionRate, 1)
+				- (System.currentTimeMillis() - start);
+		if (pause > 0) {
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return !deleted.isEmpty();
+	}
+
+	/* The first step of expiring tasks: their index records */
+	List<TaskID> deleteRecords(List<TaskID> tasks, long cutoff) {
+		return index.delete(tasks, cutoff);
+	}
 
-			/*
-			 * We can't use an iterator since we would be modifying it when we
-			 * call fCache.remove()
-			 */
-			String[] taskIds = fCache.keySet().toArray(new String[0]);
+	/*
+	 * The second step: the files of a task whose record is gone. A report
+	 * that arrived since the record was deleted has gone to the same file
+	 * and made a new record, so then the files are kept.
+	 */
+	long deleteFiles(TaskID task) {
+		synchronized (ingestLock(task)) {
+			if (index.getTask(task) != null) {
+				return 0;
+			}
+			return deleteTaskFiles(task);
+		}
+	}
 
-			for (int i = 0; i < taskIds.length; i++) {
-				LOG.debug("Closing handle for file of " + taskIds[i]);
-				BufferedWriter writer = fCache.get(taskIds[i]);
-				if (writer != null) {
-					try {
-						writer.close();
-					} catch (IOException e) {
-						LOG.warn("I/O error closing file for task "
-								+ taskIds[i], e);
+	private long deleteTaskFiles(TaskID task) {
+		final String taskstr = task.toString();
+		File l3 = taskIdtoFile(taskstr).getParentFile();
+		// The text file, the compressed file and any leftovers
+		File[] files = l3.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(taskstr + ".");
+			}
+		});
+		if (files == null) {
+			return 0;
+		}
+		long bytes;
+		synchronized (compactionLock) {
+			bytes = fileCaches[shardOf(task)].delete(task, files);
+		}
+		// Only empty directories can be deleted
+		File l2 = l3.getParentFile();
+		if (l3.delete() && l2.delete()) {
+			l2.getParentFile().delete();
+		}
+		return bytes;
+	}
+
+	/* Sums the sizes of the task files */
+	private long measureDiskUsage() {
+		long bytes = 0;
+		File[] l1 = dataRootDir.listFiles();
+		for (int i = 0; l1 != null && i < l1.length; i++) {
+			if (l1[i].getName().length() != 2 || !l1[i].isDirectory()) {
+				continue;
+			}
+			File[] l2 = l1[i].listFiles();
+			for (int j = 0; l2 != null && j < l2.length; j++) {
+				File[] l3 = l2[j].listFiles();
+				for (int k = 0; l3 != null && k < l3.length; k++) {
+					File[] files = l3[k].listFiles();
+					for (int m = 0; files != null && m < files.length; m++) {
+						bytes += files[m].length();
 					}
 				}
+			}
+		}
+		return bytes;
+	}
 
-				fCache.remove(taskIds[i]);
+	/**
+	 * Roughly the number of bytes in task files, or -1 if it isn't tracked
+	 * (without a disk budget) or not known yet.
+	 */
+	long getDiskUsage() {
+		return diskUsage.get();
+	}
+
+	public long dataAsOf() {
+		long asOf = Long.MAX_VALUE;
+		for (int i = 0; i < fileCaches.length; i++) {
+			asOf = Math.min(asOf, fileCaches[i].lastSynched());
+		}
+		return asOf;
+	}
+
+	/**
+	 * The group committer, for statistics, or null if the store doesn't
+	 * use group commits
+	 */
+	GroupCommitter getGroupCommitter() {
+		return committer;
+	}
+
+	/**
+	 * The file caches of the writer shards, for statistics
+	 */
+	FileHandleCache[] getFileCaches() {
+		return fileCaches;
+	}
+
+	/**
+	 * Iterates over several iterators, one after the other
+	 */
+	private static final class ChainedIterator implements Iterator<Report> {
+		private final Iterator<Iterator<Report>> parts;
+		private Iterator<Report> current;
+
+		ChainedIterator(List<Iterator<Report>> parts) {
+			this.parts = parts.iterator();
+			this.current = this.parts.next();
+		}
+
+		public boolean hasNext() {
+			while (!current.hasNext() && parts.hasNext()) {
+				current = parts.next();
+			}
+			return current.hasNext();
+		}
+
+		public Report next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
 			}
+			return current.next();
 		}
 
-		public long lastSynched() {
-			return lastSynched;
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
 	}
 
+	/**
+	 * Reads the reports of a task file. The file is memory-mapped a window
+	 * at a time and reports are found by scanning the bytes for their
+	 * header line and the blank line that ends them, so neither the file
+	 * nor the size of a single report is limited by a read buffer. Each
+	 * report is copied out on its own and parsed only when it is used.
+	 */
 	final static class FileTreeIterator implements Iterator<Report> {
 
-		private BufferedReader in = null;
+		private static final int WINDOW_SIZE = 16 * 1024 * 1024;
+		private static final byte[] HEADER;
+		static {
+			try {
+				HEADER = "X-Trace Report ver".getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private final File taskfile;
+		private final long size;
+		private final int windowSize;
+		private MappedByteBuffer window = null;
+		private long windowStart = 0, windowEnd = 0;
+		private long pos = 0;
 		private Report nextReport = null;
 
 		FileTreeIterator(File taskfile) {
+			this(taskfile, WINDOW_SIZE);
+		}
 
+		FileTreeIterator(File taskfile, int windowSize) {
+			this.taskfile = taskfile;
+			this.windowSize = windowSize;
 			if (taskfile.exists() && taskfile.canRead()) {
-				try {
-					in = new BufferedReader(new FileReader(taskfile), 4096);
-				} catch (FileNotFoundException e) {
-				}
+				size = taskfile.length();
+			} else {
+				size = 0;
 			}
 
 			nextReport = calcNext();
@@ -725,59 +1197,132 @@ public final class FileTreeReportStore implements QueryableReportStore {
 		 * @see java.util.Iterator#next()
 		 */
 		public Report next() {
+			if (nextReport == null) {
+				throw new NoSuchElementException();
+			}
 			Report ret = nextReport;
 			nextReport = calcNext();
 			return ret;
 		}
 
 		private Report calcNext() {
-
-			if (in == null) {
-				return null;
-			}
-
-			// Remember where we are if there isn't a complete report in the
-			// stream
 			try {
-				in.mark(4096);
+				// Find the line starting with "X-Trace Report ver"
+				long start = -1, eol = size;
+				while (pos < size) {
+					eol = lineEnd(pos);
+					if (startsWithHeader(pos, eol)) {
+						start = pos;
+					}
+					pos = eol + 1;
+					if (start >= 0) {
+						break;
+					}
+				}
+				if (start < 0) {
+					return null;
+				}
+				boolean cr = byteAt(eol - 1) == '\r';
+
+				// The report ends at an empty line, or at the end of the file
+				long end = Math.min(pos, size);
+				while (pos < size) {
+					eol = lineEnd(pos);
+					long contentEnd = eol;
+					if (contentEnd > pos && byteAt(contentEnd - 1) == '\r') {
+						contentEnd--;
+						cr = true;
+					}
+					if (contentEnd == pos) {
+						pos = eol + 1;
+						break;
+					}
+					pos = eol + 1;
+					end = Math.min(pos, size);
+				}
+
+				String text = new String(copy(start, end), "UTF-8");
+				if (cr) {
+					text = text.replace("\r\n", "\n");
+				}
+				return Report.createFromString(text);
 			} catch (IOException e) {
-				LOG.warn("I/O error", e);
+				LOG.warn("I/O error reading " + taskfile, e);
+				pos = size;
 				return null;
 			}
+		}
 
-			// Find the line starting with "X-Trace Report ver"
-			String line = null;
-			do {
-				try {
-					line = in.readLine();
-				} catch (IOException e) {
-					LOG.warn("I/O error", e);
+		/* The position of the newline ending the line at p, or the file size */
+		private long lineEnd(long p) throws IOException {
+			while (p < size) {
+				if (p >= windowEnd || p < windowStart) {
+					map(p);
+				}
+				int i = (int) (p - windowStart);
+				int limit = (int) (windowEnd - windowStart);
+				while (i < limit) {
+					if (window.get(i) == '\n') {
+						return windowStart + i;
+					}
+					i++;
 				}
-			} while (line != null && !line.startsWith("X-Trace Report ver"));
+				p = windowEnd;
+			}
+			return size;
+		}
 
-			if (line == null) {
-				// There wasn't a complete
-				try {
-					in.reset();
-				} catch (IOException e) {
-					LOG.warn("I/O error", e);
+		private boolean startsWithHeader(long p, long eol) throws IOException {
+			if (eol - p < HEADER.length) {
+				return false;
+			}
+			for (int i = 0; i < HEADER.length; i++) {
+				if (byteAt(p + i) != HEADER[i]) {
+					return false;
 				}
-				return null;
 			}
+			return true;
+		}
+
+		private byte byteAt(long p) throws IOException {
+			if (p >= windowEnd || p < windowStart) {
+				map(p);
+			}
+			return window.get((int) (p - windowStart));
+		}
 
-			StringBuilder reportbuf = new StringBuilder();
-			do {
-				reportbuf.append(line + "\n");
-				try {
-					line = in.readLine();
-				} catch (IOException e) {
-					LOG.warn("I/O error", e);
-					return null;
+		private byte[] copy(long start, long end) throws IOException {
+			byte[] b = new byte[(int) (end - start)];
+			int off = 0;
+			while (start < end) {
+				if (start >= windowEnd || start < windowStart) {
+					map(start);
 				}
-			} while (line != null && !line.equals(""));
+				int n = (int) (Math.min(end, windowEnd) - start);
+				window.position((int) (start - windowStart));
+				window.get(b, off, n);
+				off += n;
+				start += n;
+			}
+			return b;
+		}
 
-			// Find the end of the report (an empty line)
-			return Report.createFromString(reportbuf.toString());
+		/* Maps the window holding position p */
+		private void map(long p) throws IOException {
+			// Start on a page boundary when the window is large enough
+			long align = Math.min(4096, Math.max(windowSize / 2, 1));
+			long start = p - p % align;
+			long length = Math.min(windowSize, size - start);
+			RandomAccessFile raf = new RandomAccessFile(taskfile, "r");
+			try {
+				// The mapping stays valid after the file is closed
+				window = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						start, length);
+			} finally {
+				raf.close();
+			}
+			windowStart = start;
+			windowEnd = start + length;
 		}
 
 		/*
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Commits a report store's files and index together, in groups.
+ * <p>
+ * A background thread runs the store's commit action (typically: fsync
+ * the files written since the last commit, then write the pending index
+ * records) once <code>xtrace.server.durability.groupsize</code> reports
+ * (default 1000) have been added since the last commit, or
+ * <code>xtrace.server.durability.groupinterval</code> milliseconds
+ * (default 50) after the first of them, whichever comes first. Writers
+ * never wait for a commit, unless two groups' worth of reports pile up
+ * while one is being committed, so at most about three groups, or the
+ * interval plus the time of one commit, can be lost in a crash.
+ */
+final class GroupCommitter {
+	private static final Logger LOG = Logger.getLogger(GroupCommitter.class);
+
+	/**
+	 * What a report store's <code>sync()</code> does, set with
+	 * <code>xtrace.server.durability</code>
+	 */
+	enum Durability {
+		/** Nothing: data reaches the disk as buffers fill and files close */
+		NONE,
+		/** Flush the file buffers and write the index on every sync() */
+		FLUSH,
+		/** Group commits with fsync, as described above */
+		FSYNC;
+
+		/**
+		 * @return the configured durability, or null if it is unknown
+		 */
+		static Durability configured() {
+			String name = System.getProperty("xtrace.server.durability",
+					"flush");
+			for (Durability d : values()) {
+				if (d.name().equalsIgnoreCase(name)) {
+					return d;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Runnable commit;
+	private final long interval;
+	private final int groupSize;
+	private final Thread thread;
+
+	/* Reports added since the last commit started. Guarded by lock. */
+	private final Object lock = new Object();
+	private int uncommitted = 0;
+	private long firstUncommitted = 0;
+	private boolean stopped = false;
+
+	/* Serializes commits */
+	private final Object commitLock = new Object();
+
+	/* Statistics, guarded by this */
+	private long commits = 0;
+	private long committedReports = 0;
+	private long commitNanos = 0;
+	private long maxCommitNanos = 0;
+	private int lastBatchSize = 0;
+
+	GroupCommitter(String name, Runnable commit) {
+		this(name, commit, Long.parseLong(System.getProperty(
+				"xtrace.server.durability.groupinterval", "50")), Integer
+				.parseInt(System.getProperty(
+						"xtrace.server.durability.groupsize", "1000")));
+	}
+
+	GroupCommitter(String name, Runnable commit, long interval, int groupSize) {
+		this.commit = commit;
+		this.interval = Math.max(interval, 1);
+		this.groupSize = Math.max(groupSize, 1);
+		thread = new Thread(new Runnable() {
+			public void run() {
+				commitLoop();
+			}
+		}, name);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Counts one report written to the store's files and index
+	 */
+	void added() {
+		synchronized (lock) {
+			if (uncommitted++ == 0) {
+				firstUncommitted = System.currentTimeMillis();
+				lock.notifyAll();
+			} else if (uncommitted == groupSize) {
+				lock.notifyAll();
+			}
+			// Hold back while a commit is running with another group waiting
+			while (uncommitted >= 2 * groupSize && !stopped) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Commits everything added so far, and waits for it
+	 */
+	void commit() {
+		synchronized (commitLock) {
+			run(takeBatch());
+		}
+	}
+
+	/**
+	 * Stops the background thread and commits what is left
+	 */
+	void stop() {
+		synchronized (lock) {
+			stopped = true;
+			lock.notifyAll();
+		}
+		try {
+			thread.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		commit();
+	}
+
+	private void commitLoop() {
+		while (true) {
+			synchronized (lock) {
+				while (!stopped) {
+					long wait = uncommitted == 0 ? 0 : firstUncommitted
+							+ interval - System.currentTimeMillis();
+					if (uncommitted >= groupSize
+							|| (uncommitted > 0 && wait <= 0)) {
+						break;
+					}
+					try {
+						lock.wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped) {
+					return;
+				}
+			}
+			synchronized (commitLock) {
+				run(takeBatch());
+			}
+		}
+	}
+
+	private int takeBatch() {
+		synchronized (lock) {
+			int batch = uncommitted;
+			uncommitted = 0;
+			lock.notifyAll();
+			return batch;
+		}
+	}
+
+	/* Called with commitLock held */
+	private void run(int batch) {
+		long start = System.nanoTime();
+		try {
+			commit.run();
+		} catch (RuntimeException e) {
+			LOG.warn("Group commit of " + batch + " reports failed", e);
+		}
+		long nanos = System.nanoTime() - start;
+		synchronized (this) {
+			commits++;
+			committedReports += batch;
+			commitNanos += nanos;
+			maxCommitNanos = Math.max(maxCommitNanos, nanos);
+			lastBatchSize = batch;
+		}
+	}
+
+	/* Statistics */
+
+	synchronized long getCommits() {
+		return commits;
+	}
+
+	synchronized long getCommittedReports() {
+		return committedReports;
+	}
+
+	/** Mean commit latency in microseconds */
+	synchronized long getMeanLatencyMicros() {
+		return commits == 0 ? 0 : commitNanos / commits / 1000;
+	}
+
+	synchronized long getMaxLatencyMicros() {
+		return maxCommitNanos / 1000;
+	}
+
+	/** Mean number of reports per commit */
+	synchronized long getMeanBatchSize() {
+		return commits == 0 ? 0 : committedReports / commits;
+	}
+
+	synchronized int getLastBatchSize() {
+		return lastBatchSize;
+	}
+}
@@ -1,33 +1,38 @@
 package edu.berkeley.xtrace.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
 import edu.berkeley.xtrace.XTraceException;
+import edu.berkeley.xtrace.reporting.BlockCodec;
 
 /**
+ * A TCP report source built on non-blocking sockets.
+ * 
+ * By default, one acceptor thread hands incoming connections round-robin to
+ * a set of selector loops, one per available processor, so that reading and
+ * framing reports scales with the number of cores.  Each selector loop has
+ * its own read buffer and per-connection <code>ReadHandler</code> state.
+ * The number of loops can be changed with the
+ * <code>xtrace.backend.tcp.reactors</code> system property; setting it to 1
+ * gives the classic single-loop source, where one selector thread both
+ * accepts connections and reads from them.
+ * 
+ * Clients may send reports one at a time or use the compressed block
+ * framing described in {@link BlockCodec}.
  * 
  * @author Matei Zaharia
  * @author George Porter
@@ -38,11 +43,13 @@ public class NonblockingTcpReportSource implements ReportSource {
 	private static final int MAX_REPORT_LENGTH = 256*1024;
 	
 	private int tcpport;
-	private BlockingQueue<String> q;
+	private BlockingQueue<ReportFrame> q;
 
 	private ServerSocketChannel serverChannel;
-	private Selector selector;
-	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(256*1024);
+	private SelectorLoop[] loops;
+	private Thread[] loopThreads;
+	private int nextLoop = 0;
+	private volatile boolean shouldOperate = true;
 
 	public void initialize() throws XTraceException {
 		String tcpportstr = System.getProperty("xtrace.backend.tcpport", "7831");
@@ -53,81 +60,203 @@ public class NonblockingTcpReportSource implements ReportSource {
 			tcpport = 7831;
 		}
 		
+		int numLoops = Runtime.getRuntime().availableProcessors();
+		String reactorsStr = System.getProperty("xtrace.backend.tcp.reactors");
+		if (reactorsStr != null) {
+			try {
+				numLoops = Integer.parseInt(reactorsStr);
+			} catch (NumberFormatException nfe) {
+				LOG.warn("Invalid number of tcp reactors: " + reactorsStr, nfe);
+			}
+		}
+		numLoops = Math.max(1, numLoops);
+		
 		try {
-			selector = SelectorProvider.provider().openSelector();
-			
 			serverChannel = ServerSocketChannel.open();
-			serverChannel.configureBlocking(false);
+			serverChannel.socket().setReuseAddress(true);
 			serverChannel.socket().bind(new InetSocketAddress("0.0.0.0", tcpport));
-			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			
+			loops = new SelectorLoop[numLoops];
+			for (int i = 0; i < numLoops; i++) {
+				loops[i] = new SelectorLoop();
+			}
+			if (numLoops == 1) {
+				// Single-loop mode: the only selector also accepts connections
+				serverChannel.configureBlocking(false);
+				serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+			}
 		} catch (IOException e) {
 			throw new XTraceException("Unable to open TCP server socket", e);
 		}
 	}
 
-	public void setReportQueue(BlockingQueue<String> q) {
+	public void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.q = q;
 	}
 
 	public void shutdown() {
+		shouldOperate = false;
 		try {
 			serverChannel.close();
-			selector.close();
 		} catch (IOException e) {
 			LOG.warn("Unable to close TCP server socket", e);
 		}
+		if (loops != null) {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i].close();
+			}
+		}
 	}
 
 	public void run() {
-		while (true) {
+		if (loops.length == 1) {
+			LOG.info("NonblockingTcpReportSource started on port " + tcpport
+					+ " with a single selector loop");
+			loops[0].run();
+			return;
+		}
+		
+		LOG.info("NonblockingTcpReportSource started on port " + tcpport
+				+ " with " + loops.length + " selector loops");
+		loopThreads = new Thread[loops.length];
+		for (int i = 0; i < loops.length; i++) {
+			loopThreads[i] = new Thread(loops[i], "NonblockingTcpReportSource-" + i);
+			loopThreads[i].setDaemon(true);
+			loopThreads[i].start();
+		}
+		
+		// This thread is the acceptor: it does blocking accepts and hands
+		// each new connection to the next selector loop
+		while (shouldOperate) {
 			try {
-				// Wait for an IO event on any of the registered sockets
-				selector.select();
-				
-				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
-				while (iter.hasNext()) {
-					SelectionKey key = iter.next();
-					iter.remove();
-					if (key.isValid()) {
-						if (key.isAcceptable()) {
-							accept(key);
-						} else if (key.isReadable()) {
-							read(key);
+				SocketChannel channel = serverChannel.accept();
+				loops[nextLoop].register(channel);
+				nextLoop = (nextLoop + 1) % loops.length;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				LOG.warn("Error while accepting a TCP client", e);
+			}
+		}
+	}
+	
+	/**
+	 * One selector thread, along with the connections it serves.
+	 */
+	private final class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(256*1024);
+		private final ConcurrentLinkedQueue<SocketChannel> pending =
+			new ConcurrentLinkedQueue<SocketChannel>();
+		
+		SelectorLoop() throws IOException {
+			selector = SelectorProvider.provider().openSelector();
+		}
+		
+		/**
+		 * Hands a newly accepted connection to this loop.  Called from the
+		 * acceptor thread; the registration itself happens on the loop's
+		 * own thread, since registering blocks while the selector is in
+		 * select().
+		 */
+		void register(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Asks this loop to stop.  The selector and its connections are
+		 * closed by the loop's own thread once it notices.
+		 */
+		void close() {
+			selector.wakeup();
+		}
+		
+		public void run() {
+			while (shouldOperate) {
+				try {
+					// Wait for an IO event on any of the registered sockets
+					selector.select();
+					
+					SocketChannel channel;
+					while ((channel = pending.poll()) != null) {
+						channel.configureBlocking(false);
+						channel.register(selector, SelectionKey.OP_READ);
+					}
+					
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						if (key.isValid()) {
+							if (key.isAcceptable()) {
+								accept(key);
+							} else if (key.isReadable()) {
+								read(key);
+							}
 						}
 					}
+				} catch(IOException e) {
+					LOG.warn("Error in select loop", e);
 				}
-			} catch(IOException e) {
-				LOG.warn("Error in select loop", e);
+			}
+			
+			try {
+				Iterator<SelectionKey> iter = selector.keys().iterator();
+				while (iter.hasNext()) {
+					iter.next().channel().close();
+				}
+				selector.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close selector", e);
 			}
 		}
-	}
 
-	private void accept(SelectionKey key) throws IOException {
-		SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-		channel.configureBlocking(false);
-		channel.register(selector, SelectionKey.OP_READ);
-	}
-	
-	private void read(SelectionKey key) throws IOException {
-		ReadHandler handler = (ReadHandler) key.attachment();
-		if (handler == null) {
-			handler = new ReadHandler(key);
-			key.attach(handler);
+		private void accept(SelectionKey key) throws IOException {
+			SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		
+		private void read(SelectionKey key) throws IOException {
+			ReadHandler handler = (ReadHandler) key.attachment();
+			if (handler == null) {
+				handler = new ReadHandler(key, readBuffer);
+				key.attach(handler);
+			}
+			handler.handleRead();
 		}
-		handler.handleRead();
 	}
 	
 	private final class ReadHandler {
+		// What the bytes in headerBuf will be once it is full
+		private static final int LENGTH = 0;
+		private static final int CODEC = 1;
+		private static final int BLOCK_HEADER = 2;
+		
 		private final SelectionKey key;
+		private final ByteBuffer readBuffer;
 		
 		private int msgPos = 0;
-		private byte[] msgBuf = null;
+		private ReportFrame msg = null;
 		
-		private int lengthPos = 0;
-		private byte[] lengthBuf = new byte[4];
+		private int state = LENGTH;
+		private boolean firstFrame = true;
+		private int headerPos = 0;
+		private int headerLength = 4;
+		private byte[] headerBuf = new byte[BlockCodec.BLOCK_HEADER_LENGTH];
 		
-		public ReadHandler(SelectionKey key) {
+		// Set once the client has asked for block framing
+		private ReportBlockReader blockReader = null;
+		private byte blockCodec;
+		private int blockRawLength;
+		
+		public ReadHandler(SelectionKey key, ByteBuffer readBuffer) {
 			this.key = key;
+			this.readBuffer = readBuffer;
 		}
 
 		public void handleRead() throws IOException {
@@ -138,62 +267,142 @@ public class NonblockingTcpReportSource implements ReportSource {
 				numBytes = channel.read(readBuffer);
 			} catch (IOException e) {
 				// Connection was forcibly closed by the remote side
-			  key.cancel();
-			  channel.close();
+			  close(channel);
 			  return;
 			}
 			
 			if (numBytes < 0) {
 				// Connection was cleanly closed by remote side
-			  key.cancel();
-			  channel.close();
+			  close(channel);
 			  return;
 			}
 
 			// Read reports from the byte stream. Each report starts with a 4-byte integer
 			// representing its length, followed by that number of bytes representing an UTF-8
 			// encoded string for the message text. We use two buffers to be able to read
-			// arbitrary amounts of bytes at a time: lengthBuf is used to store the bytes for
-			// a length field (in case we get only part of one on some reads), and msgBuf is
-			// used to store each message before sending it on. Each buffer has a position
-			// (lengthPos and msgPos) which is the index of the first unread byte.
+			// arbitrary amounts of bytes at a time: headerBuf is used to store the bytes for
+			// a length field (in case we get only part of one on some reads), and the msg
+			// frame is used to store each message before sending it on. Each buffer has a position
+			// (headerPos and msgPos) which is the index of the first unread byte.
+			//
+			// A client using block framing instead starts with a magic number and a codec
+			// byte, and then sends blocks: headerBuf holds each block header, and msg the
+			// compressed block.
 			readBuffer.flip();
 			while (readBuffer.hasRemaining()) {
-				if (msgBuf != null) {
+				if (msg != null) {
 					// We were in the middle of reading a message; see how much more of it we can get 
-					int num = Math.min(readBuffer.remaining(), msgBuf.length - msgPos);
-					readBuffer.get(msgBuf, msgPos, num);
+					int num = Math.min(readBuffer.remaining(), msg.length() - msgPos);
+					readBuffer.get(msg.array(), msgPos, num);
 					msgPos += num;
-					if (msgPos == msgBuf.length) {
-						String message = new String(msgBuf, 0, msgBuf.length, "UTF-8");
-						q.offer(message);
-						msgBuf = null;
+					if (msgPos == msg.length()) {
+						if (blockReader != null) {
+							try {
+								blockReader.decode(blockCodec, msg.array(), 0, msg.length(),
+										blockRawLength, q);
+							} catch (IOException e) {
+								LOG.warn("Closing connection due to corrupt block", e);
+								close(channel);
+								return;
+							} finally {
+								if (msg != null) {
+									msg.release();
+								}
+							}
+						} else if (!q.offer(msg)) {
+							msg.release();
+						}
+						msg = null;
 						msgPos = 0;
 					}
 				} else {
-					// We need to read a length field for a new message
-					int num = Math.min(readBuffer.remaining(), lengthBuf.length - lengthPos);
-					readBuffer.get(lengthBuf, lengthPos, num);
-					lengthPos += num;
-					if (lengthPos == lengthBuf.length) {
-						// Got the entire length field; switch mode to reading the message itself
-					  int length = new DataInputStream(
-					  		new ByteArrayInputStream(lengthBuf)).readInt();
-						if (length <= 0 || length > MAX_REPORT_LENGTH) {
-							Socket sock = channel.socket();
-							LOG.warn("Closing ReadReportsThread for "
-								+ sock.getInetAddress() + ":" + sock.getPort() 
-								+ " due to invalid length: " + length);
-							key.cancel();
-							channel.close();
+					// We need to read a header for a new message
+					int num = Math.min(readBuffer.remaining(), headerLength - headerPos);
+					readBuffer.get(headerBuf, headerPos, num);
+					headerPos += num;
+					if (headerPos == headerLength) {
+						headerPos = 0;
+						if (!handleHeader(channel)) {
+							close(channel);
 							return;
 						}
-						lengthPos = 0;
-						msgBuf = new byte[length];
-						msgPos = 0;
 					}
 				}
 			}
 		}
+		
+		/**
+		 * Acts on a complete header.
+		 * 
+		 * @return false if the connection should be closed
+		 */
+		private boolean handleHeader(SocketChannel channel) throws IOException {
+			Socket sock = channel.socket();
+			switch (state) {
+			case LENGTH:
+				// Got the entire length field; switch mode to reading the message itself
+				int length = readInt(headerBuf, 0);
+				if (firstFrame && length == BlockCodec.MAGIC) {
+					state = CODEC;
+					headerLength = 1;
+					return true;
+				}
+				firstFrame = false;
+				if (length <= 0 || length > MAX_REPORT_LENGTH) {
+					LOG.warn("Closing ReadReportsThread for "
+						+ sock.getInetAddress() + ":" + sock.getPort() 
+						+ " due to invalid length: " + length);
+					return false;
+				}
+				msg = ReportFrame.allocate(length);
+				msgPos = 0;
+				return true;
+				
+			case CODEC:
+				byte accepted = ReportBlockReader.acceptCodec(headerBuf[0]);
+				if (channel.write(ByteBuffer.wrap(new byte[] { accepted })) != 1) {
+					LOG.warn("Unable to answer block framing request from "
+							+ sock.getInetAddress() + ":" + sock.getPort());
+					return false;
+				}
+				blockReader = new ReportBlockReader(accepted);
+				state = BLOCK_HEADER;
+				headerLength = BlockCodec.BLOCK_HEADER_LENGTH;
+				return true;
+				
+			default:
+				blockCodec = headerBuf[0];
+				blockRawLength = readInt(headerBuf, 1);
+				int compressedLength = readInt(headerBuf, 5);
+				if (!ReportBlockReader.isValidHeader(blockRawLength, compressedLength)) {
+					LOG.warn("Closing ReadReportsThread for "
+						+ sock.getInetAddress() + ":" + sock.getPort() 
+						+ " due to invalid block length: " + compressedLength
+						+ "/" + blockRawLength);
+					return false;
+				}
+				msg = ReportFrame.allocate(compressedLength);
+				msgPos = 0;
+				return true;
+			}
+		}
+		
+		private void close(SocketChannel channel) throws IOException {
+			key.cancel();
+			channel.close();
+			if (msg != null) {
+				msg.release();
+				msg = null;
+			}
+			if (blockReader != null) {
+				blockReader.close();
+				blockReader = null;
+			}
+		}
+	}
+	
+	private static int readInt(byte[] b, int pos) {
+		return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+			| ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
 	}
 }
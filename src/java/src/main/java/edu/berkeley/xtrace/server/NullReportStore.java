@@ -41,7 +41,7 @@ import edu.berkeley.xtrace.XTraceException;
  */
 public class NullReportStore implements ReportStore {
 	private static final Logger LOG = Logger.getLogger(NullReportStore.class);
-	private BlockingQueue<String> q;
+	private BlockingQueue<ReportFrame> q;
 
 	public Iterator<String> getByTask(String task) throws XTraceException {
 		return null;
@@ -56,7 +56,7 @@ public class NullReportStore implements ReportStore {
 		LOG.info("NullReportStore initialized");
 	}
 
-	public void setReportQueue(BlockingQueue<String> q) {
+	public void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.q = q;
 	}
 
@@ -67,13 +67,17 @@ public class NullReportStore implements ReportStore {
 		LOG.info("NullReportSource waiting for reports");
 		
 		while (true) {
-			String message = null;
+			ReportFrame message = null;
 			try {
 				message = q.take();
 			} catch (InterruptedException e) {
 				LOG.warn("Internal error", e);
+				continue;
 			}
-			LOG.debug("ReportStore: " + message);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("ReportStore: " + message);
+			}
+			message.release();
 		}
 	}
 
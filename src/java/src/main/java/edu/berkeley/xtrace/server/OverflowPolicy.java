@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+/**
+ * What a {@link SourceReportQueue} does with a report when the report queue
+ * is full (or, for {@link #SHED}, getting full).
+ */
+public enum OverflowPolicy {
+	/** Wait up to a timeout for room in the queue, then drop the report */
+	BLOCK("block"),
+	
+	/** Drop the incoming report */
+	DROP_NEWEST("dropNewest"),
+	
+	/** Drop the oldest queued report to make room for the incoming one */
+	DROP_OLDEST("dropOldest"),
+	
+	/**
+	 * Once the queue passes a fill threshold, drop an increasing fraction
+	 * of tasks, chosen by a hash of their task ID, so that the reports of a
+	 * task are either all kept or all dropped
+	 */
+	SHED("shed");
+	
+	private final String name;
+	
+	private OverflowPolicy(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Returns the policy with the given name (as used in the
+	 * <code>xtrace.server.queue.overflow</code> property), or null if
+	 * there is none.
+	 */
+	public static OverflowPolicy forName(String name) {
+		OverflowPolicy[] policies = values();
+		for (int i = 0; i < policies.length; i++) {
+			if (policies[i].name.equalsIgnoreCase(name)) {
+				return policies[i];
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
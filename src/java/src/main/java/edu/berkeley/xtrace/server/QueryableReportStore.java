@@ -36,6 +36,9 @@ import edu.berkeley.xtrace.reporting.Report;
 
 public interface QueryableReportStore extends ReportStore {
 	public Iterator<Report> getReportsByTask(TaskID task) throws XTraceException;
+
+	/** The number of reports of a task, as the task index counts them */
+	public int countByTaskId(TaskID taskId);
 	
 	public List<TaskRecord> getTasksSince(long startTime, int offset, int limit);
 	
@@ -46,6 +49,23 @@ public interface QueryableReportStore extends ReportStore {
 	public List<TaskRecord> getTasksByTitle(String title, int offset, int limit);
 
 	public List<TaskRecord> getTasksByTitleSubstring(String title, int offset, int limit);
+
+	/*
+	 * The same lists, resumed after a cursor rather than an offset, which
+	 * costs the same however deep the page. A null cursor starts at the
+	 * beginning. The cursor after the last task of a page, from
+	 * TaskCursor.after(), gives the next page.
+	 */
+
+	public List<TaskRecord> getTasksSince(long startTime, TaskCursor after, int limit);
+
+	public List<TaskRecord> getLatestTasks(TaskCursor after, int limit);
+
+	public List<TaskRecord> getTasksByTag(String tag, TaskCursor after, int limit);
+
+	public List<TaskRecord> getTasksByTitle(String title, TaskCursor after, int limit);
+
+	public List<TaskRecord> getTasksByTitleSubstring(String title, TaskCursor after, int limit);
 	
 	public int numTasks();
 	
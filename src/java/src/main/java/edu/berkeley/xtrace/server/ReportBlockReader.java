@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+
+import edu.berkeley.xtrace.reporting.BlockCodec;
+
+/**
+ * Server side of the block framing described in {@link BlockCodec}: turns
+ * each block a client sends into report frames.  One reader is used per
+ * connection, and must be closed along with it.
+ */
+final class ReportBlockReader {
+	private final BlockCodec codec;
+	private byte[] raw;
+	
+	ReportBlockReader(byte codec) {
+		this.codec = new BlockCodec(codec);
+	}
+	
+	/**
+	 * Returns the codec to answer a client's handshake with: the one it
+	 * asked for if this server knows it, or no compression otherwise.
+	 */
+	static byte acceptCodec(byte requested) {
+		return BlockCodec.isSupported(requested) ? requested : BlockCodec.NONE;
+	}
+	
+	static boolean isValidHeader(int rawLength, int compressedLength) {
+		return rawLength > 0 && rawLength <= BlockCodec.MAX_BLOCK_LENGTH
+			&& compressedLength > 0 && compressedLength <= BlockCodec.MAX_BLOCK_LENGTH;
+	}
+	
+	/**
+	 * Decompresses a block and offers each report in it to the queue.
+	 * Reports the queue refuses are released.
+	 * 
+	 * @return the number of reports in the block
+	 * @throws IOException if the block is corrupt
+	 */
+	int decode(byte blockCodec, byte[] src, int offset, int length, int rawLength,
+			BlockingQueue<ReportFrame> q) throws IOException {
+		byte[] data;
+		int pos;
+		if (blockCodec == BlockCodec.NONE) {
+			if (length != rawLength) {
+				throw new IOException("Uncompressed block length mismatch");
+			}
+			data = src;
+			pos = offset;
+		} else {
+			if (raw == null || raw.length < rawLength) {
+				raw = new byte[rawLength];
+			}
+			codec.decompress(blockCodec, src, offset, length, raw, 0, rawLength);
+			data = raw;
+			pos = 0;
+		}
+		
+		int end = pos + rawLength;
+		int count = 0;
+		while (pos < end) {
+			if (end - pos < 4) {
+				throw new IOException("Truncated report length in block");
+			}
+			int reportLength = ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+			pos += 4;
+			if (reportLength <= 0 || reportLength > end - pos) {
+				throw new IOException("Invalid report length in block: " + reportLength);
+			}
+			ReportFrame frame = ReportFrame.copyOf(data, pos, reportLength);
+			pos += reportLength;
+			if (!q.offer(frame)) {
+				frame.release();
+			}
+			count++;
+		}
+		return count;
+	}
+	
+	void close() {
+		codec.end();
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.reporting.BinaryReport;
+
+/**
+ * A single report as it travels through the server: the raw bytes received
+ * by a {@link ReportSource}, together with the task ID of the report.
+ * 
+ * Frames carry the report exactly as it arrived on the wire, so that the
+ * server does not need to decode it into a String and encode it back
+ * into bytes before storing it.  The backing byte arrays come from a pool
+ * shared by all sources, and are returned to it when the last holder of
+ * the frame calls {@link #release()}.  A frame starts out with a reference
+ * count of one; any component that hands a frame to more than one consumer
+ * must call {@link #retain()} once per additional consumer.
+ * 
+ * A frame may hold a text report or a report in the compact binary
+ * encoding ({@link BinaryReport}); the two are told apart by their first
+ * byte.  Binary reports are turned into text only when the frame is written
+ * out or converted to a String, so the task ID of a binary report is read
+ * without any text parsing at all.
+ * 
+ * Frames that are never released are simply garbage collected, so failing
+ * to release a frame costs an allocation but is otherwise harmless.  Using
+ * a frame after releasing it is a bug, as its buffer may already be in use
+ * by another report.
+ * 
+ * @see ReportSource
+ * @see ReportStore
+ */
+public final class ReportFrame {
+	
+	// Pooled buffers are powers of two between 2^MIN_SHIFT and 2^MAX_SHIFT
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 18;
+	
+	// Upper bound on the number of bytes kept idle in each size class
+	private static final int POOL_BYTES_PER_CLASS = 4*1024*1024;
+	
+	private static final byte[] NEWLINES = { '\n', '\n' };
+	private static final byte[] EMPTY_REPORT;
+	static {
+		try {
+			EMPTY_REPORT = "X-Trace Report ver 1.0\n".getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// Indexed by size class; the classes below MIN_SHIFT are unused
+	private static final List<ConcurrentLinkedQueue<byte[]>> pool =
+		new ArrayList<ConcurrentLinkedQueue<byte[]>>(MAX_SHIFT + 1);
+	private static final AtomicInteger[] poolSizes = new AtomicInteger[MAX_SHIFT + 1];
+	
+	static {
+		for (int i = 0; i <= MAX_SHIFT; i++) {
+			pool.add(i < MIN_SHIFT ? null : new ConcurrentLinkedQueue<byte[]>());
+			poolSizes[i] = new AtomicInteger();
+		}
+	}
+	
+	private byte[] buf;
+	private int length;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	private TaskID taskId;
+	private boolean taskIdExtracted = false;
+	private SourceReportQueue source;
+
+	private ReportFrame(byte[] buf, int length) {
+		this.buf = buf;
+		this.length = length;
+	}
+	
+	/**
+	 * Returns a new frame whose buffer can hold <code>length</code> bytes.
+	 * The caller is expected to fill the first <code>length</code> bytes of
+	 * {@link #array()}.
+	 * 
+	 * @param length the length of the report, in bytes
+	 * @return a new frame, with a reference count of one
+	 */
+	public static ReportFrame allocate(int length) {
+		int shift = sizeClass(length);
+		byte[] b = null;
+		if (shift <= MAX_SHIFT) {
+			b = pool.get(shift).poll();
+			if (b != null) {
+				poolSizes[shift].decrementAndGet();
+			}
+		}
+		if (b == null) {
+			b = new byte[shift <= MAX_SHIFT ? 1 << shift : length];
+		}
+		return new ReportFrame(b, length);
+	}
+	
+	/**
+	 * Returns a new frame holding a copy of the given bytes
+	 */
+	public static ReportFrame copyOf(byte[] bytes, int offset, int length) {
+		ReportFrame frame = allocate(length);
+		System.arraycopy(bytes, offset, frame.buf, 0, length);
+		return frame;
+	}
+	
+	/**
+	 * Returns a new frame holding the UTF-8 encoding of the given report
+	 */
+	public static ReportFrame fromString(String report) {
+		byte[] bytes;
+		try {
+			bytes = report.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = report.getBytes();
+		}
+		// Wrap the encoded bytes rather than copying them into a pooled buffer
+		return new ReportFrame(bytes, bytes.length);
+	}
+	
+	private static int sizeClass(int length) {
+		int shift = MIN_SHIFT;
+		while (shift <= MAX_SHIFT && (1 << shift) < length) {
+			shift++;
+		}
+		return shift;
+	}
+	
+	/**
+	 * The buffer backing this frame.  Only the first {@link #length()} bytes
+	 * belong to the report.
+	 */
+	public byte[] array() {
+		return buf;
+	}
+	
+	/**
+	 * The length of the report, in bytes
+	 */
+	public int length() {
+		return length;
+	}
+	
+	/**
+	 * Returns the task ID named in the report's <code>X-Trace</code> field,
+	 * or null if the report has none.  The field is found by scanning the
+	 * raw bytes with {@link ReportHeaders}, as on ingest.  The result is
+	 * computed once and cached.
+	 */
+	public synchronized TaskID getTaskId() {
+		if (!taskIdExtracted) {
+			taskId = ReportHeaders.scan(this).getTaskId();
+			taskIdExtracted = true;
+		}
+		return taskId;
+	}
+	
+	/**
+	 * The queue of the source that enqueued this frame, or null if it
+	 * didn't come through a {@link SourceReportQueue}
+	 */
+	SourceReportQueue getSource() {
+		return source;
+	}
+	
+	void setSource(SourceReportQueue source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Adds a holder to this frame.  Every call must be matched by a call to
+	 * {@link #release()}.
+	 * 
+	 * @return this frame
+	 */
+	public ReportFrame retain() {
+		if (refCount.getAndIncrement() <= 0) {
+			throw new IllegalStateException("ReportFrame used after release");
+		}
+		return this;
+	}
+	
+	/**
+	 * Adds a holder to this frame unless it has already been released, as
+	 * a frame still in a queue may be by a concurrent consumer.
+	 * 
+	 * @return whether the frame was retained, and must be released later
+	 */
+	boolean tryRetain() {
+		while (true) {
+			int count = refCount.get();
+			if (count <= 0) {
+				return false;
+			}
+			if (refCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Drops a holder of this frame.  When the last holder releases it, the
+	 * frame's buffer goes back to the pool and the frame must no longer be
+	 * used.
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count > 0) {
+			return;
+		}
+		if (count < 0) {
+			throw new IllegalStateException("ReportFrame released too many times");
+		}
+		byte[] b = buf;
+		buf = null;
+		recycle(b);
+	}
+	
+	private static void recycle(byte[] b) {
+		int shift = sizeClass(b.length);
+		if (shift > MAX_SHIFT || (1 << shift) != b.length) {
+			return;
+		}
+		if (poolSizes[shift].incrementAndGet() * b.length <= POOL_BYTES_PER_CLASS) {
+			pool.get(shift).offer(b);
+		} else {
+			poolSizes[shift].decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Returns whether this frame holds a report in the binary encoding
+	 */
+	public boolean isBinary() {
+		return BinaryReport.isBinary(buf, 0, length);
+	}
+	
+	/**
+	 * Writes the text of the report to the given stream.  Text reports are
+	 * written as they arrived; binary ones are converted field by field, and
+	 * a malformed binary report is written as an empty report.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (isBinary()) {
+			// Checked first, so that a malformed report isn't half written
+			if (BinaryReport.isValid(buf, 0, length)) {
+				BinaryReport.writeText(buf, 0, length, out);
+			} else {
+				out.write(EMPTY_REPORT);
+			}
+		} else {
+			out.write(buf, 0, length);
+		}
+	}
+	
+	/**
+	 * Writes the text of the report followed by the blank line that
+	 * separates reports in a report stream
+	 */
+	public void writeWithSeparatorTo(OutputStream out) throws IOException {
+		writeTo(out);
+		out.write(NEWLINES);
+	}
+	
+	/**
+	 * Decodes the report as a String, in the text format.  This is meant
+	 * for consumers that still work with Strings (see
+	 * {@link StringReportQueue}); the ingest path itself never needs to
+	 * call it.  A malformed binary report decodes to an empty report.
+	 */
+	@Override
+	public String toString() {
+		if (isBinary()) {
+			try {
+				return BinaryReport.toText(buf, 0, length);
+			} catch (IOException e) {
+				return "X-Trace Report ver 1.0\n";
+			}
+		}
+		try {
+			return new String(buf, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(buf, 0, length);
+		}
+	}
+	
+	/**
+	 * Decodes the task ID from the hex metadata starting at <code>pos</code>
+	 * 
+	 * @return the task ID, or null if the metadata is invalid
+	 */
+	static TaskID decodeTaskId(byte[] b, int pos, int end) {
+		int flags = hexByte(b, pos, end);
+		if (flags < 0) {
+			return null;
+		}
+		int taskIdLength;
+		switch (flags & 0x03) {
+		case 0x00: taskIdLength = 4; break;
+		case 0x01: taskIdLength = 8; break;
+		case 0x02: taskIdLength = 12; break;
+		default: taskIdLength = 20; break;
+		}
+		byte[] id = new byte[taskIdLength];
+		for (int i = 0; i < taskIdLength; i++) {
+			int v = hexByte(b, pos + 2 + 2*i, end);
+			if (v < 0) {
+				return null;
+			}
+			id[i] = (byte) v;
+		}
+		return TaskID.createFromBytes(id, 0, id.length);
+	}
+	
+	private static int hexByte(byte[] b, int pos, int end) {
+		if (pos + 1 >= end) {
+			return -1;
+		}
+		int hi = hexDigit(b[pos]);
+		int lo = hexDigit(b[pos + 1]);
+		if (hi < 0 || lo < 0) {
+			return -1;
+		}
+		return (hi << 4) | lo;
+	}
+	
+	private static int hexDigit(byte c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		return -1;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.reporting.BinaryReport;
+
+/**
+ * The fields of a report that the report store indexes: its task ID, its
+ * title and its tags.
+ * 
+ * {@link #scan(byte[], int, int)} finds them in a single pass over the raw
+ * bytes of a text report, and {@link #scanBinary} walks the fields of a
+ * binary one.  Each line's key is compared in place, so the
+ * only allocations are the task ID and the title and tag Strings
+ * themselves; the rest of the report is skipped over, never decoded.  Keys
+ * and values are trimmed, and a key matches only exactly, as in
+ * {@link edu.berkeley.xtrace.reporting.Report#get(String)}.
+ */
+final class ReportHeaders {
+	private static final byte[] XTRACE = { 'X', '-', 'T', 'r', 'a', 'c', 'e' };
+	private static final byte[] TITLE = { 'T', 'i', 't', 'l', 'e' };
+	private static final byte[] TAG = { 'T', 'a', 'g' };
+	
+	private TaskID taskId;
+	private String title;
+	private List<String> tags;
+	
+	private ReportHeaders() {
+	}
+	
+	/**
+	 * Returns the task ID of the first X-Trace field, or null if there is
+	 * none or it is invalid
+	 */
+	TaskID getTaskId() {
+		return taskId;
+	}
+	
+	/**
+	 * Returns the value of the first Title field, or null if there is none
+	 */
+	String getTitle() {
+		return title;
+	}
+	
+	/**
+	 * Returns the values of all Tag fields, or null if there are none
+	 */
+	List<String> getTags() {
+		return tags;
+	}
+	
+	/**
+	 * Scans the report held in a frame
+	 */
+	static ReportHeaders scan(ReportFrame frame) {
+		if (frame.isBinary()) {
+			return scanBinary(frame.array(), 0, frame.length());
+		}
+		return scan(frame.array(), 0, frame.length());
+	}
+	
+	/**
+	 * Reads the fields of a binary report straight from its layout: the
+	 * task ID comes from the raw metadata bytes, and only the title and tag
+	 * values are decoded.  A malformed report yields the fields read before
+	 * the error.
+	 */
+	static ReportHeaders scanBinary(byte[] b, int offset, int length) {
+		ReportHeaders headers = new ReportHeaders();
+		boolean taskIdSeen = false;
+		try {
+			BinaryReport.FieldReader fields = new BinaryReport.FieldReader(b,
+					offset, length);
+			while (fields.next()) {
+				int id = fields.id();
+				if (id == BinaryReport.XTRACE && !taskIdSeen) {
+					taskIdSeen = true;
+					headers.taskId = fields.taskId();
+				} else if (id == BinaryReport.TITLE && headers.title == null) {
+					headers.title = fields.value();
+				} else if (id == BinaryReport.TAG) {
+					headers.addTag(fields.value());
+				} else if (id == BinaryReport.LITERAL) {
+					// Fields whose values didn't have their usual form
+					int start = fields.valueOffset();
+					int end = start + fields.valueLength();
+					if (!taskIdSeen && fields.nameIs("X-Trace")) {
+						taskIdSeen = true;
+						headers.taskId = ReportFrame.decodeTaskId(b, start, end);
+					} else if (headers.title == null && fields.nameIs("Title")) {
+						headers.title = fields.value();
+					} else if (fields.nameIs("Tag")) {
+						headers.addTag(fields.value());
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Keep what was read
+		}
+		return headers;
+	}
+	
+	private void addTag(String tag) {
+		if (tags == null) {
+			tags = new ArrayList<String>(2);
+		}
+		tags.add(tag);
+	}
+	
+	/**
+	 * Scans the text report in <code>b[offset..offset+length)</code>
+	 */
+	static ReportHeaders scan(byte[] b, int offset, int length) {
+		ReportHeaders headers = new ReportHeaders();
+		boolean taskIdSeen = false;
+		int end = offset + length;
+		int pos = offset;
+		while (pos < end) {
+			int eol = pos;
+			int colon = -1;
+			while (eol < end && b[eol] != '\n') {
+				if (colon < 0 && b[eol] == ':') {
+					colon = eol;
+				}
+				eol++;
+			}
+			if (colon >= 0) {
+				int keyStart = skipSpace(b, pos, colon);
+				int keyEnd = trimSpace(b, keyStart, colon);
+				int valueStart = skipSpace(b, colon + 1, eol);
+				int valueEnd = trimSpace(b, valueStart, eol);
+				if (!taskIdSeen && matches(b, keyStart, keyEnd, XTRACE)) {
+					taskIdSeen = true;
+					headers.taskId = ReportFrame.decodeTaskId(b, valueStart, valueEnd);
+				} else if (headers.title == null && matches(b, keyStart, keyEnd, TITLE)) {
+					headers.title = decode(b, valueStart, valueEnd);
+				} else if (matches(b, keyStart, keyEnd, TAG)) {
+					headers.addTag(decode(b, valueStart, valueEnd));
+				}
+			}
+			pos = eol + 1;
+		}
+		return headers;
+	}
+	
+	private static boolean isSpace(byte c) {
+		// Matches String.trim(), which Report uses on keys and values
+		return c >= 0 && c <= ' ';
+	}
+	
+	private static int skipSpace(byte[] b, int pos, int end) {
+		while (pos < end && isSpace(b[pos])) {
+			pos++;
+		}
+		return pos;
+	}
+	
+	private static int trimSpace(byte[] b, int start, int end) {
+		while (end > start && isSpace(b[end - 1])) {
+			end--;
+		}
+		return end;
+	}
+	
+	private static boolean matches(byte[] b, int start, int end, byte[] key) {
+		if (end - start != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (b[start + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static String decode(byte[] b, int start, int end) {
+		try {
+			return new String(b, start, end - start, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(b, start, end - start);
+		}
+	}
+}
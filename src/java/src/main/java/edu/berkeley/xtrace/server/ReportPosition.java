@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package edu.berkeley.xtrace.server;
+
+/**
+ * How far a client has read the reports of a task, so that the next
+ * request only returns the reports added since.
+ * <p>
+ * The position is always a number of reports. Stores that can also give
+ * the byte offset of that report in their files add it, along with
+ * whatever tells whether the offset still holds (see
+ * {@link FileTreeReportStore#getReportRange}). The next read can then
+ * seek straight to the offset, instead of counting reports from the
+ * start. As a token, a position is either the report count alone or
+ * <code>reports.generation.offset</code>.
+ */
+final class ReportPosition {
+	static final ReportPosition START = new ReportPosition(0);
+
+	private final long reports;
+	private final int generation;
+	private final long offset;
+
+	ReportPosition(long reports) {
+		this(reports, 0, -1);
+	}
+
+	ReportPosition(long reports, int generation, long offset) {
+		this.reports = reports;
+		this.generation = generation;
+		this.offset = offset;
+	}
+
+	/**
+	 * Reads a token made by {@link #toString()}
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the token is malformed
+	 */
+	static ReportPosition parse(String token) {
+		String[] parts = token.split("\\.", -1);
+		try {
+			if (parts.length == 1) {
+				long reports = Long.parseLong(parts[0]);
+				if (reports >= 0) {
+					return new ReportPosition(reports);
+				}
+			} else if (parts.length == 3) {
+				long reports = Long.parseLong(parts[0]);
+				int generation = Integer.parseInt(parts[1]);
+				long offset = Long.parseLong(parts[2]);
+				if (reports >= 0 && generation >= 0 && offset >= 0) {
+					return new ReportPosition(reports, generation, offset);
+				}
+			}
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+		throw new IllegalArgumentException("Malformed report position: "
+				+ token);
+	}
+
+	/** The number of reports read */
+	long getReports() {
+		return reports;
+	}
+
+	int getGeneration() {
+		return generation;
+	}
+
+	/** The byte offset of the next report, or -1 if unknown */
+	long getOffset() {
+		return offset;
+	}
+
+	public String toString() {
+		return offset < 0 ? Long.toString(reports) : reports + "." + generation
+				+ "." + offset;
+	}
+}
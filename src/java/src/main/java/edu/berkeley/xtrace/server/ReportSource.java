@@ -34,7 +34,16 @@ import edu.berkeley.xtrace.XTraceException;
 
 public interface ReportSource extends Runnable {
 	
-	public void setReportQueue(BlockingQueue<String> q);
+	/**
+	 * Sets the BlockingQueue that this source passes received reports to.
+	 * Each report is handed over as a {@link ReportFrame} holding its raw
+	 * bytes; ownership of the frame passes to the queue when
+	 * <code>offer()</code> succeeds, and stays with the source (which must
+	 * release it) when it fails.
+	 * 
+	 * @param q the queue to pass reports to
+	 */
+	public void setReportQueue(BlockingQueue<ReportFrame> q);
 	
 	public void initialize() throws XTraceException;
 	public void shutdown();
@@ -36,12 +36,15 @@ public interface ReportStore extends Runnable {
 	
 	/**
 	 * Sets a BlockingQueue that is used to pass reports from the rest of the server
-	 * into this ReportStore.
+	 * into this ReportStore.  The store owns each {@link ReportFrame} it takes
+	 * from the queue, and must release it once the report has been stored.
+	 * Stores that work with Strings can wrap the queue in a
+	 * {@link StringReportQueue}.
 	 * 
 	 * @param q the queue to receive reports from
 	 * @see BlockingQueue
 	 */
-	public void setReportQueue(BlockingQueue<String> q);
+	public void setReportQueue(BlockingQueue<ReportFrame> q);
 	
 	/**
 	 * Initializes this ReportStore.  This must be called before
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a
+ * ring buffer.  This is the queue that report sources hand reports to and
+ * that report stores take them from.
+ * 
+ * Each slot of the ring carries a sequence number that tells producers and
+ * consumers whether the slot is free to write or ready to read, so
+ * <code>offer()</code> and <code>poll()</code> need only a compare-and-set
+ * on the tail or head counter.  Consumers are expected to take reports in
+ * batches with {@link #drainTo(Collection, int)}.
+ * 
+ * A lock is used only to park threads: a consumer that finds the queue
+ * empty (or a producer in <code>put()</code> that finds it full) registers
+ * as a waiter before sleeping, and the other side takes the lock to signal
+ * only when it sees a registered waiter.  When nobody is waiting, neither
+ * side touches the lock.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public final class RingBufferQueue<E> extends AbstractQueue<E>
+		implements BlockingQueue<E> {
+	
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<E> items;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicInteger waitingConsumers = new AtomicInteger();
+	private final AtomicInteger waitingProducers = new AtomicInteger();
+
+	/**
+	 * Creates a queue with room for at least <code>minCapacity</code>
+	 * elements.  The capacity is rounded up to a power of two, and is at
+	 * least two (with a single slot, "written" and "free for the next lap"
+	 * would have the same sequence number).
+	 */
+	public RingBufferQueue(int minCapacity) {
+		if (minCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + minCapacity);
+		}
+		int c = 2;
+		while (c < minCapacity) {
+			c <<= 1;
+		}
+		capacity = c;
+		mask = c - 1;
+		items = new AtomicReferenceArray<E>(c);
+		sequences = new AtomicLongArray(c);
+		for (int i = 0; i < c; i++) {
+			sequences.set(i, i);
+		}
+	}
+	
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			long pos = tail.get();
+			int idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					items.set(idx, e);
+					sequences.set(idx, pos + 1);
+					if (waitingConsumers.get() > 0) {
+						signal(notEmpty);
+					}
+					return true;
+				}
+			} else if (diff < 0) {
+				// The slot still holds an element from the previous lap
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Adds as many of <code>elements</code>, starting at <code>from</code>,
+	 * as there is room for, claiming all of their slots with a single
+	 * compare-and-set on the tail.
+	 * 
+	 * @return the number of elements added, which are always the first ones
+	 */
+	public int offerAll(List<? extends E> elements, int from) {
+		int wanted = elements.size() - from;
+		for (int i = from; i < elements.size(); i++) {
+			if (elements.get(i) == null) {
+				throw new NullPointerException();
+			}
+		}
+		if (wanted <= 0) {
+			return 0;
+		}
+		while (true) {
+			long pos = tail.get();
+			// Count the free slots after the tail, up to the batch size
+			int n = 0;
+			while (n < wanted && n < capacity) {
+				long diff = sequences.get((int) ((pos + n) & mask)) - (pos + n);
+				if (diff != 0) {
+					break;
+				}
+				n++;
+			}
+			if (n == 0) {
+				if (sequences.get((int) (pos & mask)) - pos < 0) {
+					return 0;
+				}
+				// Another producer moved the tail
+				continue;
+			}
+			if (tail.compareAndSet(pos, pos + n)) {
+				for (int i = 0; i < n; i++) {
+					int idx = (int) ((pos + i) & mask);
+					items.set(idx, elements.get(from + i));
+					sequences.set(idx, pos + i + 1);
+				}
+				if (waitingConsumers.get() > 0) {
+					signal(notEmpty);
+				}
+				return n;
+			}
+		}
+	}
+	
+	public E poll() {
+		while (true) {
+			long pos = head.get();
+			int idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					E e = items.get(idx);
+					items.set(idx, null);
+					sequences.set(idx, pos + capacity);
+					if (waitingProducers.get() > 0) {
+						signal(notFull);
+					}
+					return e;
+				}
+			} else if (diff < 0) {
+				// The slot hasn't been written in this lap yet
+				return null;
+			}
+		}
+	}
+	
+	private void signal(Condition c) {
+		lock.lock();
+		try {
+			c.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public E peek() {
+		long pos = head.get();
+		int idx = (int) (pos & mask);
+		if (sequences.get(idx) == pos + 1) {
+			return items.get(idx);
+		}
+		return null;
+	}
+	
+	public void put(E e) throws InterruptedException {
+		while (!offer(e)) {
+			lock.lockInterruptibly();
+			waitingProducers.incrementAndGet();
+			try {
+				if (remainingCapacity() == 0) {
+					notFull.await();
+				}
+			} finally {
+				waitingProducers.decrementAndGet();
+				lock.unlock();
+			}
+		}
+	}
+
+	public boolean offer(E e, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		while (!offer(e)) {
+			if (nanos <= 0) {
+				return false;
+			}
+			lock.lockInterruptibly();
+			waitingProducers.incrementAndGet();
+			try {
+				if (remainingCapacity() == 0) {
+					notFull.awaitNanos(nanos);
+				}
+			} finally {
+				waitingProducers.decrementAndGet();
+				lock.unlock();
+			}
+			nanos = deadline - System.nanoTime();
+		}
+		return true;
+	}
+
+	public E take() throws InterruptedException {
+		E e;
+		while ((e = poll()) == null) {
+			lock.lockInterruptibly();
+			waitingConsumers.incrementAndGet();
+			try {
+				if (isEmpty()) {
+					notEmpty.await();
+				}
+			} finally {
+				waitingConsumers.decrementAndGet();
+				lock.unlock();
+			}
+		}
+		return e;
+	}
+
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		E e;
+		while ((e = poll()) == null) {
+			if (nanos <= 0) {
+				return null;
+			}
+			lock.lockInterruptibly();
+			waitingConsumers.incrementAndGet();
+			try {
+				if (isEmpty()) {
+					notEmpty.awaitNanos(nanos);
+				}
+			} finally {
+				waitingConsumers.decrementAndGet();
+				lock.unlock();
+			}
+			nanos = deadline - System.nanoTime();
+		}
+		return e;
+	}
+	
+	/**
+	 * Blocks until at least one element is available, then moves up to
+	 * <code>maxElements</code> elements into the given collection.
+	 * 
+	 * @return the number of elements transferred
+	 */
+	public int takeBatch(Collection<? super E> c, int maxElements)
+			throws InterruptedException {
+		if (maxElements <= 0) {
+			return 0;
+		}
+		c.add(take());
+		return 1 + drainTo(c, maxElements - 1);
+	}
+
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		int n = 0;
+		E e;
+		while (n < maxElements && (e = poll()) != null) {
+			c.add(e);
+			n++;
+		}
+		return n;
+	}
+
+	public int remainingCapacity() {
+		return capacity - size();
+	}
+
+	public int size() {
+		// Read head first, so that the difference is never negative
+		long h = head.get();
+		long t = tail.get();
+		return (int) Math.max(0, Math.min(capacity, t - h));
+	}
+	
+	public boolean isEmpty() {
+		return peek() == null;
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the elements in the queue.
+	 * The iterator does not support <code>remove()</code>.
+	 */
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<E>();
+		long h = head.get();
+		long t = tail.get();
+		for (long pos = h; pos < t; pos++) {
+			int idx = (int) (pos & mask);
+			E e = items.get(idx);
+			if (e != null && sequences.get(idx) == pos + 1) {
+				snapshot.add(e);
+			}
+		}
+		final Iterator<E> iter = snapshot.iterator();
+		return new Iterator<E>() {
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			public E next() {
+				return iter.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
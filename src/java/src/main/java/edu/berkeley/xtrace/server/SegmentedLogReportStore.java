@@ -0,0 +1,911 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceException;
+import edu.berkeley.xtrace.reporting.BinaryReport;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * A report store that appends every report, whatever its task, to one
+ * large segment file at a time. Writes are sequential, and the number of
+ * open files doesn't grow with the number of live tasks.
+ * <p>
+ * Each record in a segment is the report's length (a 4-byte big-endian
+ * int) followed by the report as it was received. Segments roll over at
+ * <code>xtrace.server.segmentsize</code> bytes (default 64 MB). Only the
+ * segment being written has an in-memory index of its tasks' reports.
+ * When a segment is sealed its index is saved next to it, sorted by task,
+ * and from then on it is memory-mapped and binary searched rather than
+ * held on the heap, so {@link #getReportsByTask(TaskID)} is a search per
+ * sealed segment and a handful of positioned reads. At startup only the
+ * last segment is scanned. Task metadata is kept in the same embedded
+ * database as {@link FileTreeReportStore}.
+ */
+public final class SegmentedLogReportStore implements QueryableReportStore {
+	private static final Logger LOG = Logger
+			.getLogger(SegmentedLogReportStore.class);
+
+	// Maximum number of reports taken from the queue per wakeup
+	private static final int BATCH_SIZE = 256;
+
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int INDEX_MAGIC = 0x58544932;
+	/* A sealed index is a header, then fixed-size entries sorted by task */
+	private static final int INDEX_HEADER_LENGTH = 8;
+	private static final int INDEX_KEY_LENGTH = 40;
+	private static final int INDEX_ENTRY_LENGTH = INDEX_KEY_LENGTH + 8;
+	private static final int READ_SIZE = 4096;
+
+	/* A position is the segment number in the top bits, then the offset */
+	private static final int OFFSET_BITS = 40;
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	private String dataDirName;
+	private File segmentDir;
+	private BlockingQueue<ReportFrame> incomingReports;
+	private TaskIndex index;
+	private boolean shouldOperate = false;
+	private long segmentSize;
+	private GroupCommitter.Durability durability;
+	private GroupCommitter committer;
+
+	/* The remaining fields are guarded by this */
+	private final List<SealedSegment> sealed = new ArrayList<SealedSegment>();
+	private Map<String, Positions> segmentPositions;
+	private int segment;
+	private long segmentLength;
+	private OutputStream out;
+	private FileOutputStream segmentFile;
+	// A write failed, so the end of the segment is unknown
+	private boolean damaged = false;
+	private long lastSynched;
+
+	public synchronized void setReportQueue(BlockingQueue<ReportFrame> q) {
+		this.incomingReports = q;
+	}
+
+	public synchronized void initialize() throws XTraceException {
+		dataDirName = System.getProperty("xtrace.server.storedirectory");
+		if (dataDirName == null) {
+			throw new XTraceException(
+					"SegmentedLogReportStore selected, but no xtrace.server.storedirectory specified");
+		}
+		File dataRootDir = new File(dataDirName);
+		if (!dataRootDir.isDirectory()) {
+			throw new XTraceException("Data Store location isn't a directory: "
+					+ dataDirName);
+		}
+		if (!dataRootDir.canWrite()) {
+			throw new XTraceException("Can't write to data store directory");
+		}
+		segmentDir = new File(dataRootDir, "segments");
+		if (!segmentDir.isDirectory() && !segmentDir.mkdir()) {
+			throw new XTraceException("Unable to create segment directory "
+					+ segmentDir);
+		}
+		segmentSize = Long.parseLong(System.getProperty(
+				"xtrace.server.segmentsize", "67108864"));
+		durability = GroupCommitter.Durability.configured();
+		if (durability == null) {
+			throw new XTraceException("Unknown durability: "
+					+ System.getProperty("xtrace.server.durability"));
+		}
+
+		try {
+			openSegments();
+		} catch (IOException e) {
+			throw new XTraceException("Unable to open the report segments", e);
+		}
+		lastSynched = System.currentTimeMillis();
+
+		// the embedded database keeps metadata about the reports. Group
+		// commits write it themselves, after the segment
+		index = new TaskIndex(dataRootDir,
+				durability != GroupCommitter.Durability.FSYNC);
+		if (durability == GroupCommitter.Durability.FSYNC) {
+			committer = new GroupCommitter(
+					"SegmentedLogReportStore group commit", new Runnable() {
+						public void run() {
+							index.flush(new Runnable() {
+								public void run() {
+									syncSegment();
+								}
+							});
+						}
+					});
+			committer.start();
+		}
+
+		shouldOperate = true;
+	}
+
+	/*
+	 * Maps the saved indexes of the sealed segments, rebuilds those that
+	 * are missing or unreadable, and reopens the last segment for
+	 * appending.
+	 */
+	private void openSegments() throws IOException {
+		int[] segments = listSegments();
+		for (int i = 0; i < segments.length; i++) {
+			int seg = segments[i];
+			boolean last = i == segments.length - 1;
+			if (!last) {
+				SealedSegment s = indexFile(seg).exists() ? openIndex(seg)
+						: null;
+				if (s == null) {
+					LOG.info("Rebuilding the index of segment " + segmentFile(seg));
+					Map<String, Positions> segPositions = new HashMap<String, Positions>();
+					scanSegment(seg, segPositions);
+					s = seal(seg, segPositions);
+				}
+				sealed.add(s);
+			} else {
+				Map<String, Positions> segPositions = new HashMap<String, Positions>();
+				long length = scanSegment(seg, segPositions);
+				// Drop a record that was only partly written
+				RandomAccessFile raf = new RandomAccessFile(segmentFile(seg),
+						"rw");
+				if (raf.length() > length) {
+					LOG.warn("Truncating " + (raf.length() - length)
+							+ " bytes of incomplete reports from segment "
+							+ segmentFile(seg));
+					raf.setLength(length);
+				}
+				raf.close();
+				openSegment(seg, length, segPositions);
+			}
+		}
+		if (segments.length == 0) {
+			openSegment(0, 0, new HashMap<String, Positions>());
+		}
+		LOG.info("Opened " + Math.max(segments.length, 1)
+				+ " report segments, holding " + segmentPositions.size()
+				+ " tasks in the current one");
+	}
+
+	private int[] listSegments() {
+		String[] names = segmentDir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		List<Integer> segs = new ArrayList<Integer>();
+		for (int i = 0; i < names.length; i++) {
+			try {
+				segs.add(Integer.valueOf(names[i].substring(0, names[i]
+						.length()
+						- SEGMENT_SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring unexpected file in segment directory: "
+						+ names[i]);
+			}
+		}
+		int[] result = new int[segs.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = segs.get(i);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private void openSegment(int seg, long length,
+			Map<String, Positions> segPositions) throws IOException {
+		segmentFile = new FileOutputStream(segmentFile(seg), true);
+		out = new BufferedOutputStream(segmentFile, 65536);
+		segment = seg;
+		segmentLength = length;
+		segmentPositions = segPositions;
+	}
+
+	private File segmentFile(int seg) {
+		return new File(segmentDir, name(seg) + SEGMENT_SUFFIX);
+	}
+
+	private File indexFile(int seg) {
+		return new File(segmentDir, name(seg) + INDEX_SUFFIX);
+	}
+
+	private static String name(int seg) {
+		String s = Integer.toString(seg);
+		StringBuilder sb = new StringBuilder();
+		for (int i = s.length(); i < 10; i++) {
+			sb.append('0');
+		}
+		return sb.append(s).toString();
+	}
+
+	/*
+	 * Reads the records of a segment, adding their offsets to segPositions.
+	 * Returns the length of the segment up to the last complete record.
+	 */
+	private long scanSegment(int seg, Map<String, Positions> segPositions)
+			throws IOException {
+		File f = segmentFile(seg);
+		long fileLength = f.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(f), 65536));
+		long pos = 0;
+		byte[] buf = new byte[4096];
+		try {
+			while (pos + 4 <= fileLength) {
+				int len = in.readInt();
+				if (len < 0 || pos + 4 + len > fileLength) {
+					break;
+				}
+				if (len > buf.length) {
+					buf = new byte[Math.max(len, buf.length * 2)];
+				}
+				in.readFully(buf, 0, len);
+				// Found the same way as on ingest
+				TaskID task = (BinaryReport.isBinary(buf, 0, len) ? ReportHeaders
+						.scanBinary(buf, 0, len) : ReportHeaders.scan(buf, 0, len))
+						.getTaskId();
+				if (task != null) {
+					add(segPositions, task.toString().toUpperCase(), pos);
+				}
+				pos += 4 + len;
+			}
+		} catch (EOFException e) {
+			// The segment ends in an incomplete record
+		} finally {
+			in.close();
+		}
+		return pos;
+	}
+
+	/*
+	 * Maps the saved index of a sealed segment, or returns null if it can't
+	 * be read. The mapping outlives the file being closed.
+	 */
+	private SealedSegment openIndex(int seg) {
+		File f = indexFile(seg);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				long length = raf.length();
+				if (length < INDEX_HEADER_LENGTH || length > Integer.MAX_VALUE) {
+					throw new IOException("bad length " + length);
+				}
+				ByteBuffer idx = raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, length);
+				if (idx.getInt(0) != INDEX_MAGIC) {
+					throw new IOException("bad magic number");
+				}
+				int entries = idx.getInt(4);
+				if (INDEX_HEADER_LENGTH + (long) entries * INDEX_ENTRY_LENGTH != length) {
+					throw new IOException("bad length " + length + " for "
+							+ entries + " entries");
+				}
+				return new SealedSegment(seg, idx, entries);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			LOG.warn("Unable to read segment index " + f, e);
+			return null;
+		}
+	}
+
+	/*
+	 * Saves the index of a segment that is complete and maps it. If that
+	 * fails, the index stays on the heap until the next startup.
+	 */
+	private SealedSegment seal(int seg, Map<String, Positions> segPositions) {
+		SealedSegment s = writeIndex(seg, segPositions) ? openIndex(seg) : null;
+		if (s == null) {
+			LOG.warn("Keeping the index of segment " + segmentFile(seg)
+					+ " in memory");
+			s = new SealedSegment(seg, segPositions);
+		}
+		return s;
+	}
+
+	/* Writes a segment's index sorted by task, one entry per report */
+	private boolean writeIndex(int seg, Map<String, Positions> segPositions) {
+		File f = indexFile(seg);
+		File tmp = new File(segmentDir, f.getName() + ".tmp");
+		List<String> taskIds = new ArrayList<String>(segPositions.keySet());
+		Collections.sort(taskIds);
+		int entries = 0;
+		for (int i = 0; i < taskIds.size(); i++) {
+			entries += segPositions.get(taskIds.get(i)).size;
+		}
+		try {
+			DataOutputStream idx = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			try {
+				idx.writeInt(INDEX_MAGIC);
+				idx.writeInt(entries);
+				for (int i = 0; i < taskIds.size(); i++) {
+					byte[] key = indexKey(taskIds.get(i));
+					Positions p = segPositions.get(taskIds.get(i));
+					for (int j = 0; j < p.size; j++) {
+						idx.write(key);
+						idx.writeLong(p.values[j]);
+					}
+				}
+			} finally {
+				idx.close();
+			}
+			if (!tmp.renameTo(f)) {
+				throw new IOException("unable to rename " + tmp);
+			}
+			return true;
+		} catch (IOException e) {
+			// Not fatal: the segment will be scanned at the next startup
+			LOG.warn("Unable to write segment index " + f, e);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	/*
+	 * A task ID as stored in a sealed index: its upper-case hex digits,
+	 * padded with zero bytes. Task IDs are at most 20 bytes, so the digits
+	 * always fit, and keys sort like the strings.
+	 */
+	private static byte[] indexKey(String taskId) {
+		byte[] key = new byte[INDEX_KEY_LENGTH];
+		for (int i = 0; i < taskId.length() && i < key.length; i++) {
+			key[i] = (byte) taskId.charAt(i);
+		}
+		return key;
+	}
+
+	/*
+	 * Brings the segment back to its last complete record after a failed
+	 * write, which may have left part of a record behind it or lost
+	 * buffered ones, and reopens it so the next report lands where its
+	 * offset says. Reports whose bytes were lost are dropped from the
+	 * in-memory index. Returns false if the segment still can't be written.
+	 */
+	synchronized boolean recover() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			// Whatever didn't make it is lost
+		}
+		try {
+			segmentFile.close();
+		} catch (IOException e) {
+		}
+		try {
+			if (!sealed.isEmpty() && sealed.get(sealed.size() - 1).seg == segment) {
+				// Failed while rolling over, after sealing
+				openSegment(segment + 1, 0, new HashMap<String, Positions>());
+			} else {
+				Map<String, Positions> segPositions = new HashMap<String, Positions>();
+				long length = scanSegment(segment, segPositions);
+				RandomAccessFile raf = new RandomAccessFile(segmentFile(segment),
+						"rw");
+				try {
+					if (raf.length() > length) {
+						LOG.warn("Truncating " + (raf.length() - length)
+								+ " bytes of a partly written report from segment "
+								+ segmentFile(segment));
+						raf.setLength(length);
+					}
+				} finally {
+					raf.close();
+				}
+				if (length < segmentLength) {
+					LOG.warn("Lost " + (segmentLength - length)
+							+ " bytes of buffered reports from segment "
+							+ segmentFile(segment));
+				}
+				openSegment(segment, length, segPositions);
+			}
+			damaged = false;
+			return true;
+		} catch (IOException e) {
+			LOG.warn("Unable to recover segment " + segmentFile(segment), e);
+			return false;
+		}
+	}
+
+	/* Seals the current segment and starts the next one */
+	private void roll() throws IOException {
+		if (durability == GroupCommitter.Durability.FSYNC) {
+			out.flush();
+			segmentFile.getFD().sync();
+		}
+		out.close();
+		sealed.add(seal(segment, segmentPositions));
+		openSegment(segment + 1, 0, new HashMap<String, Positions>());
+		LOG.info("Rolled over to report segment " + segmentFile(segment));
+	}
+
+	private static long position(int seg, long offset) {
+		return ((long) seg << OFFSET_BITS) | offset;
+	}
+
+	private static void add(Map<String, Positions> map, String taskId,
+			long value) {
+		Positions p = map.get(taskId);
+		if (p == null) {
+			p = new Positions();
+			map.put(taskId, p);
+		}
+		p.add(value);
+	}
+
+	/**
+	 * Does what <code>xtrace.server.durability</code> asks for: nothing
+	 * (none), flushing the segment and writing the index (flush, the
+	 * default), or a group commit that syncs the segment to disk and then
+	 * writes the index (fsync).
+	 */
+	public void sync() {
+		if (durability == GroupCommitter.Durability.NONE) {
+			return;
+		} else if (durability == GroupCommitter.Durability.FSYNC) {
+			committer.commit();
+			return;
+		}
+		synchronized (this) {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.flush();
+			} catch (IOException e) {
+				LOG.warn("I/O error while flushing segment", e);
+				damaged = true;
+			}
+			lastSynched = System.currentTimeMillis();
+		}
+		index.flush();
+	}
+
+	/* Flushes the segment and syncs it to disk */
+	private synchronized void syncSegment() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.flush();
+			segmentFile.getFD().sync();
+		} catch (IOException e) {
+			LOG.warn("I/O error while syncing segment", e);
+			damaged = true;
+		}
+		lastSynched = System.currentTimeMillis();
+	}
+
+	public void shutdown() {
+		if (committer != null) {
+			committer.stop();
+		}
+		shutdownLocked();
+	}
+
+	private synchronized void shutdownLocked() {
+		LOG.info("Shutting down the SegmentedLogReportStore");
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOG.warn("I/O error while closing segment", e);
+			}
+			out = null;
+		}
+		sealed.clear();
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+	}
+
+	void receiveReport(ReportFrame frame) {
+		ReportHeaders headers = ReportHeaders.scan(frame);
+		TaskID task = headers.getTaskId();
+		if (task == null) {
+			LOG.debug("Ignoring a report without an X-Trace taskID");
+			return;
+		}
+
+		synchronized (this) {
+			if (out == null) {
+				LOG.debug("Discarding a report received after shutdown");
+				return;
+			}
+			if (damaged && !recover()) {
+				LOG.debug("Discarding a report while the segment can't be written");
+				return;
+			}
+			int len = frame.length();
+			try {
+				if (segmentLength > 0
+						&& segmentLength + 4 + len > segmentSize) {
+					roll();
+				}
+				out.write(len >>> 24);
+				out.write(len >>> 16);
+				out.write(len >>> 8);
+				out.write(len);
+				out.write(frame.array(), 0, len);
+			} catch (IOException e) {
+				LOG.warn("I/O error while writing the report", e);
+				damaged = true;
+				recover();
+				return;
+			}
+			add(segmentPositions, task.toString().toUpperCase(), segmentLength);
+			segmentLength += 4 + len;
+		}
+
+		index.record(task, headers.getTitle(), headers.getTags());
+		GroupCommitter c = committer;
+		if (c != null) {
+			c.added();
+		}
+	}
+
+	public void run() {
+		LOG.info("SegmentedLogReportStore running with datadir "
+				+ dataDirName);
+
+		List<ReportFrame> batch = new ArrayList<ReportFrame>(BATCH_SIZE);
+		while (true) {
+			if (shouldOperate) {
+				try {
+					batch.add(incomingReports.take());
+				} catch (InterruptedException e1) {
+					continue;
+				}
+				incomingReports.drainTo(batch, BATCH_SIZE - 1);
+				for (int i = 0; i < batch.size(); i++) {
+					ReportFrame msg = batch.get(i);
+					receiveReport(msg);
+					msg.release();
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	public Iterator<Report> getReportsByTask(TaskID task) {
+		String taskId = task.toString().toUpperCase();
+		SealedSegment[] sealedSegments;
+		int current;
+		long[] currentOffsets = null;
+		synchronized (this) {
+			sealedSegments = sealed.toArray(new SealedSegment[sealed.size()]);
+			current = segment;
+			Positions p = segmentPositions == null ? null : segmentPositions
+					.get(taskId);
+			if (p != null) {
+				currentOffsets = new long[p.size];
+				System.arraycopy(p.values, 0, currentOffsets, 0, p.size);
+				// The reads below bypass the write buffer
+				if (out != null) {
+					try {
+						out.flush();
+					} catch (IOException e) {
+						LOG.warn("I/O error while flushing segment", e);
+					}
+				}
+			}
+		}
+
+		// The sealed segments are searched without holding the lock
+		Positions taskPositions = new Positions();
+		byte[] key = indexKey(taskId);
+		for (int i = 0; i < sealedSegments.length; i++) {
+			sealedSegments[i].find(taskId, key, taskPositions);
+		}
+		for (int i = 0; currentOffsets != null && i < currentOffsets.length; i++) {
+			taskPositions.add(position(current, currentOffsets[i]));
+		}
+		long[] positions = new long[taskPositions.size];
+		System.arraycopy(taskPositions.values, 0, positions, 0, positions.length);
+		return new SegmentIterator(positions);
+	}
+
+	public List<TaskRecord> getTasksSince(long milliSecondsSince1970,
+			int offset, int limit) {
+		return index.getTasksSince(milliSecondsSince1970, offset, limit);
+	}
+
+	public List<TaskRecord> getLatestTasks(int offset, int limit) {
+		return index.getLatestTasks(offset, limit);
+	}
+
+	public List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
+		return index.getTasksByTag(tag, offset, limit);
+	}
+
+	public List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+		return index.getTasksByTitle(title, offset, limit);
+	}
+
+	public List<TaskRecord> getTasksByTitleSubstring(String title, int offset,
+			int limit) {
+		return index.getTasksByTitleSubstring(title, offset, limit);
+	}
+
+	public List<TaskRecord> getTasksSince(long milliSecondsSince1970,
+			TaskCursor after, int limit) {
+		return index.getTasksSince(milliSecondsSince1970, after, limit);
+	}
+
+	public List<TaskRecord> getLatestTasks(TaskCursor after, int limit) {
+		return index.getLatestTasks(after, limit);
+	}
+
+	public List<TaskRecord> getTasksByTag(String tag, TaskCursor after,
+			int limit) {
+		return index.getTasksByTag(tag, after, limit);
+	}
+
+	public List<TaskRecord> getTasksByTitle(String title, TaskCursor after,
+			int limit) {
+		return index.getTasksByTitle(title, after, limit);
+	}
+
+	public List<TaskRecord> getTasksByTitleSubstring(String title,
+			TaskCursor after, int limit) {
+		return index.getTasksByTitleSubstring(title, after, limit);
+	}
+
+	public int countByTaskId(TaskID taskId) {
+		TaskRecord rec = index.getTask(taskId);
+		return rec == null ? 0 : rec.getNumReports();
+	}
+
+	public int numReports() {
+		return index.numReports();
+	}
+
+	public int numTasks() {
+		return index.numTasks();
+	}
+
+	/**
+	 * The group committer, for statistics, or null if the store doesn't
+	 * use group commits
+	 */
+	GroupCommitter getGroupCommitter() {
+		return committer;
+	}
+
+	public synchronized long dataAsOf() {
+		return lastSynched;
+	}
+
+	/**
+	 * A growable array of longs
+	 */
+	private static final class Positions {
+		long[] values = new long[4];
+		int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * The index of a sealed segment: normally its saved index file,
+	 * mapped, or the map it was built from if that couldn't be saved.
+	 */
+	private static final class SealedSegment {
+		private final int seg;
+		private final ByteBuffer idx;
+		private final int entries;
+		private final Map<String, Positions> inMemory;
+
+		SealedSegment(int seg, ByteBuffer idx, int entries) {
+			this.seg = seg;
+			this.idx = idx;
+			this.entries = entries;
+			this.inMemory = null;
+		}
+
+		SealedSegment(int seg, Map<String, Positions> inMemory) {
+			this.seg = seg;
+			this.idx = null;
+			this.entries = 0;
+			this.inMemory = inMemory;
+		}
+
+		/* Adds the positions of the task's reports in this segment to to */
+		void find(String taskId, byte[] key, Positions to) {
+			if (inMemory != null) {
+				Positions p = inMemory.get(taskId);
+				for (int i = 0; p != null && i < p.size; i++) {
+					to.add(position(seg, p.values[i]));
+				}
+				return;
+			}
+			// Binary search for the first entry of the task; only absolute
+			// reads are used, so the buffer can be shared between threads
+			int lo = 0;
+			int hi = entries;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(mid, key) < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			for (int i = lo; i < entries && compare(i, key) == 0; i++) {
+				to.add(position(seg, idx.getLong(INDEX_HEADER_LENGTH + i
+						* INDEX_ENTRY_LENGTH + INDEX_KEY_LENGTH)));
+			}
+		}
+
+		private int compare(int entry, byte[] key) {
+			int base = INDEX_HEADER_LENGTH + entry * INDEX_ENTRY_LENGTH;
+			for (int i = 0; i < INDEX_KEY_LENGTH; i++) {
+				int d = (idx.get(base + i) & 0xff) - (key[i] & 0xff);
+				if (d != 0) {
+					return d;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Reads a task's reports one segment at a time. The records of a
+	 * segment are read with positioned reads on a channel that is closed
+	 * before moving on, so an abandoned iterator holds no file open.
+	 */
+	private final class SegmentIterator implements Iterator<Report> {
+		private final long[] taskPositions;
+		private int next = 0;
+		private final List<Report> reports = new ArrayList<Report>();
+		private int reportIdx = 0;
+		// Raised once the reports read before it have been returned
+		private RuntimeException error;
+
+		SegmentIterator(long[] taskPositions) {
+			this.taskPositions = taskPositions;
+		}
+
+		public boolean hasNext() {
+			while (reportIdx == reports.size() && error == null
+					&& next < taskPositions.length) {
+				readSegmentRun();
+			}
+			if (reportIdx == reports.size() && error != null) {
+				throw error;
+			}
+			return reportIdx < reports.size();
+		}
+
+		public Report next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return reports.get(reportIdx++);
+		}
+
+		private void readSegmentRun() {
+			reports.clear();
+			reportIdx = 0;
+			int seg = (int) (taskPositions[next] >>> OFFSET_BITS);
+			int end = next;
+			while (end < taskPositions.length
+					&& (int) (taskPositions[end] >>> OFFSET_BITS) == seg) {
+				end++;
+			}
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(segmentFile(seg), "r");
+				FileChannel ch = raf.getChannel();
+				ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+				for (int i = next; i < end; i++) {
+					// Most reports fit in the first read along with their
+					// length
+					long offset = taskPositions[i] & OFFSET_MASK;
+					buf.clear();
+					if (ch.read(buf, offset) < 4) {
+						throw new EOFException("Report extends past the end of the segment");
+					}
+					int len = buf.getInt(0);
+					if (len < 0) {
+						throw new IOException("Corrupt report length at offset "
+								+ offset);
+					}
+					if (len + 4 > buf.capacity()) {
+						ByteBuffer larger = ByteBuffer.allocate(len + 4);
+						buf.flip();
+						larger.put(buf);
+						buf = larger;
+					}
+					buf.limit(len + 4);
+					readFully(ch, buf, offset);
+					reports.add(Report.createFromBytes(buf.array(), 4, len));
+				}
+			} catch (IOException e) {
+				error = new RuntimeException("I/O error while reading segment "
+						+ segmentFile(seg), e);
+			} finally {
+				if (raf != null) {
+					try {
+						raf.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			next = end;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/* Fills buf from the channel, reading from pos onwards */
+	private static void readFully(FileChannel ch, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			int n = ch.read(buf, pos + buf.position());
+			if (n < 0) {
+				throw new EOFException("Report extends past the end of the segment");
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.berkeley.xtrace.TaskID;
+
+/**
+ * The view of the server's report queue given to a single
+ * {@link ReportSource}.  It applies the source's {@link OverflowPolicy}
+ * when the queue is full, and counts every report it drops, by reason.
+ * 
+ * As with any report queue, a frame whose <code>offer()</code> returns
+ * false still belongs to the source, which must release it.  Frames that
+ * are evicted from the queue to make room (under
+ * {@link OverflowPolicy#DROP_OLDEST}) are released here, and counted
+ * against the source that sent them, which may not be this one.
+ * 
+ * Only the producer side of the queue is meant to be used; the consumer
+ * methods pass straight through to the shared queue.
+ */
+public final class SourceReportQueue extends AbstractQueue<ReportFrame>
+		implements BlockingQueue<ReportFrame> {
+	
+	/** Why a report was dropped */
+	public static enum DropReason {
+		/** The queue stayed full for the whole blocking timeout */
+		TIMEOUT,
+		/** The queue was full and the report was dropped */
+		QUEUE_FULL,
+		/** The report was dropped from the queue to make room for a newer one */
+		EVICTED,
+		/** The report's task was shed to keep the queue from filling up */
+		SHED,
+		/** The source was interrupted while waiting for room */
+		INTERRUPTED
+	}
+	
+	private final String sourceName;
+	private final BlockingQueue<ReportFrame> q;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutMillis;
+	private final double shedThreshold;
+	
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong[] drops = new AtomicLong[DropReason.values().length];
+
+	/**
+	 * @param sourceName the name reported in drop statistics
+	 * @param q the shared report queue
+	 * @param policy what to do when <code>q</code> is full
+	 * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits
+	 * @param shedThreshold the fraction of <code>q</code> that must be full
+	 *        before {@link OverflowPolicy#SHED} starts dropping tasks
+	 */
+	public SourceReportQueue(String sourceName, BlockingQueue<ReportFrame> q,
+			OverflowPolicy policy, long blockTimeoutMillis, double shedThreshold) {
+		this.sourceName = sourceName;
+		this.q = q;
+		this.policy = policy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+		this.shedThreshold = Math.max(0.0, Math.min(shedThreshold, 1.0));
+		for (int i = 0; i < drops.length; i++) {
+			drops[i] = new AtomicLong();
+		}
+	}
+	
+	public String getSourceName() {
+		return sourceName;
+	}
+	
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+	
+	/** The number of reports this source got into the queue */
+	public long getAccepted() {
+		return accepted.get();
+	}
+	
+	/** The number of reports dropped for the given reason */
+	public long getDrops(DropReason reason) {
+		return drops[reason.ordinal()].get();
+	}
+	
+	/** The number of reports dropped for any reason */
+	public long getTotalDrops() {
+		long total = 0;
+		for (int i = 0; i < drops.length; i++) {
+			total += drops[i].get();
+		}
+		return total;
+	}
+	
+	private boolean dropped(DropReason reason) {
+		drops[reason.ordinal()].incrementAndGet();
+		return false;
+	}
+	
+	public boolean offer(ReportFrame frame) {
+		frame.setSource(this);
+		switch (policy) {
+		case BLOCK:
+			try {
+				if (!q.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					return dropped(DropReason.TIMEOUT);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return dropped(DropReason.INTERRUPTED);
+			}
+			break;
+			
+		case DROP_OLDEST:
+			while (!q.offer(frame)) {
+				ReportFrame evicted = q.poll();
+				if (evicted != null) {
+					SourceReportQueue owner = evicted.getSource();
+					evicted.release();
+					(owner != null ? owner : this).dropped(DropReason.EVICTED);
+				}
+			}
+			break;
+			
+		case SHED:
+			if (shouldShed(frame)) {
+				return dropped(DropReason.SHED);
+			}
+			if (!q.offer(frame)) {
+				return dropped(DropReason.QUEUE_FULL);
+			}
+			break;
+			
+		default:
+			if (!q.offer(frame)) {
+				return dropped(DropReason.QUEUE_FULL);
+			}
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Offers a batch of frames.  Unless the policy is
+	 * {@link OverflowPolicy#SHED}, which decides frame by frame, as many
+	 * frames as fit are claimed in one step when the shared queue is a
+	 * {@link RingBufferQueue}; the rest go through {@link #offer} one at a
+	 * time, applying the policy.  Unlike <code>offer()</code>, frames that
+	 * are dropped are released here.
+	 * 
+	 * @return the number of frames accepted
+	 */
+	@SuppressWarnings("unchecked")
+	public int offerAll(List<ReportFrame> frames) {
+		int n = 0;
+		for (int i = 0; i < frames.size(); i++) {
+			frames.get(i).setSource(this);
+		}
+		if (policy != OverflowPolicy.SHED && q instanceof RingBufferQueue) {
+			n = ((RingBufferQueue<ReportFrame>) q).offerAll(frames, 0);
+			accepted.addAndGet(n);
+		}
+		int count = n;
+		for (; n < frames.size(); n++) {
+			ReportFrame frame = frames.get(n);
+			if (offer(frame)) {
+				count++;
+			} else {
+				frame.release();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Decides whether to shed the frame's task.  Above the threshold, the
+	 * fraction of tasks shed grows linearly with the queue's fill level,
+	 * reaching all tasks when the queue is full.  Tasks are ranked by a hash
+	 * of their ID, so at any fill level the same tasks are shed, and a task
+	 * that is kept while the load is steady keeps all of its reports.
+	 */
+	private boolean shouldShed(ReportFrame frame) {
+		int size = q.size();
+		double fill = (double) size / (size + q.remainingCapacity());
+		if (fill < shedThreshold) {
+			return false;
+		}
+		double shedFraction = shedThreshold >= 1.0 ? 1.0
+				: (fill - shedThreshold) / (1.0 - shedThreshold);
+		return taskRank(frame.getTaskId()) < shedFraction;
+	}
+	
+	/**
+	 * Maps a task ID to a number in [0, 1)
+	 */
+	private static double taskRank(TaskID task) {
+		if (task == null) {
+			return 0.0;
+		}
+		int h = task.hashCode();
+		// Spread the bits, since task IDs that differ only in their last
+		// bytes would otherwise get nearby ranks
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) / (double) Integer.MAX_VALUE;
+	}
+
+	public boolean offer(ReportFrame frame, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		frame.setSource(this);
+		if (q.offer(frame, timeout, unit)) {
+			accepted.incrementAndGet();
+			return true;
+		}
+		return dropped(DropReason.TIMEOUT);
+	}
+
+	public void put(ReportFrame frame) throws InterruptedException {
+		frame.setSource(this);
+		q.put(frame);
+		accepted.incrementAndGet();
+	}
+
+	public ReportFrame poll() {
+		return q.poll();
+	}
+
+	public ReportFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return q.poll(timeout, unit);
+	}
+
+	public ReportFrame take() throws InterruptedException {
+		return q.take();
+	}
+
+	public ReportFrame peek() {
+		return q.peek();
+	}
+
+	public int remainingCapacity() {
+		return q.remainingCapacity();
+	}
+
+	public int drainTo(Collection<? super ReportFrame> c) {
+		return q.drainTo(c);
+	}
+
+	public int drainTo(Collection<? super ReportFrame> c, int maxElements) {
+		return q.drainTo(c, maxElements);
+	}
+
+	public int size() {
+		return q.size();
+	}
+
+	public Iterator<ReportFrame> iterator() {
+		return q.iterator();
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A String view of a queue of {@link ReportFrame}s, for report stores and
+ * sources that were written against String report queues.
+ * 
+ * Reports taken from this queue are decoded from their frame, and the frame
+ * is released.  Reports offered to it are encoded into a new frame.  A
+ * String-based report store only needs to wrap the queue it is given:
+ * 
+ * <pre>
+ * public void setReportQueue(BlockingQueue&lt;ReportFrame&gt; q) {
+ *     this.q = new StringReportQueue(q);
+ * }
+ * </pre>
+ * 
+ * The conversion costs a decode (or encode) per report, which is what the
+ * frame-based ingest path avoids, so new stores should use frames directly.
+ */
+public final class StringReportQueue extends AbstractQueue<String>
+		implements BlockingQueue<String> {
+	
+	private final BlockingQueue<ReportFrame> frames;
+
+	public StringReportQueue(BlockingQueue<ReportFrame> frames) {
+		this.frames = frames;
+	}
+	
+	private static String decode(ReportFrame frame) {
+		if (frame == null) {
+			return null;
+		}
+		String s = frame.toString();
+		frame.release();
+		return s;
+	}
+	
+	public boolean offer(String report) {
+		ReportFrame frame = ReportFrame.fromString(report);
+		if (frames.offer(frame)) {
+			return true;
+		}
+		frame.release();
+		return false;
+	}
+
+	public boolean offer(String report, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		ReportFrame frame = ReportFrame.fromString(report);
+		if (frames.offer(frame, timeout, unit)) {
+			return true;
+		}
+		frame.release();
+		return false;
+	}
+
+	public void put(String report) throws InterruptedException {
+		frames.put(ReportFrame.fromString(report));
+	}
+
+	public String poll() {
+		return decode(frames.poll());
+	}
+
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return decode(frames.poll(timeout, unit));
+	}
+
+	public String take() throws InterruptedException {
+		return decode(frames.take());
+	}
+
+	public String peek() {
+		while (true) {
+			ReportFrame frame = frames.peek();
+			if (frame == null) {
+				return null;
+			}
+			String s = decodeQueued(frame);
+			if (s != null) {
+				return s;
+			}
+			// Taken and released meanwhile; look at the new head
+		}
+	}
+	
+	/*
+	 * Decodes a frame that is still queued, holding it meanwhile so that a
+	 * concurrent take() can't recycle its buffer. Returns null if the frame
+	 * was already released.
+	 */
+	private static String decodeQueued(ReportFrame frame) {
+		if (!frame.tryRetain()) {
+			return null;
+		}
+		try {
+			return frame.toString();
+		} finally {
+			frame.release();
+		}
+	}
+
+	public int remainingCapacity() {
+		return frames.remainingCapacity();
+	}
+
+	public int drainTo(Collection<? super String> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	public int drainTo(Collection<? super String> c, int maxElements) {
+		List<ReportFrame> batch = new ArrayList<ReportFrame>();
+		int n = frames.drainTo(batch, maxElements);
+		for (int i = 0; i < n; i++) {
+			c.add(decode(batch.get(i)));
+		}
+		return n;
+	}
+
+	public int size() {
+		return frames.size();
+	}
+
+	/**
+	 * Returns a decoding iterator over the reports currently queued.  The
+	 * frames stay in the queue, so <code>remove()</code> is not supported.
+	 * Reports taken from the queue while iterating may be skipped.
+	 */
+	public Iterator<String> iterator() {
+		final Iterator<ReportFrame> iter = frames.iterator();
+		return new Iterator<String>() {
+			private String next = null;
+			
+			public boolean hasNext() {
+				while (next == null && iter.hasNext()) {
+					next = decodeQueued(iter.next());
+				}
+				return next != null;
+			}
+
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				String s = next;
+				next = null;
+				return s;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package edu.berkeley.xtrace.server;
+
+/**
+ * A position in a list of tasks ordered latest first: the last update
+ * time and ID of the last task seen. Lists resumed from a cursor start
+ * right after that task, however deep into the list it is, without
+ * skipping over the tasks before it.
+ * <p>
+ * Tasks are ordered by last update time, then by task ID, so the
+ * position is exact even among tasks updated in the same millisecond. A
+ * task updated after its page was read moves to the front of the list,
+ * and will not show up again further down.
+ * <p>
+ * Clients see cursors as opaque tokens, as returned by
+ * {@link #toString()} and read back by {@link #parse(String)}.
+ */
+public final class TaskCursor {
+	private final long lastUpdated;
+	private final String taskId;
+
+	private TaskCursor(long lastUpdated, String taskId) {
+		this.lastUpdated = lastUpdated;
+		this.taskId = taskId;
+	}
+
+	/**
+	 * The position right after <code>task</code>
+	 */
+	public static TaskCursor after(TaskRecord task) {
+		return new TaskCursor(task.getLastUpdated().getTime(), task
+				.getTaskId().toString().toUpperCase());
+	}
+
+	/**
+	 * Reads a token made by {@link #toString()}
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the token is malformed
+	 */
+	public static TaskCursor parse(String token) {
+		int dash = token.indexOf('-');
+		if (dash <= 0 || dash == token.length() - 1
+				|| token.length() - dash - 1 > 40) {
+			throw new IllegalArgumentException("Malformed cursor: " + token);
+		}
+		String taskId = token.substring(dash + 1).toUpperCase();
+		for (int i = 0; i < taskId.length(); i++) {
+			if (Character.digit(taskId.charAt(i), 16) < 0) {
+				throw new IllegalArgumentException("Malformed cursor: " + token);
+			}
+		}
+		try {
+			return new TaskCursor(Long.parseLong(token.substring(0, dash),
+					Character.MAX_RADIX), taskId);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed cursor: " + token);
+		}
+	}
+
+	long getLastUpdated() {
+		return lastUpdated;
+	}
+
+	/* Upper case, like the task IDs in the task index */
+	String getTaskId() {
+		return taskId;
+	}
+
+	/**
+	 * @return whether <code>task</code> comes after this position
+	 */
+	boolean precedes(TaskRecord task) {
+		long t = task.getLastUpdated().getTime();
+		return t < lastUpdated
+				|| (t == lastUpdated && task.getTaskId().toString()
+						.toUpperCase().compareTo(taskId) < 0);
+	}
+
+	public String toString() {
+		return Long.toString(lastUpdated, Character.MAX_RADIX) + "-" + taskId;
+	}
+}
@@ -0,0 +1,1710 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceException;
+
+/**
+ * The task metadata index kept in the embedded Derby database.
+ * <p>
+ * Writes are buffered: every report only updates an in-memory table of
+ * dirty task records (report count delta, last update time, title and
+ * merged tags). The table is written to the database in one batched
+ * transaction when it reaches <code>xtrace.server.index.flushsize</code>
+ * tasks, every <code>xtrace.server.index.flushinterval</code> milliseconds,
+ * and on {@link #flush()}. The first two are done by a background flusher
+ * thread, so the threads recording reports only wait for the database when
+ * the table has grown to twice its flush size. Queries merge the pending
+ * records into the database results, so they never lag behind the report
+ * files.
+ */
+final class TaskIndex {
+	private static final Logger LOG = Logger.getLogger(TaskIndex.class);
+
+	private static final int MAX_TITLE_LENGTH = 128;
+	private static final int MAX_TAGS_LENGTH = 512;
+
+	private final String url;
+	private final Connection conn;
+	private PreparedStatement insert, update, getTags, getByTaskId, getByTaskIds,
+			updatedSince, getByTag, insertTag, touchTags, deleteTags,
+			totalNumReports, totalNumTasks, lastTasks, lastTasksAfter,
+			updatedSinceAfter, getByTagAfter, getByTitleAfter,
+			getByTitleApproxAfter, getByTitleGramAfter,
+			getByTitle, getByTitleApprox, getByTitleGram, countGram,
+			insertGram, deleteGrams, updatedBetween, updatedBefore,
+			deleteTask;
+
+	private final int flushSize;
+	private final long flushInterval;
+	private final Thread flusher;
+	/* Set when the pending table is full. Guarded by this. */
+	private boolean flushRequested = false;
+
+	/* Reports not yet written to the database. Guarded by this. */
+	private Map<String, PendingTask> pending = new HashMap<String, PendingTask>();
+
+	/*
+	 * The records being written by flush(), which are still visible to
+	 * queries until the transaction commits. Guarded by dbLock, which also
+	 * serializes all use of the connection.
+	 */
+	private Map<String, PendingTask> flushing = null;
+	private final Object dbLock = new Object();
+	private boolean closed = false;
+
+	/*
+	 * The totals shown on the index page, kept up to date as records are
+	 * written instead of being aggregated over the whole table on every
+	 * call. storedTasks and storedReports count what the database holds,
+	 * unwrittenReports the reports of pending and flushing records. Guarded
+	 * by this.
+	 */
+	private long storedTasks = 0;
+	private long storedReports = 0;
+	private long unwrittenReports = 0;
+
+	/*
+	 * What the open transaction changes in the totals, applied by commit().
+	 * Guarded by dbLock.
+	 */
+	private long txTasks = 0;
+	private long txReports = 0;
+	private long txWrittenReports = 0;
+	private long flushedReports = 0;
+	private boolean complete = false;
+
+	TaskIndex(File dataDir) throws XTraceException {
+		this(dataDir, true);
+	}
+
+	/**
+	 * @param autoFlush
+	 *            whether to flush on the size and interval thresholds;
+	 *            without it, records are only written by {@link #flush()}
+	 */
+	TaskIndex(File dataDir, boolean autoFlush) throws XTraceException {
+		// This embedded SQL database contains metadata about the reports
+		System.setProperty("derby.system.home", dataDir.getAbsolutePath());
+		url = "jdbc:derby:" + new File(dataDir, "tasks").getAbsolutePath();
+		try {
+			Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+		} catch (InstantiationException e) {
+			throw new XTraceException(
+					"Unable to instantiate internal database", e);
+		} catch (IllegalAccessException e) {
+			throw new XTraceException(
+					"Unable to access internal database class", e);
+		} catch (ClassNotFoundException e) {
+			throw new XTraceException(
+					"Unable to locate internal database class", e);
+		}
+		Connection c;
+		boolean created = false;
+		try {
+			try {
+				c = DriverManager.getConnection(url);
+			} catch (SQLException e) {
+				// DB does not exist - create it
+				c = DriverManager.getConnection(url + ";create=true");
+				try {
+					createTables(c);
+					c.commit();
+				} catch (SQLException e2) {
+					closeQuietly(c);
+					throw e2;
+				}
+				created = true;
+			}
+			c.setAutoCommit(false);
+		} catch (SQLException e) {
+			throw new XTraceException("Unable to connect to interal database: "
+					+ e.getSQLState(), e);
+		}
+		if (!created) {
+			try {
+				upgrade(c);
+			} catch (SQLException e) {
+				try {
+					c.rollback();
+				} catch (SQLException e2) {
+				}
+				closeQuietly(c);
+				throw new XTraceException("Unable to upgrade the internal database: "
+						+ e.getSQLState(), e);
+			}
+		}
+		conn = c;
+		LOG.info("Successfully connected to the internal Derby database");
+		try {
+			complete = readComplete(c);
+		} catch (SQLException e) {
+			closeQuietly(c);
+			throw new XTraceException("Unable to read the task index state", e);
+		}
+
+		try {
+			createPreparedStatements();
+		} catch (SQLException e) {
+			throw new XTraceException("Unable to setup prepared statements", e);
+		}
+		if (!created) {
+			countTotals();
+		}
+
+		flushSize = autoFlush ? Integer.parseInt(System.getProperty(
+				"xtrace.server.index.flushsize", "1024")) : Integer.MAX_VALUE;
+		flushInterval = Long.parseLong(System.getProperty(
+				"xtrace.server.index.flushinterval", "1000"));
+		if (autoFlush) {
+			flusher = new Thread(new Runnable() {
+				public void run() {
+					runFlusher();
+				}
+			}, "TaskIndex flush");
+			flusher.setDaemon(true);
+			flusher.start();
+		} else {
+			flusher = null;
+		}
+	}
+
+	/*
+	 * Flushes whenever record() finds the pending table full, and every
+	 * flushInterval milliseconds if that is positive, until close().
+	 */
+	private void runFlusher() {
+		while (true) {
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + flushInterval;
+				while (!flushRequested && !closed) {
+					long wait = flushInterval > 0 ? deadline
+							- System.currentTimeMillis() : 0;
+					if (flushInterval > 0 && wait <= 0) {
+						break;
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed) {
+					return;
+				}
+				flushRequested = false;
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Deletes the database in <code>dataDir</code>, which must not be open.
+	 * A database damaged beyond opening can be dropped this way and
+	 * rebuilt from the task files.
+	 */
+	static void drop(File dataDir) {
+		deleteAll(new File(dataDir, "tasks"));
+	}
+
+	private static void deleteAll(File f) {
+		File[] children = f.listFiles();
+		for (int i = 0; children != null && i < children.length; i++) {
+			deleteAll(children[i]);
+		}
+		f.delete();
+	}
+
+	/**
+	 * @return whether the database holds a record of every task, rather
+	 *         than being new or left over from a rebuild that didn't finish
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/*
+	 * Brings an existing database up to date. A bulk load that didn't finish
+	 * may have left it without its secondary indexes, and databases from
+	 * before the tag and title indexes need them filled in. It all happens
+	 * in one transaction, so an interrupted upgrade starts over.
+	 */
+	private static void upgrade(Connection c) throws SQLException {
+		if (createTable(c, TAG_TABLE)) {
+			fillTagTable(c);
+		}
+		if (createTable(c, GRAM_TABLE)) {
+			fillTitleIndex(c);
+		}
+		if (createTable(c, COMPLETE_TABLE)) {
+			// Built record by record before the marker existed
+			setComplete(c);
+		}
+		createIndexes(c);
+		c.commit();
+	}
+
+	private static void closeQuietly(Connection c) {
+		try {
+			c.close();
+		} catch (SQLException e) {
+		}
+	}
+
+	private static void createTables(Connection c) throws SQLException {
+		Statement s = c.createStatement();
+		s.executeUpdate("create table tasks("
+				+ "taskId varchar(40) not null primary key, "
+				+ "firstSeen timestamp default current_timestamp not null, "
+				+ "lastUpdated timestamp default current_timestamp not null, "
+				+ "numReports integer default 1 not null, "
+				+ "tags varchar(512), " + "title varchar(128), "
+				+ "titleKey varchar(128))");
+		s.close();
+		createTable(c, TAG_TABLE);
+		createTable(c, GRAM_TABLE);
+		createTable(c, COMPLETE_TABLE);
+		createIndexes(c);
+	}
+
+	/*
+	 * Holds one row once the records are known to be complete. A new
+	 * database starts without it, and a rebuild deletes it when it starts
+	 * and only puts it back when every task file was loaded, so one that
+	 * crashes or fails part way is done again on the next start.
+	 */
+	private static final String COMPLETE_TABLE = "create table index_complete("
+			+ "completed timestamp not null)";
+
+	private static boolean readComplete(Connection c) throws SQLException {
+		Statement s = c.createStatement();
+		try {
+			ResultSet rs = s.executeQuery("select count(*) from index_complete");
+			rs.next();
+			return rs.getInt(1) > 0;
+		} finally {
+			s.close();
+		}
+	}
+
+	private static void setComplete(Connection c) throws SQLException {
+		Statement s = c.createStatement();
+		try {
+			s.executeUpdate("insert into index_complete values (current_timestamp)");
+		} finally {
+			s.close();
+		}
+	}
+
+	/* @return whether the table was created, rather than already there */
+	private static boolean createTable(Connection c, String ddl)
+			throws SQLException {
+		Statement s = c.createStatement();
+		try {
+			s.executeUpdate(ddl);
+			return true;
+		} catch (SQLException e) {
+			// X0Y32: the table already exists
+			if (!"X0Y32".equals(e.getSQLState())) {
+				throw e;
+			}
+			return false;
+		} finally {
+			s.close();
+		}
+	}
+
+	/*
+	 * The tag index: one row per task and tag, the tag upper-cased. Each
+	 * row repeats the task's lastUpdated, so that the tasks with a tag come
+	 * out of idx_tag_time latest first, without sorting them. The tags
+	 * column of the tasks table is only kept for display.
+	 */
+	private static final String TAG_TABLE = "create table task_tags("
+			+ "tag varchar(512) not null, " + "taskId varchar(40) not null, "
+			+ "lastUpdated timestamp not null, " + "primary key (tag, taskId))";
+
+	/* Fills in the tag index of a database created before it existed */
+	private static void fillTagTable(Connection c) throws SQLException {
+		LOG.info("Building the tag index");
+		Statement s = c.createStatement();
+		try {
+			s.executeUpdate("drop index idx_tags");
+		} catch (SQLException e) {
+			LOG.debug("No old tags index to drop", e);
+		}
+		PreparedStatement insertTag = c.prepareStatement(INSERT_TAG);
+		ResultSet rs = s.executeQuery("select taskId, tags, lastUpdated "
+				+ "from tasks where tags is not null");
+		int n = 0;
+		while (rs.next()) {
+			String taskId = rs.getString("taskId");
+			Timestamp lastUpdated = rs.getTimestamp("lastUpdated");
+			for (String tag : normalizeTags(splitTags(rs.getString("tags")))) {
+				addTag(insertTag, tag, taskId, lastUpdated);
+				if (++n % 5000 == 0) {
+					insertTag.executeBatch();
+				}
+			}
+		}
+		rs.close();
+		insertTag.executeBatch();
+		insertTag.close();
+		s.close();
+		LOG.info("Built the tag index: " + n + " task tags");
+	}
+
+	private static final String INSERT_TAG = "insert into task_tags "
+			+ "(tag, taskId, lastUpdated) select ?, ?, ? from sysibm.sysdummy1 "
+			+ "where not exists (select 1 from task_tags where tag = ? and taskId = ?)";
+
+	private static void addTag(PreparedStatement insertTag, String tag,
+			String taskId, Timestamp lastUpdated) throws SQLException {
+		insertTag.setString(1, tag);
+		insertTag.setString(2, taskId);
+		insertTag.setTimestamp(3, lastUpdated);
+		insertTag.setString(4, tag);
+		insertTag.setString(5, taskId);
+		insertTag.addBatch();
+	}
+
+	/* Tags are matched without regard to case */
+	private static TreeSet<String> normalizeTags(Collection<String> tags) {
+		TreeSet<String> normalized = new TreeSet<String>();
+		if (tags != null) {
+			for (String tag : tags) {
+				String t = normalizeTag(tag);
+				if (t.length() > 0 && t.length() <= MAX_TAGS_LENGTH) {
+					normalized.add(t);
+				}
+			}
+		}
+		return normalized;
+	}
+
+	private static String normalizeTag(String tag) {
+		return tag.trim().toUpperCase(Locale.ENGLISH);
+	}
+
+	/*
+	 * The title index. Titles are matched on their upper-cased form, kept
+	 * in the titleKey column, which idx_title_key serves for exact lookups.
+	 * For substrings, title_grams holds every distinct 3-character
+	 * substring (trigram) of each task's titleKey. Any title containing a
+	 * string of 3 or more characters contains each of its trigrams, so the
+	 * tasks listed under any one of them are a superset of the matches,
+	 * which titleKey is then checked against.
+	 */
+	private static final String GRAM_TABLE = "create table title_grams("
+			+ "gram varchar(3) not null, " + "taskId varchar(40) not null, "
+			+ "primary key (gram, taskId))";
+
+	private static final int GRAM_LENGTH = 3;
+
+	/*
+	 * How many postings to count for each trigram of a substring query
+	 * before settling on the shortest list, and how many trigrams to try
+	 */
+	private static final int GRAM_PROBE_ROWS = 1000;
+	private static final int GRAM_PROBES = 8;
+
+	/* Fills in the title index of a database created before it existed */
+	private static void fillTitleIndex(Connection c) throws SQLException {
+		LOG.info("Building the title index");
+		Statement s = c.createStatement();
+		s.executeUpdate("alter table tasks add column titleKey varchar(128)");
+		try {
+			s.executeUpdate("drop index idx_title");
+		} catch (SQLException e) {
+			LOG.debug("No old title index to drop", e);
+		}
+		PreparedStatement setKey = c
+				.prepareStatement("update tasks set titleKey = ? where taskId = ?");
+		PreparedStatement insertGram = c.prepareStatement(INSERT_GRAM);
+		ResultSet rs = s.executeQuery("select taskId, title from tasks");
+		int n = 0;
+		while (rs.next()) {
+			String taskId = rs.getString("taskId");
+			String key = titleKey(rs.getString("title"));
+			setKey.setString(1, key);
+			setKey.setString(2, taskId);
+			setKey.addBatch();
+			addGrams(insertGram, key, taskId);
+			if (++n % 5000 == 0) {
+				setKey.executeBatch();
+				insertGram.executeBatch();
+			}
+		}
+		rs.close();
+		setKey.executeBatch();
+		insertGram.executeBatch();
+		setKey.close();
+		insertGram.close();
+		s.close();
+		LOG.info("Built the title index: " + n + " titles");
+	}
+
+	private static final String INSERT_GRAM = "insert into title_grams "
+			+ "(gram, taskId) values (?, ?)";
+
+	private static String titleKey(String title) {
+		return title == null ? null : truncate(title
+				.toUpperCase(Locale.ENGLISH), MAX_TITLE_LENGTH);
+	}
+
+	private static Set<String> grams(String key) {
+		Set<String> grams = new LinkedHashSet<String>();
+		for (int i = 0; key != null && i + GRAM_LENGTH <= key.length(); i++) {
+			grams.add(key.substring(i, i + GRAM_LENGTH));
+		}
+		return grams;
+	}
+
+	private static void addGrams(PreparedStatement insertGram, String key,
+			String taskId) throws SQLException {
+		for (String gram : grams(key)) {
+			insertGram.setString(1, gram);
+			insertGram.setString(2, taskId);
+			insertGram.addBatch();
+		}
+	}
+
+	private static final String[] INDEXES = {
+			"idx_tasks on tasks(taskid)", "idx_firstseen on tasks(firstSeen)",
+			"idx_lastUpdated on tasks(lastUpdated)",
+			"idx_latest on tasks(lastUpdated desc, taskId desc)",
+			"idx_title_key on tasks(titleKey, lastUpdated desc, taskId desc)",
+			"idx_gram_task on title_grams(taskId)",
+			"idx_tag_time on task_tags(tag, lastUpdated desc, taskId desc)",
+			"idx_tag_task on task_tags(taskId)" };
+
+	/* Creates the secondary indexes that don't exist yet */
+	private static void createIndexes(Connection c) throws SQLException {
+		Statement s = c.createStatement();
+		try {
+			for (int i = 0; i < INDEXES.length; i++) {
+				try {
+					s.executeUpdate("create index " + INDEXES[i]);
+				} catch (SQLException e) {
+					// X0Y32: the index already exists
+					if (!"X0Y32".equals(e.getSQLState())) {
+						throw e;
+					}
+				}
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	private void createPreparedStatements() throws SQLException {
+		insert = conn
+				.prepareStatement("insert into tasks (taskid, firstSeen, lastUpdated, "
+						+ "numReports, tags, title, titleKey) values (?, ?, ?, ?, ?, ?, ?)");
+		update = conn
+				.prepareStatement("update tasks set lastUpdated = ?, "
+						+ "numReports = numReports + ?, "
+						+ "title = coalesce(cast(? as varchar(128)), title), "
+						+ "titleKey = coalesce(cast(? as varchar(128)), titleKey), "
+						+ "tags = coalesce(cast(? as varchar(512)), tags) "
+						+ "where taskId = ?");
+		getTags = conn
+				.prepareStatement("select tags, titleKey from tasks where taskid = ?");
+		getByTaskId = conn
+				.prepareStatement("select * from tasks where taskid = ?");
+		StringBuilder ids = new StringBuilder("?");
+		for (int i = 1; i < LOOKUP_BATCH_SIZE; i++) {
+			ids.append(", ?");
+		}
+		getByTaskIds = conn
+				.prepareStatement("select * from tasks where taskid in (" + ids + ")");
+		updatedSince = conn
+				.prepareStatement("select * from tasks where firstseen >= ?"
+						+ latestFirst(""));
+		updatedSinceAfter = conn
+				.prepareStatement("select * from tasks where firstseen >= ? and "
+						+ after("") + latestFirst(""));
+		totalNumReports = conn
+				.prepareStatement("select sum(numReports) as totalreports from tasks");
+		totalNumTasks = conn
+				.prepareStatement("select count(*) as numtasks from tasks");
+		lastTasks = conn.prepareStatement("select * from tasks"
+				+ latestFirst(""));
+		lastTasksAfter = conn.prepareStatement("select * from tasks where "
+				+ after("") + latestFirst(""));
+		getByTag = conn
+				.prepareStatement("select t.* from task_tags g, tasks t where g.tag = ? "
+						+ "and t.taskId = g.taskId" + latestFirst("g."));
+		getByTagAfter = conn
+				.prepareStatement("select t.* from task_tags g, tasks t where g.tag = ? "
+						+ "and " + after("g.") + " and t.taskId = g.taskId"
+						+ latestFirst("g."));
+		insertTag = conn.prepareStatement(INSERT_TAG);
+		touchTags = conn
+				.prepareStatement("update task_tags set lastUpdated = ? where taskId = ?");
+		deleteTags = conn
+				.prepareStatement("delete from task_tags where taskId = ?");
+		getByTitle = conn
+				.prepareStatement("select * from tasks where titleKey = ?"
+						+ latestFirst(""));
+		getByTitleAfter = conn
+				.prepareStatement("select * from tasks where titleKey = ? and "
+						+ after("") + latestFirst(""));
+		getByTitleApprox = conn
+				.prepareStatement("select * from tasks where locate(?, titleKey) > 0"
+						+ latestFirst(""));
+		getByTitleApproxAfter = conn
+				.prepareStatement("select * from tasks where locate(?, titleKey) > 0 and "
+						+ after("") + latestFirst(""));
+		// Left to itself, the optimizer scans tasks and probes the postings
+		String byGram = "select t.* from --DERBY-PROPERTIES joinOrder=FIXED\n"
+				+ "title_grams g, title_grams h, tasks t "
+				+ "where g.gram = ? and h.gram = ? and h.taskId = g.taskId "
+				+ "and t.taskId = g.taskId and locate(?, t.titleKey) > 0";
+		getByTitleGram = conn.prepareStatement(byGram + latestFirst("t."));
+		getByTitleGramAfter = conn.prepareStatement(byGram + " and "
+				+ after("t.") + latestFirst("t."));
+		countGram = conn
+				.prepareStatement("select taskId from title_grams where gram = ?");
+		countGram.setMaxRows(GRAM_PROBE_ROWS);
+		insertGram = conn.prepareStatement(INSERT_GRAM);
+		deleteGrams = conn
+				.prepareStatement("delete from title_grams where taskId = ?");
+		updatedBetween = conn
+				.prepareStatement("select taskId from tasks where lastUpdated >= ? and lastUpdated < ?");
+		updatedBefore = conn
+				.prepareStatement("select taskId from tasks where lastUpdated < ? order by lastUpdated");
+		deleteTask = conn
+				.prepareStatement("delete from tasks where taskId = ? and lastUpdated < ?");
+	}
+
+	/**
+	 * Records one report for <code>task</code>. Only the in-memory table is
+	 * touched unless it has grown past the flush threshold.
+	 *
+	 * @param title
+	 *            the report's title, or <code>null</code>
+	 * @param tags
+	 *            the report's tags, or <code>null</code>
+	 */
+	void record(TaskID task, String title, Collection<String> tags) {
+		String taskId = task.toString().toUpperCase();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			// Far behind: wait for the flusher to take the table
+			while (pending.size() >= 2L * flushSize && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			PendingTask p = pending.get(taskId);
+			if (p == null) {
+				p = new PendingTask(taskId, now);
+				pending.put(taskId, p);
+			}
+			p.numReports++;
+			p.lastUpdated = now;
+			unwrittenReports++;
+			if (title != null) {
+				p.title = title;
+			}
+			if (tags != null) {
+				p.addTags(tags);
+			}
+			if (pending.size() >= flushSize && !flushRequested) {
+				flushRequested = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending records to the database in one transaction.
+	 */
+	void flush() {
+		flush(null);
+	}
+
+	/**
+	 * Takes the pending records, runs <code>beforeWrite</code> (if not
+	 * null) and then writes the records in one transaction. Group commits
+	 * use this to sync the report files first, so that the records never
+	 * count reports that aren't on disk yet.
+	 */
+	void flush(Runnable beforeWrite) {
+		synchronized (dbLock) {
+			synchronized (this) {
+				if (closed || (pending.isEmpty() && beforeWrite == null)) {
+					return;
+				}
+				flushing = pending;
+				pending = new HashMap<String, PendingTask>();
+				// Wakes up record() calls waiting for room
+				notifyAll();
+			}
+			long total = 0;
+			for (PendingTask p : flushing.values()) {
+				total += p.numReports;
+			}
+			flushedReports = 0;
+			try {
+				if (beforeWrite != null) {
+					beforeWrite.run();
+				}
+				if (flushing.isEmpty()) {
+					return;
+				}
+				write(flushing.values());
+				commit();
+			} catch (SQLException e) {
+				// One bad record shouldn't cost the whole batch
+				LOG.warn("Batched index update of " + flushing.size()
+						+ " tasks failed, retrying one task at a time", e);
+				rollback();
+				for (PendingTask p : flushing.values()) {
+					try {
+						write(Collections.singletonList(p));
+						commit();
+					} catch (SQLException e2) {
+						LOG.warn("Unable to update metadata about task "
+								+ p.taskId, e2);
+						rollback();
+					}
+				}
+			} finally {
+				// Whatever wasn't written is lost
+				synchronized (this) {
+					unwrittenReports -= total - flushedReports;
+				}
+				flushing = null;
+			}
+		}
+	}
+
+	/* Commits the open transaction and applies its changes to the totals */
+	private void commit() throws SQLException {
+		conn.commit();
+		synchronized (this) {
+			storedTasks += txTasks;
+			storedReports += txReports;
+			unwrittenReports -= txWrittenReports;
+		}
+		flushedReports += txWrittenReports;
+		txTasks = txReports = txWrittenReports = 0;
+	}
+
+	private void rollback() {
+		txTasks = txReports = txWrittenReports = 0;
+		try {
+			update.clearBatch();
+			insert.clearBatch();
+			deleteTask.clearBatch();
+			insertTag.clearBatch();
+			touchTags.clearBatch();
+			deleteTags.clearBatch();
+			insertGram.clearBatch();
+			deleteGrams.clearBatch();
+			conn.rollback();
+		} catch (SQLException e) {
+			LOG.warn("Unable to roll back the index transaction", e);
+		}
+	}
+
+	private void write(Collection<PendingTask> tasks) throws SQLException {
+		List<PendingTask> order = new ArrayList<PendingTask>(tasks);
+		boolean retitled = false;
+		for (PendingTask p : order) {
+			String title = p.title == null ? null : truncate(p.title,
+					MAX_TITLE_LENGTH);
+			String key = titleKey(title);
+			update.setTimestamp(1, new Timestamp(p.lastUpdated));
+			update.setInt(2, p.numReports);
+			if (title != null) {
+				update.setString(3, title);
+				update.setString(4, key);
+			} else {
+				update.setNull(3, Types.VARCHAR);
+				update.setNull(4, Types.VARCHAR);
+			}
+			TreeSet<String> merged = null;
+			if (p.tags != null || title != null) {
+				// Merge with whatever the database already holds
+				merged = p.tags == null ? null : new TreeSet<String>(p.tags);
+				getTags.setString(1, p.taskId);
+				ResultSet rs = getTags.executeQuery();
+				if (rs.next()) {
+					if (merged != null) {
+						addTags(merged, rs.getString("tags"));
+					}
+					// Only a title that changed has new trigrams
+					if (title != null && !key.equals(rs.getString("titleKey"))) {
+						deleteGrams.setString(1, p.taskId);
+						deleteGrams.addBatch();
+						addGrams(insertGram, key, p.taskId);
+						retitled = true;
+					}
+				}
+				rs.close();
+			}
+			if (merged != null) {
+				update.setString(5, joinWithCommas(merged));
+			} else {
+				update.setNull(5, Types.VARCHAR);
+			}
+			update.setString(6, p.taskId);
+			update.addBatch();
+			txReports += p.numReports;
+			txWrittenReports += p.numReports;
+		}
+		int[] counts = update.executeBatch();
+		if (retitled) {
+			deleteGrams.executeBatch();
+		}
+
+		boolean inserts = false;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				continue;
+			}
+			PendingTask p = order.get(i);
+			insert.setString(1, p.taskId);
+			insert.setTimestamp(2, new Timestamp(p.firstSeen));
+			insert.setTimestamp(3, new Timestamp(p.lastUpdated));
+			insert.setInt(4, p.numReports);
+			insert.setString(5, joinWithCommas(p.tags));
+			String title = truncate(p.title == null ? p.taskId : p.title,
+					MAX_TITLE_LENGTH);
+			insert.setString(6, title);
+			insert.setString(7, titleKey(title));
+			insert.addBatch();
+			addGrams(insertGram, titleKey(title), p.taskId);
+			inserts = true;
+			txTasks++;
+		}
+		if (inserts) {
+			insert.executeBatch();
+		}
+		if (inserts || retitled) {
+			insertGram.executeBatch();
+		}
+
+		// Keep the tag index in step: existing rows take the new update
+		// time, and tags seen for the first time get rows of their own
+		boolean newTags = false;
+		for (PendingTask p : order) {
+			Timestamp lastUpdated = new Timestamp(p.lastUpdated);
+			touchTags.setTimestamp(1, lastUpdated);
+			touchTags.setString(2, p.taskId);
+			touchTags.addBatch();
+			for (String tag : normalizeTags(p.tags)) {
+				addTag(insertTag, tag, p.taskId, lastUpdated);
+				newTags = true;
+			}
+		}
+		touchTags.executeBatch();
+		if (newTags) {
+			insertTag.executeBatch();
+		}
+	}
+
+	/**
+	 * Flushes the pending records, stops the flush timer and shuts the
+	 * database down.
+	 */
+	void close() {
+		flush();
+		synchronized (dbLock) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				// Stops the flusher and any record() calls waiting for it
+				notifyAll();
+			}
+			try {
+				DriverManager.getConnection(url + ";shutdown=true");
+			} catch (SQLException e) {
+				if (!"08006".equals(e.getSQLState())) {
+					LOG.warn("Unable to shutdown embedded database", e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Queries. Each list comes in two forms: one skips offset tasks, the
+	 * other resumes after a cursor (see TaskCursor), seeking straight to it
+	 * through the (lastUpdated desc, taskId desc) indexes.
+	 */
+
+	List<TaskRecord> getTasksSince(long milliSecondsSince1970, int offset,
+			int limit) {
+		return getTasksSince(milliSecondsSince1970, null, offset, limit);
+	}
+
+	List<TaskRecord> getTasksSince(long milliSecondsSince1970,
+			TaskCursor after, int limit) {
+		return getTasksSince(milliSecondsSince1970, after, 0, limit);
+	}
+
+	private List<TaskRecord> getTasksSince(final long milliSecondsSince1970,
+			TaskCursor after, int offset, int limit) {
+		synchronized (dbLock) {
+			try {
+				PreparedStatement ps = after == null ? updatedSince
+						: updatedSinceAfter;
+				ps.setTimestamp(1, new Timestamp(milliSecondsSince1970));
+				setCursor(ps, 2, after);
+				return query(ps, new Filter() {
+					public boolean matches(TaskRecord r) {
+						return r.getFirstSeen().getTime() >= milliSecondsSince1970;
+					}
+				}, after, offset, limit);
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+				return new ArrayList<TaskRecord>();
+			}
+		}
+	}
+
+	List<TaskRecord> getLatestTasks(int offset, int limit) {
+		return getLatestTasks(null, offset, limit);
+	}
+
+	List<TaskRecord> getLatestTasks(TaskCursor after, int limit) {
+		return getLatestTasks(after, 0, limit);
+	}
+
+	private List<TaskRecord> getLatestTasks(TaskCursor after, int offset,
+			int limit) {
+		synchronized (dbLock) {
+			try {
+				PreparedStatement ps = after == null ? lastTasks : lastTasksAfter;
+				setCursor(ps, 1, after);
+				return query(ps, new Filter() {
+					public boolean matches(TaskRecord r) {
+						return true;
+					}
+				}, after, offset, limit);
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+				return new ArrayList<TaskRecord>();
+			}
+		}
+	}
+
+	List<TaskRecord> getTasksByTag(String tag, int offset, int limit) {
+		return getTasksByTag(tag, null, offset, limit);
+	}
+
+	List<TaskRecord> getTasksByTag(String tag, TaskCursor after, int limit) {
+		return getTasksByTag(tag, after, 0, limit);
+	}
+
+	private List<TaskRecord> getTasksByTag(final String tag, TaskCursor after,
+			int offset, int limit) {
+		synchronized (dbLock) {
+			try {
+				PreparedStatement ps = after == null ? getByTag : getByTagAfter;
+				ps.setString(1, normalizeTag(tag));
+				setCursor(ps, 2, after);
+				return query(ps, new Filter() {
+					public boolean matches(TaskRecord r) {
+						for (String t : r.getTags()) {
+							if (t.trim().equalsIgnoreCase(tag.trim())) {
+								return true;
+							}
+						}
+						return false;
+					}
+				}, after, offset, limit);
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+				return new ArrayList<TaskRecord>();
+			}
+		}
+	}
+
+	List<TaskRecord> getTasksByTitle(String title, int offset, int limit) {
+		return getTasksByTitle(title, null, offset, limit);
+	}
+
+	List<TaskRecord> getTasksByTitle(String title, TaskCursor after, int limit) {
+		return getTasksByTitle(title, after, 0, limit);
+	}
+
+	private List<TaskRecord> getTasksByTitle(String title, TaskCursor after,
+			int offset, int limit) {
+		final String key = titleKey(title);
+		synchronized (dbLock) {
+			try {
+				PreparedStatement ps = after == null ? getByTitle
+						: getByTitleAfter;
+				ps.setString(1, key);
+				setCursor(ps, 2, after);
+				return query(ps, new Filter() {
+					public boolean matches(TaskRecord r) {
+						return key.equals(titleKey(r.getTitle()));
+					}
+				}, after, offset, limit);
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+				return new ArrayList<TaskRecord>();
+			}
+		}
+	}
+
+	/**
+	 * Lists the tasks whose title contains <code>title</code>, ignoring
+	 * case. Strings of 3 or more characters are looked up through the
+	 * trigram with the fewest tasks; shorter ones scan the tasks from the
+	 * latest, which they usually match soon enough.
+	 */
+	List<TaskRecord> getTasksByTitleSubstring(String title, int offset,
+			int limit) {
+		return getTasksByTitleSubstring(title, null, offset, limit);
+	}
+
+	List<TaskRecord> getTasksByTitleSubstring(String title, TaskCursor after,
+			int limit) {
+		return getTasksByTitleSubstring(title, after, 0, limit);
+	}
+
+	private List<TaskRecord> getTasksByTitleSubstring(String title,
+			TaskCursor after, int offset, int limit) {
+		final String key = titleKey(title);
+		synchronized (dbLock) {
+			try {
+				PreparedStatement ps;
+				String[] grams = rarestGrams(key);
+				if (grams != null) {
+					ps = after == null ? getByTitleGram : getByTitleGramAfter;
+					ps.setString(1, grams[0]);
+					ps.setString(2, grams[1]);
+					ps.setString(3, key);
+					setCursor(ps, 4, after);
+				} else {
+					ps = after == null ? getByTitleApprox : getByTitleApproxAfter;
+					ps.setString(1, key);
+					setCursor(ps, 2, after);
+				}
+				return query(ps, new Filter() {
+					public boolean matches(TaskRecord r) {
+						return titleKey(r.getTitle()).indexOf(key) >= 0;
+					}
+				}, after, offset, limit);
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+				return new ArrayList<TaskRecord>();
+			}
+		}
+	}
+
+	/*
+	 * The condition selecting the tasks after a cursor, on the lastUpdated
+	 * and taskId columns of the table named by alias. Its first comparison
+	 * is what lets the index scan start at the cursor.
+	 */
+	private static String after(String alias) {
+		return alias + "lastUpdated <= ? and (" + alias + "lastUpdated < ? or "
+				+ alias + "taskId < ?)";
+	}
+
+	private static String latestFirst(String alias) {
+		return " order by " + alias + "lastUpdated desc, " + alias
+				+ "taskId desc";
+	}
+
+	/* Sets the three parameters of after(), if there is a cursor */
+	private static void setCursor(PreparedStatement ps, int index,
+			TaskCursor after) throws SQLException {
+		if (after != null) {
+			Timestamp lastUpdated = new Timestamp(after.getLastUpdated());
+			ps.setTimestamp(index, lastUpdated);
+			ps.setTimestamp(index + 1, lastUpdated);
+			ps.setString(index + 2, after.getTaskId());
+		}
+	}
+
+	/*
+	 * Picks two trigrams of key listing few tasks, counting up to
+	 * GRAM_PROBE_ROWS of each: the tasks under the rarest one are checked
+	 * against the second before their rows are read. The second comes from
+	 * a part of key the first doesn't overlap, as far from it as the counts
+	 * allow, since neighbouring trigrams mostly list the same tasks. Long
+	 * posting lists all count the same, so this matters most for them.
+	 * Returns null if key is too short to have any trigrams. Must be
+	 * called with dbLock held.
+	 */
+	private String[] rarestGrams(String key) throws SQLException {
+		int numGrams = key.length() - GRAM_LENGTH + 1;
+		if (numGrams <= 0) {
+			return null;
+		}
+		// Spread the probes over the whole string
+		int step = Math.max(1, (numGrams + GRAM_PROBES - 1) / GRAM_PROBES);
+		List<Integer> positions = new ArrayList<Integer>();
+		for (int i = 0; i < numGrams; i += step) {
+			positions.add(i);
+		}
+		if (positions.get(positions.size() - 1) != numGrams - 1) {
+			positions.add(numGrams - 1);
+		}
+		int[] counts = new int[positions.size()];
+		int first = 0;
+		for (int i = 0; i < counts.length; i++) {
+			int pos = positions.get(i);
+			countGram.setString(1, key.substring(pos, pos + GRAM_LENGTH));
+			ResultSet rs = countGram.executeQuery();
+			while (rs.next()) {
+				counts[i]++;
+			}
+			rs.close();
+			if (counts[i] < counts[first]) {
+				first = i;
+			}
+			if (counts[first] == 0) {
+				break;
+			}
+		}
+		int second = first;
+		int distance = 0;
+		for (int i = 0; i < counts.length; i++) {
+			int d = Math.abs(positions.get(i) - positions.get(first));
+			if (d < GRAM_LENGTH) {
+				continue;
+			}
+			if (second == first || counts[i] < counts[second]
+					|| (counts[i] == counts[second] && d > distance)) {
+				second = i;
+				distance = d;
+			}
+		}
+		int a = positions.get(first), b = positions.get(second);
+		return new String[] { key.substring(a, a + GRAM_LENGTH),
+				key.substring(b, b + GRAM_LENGTH) };
+	}
+
+	/**
+	 * @return the task's record, including pending reports, or
+	 *         <code>null</code> if the task is unknown
+	 */
+	TaskRecord getTask(TaskID task) {
+		String taskId = task.toString().toUpperCase();
+		synchronized (dbLock) {
+			try {
+				PendingTask p = pendingSnapshot().get(taskId);
+				return merge(lookup(taskId), p);
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Lists the tasks whose last written update falls in
+	 * <code>[from, to)</code>. Pending reports are not taken into account,
+	 * so callers that care should check the task with {@link #getTask}.
+	 */
+	List<TaskID> getTasksUpdatedBetween(long from, long to) {
+		List<TaskID> tasks = new ArrayList<TaskID>();
+		synchronized (dbLock) {
+			try {
+				updatedBetween.setTimestamp(1, new Timestamp(from));
+				updatedBetween.setTimestamp(2, new Timestamp(to));
+				ResultSet rs = updatedBetween.executeQuery();
+				while (rs.next()) {
+					tasks.add(TaskID.createFromString(rs.getString("taskId")));
+				}
+				rs.close();
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Inserts complete task records, such as those rebuilt from the task
+	 * files, in one transaction. The tasks must not have records yet.
+	 *
+	 * @return whether the records were written
+	 */
+	boolean load(List<TaskRecord> records) {
+		synchronized (dbLock) {
+			try {
+				boolean tags = false;
+				for (int i = 0; i < records.size(); i++) {
+					TaskRecord r = records.get(i);
+					String taskId = r.getTaskId().toString().toUpperCase();
+					Timestamp lastUpdated = new Timestamp(r.getLastUpdated()
+							.getTime());
+					for (String tag : normalizeTags(r.getTags())) {
+						addTag(insertTag, tag, taskId, lastUpdated);
+						tags = true;
+					}
+					insert.setString(1, taskId);
+					insert.setTimestamp(2, new Timestamp(r.getFirstSeen()
+							.getTime()));
+					insert.setTimestamp(3, lastUpdated);
+					insert.setInt(4, r.getNumReports());
+					insert.setString(5, joinWithCommas(r.getTags()));
+					String title = truncate(r.getTitle(), MAX_TITLE_LENGTH);
+					insert.setString(6, title);
+					insert.setString(7, titleKey(title));
+					insert.addBatch();
+					addGrams(insertGram, titleKey(title), taskId);
+					txReports += r.getNumReports();
+				}
+				insert.executeBatch();
+				insertGram.executeBatch();
+				if (tags) {
+					insertTag.executeBatch();
+				}
+				txTasks += records.size();
+				commit();
+				return true;
+			} catch (SQLException e) {
+				LOG.warn("Unable to load " + records.size() + " task records", e);
+				rollback();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Deletes every task record and drops the secondary indexes, which are
+	 * much cheaper to build once all records are loaded than to keep up to
+	 * date along the way. {@link #endBulkLoad(boolean)} builds them again.
+	 * Until then the index is not complete.
+	 */
+	void beginBulkLoad() {
+		synchronized (dbLock) {
+			try {
+				Statement s = conn.createStatement();
+				s.executeUpdate("delete from tasks");
+				s.executeUpdate("delete from task_tags");
+				s.executeUpdate("delete from title_grams");
+				s.executeUpdate("delete from index_complete");
+				for (int i = 0; i < INDEXES.length; i++) {
+					String name = INDEXES[i].substring(0, INDEXES[i]
+							.indexOf(' '));
+					try {
+						s.executeUpdate("drop index " + name);
+					} catch (SQLException e) {
+						// 42X65: no such index, as for idx_tasks, which
+						// Derby folds into the primary key
+						if (!"42X65".equals(e.getSQLState())) {
+							throw e;
+						}
+					}
+				}
+				s.close();
+				synchronized (this) {
+					txTasks = -storedTasks;
+					txReports = -storedReports;
+				}
+				commit();
+				complete = false;
+			} catch (SQLException e) {
+				LOG.warn("Unable to prepare the task index for loading", e);
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * Builds the secondary indexes again after a bulk load.
+	 *
+	 * @param loadedAll
+	 *            whether every task was loaded, which marks the index
+	 *            complete
+	 */
+	void endBulkLoad(boolean loadedAll) {
+		synchronized (dbLock) {
+			try {
+				createIndexes(conn);
+				if (loadedAll) {
+					setComplete(conn);
+				}
+				commit();
+				complete = loadedAll;
+			} catch (SQLException e) {
+				LOG.warn("Unable to build the task index", e);
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * Lists up to <code>limit</code> of the least recently updated tasks
+	 * last written before <code>before</code>, oldest first.
+	 */
+	List<TaskID> getTasksUpdatedBefore(long before, int limit) {
+		List<TaskID> tasks = new ArrayList<TaskID>();
+		synchronized (dbLock) {
+			try {
+				updatedBefore.setTimestamp(1, new Timestamp(before));
+				updatedBefore.setMaxRows(limit);
+				ResultSet rs = updatedBefore.executeQuery();
+				while (rs.next()) {
+					tasks.add(TaskID.createFromString(rs.getString("taskId")));
+				}
+				rs.close();
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Deletes the records of the given tasks in one transaction, except for
+	 * tasks updated at or after <code>before</code>, including by pending
+	 * reports.
+	 *
+	 * @return the tasks whose records were deleted
+	 */
+	List<TaskID> delete(List<TaskID> tasks, long before) {
+		List<TaskID> deleted = new ArrayList<TaskID>(tasks.size());
+		synchronized (dbLock) {
+			Map<String, PendingTask> deltas = pendingSnapshot();
+			List<TaskID> order = new ArrayList<TaskID>(tasks.size());
+			List<Integer> numReports = new ArrayList<Integer>(tasks.size());
+			try {
+				for (int i = 0; i < tasks.size(); i++) {
+					String taskId = tasks.get(i).toString().toUpperCase();
+					if (deltas.containsKey(taskId)) {
+						continue;
+					}
+					TaskRecord r = lookup(taskId);
+					if (r == null) {
+						continue;
+					}
+					numReports.add(r.getNumReports());
+					deleteTask.setString(1, taskId);
+					deleteTask.setTimestamp(2, new Timestamp(before));
+					deleteTask.addBatch();
+					order.add(tasks.get(i));
+				}
+				if (order.isEmpty()) {
+					return deleted;
+				}
+				int[] counts = deleteTask.executeBatch();
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] > 0) {
+						deleted.add(order.get(i));
+						txTasks--;
+						txReports -= numReports.get(i);
+						deleteTags.setString(1, order.get(i).toString()
+								.toUpperCase());
+						deleteTags.addBatch();
+						deleteGrams.setString(1, order.get(i).toString()
+								.toUpperCase());
+						deleteGrams.addBatch();
+					}
+				}
+				if (!deleted.isEmpty()) {
+					deleteTags.executeBatch();
+					deleteGrams.executeBatch();
+				}
+				commit();
+			} catch (SQLException e) {
+				LOG.warn("Unable to delete the records of " + order.size()
+						+ " tasks", e);
+				rollback();
+				deleted.clear();
+			}
+		}
+		return deleted;
+	}
+
+	/*
+	 * Seeds the totals from the database. This is the only time the whole
+	 * table gets aggregated.
+	 */
+	private void countTotals() {
+		synchronized (dbLock) {
+			try {
+				ResultSet rs = totalNumReports.executeQuery();
+				rs.next();
+				long reports = rs.getLong("totalreports");
+				rs.close();
+				rs = totalNumTasks.executeQuery();
+				rs.next();
+				long tasks = rs.getLong("numtasks");
+				rs.close();
+				synchronized (this) {
+					storedReports = reports;
+					storedTasks = tasks;
+				}
+			} catch (SQLException e) {
+				LOG.warn("Internal SQL error", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of reports, including pending ones, up to
+	 *         Integer.MAX_VALUE. This doesn't touch the database.
+	 */
+	int numReports() {
+		synchronized (this) {
+			return clamp(storedReports + unwrittenReports);
+		}
+	}
+
+	private static int clamp(long n) {
+		return (int) Math.min(n, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the number of tasks, including those only seen in pending
+	 *         reports, up to Integer.MAX_VALUE. The database is only asked about the pending tasks
+	 *         not asked about before, once each.
+	 */
+	int numTasks() {
+		synchronized (dbLock) {
+			// No flush is under way, so all unwritten records are pending
+			long total;
+			List<PendingTask> unknown = new ArrayList<PendingTask>();
+			synchronized (this) {
+				total = storedTasks;
+				for (PendingTask p : pending.values()) {
+					if (p.stored == null) {
+						unknown.add(p);
+					} else if (!p.stored.booleanValue()) {
+						total++;
+					}
+				}
+			}
+			if (!unknown.isEmpty()) {
+				List<String> taskIds = new ArrayList<String>(unknown.size());
+				for (int i = 0; i < unknown.size(); i++) {
+					taskIds.add(unknown.get(i).taskId);
+				}
+				try {
+					Map<String, TaskRecord> found = lookup(taskIds);
+					synchronized (this) {
+						for (int i = 0; i < unknown.size(); i++) {
+							PendingTask p = unknown.get(i);
+							boolean stored = found.containsKey(p.taskId);
+							p.stored = Boolean.valueOf(stored);
+							if (!stored) {
+								total++;
+							}
+						}
+					}
+				} catch (SQLException e) {
+					LOG.warn("Internal SQL error", e);
+				}
+			}
+			return clamp(total);
+		}
+	}
+
+	private interface Filter {
+		boolean matches(TaskRecord r);
+	}
+
+	private static final Comparator<TaskRecord> LATEST_FIRST = new Comparator<TaskRecord>() {
+		public int compare(TaskRecord a, TaskRecord b) {
+			long x = a.getLastUpdated().getTime();
+			long y = b.getLastUpdated().getTime();
+			if (x != y) {
+				return x > y ? -1 : 1;
+			}
+			// Like the database, which holds upper-case task IDs
+			return b.getTaskId().toString().toUpperCase().compareTo(
+					a.getTaskId().toString().toUpperCase());
+		}
+	};
+
+	/*
+	 * Runs a query ordered latest first and overlays the pending records.
+	 * Every pending task either moves up or joins the results, so fetching
+	 * that many extra rows is enough to fill the requested page. With a
+	 * cursor, the query only returns the tasks after it, and so must the
+	 * merged records. Must be called with dbLock held.
+	 */
+	private List<TaskRecord> query(PreparedStatement ps, Filter filter,
+			TaskCursor after, int offset, int limit) throws SQLException {
+		Map<String, PendingTask> deltas = pendingSnapshot();
+		long rows = (long) offset + limit + deltas.size() + 1;
+		ps.setMaxRows(rows > Integer.MAX_VALUE ? 0 : (int) rows);
+
+		Map<String, TaskRecord> records = new LinkedHashMap<String, TaskRecord>();
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			TaskRecord r = readTaskRecord(rs);
+			records.put(rs.getString("taskId"), r);
+		}
+		rs.close();
+
+		// The pending tasks the query didn't return are looked up together
+		List<String> missing = new ArrayList<String>();
+		for (String taskId : deltas.keySet()) {
+			if (!records.containsKey(taskId)) {
+				missing.add(taskId);
+			}
+		}
+		Map<String, TaskRecord> bases = lookup(missing);
+		for (PendingTask p : deltas.values()) {
+			TaskRecord base = records.containsKey(p.taskId) ? records
+					.get(p.taskId) : bases.get(p.taskId);
+			records.put(p.taskId, merge(base, p));
+		}
+
+		List<TaskRecord> matched = new ArrayList<TaskRecord>(records.size());
+		for (TaskRecord r : records.values()) {
+			if (filter.matches(r) && (after == null || after.precedes(r))) {
+				matched.add(r);
+			}
+		}
+		if (!deltas.isEmpty()) {
+			Collections.sort(matched, LATEST_FIRST);
+		}
+
+		List<TaskRecord> lst = new ArrayList<TaskRecord>();
+		for (int i = offset; i < matched.size() && i - offset < limit; i++) {
+			lst.add(matched.get(i));
+		}
+		return lst;
+	}
+
+	private TaskRecord lookup(String taskId) throws SQLException {
+		getByTaskId.setString(1, taskId);
+		ResultSet rs = getByTaskId.executeQuery();
+		TaskRecord r = null;
+		if (rs.next()) {
+			r = readTaskRecord(rs);
+		}
+		rs.close();
+		return r;
+	}
+
+	private static final int LOOKUP_BATCH_SIZE = 64;
+
+	/*
+	 * Looks up the records of many tasks, LOOKUP_BATCH_SIZE to a query. The
+	 * last batch repeats its final ID to fill the statement's parameters.
+	 *
+	 * @return the records found, by task ID
+	 */
+	private Map<String, TaskRecord> lookup(List<String> taskIds)
+			throws SQLException {
+		Map<String, TaskRecord> records = new HashMap<String, TaskRecord>();
+		for (int start = 0; start < taskIds.size(); start += LOOKUP_BATCH_SIZE) {
+			int end = Math.min(start + LOOKUP_BATCH_SIZE, taskIds.size());
+			for (int i = 0; i < LOOKUP_BATCH_SIZE; i++) {
+				getByTaskIds.setString(i + 1, taskIds.get(Math.min(start + i,
+						end - 1)));
+			}
+			ResultSet rs = getByTaskIds.executeQuery();
+			while (rs.next()) {
+				records.put(rs.getString("taskId"), readTaskRecord(rs));
+			}
+			rs.close();
+		}
+		return records;
+	}
+
+	/* The pending and in-flight records combined. Called with dbLock held. */
+	private Map<String, PendingTask> pendingSnapshot() {
+		Map<String, PendingTask> snapshot = new HashMap<String, PendingTask>();
+		if (flushing != null) {
+			for (PendingTask p : flushing.values()) {
+				snapshot.put(p.taskId, p.copy());
+			}
+		}
+		synchronized (this) {
+			for (PendingTask p : pending.values()) {
+				PendingTask q = snapshot.get(p.taskId);
+				if (q == null) {
+					snapshot.put(p.taskId, p.copy());
+				} else {
+					q.add(p);
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	private static TaskRecord merge(TaskRecord base, PendingTask p) {
+		if (p == null) {
+			return base;
+		}
+		TaskID taskId = TaskID.createFromString(p.taskId);
+		if (base == null) {
+			return new TaskRecord(taskId, new Date(p.firstSeen), new Date(
+					p.lastUpdated), p.numReports, p.title == null ? p.taskId
+					: p.title, splitTags(joinWithCommas(p.tags)));
+		}
+		List<String> tags = base.getTags();
+		if (p.tags != null) {
+			TreeSet<String> merged = new TreeSet<String>(p.tags);
+			merged.addAll(tags);
+			merged.remove("");
+			tags = new ArrayList<String>(merged);
+		}
+		long lastUpdated = Math.max(base.getLastUpdated().getTime(),
+				p.lastUpdated);
+		return new TaskRecord(taskId, base.getFirstSeen(), new Date(
+				lastUpdated), base.getNumReports() + p.numReports,
+				p.title == null ? base.getTitle() : p.title, tags);
+	}
+
+	private static TaskRecord readTaskRecord(ResultSet rs) throws SQLException {
+		TaskID taskId = TaskID.createFromString(rs.getString("taskId"));
+		Date firstSeen = new Date(rs.getTimestamp("firstSeen").getTime());
+		Date lastUpdated = new Date(rs.getTimestamp("lastUpdated").getTime());
+		String title = rs.getString("title");
+		int numReports = rs.getInt("numReports");
+		List<String> tags = splitTags(rs.getString("tags"));
+		return new TaskRecord(taskId, firstSeen, lastUpdated, numReports,
+				title, tags);
+	}
+
+	private static List<String> splitTags(String tags) {
+		return Arrays.asList(tags == null ? new String[] { "" } : tags
+				.split(","));
+	}
+
+	private static void addTags(Collection<String> to, String tags) {
+		if (tags == null) {
+			return;
+		}
+		String[] split = tags.split(",");
+		for (int i = 0; i < split.length; i++) {
+			if (split[i].length() > 0) {
+				to.add(split[i]);
+			}
+		}
+	}
+
+	private static String joinWithCommas(Collection<String> strings) {
+		if (strings == null)
+			return "";
+		StringBuilder sb = new StringBuilder();
+		for (Iterator<String> it = strings.iterator(); it.hasNext();) {
+			String s = it.next();
+			// Drop the tags that don't fit the column
+			if (sb.length() + s.length() + 1 > MAX_TAGS_LENGTH) {
+				LOG.warn("Dropping tag \"" + s + "\": too many tags");
+				continue;
+			}
+			if (sb.length() > 0)
+				sb.append(",");
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static String truncate(String s, int length) {
+		return s.length() > length ? s.substring(0, length) : s;
+	}
+
+	/**
+	 * The reports received for one task since the last flush.
+	 */
+	private static final class PendingTask {
+		final String taskId;
+		long firstSeen;
+		long lastUpdated;
+		int numReports;
+		String title;
+		TreeSet<String> tags;
+		// Whether the database has a record of the task, once looked up
+		Boolean stored = null;
+
+		PendingTask(String taskId, long firstSeen) {
+			this.taskId = taskId;
+			this.firstSeen = firstSeen;
+			this.lastUpdated = firstSeen;
+		}
+
+		void addTags(Collection<String> newTags) {
+			if (tags == null) {
+				tags = new TreeSet<String>();
+			}
+			tags.addAll(newTags);
+		}
+
+		/* Folds in the reports of a later PendingTask for the same task */
+		void add(PendingTask later) {
+			firstSeen = Math.min(firstSeen, later.firstSeen);
+			lastUpdated = Math.max(lastUpdated, later.lastUpdated);
+			numReports += later.numReports;
+			if (later.title != null) {
+				title = later.title;
+			}
+			if (later.tags != null) {
+				addTags(later.tags);
+			}
+		}
+
+		PendingTask copy() {
+			PendingTask p = new PendingTask(taskId, firstSeen);
+			p.add(this);
+			return p;
+		}
+	}
+}
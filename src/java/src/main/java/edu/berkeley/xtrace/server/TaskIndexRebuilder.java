@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * Rebuilds the {@link TaskIndex} of a {@link FileTreeReportStore} from its
+ * task files.
+ * <p>
+ * Each top-level directory of the tree is scanned by one of
+ * <code>xtrace.server.index.rebuild.threads</code> threads (by default one
+ * per processor), which read every task's reports to recover its report
+ * count, title, tags and first timestamp; the last update time is that of
+ * the task's newest file. The calling thread loads the records into the
+ * index in large transactions as they come in, without the secondary
+ * indexes, which are built at the end, and logs its progress every few
+ * seconds. The index is only marked complete if every directory was
+ * scanned and every record loaded; otherwise it is rebuilt again on the
+ * next start.
+ */
+final class TaskIndexRebuilder {
+	private static final Logger LOG = Logger
+			.getLogger(TaskIndexRebuilder.class);
+
+	private static final int LOAD_BATCH_SIZE = 5000;
+	private static final long PROGRESS_INTERVAL = 10000;
+
+	private final FileTreeReportStore store;
+	private final File dataRootDir;
+	private final TaskIndex index;
+	private final int numThreads;
+
+	private final AtomicInteger dirsScanned = new AtomicInteger();
+	private final AtomicLong reportsScanned = new AtomicLong();
+
+	TaskIndexRebuilder(FileTreeReportStore store, File dataRootDir,
+			TaskIndex index) {
+		this(store, dataRootDir, index, Integer.parseInt(System.getProperty(
+				"xtrace.server.index.rebuild.threads", Integer.toString(Runtime
+						.getRuntime().availableProcessors()))));
+	}
+
+	TaskIndexRebuilder(FileTreeReportStore store, File dataRootDir,
+			TaskIndex index, int numThreads) {
+		this.store = store;
+		this.dataRootDir = dataRootDir;
+		this.index = index;
+		this.numThreads = Math.max(numThreads, 1);
+	}
+
+	/**
+	 * Replaces the contents of the index with records rebuilt from the task
+	 * files.
+	 *
+	 * @return the number of tasks loaded
+	 */
+	long rebuild() {
+		long start = System.currentTimeMillis();
+		File[] dirs = topLevelDirs(dataRootDir);
+		LOG.info("Rebuilding the task index from " + dirs.length
+				+ " directories with " + numThreads + " threads");
+		index.beginBulkLoad();
+
+		final BlockingQueue<TaskRecord> records = new ArrayBlockingQueue<TaskRecord>(
+				4 * LOAD_BATCH_SIZE);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads,
+				new ThreadFactory() {
+					private int n = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TaskIndex rebuild " + n++);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		List<Future<?>> scans = new ArrayList<Future<?>>(dirs.length);
+		for (int i = 0; i < dirs.length; i++) {
+			final File dir = dirs[i];
+			scans.add(pool.submit(new Runnable() {
+				public void run() {
+					scan(dir, records);
+					dirsScanned.incrementAndGet();
+				}
+			}));
+		}
+		pool.shutdown();
+
+		long loaded = 0;
+		boolean loadedAll = true;
+		long lastProgress = start;
+		List<TaskRecord> batch = new ArrayList<TaskRecord>(LOAD_BATCH_SIZE);
+		try {
+			while (!pool.isTerminated() || !records.isEmpty()) {
+				TaskRecord r = records.poll(100, TimeUnit.MILLISECONDS);
+				if (r != null) {
+					batch.add(r);
+					records.drainTo(batch, LOAD_BATCH_SIZE - batch.size());
+				}
+				if (batch.size() >= LOAD_BATCH_SIZE
+						|| (r == null && !batch.isEmpty())) {
+					if (index.load(batch)) {
+						loaded += batch.size();
+					} else {
+						loadedAll = false;
+					}
+					batch.clear();
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastProgress >= PROGRESS_INTERVAL) {
+					lastProgress = now;
+					LOG.info("Rebuilding the task index: " + dirsScanned.get()
+							+ " of " + dirs.length + " directories, " + loaded
+							+ " tasks, " + reportsScanned.get() + " reports, "
+							+ (loaded * 1000 / Math.max(now - start, 1))
+							+ " tasks/s");
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.warn("Interrupted while rebuilding the task index");
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			loadedAll = false;
+		}
+		if (!batch.isEmpty()) {
+			if (index.load(batch)) {
+				loaded += batch.size();
+			} else {
+				loadedAll = false;
+			}
+		}
+
+		// A scan that failed or was cut short left tasks out
+		for (int i = 0; loadedAll && i < scans.size(); i++) {
+			try {
+				scans.get(i).get();
+			} catch (ExecutionException e) {
+				LOG.warn("Unable to scan " + dirs[i], e.getCause());
+				loadedAll = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				loadedAll = false;
+			}
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			loadedAll = false;
+		}
+
+		index.endBulkLoad(loadedAll);
+		if (loadedAll) {
+			LOG.info("Rebuilt the task index: " + loaded + " tasks, "
+					+ reportsScanned.get() + " reports in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} else {
+			LOG.warn("The task index was only partly rebuilt, with " + loaded
+					+ " tasks; it will be rebuilt again on the next start");
+		}
+		return loaded;
+	}
+
+	private static File[] topLevelDirs(File dataRootDir) {
+		File[] files = dataRootDir.listFiles();
+		List<File> dirs = new ArrayList<File>();
+		for (int i = 0; files != null && i < files.length; i++) {
+			if (files[i].getName().length() == 2
+					&& isHex(files[i].getName()) && files[i].isDirectory()) {
+				dirs.add(files[i]);
+			}
+		}
+		return dirs.toArray(new File[dirs.size()]);
+	}
+
+	private void scan(File l1, BlockingQueue<TaskRecord> records) {
+		File[] l2 = l1.listFiles();
+		for (int i = 0; l2 != null && i < l2.length; i++) {
+			File[] l3 = l2[i].listFiles();
+			for (int j = 0; l3 != null && j < l3.length; j++) {
+				String[] names = l3[j].list();
+				if (names == null) {
+					continue;
+				}
+				// A task may have a text file, a compressed file or both
+				TreeSet<String> tasks = new TreeSet<String>();
+				for (int k = 0; k < names.length; k++) {
+					int dot = names[k].indexOf('.');
+					if (dot > 0 && isHex(names[k].substring(0, dot))) {
+						tasks.add(names[k].substring(0, dot));
+					}
+				}
+				for (String taskstr : tasks) {
+					TaskRecord r = scanTask(l3[j], taskstr, names);
+					if (r == null) {
+						continue;
+					}
+					try {
+						records.put(r);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	private TaskRecord scanTask(File dir, String taskstr, String[] names) {
+		long lastUpdated = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].startsWith(taskstr + ".")) {
+				lastUpdated = Math.max(lastUpdated, new File(dir, names[i])
+						.lastModified());
+			}
+		}
+
+		TaskID task = TaskID.createFromString(taskstr);
+		int numReports = 0;
+		String title = null;
+		TreeSet<String> tags = new TreeSet<String>();
+		long firstTimestamp = Long.MAX_VALUE;
+		for (Iterator<Report> it = store.getReportsByTask(task); it.hasNext();) {
+			Report r = it.next();
+			numReports++;
+			// Later titles replace earlier ones, as they do when indexing
+			List<String> values = r.get("Title");
+			if (values != null && !values.isEmpty()) {
+				title = values.get(0);
+			}
+			values = r.get("Tag");
+			if (values != null) {
+				tags.addAll(values);
+			}
+			values = r.get("Timestamp");
+			if (values != null && !values.isEmpty()) {
+				firstTimestamp = Math.min(firstTimestamp,
+						parseTimestamp(values.get(0)));
+			}
+		}
+		reportsScanned.addAndGet(numReports);
+		if (numReports == 0) {
+			return null;
+		}
+		long firstSeen = firstTimestamp <= lastUpdated ? firstTimestamp
+				: lastUpdated;
+		return new TaskRecord(task, new Date(firstSeen), new Date(lastUpdated),
+				numReports, title == null ? taskstr : title,
+				new ArrayList<String>(tags));
+	}
+
+	/* Report timestamps are seconds since the epoch, with a fraction */
+	private static long parseTimestamp(String s) {
+		try {
+			return (long) (Double.parseDouble(s.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static boolean isHex(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F')
+					&& !(c >= 'a' && c <= 'f')) {
+				return false;
+			}
+		}
+		return s.length() > 0;
+	}
+}
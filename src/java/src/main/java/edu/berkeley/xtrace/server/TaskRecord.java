@@ -47,4 +47,12 @@ public class TaskRecord {
 	public List<String> getTags() {
 		return tags;
 	}
+
+	/**
+	 * The token of the cursor right after this task, to resume a list of
+	 * tasks from
+	 */
+	public String getCursor() {
+		return TaskCursor.after(this).toString();
+	}
 }
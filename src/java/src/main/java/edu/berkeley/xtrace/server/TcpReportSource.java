@@ -1,17 +1,52 @@
 package edu.berkeley.xtrace.server;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import edu.berkeley.xtrace.XTraceException;
+import edu.berkeley.xtrace.reporting.BlockCodec;
 
 /**
+ * A TCP report source that serves each connection with blocking reads.
+ * 
+ * How connections are served is chosen with the
+ * <code>xtrace.backend.tcp.mode</code> system property:
+ * <ul>
+ * <li><code>thread</code> (the default): a new platform thread per
+ *     connection.</li>
+ * <li><code>pool</code>: a bounded pool of at most
+ *     <code>xtrace.backend.tcp.poolsize</code> threads (256 by default).
+ *     A connection keeps its thread until it closes, so this caps the
+ *     number of connected reporters rather than the work done for them.
+ *     Connections that arrive while every thread is busy are closed at
+ *     once and counted, so reporters fail fast and can retry elsewhere
+ *     instead of blocking on a socket nobody reads.</li>
+ * <li><code>virtual</code>: a virtual thread per connection, on JVMs that
+ *     have them; other JVMs fall back to <code>pool</code>, with its
+ *     limit, and a warning.</li>
+ * </ul>
+ * Servers that must hold many long-lived connections on few threads
+ * should use {@link NonblockingTcpReportSource} instead.
+ * Clients may also use the compressed block framing described in
+ * {@link BlockCodec}.
+ * In every mode, report buffers are taken from the shared
+ * {@link ReportFrame} pool at the size of each report, rather than held
+ * per connection.
  * 
  * @author Matei Zaharia
  * @author George Porter
@@ -23,9 +58,17 @@ public class TcpReportSource implements ReportSource {
 	
 	private int tcpport;
 
-	private BlockingQueue<String> q;
+	private BlockingQueue<ReportFrame> q;
 
 	private ServerSocket serversock;
+	
+	private ThreadPoolExecutor pool;
+	
+	private ThreadFactory threadFactory;
+	
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	
+	private final AtomicInteger rejectedConnections = new AtomicInteger();
 
 	public void initialize() throws XTraceException {
 		String tcpportstr = System.getProperty("xtrace.backend.tcpport", "7831");
@@ -36,14 +79,42 @@ public class TcpReportSource implements ReportSource {
 			tcpport = 7831;
 		}
 		
+		String mode = System.getProperty("xtrace.backend.tcp.mode", "thread");
+		if (mode.equalsIgnoreCase("virtual")) {
+			threadFactory = virtualThreadFactory();
+			if (threadFactory == null) {
+				LOG.warn("Virtual threads are not available on Java "
+						+ System.getProperty("java.version")
+						+ ", using a bounded pool for tcp mode 'virtual'");
+				mode = "pool";
+			}
+		}
+		if (mode.equalsIgnoreCase("pool")) {
+			int poolSize = 256;
+			String poolSizeStr = System.getProperty("xtrace.backend.tcp.poolsize");
+			if (poolSizeStr != null) {
+				try {
+					poolSize = Math.max(1, Integer.parseInt(poolSizeStr));
+				} catch (NumberFormatException nfe) {
+					LOG.warn("Invalid tcp pool size: " + poolSizeStr, nfe);
+				}
+			}
+			pool = new ThreadPoolExecutor(0, poolSize, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>());
+		} else if (threadFactory == null && !mode.equalsIgnoreCase("thread")) {
+			LOG.warn("Unknown tcp source mode '" + mode + "', using a thread per connection");
+		}
+		
 		try {
-			serversock = new ServerSocket(tcpport);
+			serversock = new ServerSocket();
+			serversock.setReuseAddress(true);
+			serversock.bind(new InetSocketAddress(tcpport));
 		} catch (IOException e) {
 			throw new XTraceException("Unable to open TCP server socket", e);
 		}
 	}
 
-	public void setReportQueue(BlockingQueue<String> q) {
+	public void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.q = q;
 	}
 
@@ -53,22 +124,80 @@ public class TcpReportSource implements ReportSource {
 		} catch (IOException e) {
 			LOG.warn("Unable to close TCP server socket", e);
 		}
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Returns a factory for virtual threads, or null if this JVM has none.
+	 * Virtual threads postdate the Java version this code is compiled
+	 * for, so they are reached reflectively.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, "TcpClientHandler-", Long.valueOf(0));
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/** Returns the number of connections currently being served. */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+	
+	/** Returns the number of connections closed because the pool was full. */
+	public int getRejectedConnections() {
+		return rejectedConnections.get();
 	}
 
 	public void run() {
 		try {
-			LOG.info("TcpReportSource started on port " + tcpport);
+			LOG.info("TcpReportSource started on port " + tcpport
+					+ (pool != null ? " with a bounded pool"
+							: threadFactory != null ? " with virtual threads" : ""));
 			
 			while (true) {
 				Socket sock = serversock.accept();
-				new TcpClientHandler(sock).start();
+				serve(sock);
 			}
 		} catch(IOException e) {
-			LOG.warn("Error while accepting a TCP client", e);
+			if (!serversock.isClosed()) {
+				LOG.warn("Error while accepting a TCP client", e);
+			}
 		}
 	}
 	
-	private final class TcpClientHandler extends Thread {
+	private void serve(Socket sock) {
+		TcpClientHandler handler = new TcpClientHandler(sock);
+		if (pool != null) {
+			try {
+				pool.execute(handler);
+			} catch (RejectedExecutionException e) {
+				if (!pool.isShutdown()) {
+					int rejected = rejectedConnections.incrementAndGet();
+					LOG.warn("All TCP handler threads busy, closing connection from "
+							+ sock.getInetAddress() + ":" + sock.getPort()
+							+ " (" + rejected + " rejected so far)");
+				}
+				try {
+					sock.close();
+				} catch (IOException ioe) {
+				}
+			}
+		} else if (threadFactory != null) {
+			threadFactory.newThread(handler).start();
+		} else {
+			new Thread(handler, "TcpClientHandler").start();
+		}
+	}
+	
+	private final class TcpClientHandler implements Runnable {
 		
 		private Socket sock;
 
@@ -77,24 +206,36 @@ public class TcpReportSource implements ReportSource {
 		}
 		
 		public void run() {
+			activeConnections.incrementAndGet();
 			try {
 				LOG.info("Starting TcpClientHandler for "
 						+ sock.getInetAddress() + ":" + sock.getPort());
 				
-				byte[] buf = new byte[MAX_REPORT_LENGTH];
-				DataInputStream in = new DataInputStream(sock.getInputStream());
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(sock.getInputStream()));
+				int length = in.readInt();
+				if (length == BlockCodec.MAGIC) {
+					readBlocks(in);
+					return;
+				}
 				while (true) {
-					int length = in.readInt();
 					if (length <= 0 || length > MAX_REPORT_LENGTH) {
 						LOG.info("Closing ReadReportsThread for "
 						+ sock.getInetAddress() + ":" + sock.getPort() 
 						+ " due to bad length: " + length);
-						sock.close();
 						return;
 					}
-					in.readFully(buf, 0, length);
-					String message = new String(buf, 0, length, "UTF-8");
-					q.offer(message);
+					ReportFrame frame = ReportFrame.allocate(length);
+					try {
+						in.readFully(frame.array(), 0, length);
+					} catch (IOException e) {
+						frame.release();
+						throw e;
+					}
+					if (!q.offer(frame)) {
+						frame.release();
+					}
+					length = in.readInt();
 				}
 			} catch(EOFException e) {
 				LOG.info("Closing ReadReportsThread for "
@@ -103,6 +244,45 @@ public class TcpReportSource implements ReportSource {
 			} catch(Exception e) {
 				LOG.warn("Closing ReadReportsThread for "
 						+ sock.getInetAddress() + ":" + sock.getPort(), e);
+			} finally {
+				activeConnections.decrementAndGet();
+				try {
+					sock.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		
+		private void readBlocks(DataInputStream in) throws IOException {
+			byte accepted = ReportBlockReader.acceptCodec(in.readByte());
+			OutputStream out = sock.getOutputStream();
+			out.write(accepted);
+			out.flush();
+			
+			ReportBlockReader reader = new ReportBlockReader(accepted);
+			try {
+				while (true) {
+					byte blockCodec = in.readByte();
+					int rawLength = in.readInt();
+					int compressedLength = in.readInt();
+					if (!ReportBlockReader.isValidHeader(rawLength, compressedLength)) {
+						LOG.info("Closing ReadReportsThread for "
+								+ sock.getInetAddress() + ":" + sock.getPort() 
+								+ " due to bad block length: " + compressedLength
+								+ "/" + rawLength);
+						return;
+					}
+					ReportFrame block = ReportFrame.allocate(compressedLength);
+					try {
+						in.readFully(block.array(), 0, compressedLength);
+						reader.decode(blockCodec, block.array(), 0, compressedLength,
+								rawLength, q);
+					} finally {
+						block.release();
+					}
+				}
+			} finally {
+				reader.close();
 			}
 		}
 
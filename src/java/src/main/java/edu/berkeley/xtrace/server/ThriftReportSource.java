@@ -1,5 +1,7 @@
 package edu.berkeley.xtrace.server;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import org.apache.log4j.Logger;
@@ -16,7 +18,7 @@ import edu.berkeley.xtrace.reporting.XTraceReporter;
 public class ThriftReportSource implements ReportSource {
 	private static final Logger LOG = Logger.getLogger(ThriftReportSource.class);
 	
-	static BlockingQueue<String> q;
+	static BlockingQueue<ReportFrame> q;
 	private int thriftport;
 
 	private TThreadPoolServer server;
@@ -42,7 +44,7 @@ public class ThriftReportSource implements ReportSource {
 	    server = new TThreadPoolServer(processor, serverTransport);
 	}
 
-	public void setReportQueue(BlockingQueue<String> q) {
+	public void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.q = q;
 	}
 
@@ -59,8 +61,31 @@ public class ThriftReportSource implements ReportSource {
 
 		public void sendReport(String report) throws TException {
 			LOG.debug("Received report: " + report);
-			ThriftReportSource.q.offer(report);
-		}		
+			ReportFrame frame = ReportFrame.fromString(report);
+			if (!ThriftReportSource.q.offer(frame)) {
+				frame.release();
+			}
+		}
+		
+		public void sendReports(ArrayList<byte[]> reports) throws TException {
+			LOG.debug("Received batch of " + reports.size() + " reports");
+			BlockingQueue<ReportFrame> queue = ThriftReportSource.q;
+			List<ReportFrame> frames = new ArrayList<ReportFrame>(reports.size());
+			for (int i = 0; i < reports.size(); i++) {
+				byte[] report = reports.get(i);
+				frames.add(ReportFrame.copyOf(report, 0, report.length));
+			}
+			if (queue instanceof SourceReportQueue) {
+				// Claims room for the whole batch at once where it can
+				((SourceReportQueue) queue).offerAll(frames);
+				return;
+			}
+			for (int i = 0; i < frames.size(); i++) {
+				if (!queue.offer(frames.get(i))) {
+					frames.get(i).release();
+				}
+			}
+		}
 	}
 
 	public void run() {
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package edu.berkeley.xtrace.server;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * The event graph of a task: one node per operation ID, with an edge to it
+ * from each operation named in its <code>Edge</code> fields. Edges may name
+ * operations whose reports haven't been added yet; they are linked when
+ * those reports come.
+ * <p>
+ * Reports are added one at a time, in the order they were stored, so a
+ * graph can be brought up to date with the new reports of a task that is
+ * still running without reading the others again. The topological order
+ * and the JSON rendering are worked out again after a change, when first
+ * asked for.
+ */
+final class TraceGraph {
+	/** Timestamp of a node whose report has none */
+	static final long NO_TIME = Long.MIN_VALUE;
+
+	private final TaskID task;
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private final List<Node> arrival = new ArrayList<Node>();
+	// Children waiting for the report of the operation they name
+	private final Map<String, List<Node>> waiting = new HashMap<String, List<Node>>();
+	private long numReports = 0;
+	private int duplicates = 0;
+	private List<Node> order = null;
+	private String json = null;
+
+	/* Where TraceGraphCache reads the next reports from. Guarded by this. */
+	ReportPosition position = null;
+
+	TraceGraph(TaskID task) {
+		this.task = task;
+	}
+
+	TaskID getTaskId() {
+		return task;
+	}
+
+	/** The number of reports added, including those without a node */
+	synchronized long getNumReports() {
+		return numReports;
+	}
+
+	/** The number of reports for an operation that already had a node */
+	synchronized int getDuplicates() {
+		return duplicates;
+	}
+
+	synchronized void add(Report report) {
+		numReports++;
+		XTraceMetadata md = report.getMetadata();
+		if (md == null || md.getOpIdLength() == 0) {
+			return;
+		}
+		String opId = md.getOpIdString().toUpperCase(Locale.ENGLISH);
+		if (nodes.containsKey(opId)) {
+			// Like the web UI, keep the first report of an operation
+			duplicates++;
+			return;
+		}
+		Node node = new Node(opId, first(report, "Label"), first(report,
+				"Agent"), first(report, "Host"), parseTime(first(report,
+				"Timestamp")));
+		nodes.put(opId, node);
+		arrival.add(node);
+
+		List<String> edges = report.get("Edge");
+		for (int i = 0; edges != null && i < edges.size(); i++) {
+			String parentId = edges.get(i);
+			int comma = parentId.indexOf(',');
+			if (comma >= 0) {
+				parentId = parentId.substring(0, comma);
+			}
+			parentId = parentId.trim().toUpperCase(Locale.ENGLISH);
+			if (parentId.length() == 0 || parentId.equals(opId)) {
+				continue;
+			}
+			Node parent = nodes.get(parentId);
+			if (parent != null) {
+				link(parent, node);
+			} else {
+				List<Node> children = waiting.get(parentId);
+				if (children == null) {
+					children = new ArrayList<Node>(1);
+					waiting.put(parentId, children);
+				}
+				children.add(node);
+			}
+		}
+		List<Node> children = waiting.remove(opId);
+		for (int i = 0; children != null && i < children.size(); i++) {
+			link(node, children.get(i));
+		}
+		order = null;
+		json = null;
+	}
+
+	/**
+	 * Returns the nodes in topological order: every node comes after its
+	 * parents, and otherwise in the order its report was added. Nodes on a
+	 * cycle, which only a broken trace has, come last.
+	 */
+	synchronized List<Node> getNodes() {
+		if (order == null) {
+			sort();
+		}
+		return Collections.unmodifiableList(order);
+	}
+
+	synchronized Node getNode(String opId) {
+		return nodes.get(opId.toUpperCase(Locale.ENGLISH));
+	}
+
+	private static void link(Node parent, Node child) {
+		if (!parent.children.contains(child)) {
+			parent.children.add(child);
+			child.parents.add(parent);
+		}
+	}
+
+	/* Kahn's algorithm, taking ready nodes in arrival order */
+	private void sort() {
+		int n = arrival.size();
+		Map<Node, Integer> pendingParents = new HashMap<Node, Integer>(n * 2);
+		List<Node> sorted = new ArrayList<Node>(n);
+		for (int i = 0; i < n; i++) {
+			Node node = arrival.get(i);
+			node.index = -1;
+			pendingParents.put(node, node.parents.size());
+		}
+		for (int next = 0, scan = 0; sorted.size() < n;) {
+			if (next == sorted.size()) {
+				// Nothing ready: start from the earliest node left, which is
+				// a root unless the rest of the graph is cyclic
+				Node root = null;
+				for (; scan < n && root == null; scan++) {
+					Node candidate = arrival.get(scan);
+					if (candidate.index < 0
+							&& pendingParents.get(candidate).intValue() == 0) {
+						root = candidate;
+					}
+				}
+				if (root == null) {
+					for (int i = 0; i < n; i++) {
+						if (arrival.get(i).index < 0) {
+							root = arrival.get(i);
+							break;
+						}
+					}
+				}
+				root.index = sorted.size();
+				sorted.add(root);
+			}
+			Node node = sorted.get(next++);
+			for (int i = 0; i < node.children.size(); i++) {
+				Node child = node.children.get(i);
+				int left = pendingParents.get(child).intValue() - 1;
+				pendingParents.put(child, left);
+				if (left == 0 && child.index < 0) {
+					child.index = sorted.size();
+					sorted.add(child);
+				}
+			}
+		}
+		order = sorted;
+	}
+
+	/**
+	 * Renders the graph as JSON: the task, the time span of its reports
+	 * and the nodes in topological order. Each node lists its parents by
+	 * their position in that order. Times are in microseconds: the start
+	 * since the epoch, and for each node, <code>t</code> since the start
+	 * and <code>d</code> until its last child.
+	 */
+	synchronized String toJson() {
+		if (json != null) {
+			return json;
+		}
+		List<Node> nodes = getNodes();
+		long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+		for (int i = 0; i < nodes.size(); i++) {
+			long t = nodes.get(i).timestamp;
+			if (t != NO_TIME) {
+				start = Math.min(start, t);
+				end = Math.max(end, t);
+			}
+		}
+		StringBuilder buf = new StringBuilder(128 + 96 * nodes.size());
+		buf.append("{\"taskId\":\"").append(task).append("\",\"reports\":")
+				.append(numReports).append(",\"duplicates\":").append(
+						duplicates);
+		if (start <= end) {
+			buf.append(",\"start\":").append(start).append(",\"end\":")
+					.append(end);
+		}
+		buf.append(",\"nodes\":[");
+		int[] parents = new int[4];
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			if (i > 0) {
+				buf.append(',');
+			}
+			buf.append("{\"id\":\"").append(node.opId).append('"');
+			appendField(buf, "label", node.label);
+			appendField(buf, "agent", node.agent);
+			appendField(buf, "host", node.host);
+			if (node.timestamp != NO_TIME) {
+				buf.append(",\"t\":").append(node.timestamp - start).append(
+						",\"d\":").append(node.getDuration());
+			}
+			if (parents.length < node.parents.size()) {
+				parents = new int[node.parents.size()];
+			}
+			for (int j = 0; j < node.parents.size(); j++) {
+				parents[j] = node.parents.get(j).index;
+			}
+			Arrays.sort(parents, 0, node.parents.size());
+			buf.append(",\"p\":[");
+			for (int j = 0; j < node.parents.size(); j++) {
+				if (j > 0) {
+					buf.append(',');
+				}
+				buf.append(parents[j]);
+			}
+			buf.append("]}");
+		}
+		buf.append("]}");
+		json = buf.toString();
+		return json;
+	}
+
+	private static void appendField(StringBuilder buf, String name,
+			String value) {
+		if (value == null) {
+			return;
+		}
+		buf.append(",\"").append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				buf.append("\\\"");
+				break;
+			case '\\':
+				buf.append("\\\\");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					buf.append(String.format("\\u%04x", (int) c));
+				} else {
+					buf.append(c);
+				}
+			}
+		}
+		buf.append('"');
+	}
+
+	private static String first(Report report, String key) {
+		List<String> values = report.get(key);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/*
+	 * Reads a timestamp in seconds, such as "1199145600.123", as
+	 * microseconds
+	 */
+	static long parseTime(String value) {
+		if (value == null) {
+			return NO_TIME;
+		}
+		try {
+			return new BigDecimal(value.trim()).movePointRight(6).longValue();
+		} catch (NumberFormatException e) {
+			return NO_TIME;
+		}
+	}
+
+	/**
+	 * An operation of the task
+	 */
+	static final class Node {
+		final String opId;
+		final String label;
+		final String agent;
+		final String host;
+		final long timestamp;
+		final List<Node> parents = new ArrayList<Node>(1);
+		final List<Node> children = new ArrayList<Node>(1);
+		int index = -1;
+
+		Node(String opId, String label, String agent, String host,
+				long timestamp) {
+			this.opId = opId;
+			this.label = label;
+			this.agent = agent;
+			this.host = host;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * The time from this operation to the latest of its children, in
+		 * microseconds, or 0 if it has no timed children.
+		 */
+		long getDuration() {
+			long duration = 0;
+			if (timestamp == NO_TIME) {
+				return duration;
+			}
+			for (int i = 0; i < children.size(); i++) {
+				long t = children.get(i).timestamp;
+				if (t != NO_TIME) {
+					duration = Math.max(duration, t - timestamp);
+				}
+			}
+			return duration;
+		}
+	}
+}
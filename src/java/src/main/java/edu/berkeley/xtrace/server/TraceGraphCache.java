@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package edu.berkeley.xtrace.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceException;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * Keeps the event graphs of the most recently asked for tasks. The index
+ * tells how many reports a task has, which is all it takes to serve the
+ * graph of a task that hasn't changed. A task with more reports gets only
+ * the new ones added to its graph. From a {@link FileTreeReportStore} they
+ * are read from the byte offset where the previous read stopped (see
+ * {@link FileTreeReportStore#getReportRange}), other stores skip the
+ * reports the graph already has.
+ */
+final class TraceGraphCache {
+	private final QueryableReportStore store;
+	private final Map<String, TraceGraph> graphs;
+
+	/**
+	 * @param capacity
+	 *            the number of graphs kept; the least recently used go
+	 *            first
+	 */
+	TraceGraphCache(QueryableReportStore store, final int capacity) {
+		this.store = store;
+		this.graphs = new LinkedHashMap<String, TraceGraph>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, TraceGraph> e) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the graph of a task, with all of its reports stored so far.
+	 * The graph of an unknown task is empty.
+	 */
+	TraceGraph get(TaskID task) throws XTraceException {
+		String key = task.toString().toUpperCase();
+		long count = store.countByTaskId(task);
+		TraceGraph graph;
+		synchronized (graphs) {
+			graph = graphs.get(key);
+			// Fewer reports than the graph: the task was deleted since
+			if (graph == null || count < graph.getNumReports()) {
+				graph = new TraceGraph(task);
+				if (count > 0) {
+					graphs.put(key, graph);
+				} else {
+					graphs.remove(key);
+				}
+			}
+		}
+		synchronized (graph) {
+			if (graph.getNumReports() < count) {
+				if (store instanceof FileTreeReportStore) {
+					readRange((FileTreeReportStore) store, graph);
+				} else {
+					Iterator<Report> it = store.getReportsByTask(task);
+					for (long skip = graph.getNumReports(); skip > 0
+							&& it.hasNext(); skip--) {
+						it.next();
+					}
+					while (it.hasNext()) {
+						graph.add(it.next());
+					}
+				}
+			}
+		}
+		return graph;
+	}
+
+	/* Adds the reports stored since the graph's position */
+	private static void readRange(FileTreeReportStore store, TraceGraph graph)
+			throws XTraceException {
+		ReportPosition since = graph.position;
+		if (since == null || since.getReports() != graph.getNumReports()) {
+			since = new ReportPosition(graph.getNumReports());
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FileTreeReportStore.ReportRange range;
+		String text;
+		try {
+			range = store.getReportRange(graph.getTaskId(), since);
+			range.writeTo(bytes);
+			text = bytes.toString("UTF-8");
+		} catch (IOException e) {
+			throw new XTraceException("Unable to read the reports of task "
+					+ graph.getTaskId(), e);
+		}
+		// Reports are separated by blank lines
+		String[] reports = text.replace("\r\n", "\n").split("\n\n");
+		for (int i = 0; i < reports.length; i++) {
+			int start = reports[i].indexOf("X-Trace Report ver");
+			if (start >= 0) {
+				graph.add(Report.createFromString(reports[i].substring(start)
+						+ "\n"));
+			}
+		}
+		graph.position = range.getEnd();
+	}
+
+	/* The number of graphs held */
+	int size() {
+		synchronized (graphs) {
+			return graphs.size();
+		}
+	}
+}
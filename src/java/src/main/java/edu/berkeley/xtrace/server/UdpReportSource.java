@@ -1,73 +1,365 @@
 package edu.berkeley.xtrace.server;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import edu.berkeley.xtrace.XTraceException;
 
+/**
+ * A UDP report source.  Each datagram carries a single report.
+ * 
+ * The source has two receive modes, selected with the
+ * <code>xtrace.udpsource.mode</code> system property:
+ * <ul>
+ * <li><code>socket</code> (the default): a single thread receives into a
+ *     <code>DatagramSocket</code>.</li>
+ * <li><code>channel</code>: <code>xtrace.udpsource.receivers</code> threads
+ *     receive from <code>DatagramChannel</code>s into reused direct buffers.
+ *     Where the platform supports SO_REUSEPORT, each receiver binds its own
+ *     channel to the port and the kernel spreads datagrams among them;
+ *     otherwise the receivers share a single channel.</li>
+ * </ul>
+ * 
+ * Datagrams larger than <code>xtrace.udpsource.maxdatagram</code> bytes
+ * (4096 by default, at most 65507) are dropped and counted as truncated.
+ * <code>xtrace.udpsource.rcvbuf</code> sets the socket receive buffer size;
+ * datagrams the kernel discarded because that buffer was full are reported
+ * by {@link #getSocketDrops()} on platforms that expose them.
+ */
 public class UdpReportSource implements ReportSource {
 	private static final Logger LOG = Logger.getLogger(UdpReportSource.class);
+	
+	/** Largest UDP payload over IPv4 */
+	private static final int MAX_DATAGRAM_LIMIT = 65507;
 
-	private BlockingQueue<String> q;
+	private BlockingQueue<ReportFrame> q;
+	private InetAddress localAddr;
+	private int localPort;
+	private int maxDatagram;
+	private int rcvbuf;
+	
 	private DatagramSocket socket;
+	private DatagramChannel[] channels;
+	private int numReceivers;
+	private boolean reusePort;
+	private volatile boolean shouldOperate = true;
+	
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong truncated = new AtomicLong();
 
 	public void initialize() throws XTraceException {
 		
 		String udpSource = System.getProperty("xtrace.udpsource", "127.0.0.1:7831");
 		
-		InetAddress localAddr;
 		try {
 			localAddr = InetAddress.getByName(udpSource.split(":")[0]);
 		} catch (UnknownHostException e) {
 			throw new XTraceException("Unknown host: " + udpSource.split(":")[0], e);
 		}
-		int localPort = Integer.parseInt(udpSource.split(":")[1]);
-		try {
-			socket = new DatagramSocket(localPort, localAddr);
-		} catch (SocketException e) {
-			throw new XTraceException("Unable to open socket", e);
+		localPort = Integer.parseInt(udpSource.split(":")[1]);
+		
+		maxDatagram = getIntProperty("xtrace.udpsource.maxdatagram", 4096);
+		if (maxDatagram < 1 || maxDatagram > MAX_DATAGRAM_LIMIT) {
+			LOG.warn("Invalid maximum datagram size " + maxDatagram
+					+ ", using " + MAX_DATAGRAM_LIMIT);
+			maxDatagram = MAX_DATAGRAM_LIMIT;
+		}
+		rcvbuf = getIntProperty("xtrace.udpsource.rcvbuf", 0);
+		
+		String mode = System.getProperty("xtrace.udpsource.mode", "socket");
+		if (mode.equalsIgnoreCase("channel")) {
+			numReceivers = Math.max(1, getIntProperty("xtrace.udpsource.receivers", 1));
+			openChannels();
+		} else {
+			if (!mode.equalsIgnoreCase("socket")) {
+				LOG.warn("Unknown UDP source mode '" + mode + "', using socket mode");
+			}
+			numReceivers = 1;
+			try {
+				socket = new DatagramSocket(localPort, localAddr);
+				if (rcvbuf > 0) {
+					socket.setReceiveBufferSize(rcvbuf);
+				}
+			} catch (SocketException e) {
+				throw new XTraceException("Unable to open socket", e);
+			}
 		}
 
-		LOG.info("UDPReportSource initialized on " + localAddr + ":" + localPort);
+		LOG.info("UDPReportSource initialized on " + localAddr + ":" + localPort
+				+ (channels == null ? "" : " with " + numReceivers + " receivers"
+				+ (reusePort ? " (SO_REUSEPORT)" : " (shared channel)")));
+	}
+	
+	private void openChannels() throws XTraceException {
+		channels = new DatagramChannel[numReceivers];
+		try {
+			if (numReceivers > 1) {
+				// Try to give each receiver its own socket on the port
+				DatagramChannel first = DatagramChannel.open();
+				reusePort = setReusePort(first);
+				channels[0] = first;
+				bind(first);
+				if (reusePort) {
+					for (int i = 1; i < numReceivers; i++) {
+						channels[i] = DatagramChannel.open();
+						setReusePort(channels[i]);
+						bind(channels[i]);
+					}
+				} else {
+					for (int i = 1; i < numReceivers; i++) {
+						channels[i] = first;
+					}
+				}
+			} else {
+				channels[0] = DatagramChannel.open();
+				bind(channels[0]);
+			}
+		} catch (IOException e) {
+			closeChannels();
+			throw new XTraceException("Unable to open UDP channel", e);
+		}
+	}
+	
+	private void bind(DatagramChannel channel) throws IOException {
+		if (rcvbuf > 0) {
+			channel.socket().setReceiveBufferSize(rcvbuf);
+		}
+		channel.socket().bind(new InetSocketAddress(localAddr, localPort));
+	}
+	
+	/**
+	 * Enables SO_REUSEPORT on an unbound channel.  The option is only
+	 * reachable through <code>StandardSocketOptions</code> on newer JVMs, so
+	 * it is looked up reflectively.
+	 * 
+	 * @return whether the option could be set
+	 */
+	private static boolean setReusePort(DatagramChannel channel) {
+		try {
+			Object option = Class.forName("java.net.StandardSocketOptions")
+					.getField("SO_REUSEPORT").get(null);
+			Method setOption = DatagramChannel.class.getMethod("setOption",
+					Class.forName("java.net.SocketOption"), Object.class);
+			setOption.invoke(channel, option, Boolean.TRUE);
+			return true;
+		} catch (InvocationTargetException e) {
+			LOG.info("SO_REUSEPORT is not supported: " + e.getCause());
+			return false;
+		} catch (Exception e) {
+			LOG.info("SO_REUSEPORT is not available in this JVM");
+			return false;
+		}
+	}
+	
+	private static int getIntProperty(String name, int defaultValue) {
+		String str = System.getProperty(name);
+		if (str == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(str);
+		} catch (NumberFormatException nfe) {
+			LOG.warn("Invalid value for " + name + ": " + str, nfe);
+			return defaultValue;
+		}
 	}
 
-	public void setReportQueue(BlockingQueue<String> q) {
+	public void setReportQueue(BlockingQueue<ReportFrame> q) {
 		this.q = q;
 	}
 
 	public void shutdown() {
+		shouldOperate = false;
 		if (socket != null)
 			socket.close();
+		closeChannels();
+	}
+	
+	private void closeChannels() {
+		if (channels == null) {
+			return;
+		}
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i] != null) {
+				try {
+					channels[i].close();
+				} catch (IOException e) {
+					LOG.warn("Unable to close UDP channel", e);
+				}
+			}
+		}
 	}
 
 	public void run() {
+		if (channels != null) {
+			LOG.info("UDPReportSource listening for packets on " + numReceivers + " receivers");
+			for (int i = 1; i < numReceivers; i++) {
+				Thread t = new Thread(new ChannelReceiver(channels[i]),
+						"UdpReportSource-" + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			new ChannelReceiver(channels[0]).run();
+			return;
+		}
+		
 		LOG.info("UDPReportSource listening for packets");
 		
-		while (true) {
-			byte[] buf = new byte[4096];
-			DatagramPacket p = new DatagramPacket(buf, buf.length);
-
+		// One spare byte tells a datagram that exactly fits from one that
+		// was cut short
+		byte[] buf = new byte[maxDatagram + 1];
+		DatagramPacket p = new DatagramPacket(buf, buf.length);
+		while (shouldOperate) {
+			p.setLength(buf.length);
 		    try {
 				socket.receive(p);
 			} catch (IOException e) {
+				if (socket.isClosed()) {
+					break;
+				}
 				LOG.warn("Unable to receive report", e);
+				continue;
 			}
 			
 			//LOG.debug("Received Report");
 			
-		    try {
-				q.offer(new String(p.getData(), 0, p.getLength(), "UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				LOG.warn("UTF-8 not available", e);
+			if (p.getLength() > maxDatagram) {
+				truncated.incrementAndGet();
+				continue;
+			}
+			received.incrementAndGet();
+			ReportFrame frame = ReportFrame.copyOf(p.getData(), 0, p.getLength());
+			if (!q.offer(frame)) {
+				frame.release();
+			}
+		}
+	}
+	
+	/**
+	 * Receives datagrams from one channel into a reused direct buffer.
+	 * Several receivers may share a channel when SO_REUSEPORT is unavailable.
+	 */
+	private class ChannelReceiver implements Runnable {
+		private final DatagramChannel channel;
+		private final ByteBuffer buf;
+		
+		ChannelReceiver(DatagramChannel channel) {
+			this.channel = channel;
+			this.buf = ByteBuffer.allocateDirect(maxDatagram + 1);
+		}
+		
+		public void run() {
+			while (shouldOperate) {
+				buf.clear();
+				try {
+					channel.receive(buf);
+				} catch (ClosedChannelException e) {
+					break;
+				} catch (IOException e) {
+					LOG.warn("Unable to receive report", e);
+					continue;
+				}
+				
+				buf.flip();
+				int length = buf.remaining();
+				if (length > maxDatagram) {
+					truncated.incrementAndGet();
+					continue;
+				}
+				received.incrementAndGet();
+				ReportFrame frame = ReportFrame.allocate(length);
+				buf.get(frame.array(), 0, length);
+				if (!q.offer(frame)) {
+					frame.release();
+				}
+			}
+		}
+	}
+	
+	/** Returns the number of datagrams received and passed to the queue. */
+	public long getReceived() {
+		return received.get();
+	}
+	
+	/**
+	 * Returns the number of datagrams dropped because they were larger than
+	 * the configured maximum datagram size.
+	 */
+	public long getTruncated() {
+		return truncated.get();
+	}
+	
+	/**
+	 * Returns the number of datagrams the kernel dropped on this source's
+	 * port because the socket receive buffer was full, or -1 if the
+	 * platform does not expose that count.  This is read from the
+	 * <code>drops</code> column of /proc/net/udp and /proc/net/udp6, so it
+	 * covers every socket bound to the port.
+	 */
+	public long getSocketDrops() {
+		long total = -1;
+		String[] files = { "/proc/net/udp", "/proc/net/udp6" };
+		for (int i = 0; i < files.length; i++) {
+			long drops = readProcDrops(new File(files[i]), localPort);
+			if (drops >= 0) {
+				total = Math.max(total, 0) + drops;
+			}
+		}
+		return total;
+	}
+	
+	static long readProcDrops(File file, int port) {
+		if (!file.canRead()) {
+			return -1;
+		}
+		String portHex = Integer.toHexString(port).toUpperCase();
+		while (portHex.length() < 4) {
+			portHex = "0" + portHex;
+		}
+		long drops = 0;
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(file));
+			in.readLine(); // header
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length < 13) {
+					continue;
+				}
+				if (fields[1].endsWith(":" + portHex)) {
+					drops += Long.parseLong(fields[fields.length - 1]);
+				}
+			}
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
 			}
 		}
+		return drops;
 	}
 }
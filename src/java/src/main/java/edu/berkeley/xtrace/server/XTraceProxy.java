@@ -14,7 +14,7 @@ import edu.berkeley.xtrace.reporting.Reporter;
 
 public class XTraceProxy {
 	private static final Logger LOG = Logger.getLogger(XTraceProxy.class);
-	private static BlockingQueue<String> incomingReportQueue;
+	private static BlockingQueue<ReportFrame> incomingReportQueue;
 	private static ThreadPerTaskExecutor sourcesExecutor;
 	private static ReportSource[] sources;
 
@@ -25,7 +25,7 @@ public class XTraceProxy {
 	
 	private static void setupReportSources() {
 		
-		incomingReportQueue = new ArrayBlockingQueue<String>(1024, true);
+		incomingReportQueue = new ArrayBlockingQueue<ReportFrame>(1024, true);
 		sourcesExecutor = new ThreadPerTaskExecutor();
 		
 		// Default input sources
@@ -79,13 +79,15 @@ public class XTraceProxy {
 				LOG.info("Proxy waiting for reports");
 				
 				while (true) {
-					String msg = null;
+					ReportFrame frame = null;
 					try {
-						msg = incomingReportQueue.take();
+						frame = incomingReportQueue.take();
 					} catch (InterruptedException e) {
 						LOG.warn("Interrupted", e);
 						continue;
 					}
+					String msg = frame.toString();
+					frame.release();
 					LOG.debug("Received report of length " + msg.length());
 					LOG.debug(msg);
 					Report rpt = Report.createFromString(msg);
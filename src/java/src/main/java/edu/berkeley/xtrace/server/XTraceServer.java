@@ -28,7 +28,9 @@
 
 package edu.berkeley.xtrace.server;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
@@ -42,11 +44,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -66,6 +68,7 @@ import org.mortbay.jetty.servlet.DefaultServlet;
 import org.mortbay.jetty.servlet.ServletHolder;
 import org.mortbay.servlet.CGI;
 
+import edu.berkeley.xtrace.IoUtil;
 import edu.berkeley.xtrace.TaskID;
 import edu.berkeley.xtrace.XTraceException;
 import edu.berkeley.xtrace.reporting.Report;
@@ -79,13 +82,17 @@ public final class XTraceServer {
 
 	private static ReportSource[] sources;
 	
-	private static BlockingQueue<String> incomingReportQueue, reportsToStorageQueue;
+	private static BlockingQueue<ReportFrame> reportQueue;
+	
+	private static SourceReportQueue[] sourceQueues;
 
 	private static ThreadPerTaskExecutor sourcesExecutor;
 
 	private static ExecutorService storeExecutor;
 
 	private static QueryableReportStore reportstore;
+
+	private static TraceGraphCache graphCache;
 	
 	private static final DateFormat JSON_DATE_FORMAT =
 		new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); 
@@ -107,15 +114,29 @@ public final class XTraceServer {
 			System.setProperty("xtrace.server.storedirectory", args[0]);
 		}
 		
+		setupReportQueue();
 		setupReportSources();
 		setupReportStore();
-		setupBackplane();
 		setupWebInterface();
 	}
 
+	/**
+	 * Creates the queue that carries reports from the sources straight to
+	 * the report store.
+	 */
+	private static void setupReportQueue() {
+		String queueSizeStr = System.getProperty("xtrace.server.queuesize", "8192");
+		int queueSize = 8192;
+		try {
+			queueSize = Integer.parseInt(queueSizeStr);
+		} catch (NumberFormatException nfe) {
+			LOG.warn("Invalid report queue size: " + queueSizeStr, nfe);
+		}
+		reportQueue = new RingBufferQueue<ReportFrame>(queueSize);
+	}
+
 	private static void setupReportSources() {
 		
-		incomingReportQueue = new ArrayBlockingQueue<String>(1024, true);
 		sourcesExecutor = new ThreadPerTaskExecutor();
 		
 		// Default input sources
@@ -131,6 +152,7 @@ public final class XTraceServer {
 		String[] sourcesLst = sourcesStr.split(",");
 		
 		sources = new ReportSource[sourcesLst.length];
+		sourceQueues = new SourceReportQueue[sourcesLst.length];
 		for (int i = 0; i < sourcesLst.length; i++) {
 			try {
 				LOG.info("Starting report source '" + sourcesLst[i] + "'");
@@ -145,7 +167,8 @@ public final class XTraceServer {
 				LOG.fatal("Could not find report source class", e1);
 				System.exit(-1);
 			}
-			sources[i].setReportQueue(incomingReportQueue);
+			sourceQueues[i] = createSourceQueue(sources[i]);
+			sources[i].setReportQueue(sourceQueues[i]);
 			try {
 				sources[i].initialize();
 			} catch (XTraceException e) {
@@ -155,11 +178,52 @@ public final class XTraceServer {
 			}
 			sourcesExecutor.execute((Runnable) sources[i]);
 		}
+		
+		/* Every minute, log the reports that the sources had to drop */
+		Timer timer = new Timer(true);
+		timer.schedule(new DropStatsTimer(), 60*1000, 60*1000);
 	}
 	
-	private static void setupReportStore() {
-		reportsToStorageQueue = new ArrayBlockingQueue<String>(1024);
+	/**
+	 * Wraps the report queue with the overflow policy configured for the
+	 * given source.  The policy is read from
+	 * <code>xtrace.server.queue.overflow.&lt;SourceClassName&gt;</code>,
+	 * falling back to <code>xtrace.server.queue.overflow</code>.  Valid
+	 * policies are block, dropNewest (the default), dropOldest and shed.
+	 */
+	private static SourceReportQueue createSourceQueue(ReportSource source) {
+		String name = source.getClass().getSimpleName();
+		String policyStr = System.getProperty("xtrace.server.queue.overflow." + name,
+				System.getProperty("xtrace.server.queue.overflow", "dropNewest"));
+		OverflowPolicy policy = OverflowPolicy.forName(policyStr);
+		if (policy == null) {
+			LOG.warn("Invalid overflow policy for " + name + ": " + policyStr
+					+ "... using dropNewest");
+			policy = OverflowPolicy.DROP_NEWEST;
+		}
+		
+		long blockTimeout = 100;
+		String blockTimeoutStr = System.getProperty("xtrace.server.queue.blocktimeout", "100");
+		try {
+			blockTimeout = Long.parseLong(blockTimeoutStr);
+		} catch (NumberFormatException nfe) {
+			LOG.warn("Invalid queue block timeout: " + blockTimeoutStr, nfe);
+		}
 		
+		double shedThreshold = 0.5;
+		String shedThresholdStr = System.getProperty("xtrace.server.queue.shedthreshold", "0.5");
+		try {
+			shedThreshold = Double.parseDouble(shedThresholdStr);
+		} catch (NumberFormatException nfe) {
+			LOG.warn("Invalid queue shed threshold: " + shedThresholdStr, nfe);
+		}
+		
+		LOG.info("Report source " + name + " uses overflow policy " + policy);
+		return new SourceReportQueue(name, reportQueue, policy, blockTimeout,
+				shedThreshold);
+	}
+	
+	private static void setupReportStore() {
 		String storeStr = "edu.berkeley.xtrace.server.FileTreeReportStore";
 		if (System.getProperty("xtrace.server.store") != null) {
 			storeStr = System.getProperty("xtrace.server.store");
@@ -181,7 +245,7 @@ public final class XTraceServer {
 			System.exit(-1);
 		}
 		
-		reportstore.setReportQueue(reportsToStorageQueue);
+		reportstore.setReportQueue(reportQueue);
 		try {
 			reportstore.initialize();
 		} catch (XTraceException e) {
@@ -206,25 +270,6 @@ public final class XTraceServer {
 		});
 	}
 	
-	private static void setupBackplane() {
-		new Thread(new Runnable() {
-			public void run() {
-				LOG.info("Backplane waiting for packets");
-				
-				while (true) {
-					String msg = null;
-					try {
-						msg = incomingReportQueue.take();
-					} catch (InterruptedException e) {
-						LOG.warn("Interrupted", e);
-						continue;
-					}
-					reportsToStorageQueue.offer(msg);
-				}
-			}
-		}).start();
-	}
-	
 	private static class ThreadPerTaskExecutor implements Executor {
 	     public void execute(Runnable r) {
 	         new Thread(r).start();
@@ -254,6 +299,9 @@ public final class XTraceServer {
 			LOG.warn("Failed to initialize Velocity", e);
 		}
 		
+		graphCache = new TraceGraphCache(reportstore, Integer.parseInt(System
+				.getProperty("xtrace.server.graph.cachesize", "64")));
+
 		// Create Jetty server
     Server server = new Server(httpPort);
     Context context = new Context(server, "/");
@@ -281,6 +329,10 @@ public final class XTraceServer {
         new TitleServlet()), "/title/*");
     context.addServlet(new ServletHolder(
         new TitleLikeServlet()), "/titleLike/*");
+    context.addServlet(new ServletHolder(
+        new QueueStatsServlet()), "/queueStats");
+    context.addServlet(new ServletHolder(
+        new GraphServlet()), "/graph/*");
     
     // Add an IndexServlet as the default servlet. This servlet will serve
     // a human-readable (HTML) latest tasks page for "/" and serve static
@@ -297,29 +349,106 @@ public final class XTraceServer {
     }
 	}
 	
+	/**
+	 * Serves the reports of a task, as stored. A client polling a task can
+	 * pass the X-Next-Since header of the previous response as the since
+	 * parameter (or simply the number of reports it already has), to get
+	 * only the reports added since.
+	 */
 	private static class GetReportsServlet extends HttpServlet {
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
-      response.setContentType("text/plain");
-      response.setStatus(HttpServletResponse.SC_OK);
       String uri = request.getRequestURI();
       int pathLen = request.getServletPath().length() + 1;
       String taskId = uri.length() > pathLen ? uri.substring(pathLen) : null;
-      Writer out = response.getWriter();
-      if (taskId != null) {
+      ReportPosition since = ReportPosition.START;
+      String token = request.getParameter("since");
+      if (token != null && token.length() > 0) {
+        try {
+          since = ReportPosition.parse(token);
+        } catch (IllegalArgumentException e) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+          return;
+        }
+      }
+      response.setContentType("text/plain");
+      response.setStatus(HttpServletResponse.SC_OK);
+      if (taskId == null) {
+        return;
+      }
+      TaskID task = TaskID.createFromString(taskId);
+
+      FileTreeReportStore.ReportRange range = null;
+      ByteArrayOutputStream buffered = null;
+      ReportPosition next;
+      if (reportstore instanceof FileTreeReportStore) {
+        range = ((FileTreeReportStore) reportstore).getReportRange(task, since);
+        next = range.getEnd();
+      } else {
+        // The position has to be known before the body is sent
+        buffered = new ByteArrayOutputStream();
         Iterator<Report> iter;
         try {
-          iter = reportstore.getReportsByTask(TaskID.createFromString(taskId));
+          iter = reportstore.getReportsByTask(task);
         } catch (XTraceException e) {
           throw new ServletException(e);
         }
-        while (iter.hasNext()) {
-          out.write(iter.next().toString());
-          out.write("\n");
+        long n = 0;
+        for (; n < since.getReports() && iter.hasNext(); n++) {
+          iter.next();
+        }
+        for (; iter.hasNext(); n++) {
+          buffered.write(iter.next().toString().getBytes("UTF-8"));
+          buffered.write('\n');
+        }
+        next = new ReportPosition(n);
+      }
+      try {
+        response.setHeader("X-Next-Since", next.toString());
+        OutputStream out = response.getOutputStream();
+        GZIPOutputStream gzip = null;
+        if (acceptsGzip(request)) {
+          response.setHeader("Content-Encoding", "gzip");
+          response.setHeader("Vary", "Accept-Encoding");
+          out = gzip = new GZIPOutputStream(out, 8192);
+        }
+        if (range != null) {
+          range.writeTo(out);
+        } else {
+          buffered.writeTo(out);
+        }
+        if (gzip != null) {
+          gzip.finish();
+        }
+      } finally {
+        if (range != null) {
+          range.close();
         }
       }
     }
   }
+
+	/* Whether the client takes gzip content encoding */
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		String[] codings = accept.split(",");
+		for (int i = 0; i < codings.length; i++) {
+			String[] parts = codings[i].split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				for (int j = 1; j < parts.length; j++) {
+					String param = parts[j].replace(" ", "");
+					if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
 	
 	private static class GetLatestTaskServlet extends HttpServlet {
 	  protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -354,13 +483,56 @@ public final class XTraceServer {
 			if (tag == null || tag.equalsIgnoreCase("")) {
 				response.sendError(505, "No tag given");
 			} else {
-				Collection<TaskRecord> taskInfos = reportstore.getTasksByTag(
-						tag, getOffset(request), getLength(request));
+				TaskCursor after;
+				try {
+					after = getCursor(request);
+				} catch (IllegalArgumentException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				}
+				Collection<TaskRecord> taskInfos = after == null ? reportstore
+						.getTasksByTag(tag, getOffset(request), getLength(request))
+						: reportstore.getTasksByTag(tag, after, getLength(request));
 				showTasks(request, response, taskInfos, "Tasks with tag: " + tag, false);
 			}
 		}
 	}
   
+	/**
+	 * Serves the event graph of a task as JSON (see TraceGraph.toJson())
+	 */
+	private static class GraphServlet extends HttpServlet {
+		protected void doGet(HttpServletRequest request,
+				HttpServletResponse response) throws ServletException, IOException {
+			String taskId = getUriPastServletName(request);
+			if (taskId == null || taskId.equalsIgnoreCase("")) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No task given");
+				return;
+			}
+			if (!isValidTaskId(taskId)) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"Invalid task ID: " + taskId);
+				return;
+			}
+			TraceGraph graph;
+			try {
+				graph = graphCache.get(TaskID.createFromString(taskId));
+			} catch (XTraceException e) {
+				throw new ServletException(e);
+			}
+			response.setContentType("application/json; charset=UTF-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().write(graph.toJson());
+		}
+		
+		/* Hex digits of one of the task ID lengths, in either case */
+		private static boolean isValidTaskId(String s) {
+			int length = s.length() / 2;
+			return (length == 4 || length == 8 || length == 12 || length == 20)
+					&& IoUtil.validateHexString(s.toUpperCase());
+		}
+	}
+  
   private static class TitleServlet extends HttpServlet {
 		protected void doGet(HttpServletRequest request,
 				HttpServletResponse response) throws ServletException, IOException {
@@ -368,8 +540,16 @@ public final class XTraceServer {
 			if (title == null || title.equalsIgnoreCase("")) {
 				response.sendError(505, "No title given");
 			} else {
-				Collection<TaskRecord> taskInfos = reportstore.getTasksByTitle(
-						title, getOffset(request), getLength(request));
+				TaskCursor after;
+				try {
+					after = getCursor(request);
+				} catch (IllegalArgumentException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				}
+				Collection<TaskRecord> taskInfos = after == null ? reportstore
+						.getTasksByTitle(title, getOffset(request), getLength(request))
+						: reportstore.getTasksByTitle(title, after, getLength(request));
 				showTasks(request, response, taskInfos, "Tasks with title: " + title, false);
 			}
 		}
@@ -382,18 +562,114 @@ public final class XTraceServer {
 			if (title == null || title.equalsIgnoreCase("")) {
 				response.sendError(505, "No title given");
 			} else {
-				Collection<TaskRecord> taskInfos = reportstore.getTasksByTitleSubstring(
-						title, getOffset(request), getLength(request));
+				TaskCursor after;
+				try {
+					after = getCursor(request);
+				} catch (IllegalArgumentException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				}
+				Collection<TaskRecord> taskInfos = after == null ? reportstore
+						.getTasksByTitleSubstring(title, getOffset(request),
+								getLength(request)) : reportstore
+						.getTasksByTitleSubstring(title, after, getLength(request));
 				showTasks(request, response, taskInfos, "Tasks with title like: " + title, false);
 			}
 		}
 	}
   
+  /**
+   * Shows, for each report source, how many reports were queued and how
+   * many were dropped for each reason.
+   */
+  private static class QueueStatsServlet extends HttpServlet {
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+      response.setContentType("text/plain");
+      response.setStatus(HttpServletResponse.SC_OK);
+      Writer out = response.getWriter();
+      out.write("queue size: " + reportQueue.size() + "\n");
+      out.write("queue remaining capacity: " + reportQueue.remainingCapacity() + "\n");
+      SourceReportQueue.DropReason[] reasons = SourceReportQueue.DropReason.values();
+      for (int i = 0; i < sourceQueues.length; i++) {
+        SourceReportQueue sq = sourceQueues[i];
+        out.write("\n" + sq.getSourceName() + " (" + sq.getPolicy() + ")\n");
+        out.write("  accepted: " + sq.getAccepted() + "\n");
+        for (int j = 0; j < reasons.length; j++) {
+          out.write("  dropped/" + reasons[j] + ": " + sq.getDrops(reasons[j]) + "\n");
+        }
+        if (sources[i] instanceof UdpReportSource) {
+          UdpReportSource udp = (UdpReportSource) sources[i];
+          out.write("  udp/received: " + udp.getReceived() + "\n");
+          out.write("  udp/truncated: " + udp.getTruncated() + "\n");
+          long socketDrops = udp.getSocketDrops();
+          out.write("  udp/socket-buffer-drops: "
+              + (socketDrops < 0 ? "unknown" : String.valueOf(socketDrops)) + "\n");
+        } else if (sources[i] instanceof TcpReportSource) {
+          TcpReportSource tcp = (TcpReportSource) sources[i];
+          out.write("  tcp/active-connections: " + tcp.getActiveConnections() + "\n");
+          out.write("  tcp/rejected-connections: " + tcp.getRejectedConnections() + "\n");
+        }
+      }
+      if (reportstore instanceof FileTreeReportStore) {
+        FileHandleCache[] caches = ((FileTreeReportStore) reportstore).getFileCaches();
+        long open = 0, closing = 0, hits = 0, misses = 0, evictions = 0, idle = 0, inline = 0,
+            openNanos = 0, closeNanos = 0;
+        for (int i = 0; i < caches.length; i++) {
+          open += caches[i].getOpenFiles();
+          closing += caches[i].getClosingFiles();
+          hits += caches[i].getHits();
+          misses += caches[i].getMisses();
+          evictions += caches[i].getEvictions();
+          idle += caches[i].getIdleEvictions();
+          inline += caches[i].getInlineCloses();
+          openNanos += caches[i].getOpenNanos();
+          closeNanos += caches[i].getCloseNanos();
+        }
+        out.write("\nfile cache (" + caches.length + " writer shards)\n");
+        out.write("  open files: " + open + "\n");
+        out.write("  files waiting to close: " + closing + "\n");
+        out.write("  hits: " + hits + "\n");
+        out.write("  misses: " + misses + "\n");
+        out.write("  evictions: " + evictions + "\n");
+        out.write("  idle evictions: " + idle + "\n");
+        out.write("  evictions closed inline: " + inline + "\n");
+        out.write("  open time (us/miss): "
+            + (misses == 0 ? 0 : openNanos / misses / 1000) + "\n");
+        out.write("  close time (ms total): " + closeNanos / 1000000 + "\n");
+      }
+      GroupCommitter committer = null;
+      if (reportstore instanceof FileTreeReportStore) {
+        committer = ((FileTreeReportStore) reportstore).getGroupCommitter();
+      } else if (reportstore instanceof SegmentedLogReportStore) {
+        committer = ((SegmentedLogReportStore) reportstore).getGroupCommitter();
+      }
+      if (committer != null) {
+        out.write("\ngroup commit\n");
+        out.write("  commits: " + committer.getCommits() + "\n");
+        out.write("  reports committed: " + committer.getCommittedReports() + "\n");
+        out.write("  batch size (mean): " + committer.getMeanBatchSize() + "\n");
+        out.write("  batch size (last): " + committer.getLastBatchSize() + "\n");
+        out.write("  latency (us mean): " + committer.getMeanLatencyMicros() + "\n");
+        out.write("  latency (us max): " + committer.getMaxLatencyMicros() + "\n");
+      }
+    }
+  }
+  
   private static class IndexServlet extends DefaultServlet {
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
       if(request.getRequestURI().equals("/")) {
-        Collection<TaskRecord> tasks = reportstore.getLatestTasks(getOffset(request), getLength(request));
+        TaskCursor after;
+        try {
+          after = getCursor(request);
+        } catch (IllegalArgumentException e) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+          return;
+        }
+        Collection<TaskRecord> tasks = after == null
+            ? reportstore.getLatestTasks(getOffset(request), getLength(request))
+            : reportstore.getLatestTasks(after, getLength(request));
         showTasks(request, response, tasks, "X-Trace Latest Tasks", true);
       } else {
         super.doGet(request, response);
@@ -426,6 +702,16 @@ public final class XTraceServer {
 		}
     int offset = getOffset(request);
     int length = getLength(request);
+    // A full page may have more after it, starting past its last task
+    String nextCursor = null;
+    if (length > 0 && tasks.size() == length) {
+      TaskRecord last = null;
+      for (TaskRecord task : tasks) {
+        last = task;
+      }
+      nextCursor = TaskCursor.after(last).toString();
+      response.setHeader("X-Next-Cursor", nextCursor);
+    }
     // Create Velocity context
 		VelocityContext context = new VelocityContext();
 		context.put("tasks", tasks);
@@ -437,6 +723,7 @@ public final class XTraceServer {
     context.put("lastResultNum", offset + length - 1);
 		context.put("prevOffset", Math.max(0, offset - length));
 		context.put("nextOffset", offset + length);
+		context.put("nextCursor", nextCursor);
 		context.put("showStats", showDbStats);
     context.put("JSON_DATE_FORMAT", JSON_DATE_FORMAT);
     context.put("HTML_DATE_FORMAT", HTML_DATE_FORMAT);
@@ -463,6 +750,21 @@ public final class XTraceServer {
 		return Math.max(length, 0); // Don't allow negative
 	}
 
+	/**
+	 * Get the cursor in the after HTTP parameter of a request, or null if
+	 * there is none.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the cursor is malformed; callers answer with a 400
+	 */
+	private static TaskCursor getCursor(HttpServletRequest request) {
+		String token = request.getParameter("after");
+		if (token == null || token.length() == 0) {
+			return null;
+		}
+		return TaskCursor.parse(token);
+	}
+
 	/**
 	 * Get the offset HTTP parameter from a request, or return the default
 	 * (of 0) when it is not specified.
@@ -492,6 +794,25 @@ public final class XTraceServer {
     }
 	}
   
+	private static final class DropStatsTimer extends TimerTask {
+		private long[] lastDrops;
+
+		public void run() {
+			if (lastDrops == null) {
+				lastDrops = new long[sourceQueues.length];
+			}
+			for (int i = 0; i < sourceQueues.length; i++) {
+				long drops = sourceQueues[i].getTotalDrops();
+				if (drops != lastDrops[i]) {
+					LOG.warn(sourceQueues[i].getSourceName() + " dropped "
+							+ (drops - lastDrops[i]) + " reports in the last minute ("
+							+ drops + " total, see /queueStats)");
+					lastDrops[i] = drops;
+				}
+			}
+		}
+	}
+  
 	private static final class SyncTimer extends TimerTask {
 		private QueryableReportStore reportstore;
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.reporting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceEvent;
+import edu.berkeley.xtrace.XTraceMetadata;
+
+public class BinaryReportTest {
+	
+	@Test
+	public void testRoundTrip() throws IOException {
+		Report r = typicalReport();
+		r.put("Custom-Key", "some value");
+		r.put("Edge", "not hex");
+		r.put("Timestamp", "yesterday");
+		r.put("Label", "caf\u00e9");
+		byte[] b = r.toBinary();
+		assertTrue(BinaryReport.isBinary(b, 0, b.length));
+		assertEquals(r.toString(), BinaryReport.toText(b, 0, b.length));
+		assertEquals(r, Report.createFromBytes(b, 0, b.length));
+	}
+	
+	@Test
+	public void testFieldReader() throws IOException {
+		Report r = typicalReport();
+		r.get("Host"); // Fields now come from the report's map
+		r.put("Custom-Key", "x");
+		byte[] b = r.toBinary();
+		assertEquals(r.toString(), BinaryReport.toText(b, 0, b.length));
+		
+		BinaryReport.FieldReader fields = new BinaryReport.FieldReader(b, 0, b.length);
+		int n = 0;
+		while (fields.next()) {
+			assertEquals(r.get(fields.name()).get(0), fields.value());
+			if (fields.id() == BinaryReport.LITERAL) {
+				assertTrue(fields.nameIs("Custom-Key"));
+			}
+			n++;
+		}
+		assertEquals(7, n);
+	}
+	
+	@Test
+	public void testTextIsNotBinary() throws IOException {
+		Report r = typicalReport();
+		byte[] b = r.toString().getBytes("UTF-8");
+		assertFalse(BinaryReport.isBinary(b, 0, b.length));
+		assertEquals(r.toString(), Report.createFromBytes(b, 0, b.length).toString());
+	}
+	
+	@Test
+	public void testSmallerThanText() throws IOException {
+		Report r = typicalReport();
+		int text = r.toString().getBytes("UTF-8").length;
+		int binary = r.toBinary().length;
+		assertTrue("binary " + binary + " vs text " + text, binary * 2 < text);
+	}
+	
+	@Test
+	public void testExtractTaskId() {
+		TaskID task = new TaskID(20);
+		Report r = new Report();
+		r.put("Host", "a");
+		r.put("Timestamp", "1200000000.001");
+		r.put("Other", "b");
+		r.put("X-Trace", new XTraceMetadata(task, 7).toString());
+		byte[] b = r.toBinary();
+		assertEquals(task, BinaryReport.extractTaskId(b, 0, b.length));
+		
+		r = new Report();
+		r.put("Host", "a");
+		b = r.toBinary();
+		assertNull(BinaryReport.extractTaskId(b, 0, b.length));
+	}
+	
+	@Test
+	public void testTruncated() {
+		byte[] b = typicalReport().toBinary();
+		try {
+			BinaryReport.toText(b, 0, b.length - 3);
+			fail("Truncated report should not decode");
+		} catch (IOException e) {
+		}
+	}
+	
+	private static Report typicalReport() {
+		XTraceMetadata md = new XTraceMetadata(new TaskID(8), 1234567890123L);
+		XTraceEvent event = new XTraceEvent(8);
+		event.addEdge(md);
+		event.setMetadata(new XTraceMetadata(md.getTaskId(), 987654321L));
+		event.put("Host", "web-1.example.com");
+		event.put("Agent", "HTTP Server");
+		event.put("Label", "request received");
+		return event.createReport();
+	}
+}
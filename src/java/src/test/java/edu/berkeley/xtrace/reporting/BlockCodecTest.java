@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.reporting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockCodecTest {
+	
+	@Test
+	public void testRoundTrip() throws IOException {
+		byte[][] inputs = { reports(200), random(5000), new byte[1], reports(1) };
+		byte[] codecs = { BlockCodec.DEFLATE, BlockCodec.LZF };
+		for (int c = 0; c < codecs.length; c++) {
+			BlockCodec codec = new BlockCodec(codecs[c]);
+			for (int i = 0; i < inputs.length; i++) {
+				byte[] in = inputs[i];
+				byte[] out = new byte[3 + BlockCodec.maxCompressedLength(in.length)];
+				int n = codec.compress(in, 0, in.length, out, 3);
+				if (n < 0) {
+					// Incompressible input
+					continue;
+				}
+				byte[] back = new byte[in.length];
+				codec.decompress(codecs[c], out, 3, n, back, 0, back.length);
+				assertArrayEquals(in, back);
+			}
+			codec.end();
+		}
+	}
+	
+	@Test
+	public void testCompressesReports() {
+		byte[] in = reports(500);
+		BlockCodec lzf = new BlockCodec(BlockCodec.LZF);
+		BlockCodec deflate = new BlockCodec(BlockCodec.DEFLATE);
+		byte[] out = new byte[BlockCodec.maxCompressedLength(in.length)];
+		int lzfLength = lzf.compress(in, 0, in.length, out, 0);
+		int deflateLength = deflate.compress(in, 0, in.length, out, 0);
+		assertTrue(lzfLength > 0 && lzfLength < in.length / 2);
+		assertTrue(deflateLength > 0 && deflateLength < lzfLength);
+		deflate.end();
+	}
+	
+	@Test
+	public void testIncompressible() {
+		byte[] in = random(1000);
+		BlockCodec lzf = new BlockCodec(BlockCodec.LZF);
+		byte[] out = new byte[BlockCodec.maxCompressedLength(in.length)];
+		assertEquals(-1, lzf.compress(in, 0, in.length, out, 0));
+	}
+	
+	@Test
+	public void testCorruptInput() {
+		byte[] in = reports(50);
+		BlockCodec lzf = new BlockCodec(BlockCodec.LZF);
+		byte[] out = new byte[BlockCodec.maxCompressedLength(in.length)];
+		int n = lzf.compress(in, 0, in.length, out, 0);
+		try {
+			lzf.decompress(BlockCodec.LZF, out, 0, n / 2, new byte[in.length], 0, in.length);
+			fail("Truncated block should not decompress");
+		} catch (IOException e) {
+		}
+	}
+	
+	private static byte[] reports(int count) {
+		StringBuilder sb = new StringBuilder();
+		Random rnd = new Random(1);
+		for (int i = 0; i < count; i++) {
+			sb.append("X-Trace Report ver 1.0\nX-Trace: 19");
+			sb.append(Long.toHexString(rnd.nextLong())).append(Long.toHexString(rnd.nextLong()));
+			sb.append("\nHost: node").append(rnd.nextInt(10));
+			sb.append("\nAgent: HTTP Server\nLabel: request received\n");
+			sb.append("Timestamp: ").append(1200000000 + i).append(".123\n\n");
+		}
+		return sb.toString().getBytes();
+	}
+	
+	private static byte[] random(int length) {
+		byte[] b = new byte[length];
+		new Random(2).nextBytes(b);
+		return b;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.reporting;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.server.NonblockingTcpReportSource;
+import edu.berkeley.xtrace.server.ReportFrame;
+import edu.berkeley.xtrace.server.ReportSource;
+import edu.berkeley.xtrace.server.TcpReportSource;
+
+public class TcpReporterTest {
+	private static final int PORT = 17840;
+	
+	private ReportSource source;
+	
+	@After
+	public void tearDown() {
+		if (source != null) {
+			source.shutdown();
+		}
+		System.clearProperty("xtrace.backend.tcpport");
+		System.clearProperty("xtrace.backend.tcp.reactors");
+		System.clearProperty("xtrace.tcpdest");
+		System.clearProperty("xtrace.tcp.framing");
+		System.clearProperty("xtrace.tcp.compression");
+		System.clearProperty("xtrace.reporter.encoding");
+	}
+	
+	@Test
+	public void testClassicFraming() throws Exception {
+		BlockingQueue<ReportFrame> q = start(new NonblockingTcpReportSource(), PORT);
+		sendAndCheck(q, PORT, null);
+	}
+	
+	@Test
+	public void testLzfBlocksToNonblockingSource() throws Exception {
+		System.setProperty("xtrace.backend.tcp.reactors", "2");
+		BlockingQueue<ReportFrame> q = start(new NonblockingTcpReportSource(), PORT + 1);
+		sendAndCheck(q, PORT + 1, "lzf");
+	}
+	
+	@Test
+	public void testDeflateBlocksToTcpSource() throws Exception {
+		BlockingQueue<ReportFrame> q = start(new TcpReportSource(), PORT + 2);
+		sendAndCheck(q, PORT + 2, "deflate");
+	}
+	
+	@Test
+	public void testBinaryEncoding() throws Exception {
+		System.setProperty("xtrace.reporter.encoding", "binary");
+		BlockingQueue<ReportFrame> q = start(new NonblockingTcpReportSource(), PORT + 3);
+		sendAndCheck(q, PORT + 3, "lzf");
+	}
+	
+	private BlockingQueue<ReportFrame> start(ReportSource s, int port) throws Exception {
+		System.setProperty("xtrace.backend.tcpport", String.valueOf(port));
+		BlockingQueue<ReportFrame> q = new ArrayBlockingQueue<ReportFrame>(1000);
+		source = s;
+		source.setReportQueue(q);
+		source.initialize();
+		Thread t = new Thread(source);
+		t.setDaemon(true);
+		t.start();
+		return q;
+	}
+	
+	private static void sendAndCheck(BlockingQueue<ReportFrame> q, int port,
+			String compression) throws Exception {
+		System.setProperty("xtrace.tcpdest", "127.0.0.1:" + port);
+		if (compression != null) {
+			System.setProperty("xtrace.tcp.framing", "block");
+			System.setProperty("xtrace.tcp.compression", compression);
+		}
+		TcpReporter reporter = new TcpReporter();
+		for (int i = 0; i < 500; i++) {
+			Report r = new Report();
+			r.put("Agent", "TcpReporterTest");
+			r.put("Label", "report " + i);
+			reporter.sendReport(r);
+		}
+		reporter.flush();
+		for (int i = 0; i < 500; i++) {
+			ReportFrame frame = q.poll(5, TimeUnit.SECONDS);
+			Report r = Report.createFromString(frame.toString());
+			assertEquals("report " + i, r.get("Label").get(0));
+			frame.release();
+		}
+		reporter.close();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Iterator;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.BlockCodec;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class CompressedTaskFileTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.create("xtrace-compressed");
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty("xtrace.server.compress.blocksize");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testBlocks() throws Exception {
+		TaskID task = new TaskID(8);
+		Report[] reports = reports(task, 0, 200);
+		File txt = writeText(reports, "a.txt");
+		File xtz = new File(dir, "a.xtz");
+		assertEquals(200, CompressedTaskFile.write(xtz, null, txt,
+				BlockCodec.DEFLATE, 1024, 1));
+		assertTrue(xtz.length() < txt.length());
+
+		CompressedTaskFile f = CompressedTaskFile.open(xtz);
+		assertEquals(1, f.getGeneration());
+		assertEquals(200, f.getNumReports());
+		assertTrue(f.getNumBlocks() > 1);
+		check(f.reports(0), reports, 0);
+
+		// Every block can be read on its own
+		for (int b = 0; b < f.getNumBlocks(); b++) {
+			int first = (int) f.firstReportOf(b);
+			assertEquals(b, f.blockOf(first));
+			assertEquals(reports[first], f.reports(b).next());
+		}
+		assertEquals(f.getNumBlocks(), f.blockOf(200));
+		assertFalse(f.reports(f.getNumBlocks()).hasNext());
+	}
+
+	@Test
+	public void testAppend() throws Exception {
+		TaskID task = new TaskID(8);
+		Report[] reports = reports(task, 0, 100);
+		Report[] first = new Report[60];
+		Report[] second = new Report[40];
+		System.arraycopy(reports, 0, first, 0, 60);
+		System.arraycopy(reports, 60, second, 0, 40);
+
+		File xtz = new File(dir, "a.xtz");
+		CompressedTaskFile.write(xtz, null, writeText(first, "a.txt"),
+				BlockCodec.LZF, 512, 1);
+		CompressedTaskFile f = CompressedTaskFile.open(xtz);
+		assertEquals(40, CompressedTaskFile.write(xtz, f, writeText(second,
+				"b.txt"), BlockCodec.LZF, 512, 2));
+
+		// The old iterator still works, as the old blocks didn't move
+		check(f.reports(0), first, 0);
+		CompressedTaskFile g = CompressedTaskFile.open(xtz);
+		assertEquals(2, g.getGeneration());
+		assertEquals(100, g.getNumReports());
+		check(g.reports(0), reports, 0);
+		int b = g.blockOf(70);
+		check(g.reports(b), reports, (int) g.firstReportOf(b));
+	}
+
+	@Test
+	public void testStoreCompaction() throws Exception {
+		System.setProperty("xtrace.server.storedirectory", dir.toString());
+		System.setProperty("xtrace.server.compress.blocksize", "1024");
+		FileTreeReportStore store = new FileTreeReportStore();
+		store.initialize();
+		try {
+			TaskID task = new TaskID(8);
+			Report[] reports = reports(task, 0, 150);
+			for (int i = 0; i < 100; i++) {
+				store.receiveReport(reports[i].toString());
+			}
+			store.sync();
+			store.compactIdleTasks(System.currentTimeMillis() + 1);
+			String taskstr = task.toString();
+			File l3 = new File(new File(new File(dir, taskstr.substring(0, 2)),
+					taskstr.substring(2, 4)), taskstr.substring(4, 6));
+			assertFalse(new File(l3, taskstr + ".txt").exists());
+			assertTrue(new File(l3, taskstr + ".xtz").exists());
+
+			// New reports go to a new text file, read after the compressed ones
+			for (int i = 100; i < 150; i++) {
+				store.receiveReport(reports[i].toString());
+			}
+			store.sync();
+			check(store.getReportsByTask(task), reports, 0);
+
+			// A compaction that stopped after moving the text file away
+			store.getFileCaches()[0].detach(task, new File(l3, taskstr
+					+ ".txt"), new File(l3, taskstr + ".2.compacting"));
+			check(store.getReportsByTask(task), reports, 0);
+			check(store.getReportsByTask(task, 120), reports, 120);
+
+			store.compactIdleTasks(System.currentTimeMillis() + 2);
+			assertFalse(new File(l3, taskstr + ".2.compacting").exists());
+			assertEquals(2, CompressedTaskFile.open(
+					new File(l3, taskstr + ".xtz")).getGeneration());
+			check(store.getReportsByTask(task), reports, 0);
+			check(store.getReportsByTask(task, 37), reports, 37);
+			assertEquals(150, store.countByTaskId(task));
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	private static void check(Iterator<Report> it, Report[] reports, int from) {
+		for (int i = from; i < reports.length; i++) {
+			assertTrue(it.hasNext());
+			assertEquals(reports[i], it.next());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	private static Report[] reports(TaskID task, int from, int count) {
+		Report[] reports = new Report[count];
+		for (int i = 0; i < count; i++) {
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(task, from + i).toString());
+			r.put("Agent", "test");
+			r.put("Seq", Integer.toString(from + i));
+			reports[i] = r;
+		}
+		return reports;
+	}
+
+	private File writeText(Report[] reports, String name) throws Exception {
+		File f = new File(dir, name);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+		for (int i = 0; i < reports.length; i++) {
+			out.println(reports[i].toString());
+		}
+		out.close();
+		return f;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class FileHandleCacheTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.create("xtrace-filecache");
+	}
+
+	@After
+	public void tearDown() {
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testEvictionKeepsReportOrder() throws Exception {
+		FileHandleCache cache = new FileHandleCache(dir, 4, 2, 0);
+		TaskID[] tasks = new TaskID[20];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+		}
+		for (int j = 0; j < 5; j++) {
+			for (int i = 0; i < tasks.length; i++) {
+				write(cache, tasks[i], j);
+			}
+		}
+		assertTrue(cache.getOpenFiles() <= 4);
+		assertTrue(cache.getEvictions() > 0);
+		assertEquals(100, cache.getHits() + cache.getMisses());
+		cache.closeAll();
+		assertEquals(0, cache.getOpenFiles());
+
+		for (int i = 0; i < tasks.length; i++) {
+			checkFile(tasks[i], 5);
+		}
+	}
+
+	@Test
+	public void testClosingFilesCountAgainstTheBudget() throws Exception {
+		FileHandleCache cache = new FileHandleCache(dir, 8, 1, 0);
+		for (int i = 0; i < 100; i++) {
+			write(cache, new TaskID(8), 0);
+			assertTrue(cache.getOpenFiles() <= 7);
+			assertTrue(cache.getOpenFiles() + cache.getClosingFiles() <= 8);
+		}
+		assertEquals(93, cache.getEvictions());
+		cache.closeAll();
+		assertEquals(0, cache.getClosingFiles());
+	}
+
+	@Test
+	public void testHits() throws Exception {
+		FileHandleCache cache = new FileHandleCache(dir, 4, 2, 0);
+		TaskID task = new TaskID(8);
+		for (int j = 0; j < 10; j++) {
+			write(cache, task, j);
+		}
+		assertEquals(1, cache.getMisses());
+		assertEquals(9, cache.getHits());
+		assertEquals(0, cache.getEvictions());
+		cache.flushAll();
+		checkFile(task, 10);
+		cache.closeAll();
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		FileHandleCache cache = new FileHandleCache(dir, 16, 4, 50);
+		TaskID[] tasks = { new TaskID(8), new TaskID(8), new TaskID(8) };
+		for (int i = 0; i < tasks.length; i++) {
+			write(cache, tasks[i], 0);
+		}
+		for (int n = 0; n < 100 && cache.getOpenFiles() > 0; n++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, cache.getOpenFiles());
+		assertEquals(3, cache.getIdleEvictions());
+
+		for (int i = 0; i < tasks.length; i++) {
+			write(cache, tasks[i], 1);
+		}
+		cache.closeAll();
+		for (int i = 0; i < tasks.length; i++) {
+			checkFile(tasks[i], 2);
+		}
+	}
+
+	private static void write(FileHandleCache cache, TaskID task, int seq)
+			throws Exception {
+		Report r = new Report();
+		r.put("X-Trace", new XTraceMetadata(task, seq).toString());
+		r.put("Seq", Integer.toString(seq));
+		ReportFrame frame = ReportFrame.fromString(r.toString());
+		cache.write(task, frame);
+		frame.release();
+	}
+
+	private void checkFile(TaskID task, int count) {
+		String taskstr = task.toString();
+		File f = new File(new File(new File(new File(dir, taskstr.substring(0,
+				2)), taskstr.substring(2, 4)), taskstr.substring(4, 6)),
+				taskstr + ".txt");
+		Iterator<Report> it = new FileTreeReportStore.FileTreeIterator(f);
+		for (int j = 0; j < count; j++) {
+			assertTrue(it.hasNext());
+			assertEquals(Integer.toString(j), it.next().get("Seq").get(0));
+		}
+		assertFalse(it.hasNext());
+	}
+}
@@ -104,6 +104,60 @@ public class FileTreeIteratorTest {
 		assertFalse(iter2.hasNext());
 	}
 	
+	@Test
+	public void testSmallWindow() {
+		// Reports straddle the boundaries of the mapped windows
+		FileTreeReportStore.FileTreeIterator iter =
+			new FileTreeReportStore.FileTreeIterator(reportFile, 100);
+		
+		for (int i = 0; i < reports.length; i++) {
+			assertTrue(iter.hasNext());
+			assertEquals(reports[i], iter.next());
+		}
+		
+		assertFalse(iter.hasNext());
+	}
+	
+	@Test
+	public void testLargeReports() throws Exception {
+		// Much larger than the 4 KB the old reader could look back
+		Report[] large = new Report[5];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = randomReport();
+			large[i].put("Exception", randomString(20000 + r.nextInt(20000)));
+		}
+		writeReports(large, "\n");
+		
+		FileTreeReportStore.FileTreeIterator iter =
+			new FileTreeReportStore.FileTreeIterator(reportFile);
+		for (int i = 0; i < large.length; i++) {
+			assertTrue(iter.hasNext());
+			assertEquals(large[i], iter.next());
+		}
+		assertFalse(iter.hasNext());
+	}
+	
+	@Test
+	public void testCarriageReturns() throws Exception {
+		writeReports(reports, "\r\n");
+		
+		FileTreeReportStore.FileTreeIterator iter =
+			new FileTreeReportStore.FileTreeIterator(reportFile);
+		for (int i = 0; i < reports.length; i++) {
+			assertTrue(iter.hasNext());
+			assertEquals(reports[i], iter.next());
+		}
+		assertFalse(iter.hasNext());
+	}
+	
+	private void writeReports(Report[] rs, String newline) throws Exception {
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)));
+		for (int i = 0; i < rs.length; i++) {
+			out.print(rs[i].toString().replace("\n", newline) + newline);
+		}
+		out.close();
+	}
+	
 	private Report randomReport() {
 		Report report = new Report();
 		
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.util.Iterator;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class FileTreeReportRangeTest {
+	private File dir;
+	private FileTreeReportStore store;
+	private TaskID task;
+	private Report[] reports;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.createStoreDir("xtrace-range");
+		System.setProperty("xtrace.server.compress.blocksize", "1024");
+		store = new FileTreeReportStore();
+		store.initialize();
+		task = new TaskID(8);
+		reports = new Report[60];
+		for (int i = 0; i < reports.length; i++) {
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(task, i).toString());
+			r.put("Agent", "test");
+			r.put("Seq", Integer.toString(i));
+			reports[i] = r;
+		}
+	}
+
+	@After
+	public void tearDown() {
+		store.shutdown();
+		System.clearProperty("xtrace.server.compress.blocksize");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testIncremental() throws Exception {
+		write(0, 30);
+		FileTreeReportStore.ReportRange range = store.getReportRange(task,
+				ReportPosition.START);
+		check(range, 0, 30);
+		ReportPosition pos = range.getEnd();
+		assertEquals(30, pos.getReports());
+		assertTrue(pos.getOffset() > 0);
+
+		write(30, 50);
+		range = store.getReportRange(task, ReportPosition.parse(pos.toString()));
+		check(range, 30, 50);
+		pos = range.getEnd();
+		assertEquals(50, pos.getReports());
+		assertEquals(taskFile(".txt").length(), pos.getOffset());
+
+		// Nothing new
+		range = store.getReportRange(task, pos);
+		check(range, 50, 50);
+		assertEquals(pos.toString(), range.getEnd().toString());
+
+		// A plain report count
+		check(store.getReportRange(task, new ReportPosition(45)), 45, 50);
+	}
+
+	@Test
+	public void testAfterCompaction() throws Exception {
+		write(0, 40);
+		ReportPosition pos = store.getReportRange(task, ReportPosition.START)
+				.getEnd();
+		store.compactIdleTasks(System.currentTimeMillis() + 1);
+		assertTrue(taskFile(".xtz").exists());
+		write(40, 50);
+
+		// The offset is into a file that was since compressed
+		FileTreeReportStore.ReportRange range = store.getReportRange(task, pos);
+		check(range, 40, 50);
+		assertEquals(50, range.getEnd().getReports());
+		assertEquals(1, range.getEnd().getGeneration());
+
+		check(store.getReportRange(task, ReportPosition.START), 0, 50);
+		check(store.getReportRange(task, new ReportPosition(25)), 25, 50);
+		check(store.getReportRange(task, new ReportPosition(100)), 50, 50);
+
+		// Back to following the text file
+		write(50, 60);
+		check(store.getReportRange(task, range.getEnd()), 50, 60);
+	}
+
+	@Test
+	public void testPartialReport() throws Exception {
+		write(0, 10);
+		FileWriter out = new FileWriter(taskFile(".txt"), true);
+		out.write(reports[10].toString());
+		out.close();
+
+		// The last report isn't followed by its blank line yet
+		FileTreeReportStore.ReportRange range = store.getReportRange(task,
+				ReportPosition.START);
+		check(range, 0, 10);
+		ReportPosition pos = range.getEnd();
+		assertEquals(10, pos.getReports());
+
+		out = new FileWriter(taskFile(".txt"), true);
+		out.write("\n");
+		out.close();
+		range = store.getReportRange(task, pos);
+		check(range, 10, 11);
+		assertEquals(11, range.getEnd().getReports());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedPosition() {
+		ReportPosition.parse("12.x.3");
+	}
+
+	private void write(int from, int to) {
+		for (int i = from; i < to; i++) {
+			store.receiveReport(reports[i].toString());
+		}
+		store.sync();
+	}
+
+	/* Reads back the reports of a range */
+	private void check(FileTreeReportStore.ReportRange range, int from, int to)
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		range.writeTo(bytes);
+		File f = new File(dir, "range.txt");
+		FileOutputStream out = new FileOutputStream(f);
+		bytes.writeTo(out);
+		out.close();
+		Iterator<Report> it = new FileTreeReportStore.FileTreeIterator(f);
+		for (int i = from; i < to; i++) {
+			assertTrue(it.hasNext());
+			assertEquals(reports[i], it.next());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	private File taskFile(String suffix) {
+		String taskstr = task.toString();
+		File l3 = new File(new File(new File(dir, taskstr.substring(0, 2)),
+				taskstr.substring(2, 4)), taskstr.substring(4, 6));
+		return new File(l3, taskstr + suffix);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class FileTreeReportStoreRetentionTest {
+	private File dir;
+	private FileTreeReportStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.createStoreDir("xtrace-retention");
+		// Expiry is run by hand
+		System.setProperty("xtrace.server.retention.interval", "3600000");
+		System.setProperty("xtrace.server.retention.batchsize", "1");
+		System.setProperty("xtrace.server.retention.rate", "1000000");
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null) {
+			store.shutdown();
+		}
+		System.clearProperty("xtrace.server.retention.ttl");
+		System.clearProperty("xtrace.server.retention.maxbytes");
+		System.clearProperty("xtrace.server.retention.interval");
+		System.clearProperty("xtrace.server.retention.batchsize");
+		System.clearProperty("xtrace.server.retention.rate");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		System.setProperty("xtrace.server.retention.ttl", "1000");
+		store = new FileTreeReportStore();
+		store.initialize();
+
+		TaskID old1 = new TaskID(8), old2 = new TaskID(8);
+		write(old1, 5);
+		write(old2, 3);
+		Thread.sleep(20);
+		long cutoff = System.currentTimeMillis();
+		Thread.sleep(20);
+		TaskID recent = new TaskID(8);
+		write(recent, 4);
+		store.sync();
+
+		store.expireTasks(cutoff + 1000);
+		assertEquals(1, store.numTasks());
+		assertEquals(4, store.numReports());
+		assertEquals(0, store.countByTaskId(old1));
+		assertFalse(store.getReportsByTask(old1).hasNext());
+		assertFalse(taskDir(old2).exists());
+		assertEquals(4, count(store.getReportsByTask(recent)));
+
+		// An expired task that shows up again starts over
+		write(old1, 2);
+		store.sync();
+		assertEquals(2, store.countByTaskId(old1));
+		assertEquals(2, count(store.getReportsByTask(old1)));
+	}
+
+	@Test
+	public void testDiskBudget() throws Exception {
+		TaskID[] tasks = new TaskID[4];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+		}
+		store = new FileTreeReportStore();
+		store.initialize();
+		for (int i = 0; i < tasks.length; i++) {
+			write(tasks[i], 10);
+			Thread.sleep(20);
+		}
+		store.sync();
+		long perTask = taskFile(tasks[0]).length();
+		store.shutdown();
+
+		// Room for a bit more than two tasks
+		System.setProperty("xtrace.server.retention.maxbytes", Long
+				.toString(perTask * 5 / 2));
+		store = new FileTreeReportStore();
+		store.initialize();
+		store.expireTasks(System.currentTimeMillis());
+		assertTrue(store.getDiskUsage() <= perTask * 5 / 2);
+		assertEquals(2, store.numTasks());
+		assertFalse(taskFile(tasks[0]).exists());
+		assertFalse(taskFile(tasks[1]).exists());
+		assertEquals(10, count(store.getReportsByTask(tasks[2])));
+		assertEquals(10, count(store.getReportsByTask(tasks[3])));
+	}
+
+	@Test
+	public void testReportBetweenRecordAndFileDeletion() throws Exception {
+		System.setProperty("xtrace.server.retention.ttl", "1000");
+		store = new FileTreeReportStore();
+		store.initialize();
+
+		TaskID task = new TaskID(8);
+		write(task, 5);
+		store.sync();
+		Thread.sleep(20);
+		long cutoff = System.currentTimeMillis();
+		assertEquals(1, store.deleteRecords(Collections.singletonList(task),
+				cutoff).size());
+
+		// Arrives after the record is gone but before the files are
+		write(task, 1);
+		assertEquals(0, store.deleteFiles(task));
+		store.sync();
+		assertTrue(taskFile(task).exists());
+		assertTrue(store.countByTaskId(task) > 0);
+		assertEquals(6, count(store.getReportsByTask(task)));
+
+		// Without a late report the files go
+		TaskID other = new TaskID(8);
+		write(other, 2);
+		store.sync();
+		Thread.sleep(20);
+		store.deleteRecords(Collections.singletonList(other),
+				System.currentTimeMillis());
+		assertTrue(store.deleteFiles(other) > 0);
+		assertFalse(taskFile(other).exists());
+	}
+
+	private void write(TaskID task, int n) {
+		for (int i = 0; i < n; i++) {
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(task, i).toString());
+			r.put("Seq", Integer.toString(i));
+			store.receiveReport(r.toString());
+		}
+	}
+
+	private static int count(Iterator<Report> it) {
+		int n = 0;
+		for (; it.hasNext(); it.next()) {
+			n++;
+		}
+		return n;
+	}
+
+	private File taskDir(TaskID task) {
+		String taskstr = task.toString();
+		return new File(new File(new File(dir, taskstr.substring(0, 2)),
+				taskstr.substring(2, 4)), taskstr.substring(4, 6));
+	}
+
+	private File taskFile(TaskID task) {
+		return new File(taskDir(task), task.toString() + ".txt");
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class FileTreeReportStoreShardsTest {
+	private static final int NUM_TASKS = 12;
+	private static final int NUM_REPORTS_PER_TASK = 50;
+
+	private File dir;
+	private FileTreeReportStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.createStoreDir("xtrace-shards");
+		System.setProperty("xtrace.server.store.shards", "3");
+		System.setProperty("xtrace.server.store.shardqueue", "4");
+		// Small enough for the shards to outrun the index flusher
+		System.setProperty("xtrace.server.index.flushsize", "8");
+		store = new FileTreeReportStore();
+		store.initialize();
+	}
+
+	@After
+	public void tearDown() {
+		store.shutdown();
+		System.clearProperty("xtrace.server.store.shards");
+		System.clearProperty("xtrace.server.store.shardqueue");
+		System.clearProperty("xtrace.server.index.flushsize");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testReportsStayInOrderPerTask() throws Exception {
+		BlockingQueue<ReportFrame> q = new ArrayBlockingQueue<ReportFrame>(16);
+		store.setReportQueue(q);
+		Thread t = new Thread(store);
+		t.setDaemon(true);
+		t.start();
+
+		TaskID[] tasks = new TaskID[NUM_TASKS];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+		}
+		for (int j = 0; j < NUM_REPORTS_PER_TASK; j++) {
+			for (int i = 0; i < tasks.length; i++) {
+				Report r = new Report();
+				r.put("X-Trace", new XTraceMetadata(tasks[i], j).toString());
+				r.put("Seq", Integer.toString(j));
+				q.put(ReportFrame.fromString(r.toString()));
+			}
+		}
+		int total = NUM_TASKS * NUM_REPORTS_PER_TASK;
+		for (int n = 0; n < 500 && store.numReports() < total; n++) {
+			Thread.sleep(10);
+		}
+		assertEquals(total, store.numReports());
+		assertEquals(3, store.getFileCaches().length);
+		store.sync();
+
+		for (int i = 0; i < tasks.length; i++) {
+			Iterator<Report> it = store.getReportsByTask(tasks[i]);
+			for (int j = 0; j < NUM_REPORTS_PER_TASK; j++) {
+				assertTrue(it.hasNext());
+				assertEquals(Integer.toString(j), it.next().get("Seq").get(0));
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
+	@Test
+	public void testShutdownStopsDispatcher() throws Exception {
+		// The dispatcher is left blocked on a full shard queue
+		BlockingQueue<ReportFrame> q = new ArrayBlockingQueue<ReportFrame>(64);
+		TaskID task = new TaskID(8);
+		for (int j = 0; j < 64; j++) {
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(task, j).toString());
+			q.put(ReportFrame.fromString(r.toString()));
+		}
+		store.setReportQueue(q);
+		Thread t = new Thread(store);
+		t.setDaemon(true);
+		t.start();
+		for (int n = 0; n < 500 && store.numReports() == 0; n++) {
+			Thread.sleep(10);
+		}
+
+		store.shutdown();
+		t.join(5000);
+		assertFalse(t.isAlive());
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class GroupCommitterTest {
+	private final AtomicInteger runs = new AtomicInteger();
+	private final Runnable count = new Runnable() {
+		public void run() {
+			runs.incrementAndGet();
+		}
+	};
+
+	@Before
+	public void setUp() {
+		BasicConfigurator.configure(new NullAppender());
+	}
+
+	@Test
+	public void testGroupSize() throws Exception {
+		GroupCommitter c = new GroupCommitter("test", count, 60000, 10);
+		c.start();
+		for (int i = 0; i < 25; i++) {
+			c.added();
+		}
+		for (int n = 0; n < 100 && c.getCommittedReports() < 20; n++) {
+			Thread.sleep(10);
+		}
+		assertTrue(c.getCommits() >= 1);
+		assertTrue(c.getCommittedReports() >= 20);
+		c.stop();
+		assertEquals(25, c.getCommittedReports());
+		assertEquals(c.getCommits(), runs.get());
+	}
+
+	@Test
+	public void testInterval() throws Exception {
+		GroupCommitter c = new GroupCommitter("test", count, 20, 1000);
+		c.start();
+		for (int i = 0; i < 3; i++) {
+			c.added();
+		}
+		for (int n = 0; n < 100 && c.getCommits() == 0; n++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, c.getCommits());
+		assertEquals(3, c.getLastBatchSize());
+		assertEquals(3, c.getMeanBatchSize());
+		// Nothing left to commit, so nothing happens
+		Thread.sleep(100);
+		assertEquals(1, runs.get());
+		c.stop();
+	}
+
+	@Test
+	public void testStoreFsync() throws Exception {
+		File dir = TempDirs.createStoreDir("xtrace-groupcommit");
+		System.setProperty("xtrace.server.durability", "fsync");
+		System.setProperty("xtrace.server.durability.groupsize", "5");
+		FileTreeReportStore store = new FileTreeReportStore();
+		try {
+			store.initialize();
+			GroupCommitter c = store.getGroupCommitter();
+			assertNotNull(c);
+			TaskID task = new TaskID(8);
+			for (int i = 0; i < 12; i++) {
+				Report r = new Report();
+				r.put("X-Trace", new XTraceMetadata(task, i).toString());
+				store.receiveReport(r.toString());
+			}
+			store.sync();
+			assertEquals(12, c.getCommittedReports());
+			assertEquals(12, store.countByTaskId(task));
+			int n = 0;
+			for (Iterator<Report> it = store.getReportsByTask(task); it
+					.hasNext(); it.next()) {
+				n++;
+			}
+			assertEquals(12, n);
+		} finally {
+			store.shutdown();
+			System.clearProperty("xtrace.server.durability");
+			System.clearProperty("xtrace.server.durability.groupsize");
+			TempDirs.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package edu.berkeley.xtrace.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceException;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * Throughput comparison between the single-loop and the multi-reactor
+ * configurations of {@link NonblockingTcpReportSource}.  Each run starts a
+ * source, connects a number of clients that send reports as fast as they
+ * can, and counts the reports that reach the report queue.
+ */
+public final class NonblockingTcpReportSourceLoadTest {
+	private static final Logger LOG = Logger.getLogger(NonblockingTcpReportSourceLoadTest.class);
+	
+	private static int testDuration;
+	private static int numClients;
+	private static int basePort = 17831;
+
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		out("NonblockingTcpReportSource load test");
+		
+		if (args.length < 2 || args[0].equalsIgnoreCase("--help")) {
+			usage();
+			System.exit(1);
+		}
+		testDuration = Integer.parseInt(args[0]);
+		numClients = Integer.parseInt(args[1]);
+		
+		int[] reactors;
+		if (args.length > 2) {
+			reactors = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				reactors[i - 2] = Integer.parseInt(args[i]);
+			}
+		} else {
+			reactors = new int[] { 1, Runtime.getRuntime().availableProcessors() };
+		}
+		
+		for (int i = 0; i < reactors.length; i++) {
+			long count = performTest(reactors[i], basePort + i);
+			out(reactors[i] + " selector loop(s): " + count + " reports, "
+					+ (count / testDuration) + " reports/sec");
+		}
+		System.exit(0);
+	}
+	
+	private static long performTest(int numReactors, int port) throws XTraceException {
+		System.setProperty("xtrace.backend.tcpport", "" + port);
+		System.setProperty("xtrace.backend.tcp.reactors", "" + numReactors);
+		
+		CountingQueue q = new CountingQueue();
+		NonblockingTcpReportSource source = new NonblockingTcpReportSource();
+		source.setReportQueue(q);
+		source.initialize();
+		Thread sourceThread = new Thread(source);
+		sourceThread.setDaemon(true);
+		sourceThread.start();
+		
+		Client[] clients = new Client[numClients];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new Client(port);
+			clients[i].start();
+		}
+		
+		// Let the connections get established before measuring
+		sleep(1000);
+		long start = q.count.get();
+		sleep(testDuration * 1000);
+		long total = q.count.get() - start;
+		
+		for (int i = 0; i < clients.length; i++) {
+			clients[i].shutdown();
+		}
+		for (int i = 0; i < clients.length; i++) {
+			try {
+				clients[i].join();
+			} catch (InterruptedException e) {
+				LOG.warn("Interrupted", e);
+			}
+		}
+		source.shutdown();
+		return total;
+	}
+	
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			LOG.warn("Interrupted", e);
+		}
+	}
+	
+	private static void usage() {
+		out("NonblockingTcpReportSourceLoadTest --help");
+		out("NonblockingTcpReportSourceLoadTest <testDuration> <numClients> [reactors ...]");
+	}
+	
+	private static void out(String s) {
+		System.out.println(s);
+	}
+	
+	/**
+	 * A report queue that only counts what it is given.
+	 */
+	@SuppressWarnings("serial")
+	static final class CountingQueue extends ArrayBlockingQueue<ReportFrame> {
+		final AtomicLong count = new AtomicLong();
+		
+		CountingQueue() {
+			super(1);
+		}
+		
+		public boolean offer(ReportFrame frame) {
+			count.incrementAndGet();
+			frame.release();
+			return true;
+		}
+	}
+	
+	static class Client extends Thread {
+		private final int port;
+		private volatile boolean shouldStop = false;
+		
+		Client(int port) {
+			this.port = port;
+		}
+		
+		public void shutdown() {
+			shouldStop = true;
+		}
+		
+		public void run() {
+			Report report = new Report();
+			report.put("X-Trace", new XTraceMetadata(new TaskID(8), 0).toString());
+			report.put("Agent", "NonblockingTcpReportSourceLoadTest");
+			report.put("Label", "load test report");
+			report.put("Timestamp", "" + System.currentTimeMillis());
+			
+			try {
+				byte[] bytes = report.toString().getBytes("UTF-8");
+				Socket sock = new Socket("127.0.0.1", port);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(sock.getOutputStream(), 64*1024));
+				while (!shouldStop) {
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				out.flush();
+				sock.close();
+			} catch (IOException e) {
+				LOG.warn("Client error", e);
+			}
+		}
+	}
+	
+	@Test
+	public void nullTest() {
+	}
+}
@@ -0,0 +1,92 @@
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class ReportFrameTest {
+
+	@Test
+	public void testTaskIdExtraction() {
+		int[] lengths = { 4, 8, 12, 20 };
+		for (int i = 0; i < lengths.length; i++) {
+			TaskID task = new TaskID(lengths[i]);
+			Report r = new Report();
+			r.put("Agent", "test");
+			r.put("X-Trace", new XTraceMetadata(task, 42).toString());
+			r.put("Label", "X-Trace: not the metadata line");
+			ReportFrame frame = ReportFrame.fromString(r.toString());
+			assertEquals(task, frame.getTaskId());
+			frame.release();
+		}
+	}
+	
+	@Test
+	public void testMissingOrInvalidMetadata() {
+		Report r = new Report();
+		r.put("Agent", "test");
+		assertNull(ReportFrame.fromString(r.toString()).getTaskId());
+		
+		r.put("X-Trace", "01ZZ");
+		assertNull(ReportFrame.fromString(r.toString()).getTaskId());
+	}
+	
+	@Test
+	public void testRoundTrip() {
+		Report r = new Report();
+		r.put("X-Trace", new XTraceMetadata(new TaskID(8), 1).toString());
+		r.put("Label", "caf\u00e9");
+		String s = r.toString();
+		ReportFrame frame = ReportFrame.fromString(s);
+		ReportFrame copy = ReportFrame.copyOf(frame.array(), 0, frame.length());
+		assertTrue(copy.array().length >= copy.length());
+		assertEquals(s, copy.toString());
+		frame.release();
+		copy.release();
+	}
+	
+	@Test
+	public void testBinaryFrame() throws Exception {
+		TaskID task = new TaskID(12);
+		Report r = new Report();
+		r.put("Agent", "test");
+		r.put("X-Trace", new XTraceMetadata(task, 1).toString());
+		byte[] binary = r.toBinary();
+		ReportFrame frame = ReportFrame.copyOf(binary, 0, binary.length);
+		assertTrue(frame.isBinary());
+		assertEquals(task, frame.getTaskId());
+		assertEquals(r.toString(), frame.toString());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame.writeTo(out);
+		assertEquals(r.toString(), out.toString("UTF-8"));
+		frame.release();
+	}
+	
+	@Test
+	public void testReferenceCounting() {
+		ReportFrame frame = ReportFrame.allocate(100);
+		frame.retain();
+		frame.release();
+		assertTrue(frame.tryRetain());
+		frame.release();
+		frame.release();
+		// Too late to pick up a frame whose buffer has gone back to the pool
+		assertFalse(frame.tryRetain());
+		try {
+			frame.release();
+			fail("Released a frame too many times");
+		} catch (IllegalStateException e) {
+		}
+	}
+}
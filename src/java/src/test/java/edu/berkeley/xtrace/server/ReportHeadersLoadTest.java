@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+/**
+ * Compares the cost of extracting the task ID, title and tags of a report
+ * with ReportHeaders against parsing it into a Report, as
+ * FileTreeReportStore used to.
+ */
+public class ReportHeadersLoadTest {
+	
+	private static int iterations;
+	
+	// Keeps the JIT from discarding the work
+	private static int sink;
+
+	public static void main(String[] args) throws Exception {
+		
+		if (args.length != 1 || args[0].equalsIgnoreCase("--help")) {
+			usage();
+			System.exit(1);
+		}
+		iterations = Integer.parseInt(args[0]);
+		
+		byte[][] reports = new byte[64][];
+		for (int i = 0; i < reports.length; i++) {
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(new TaskID(8), i).toString());
+			r.put("Host", "host" + i);
+			r.put("Agent", "ReportHeadersLoadTest");
+			r.put("Label", "an event in the middle of some task");
+			r.put("Edge", "0000000000000" + (100 + i));
+			if (i % 8 == 0) {
+				r.put("Title", "task " + i);
+				r.put("Tag", "load");
+			}
+			r.put("Timestamp", "1200000000." + (100 + i));
+			reports[i] = r.toString().getBytes("UTF-8");
+		}
+		
+		// Warm up both paths before timing either
+		parse(reports, iterations / 10);
+		scan(reports, iterations / 10);
+		
+		long start = System.nanoTime();
+		parse(reports, iterations);
+		long parseNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		scan(reports, iterations);
+		long scanNanos = System.nanoTime() - start;
+		
+		out("Report.createFromString + get: " + (parseNanos / iterations) + " ns/report");
+		out("ReportHeaders.scan:            " + (scanNanos / iterations) + " ns/report");
+	}
+	
+	private static void parse(byte[][] reports, int n) throws Exception {
+		for (int i = 0; i < n; i++) {
+			byte[] b = reports[i % reports.length];
+			Report r = Report.createFromString(new String(b, 0, b.length, "UTF-8"));
+			TaskID task = r.getMetadata().getTaskId();
+			List<String> title = r.get("Title");
+			List<String> tags = r.get("Tag");
+			sink += task.hashCode() + (title == null ? 0 : 1) + (tags == null ? 0 : 1);
+		}
+	}
+	
+	private static void scan(byte[][] reports, int n) {
+		for (int i = 0; i < n; i++) {
+			byte[] b = reports[i % reports.length];
+			ReportHeaders h = ReportHeaders.scan(b, 0, b.length);
+			sink += h.getTaskId().hashCode() + (h.getTitle() == null ? 0 : 1)
+					+ (h.getTags() == null ? 0 : 1);
+		}
+	}
+	
+	private static void usage() {
+		out("ReportHeadersLoadTest --help");
+		out("ReportHeadersLoadTest <iterations>");
+	}
+	
+	private static void out(String s) {
+		System.out.println(s);
+	}
+	
+	@Test
+	public void nullTest() {
+	}
+}
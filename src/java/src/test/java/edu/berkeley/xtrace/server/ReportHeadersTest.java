@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class ReportHeadersTest {
+	
+	@Test
+	public void testMatchesReportParsing() throws Exception {
+		TaskID task = new TaskID(8);
+		Report r = new Report();
+		r.put("Agent", "test");
+		r.put("X-Trace", new XTraceMetadata(task, 42).toString());
+		r.put("Title", "  first title ");
+		r.put("Title", "second title");
+		r.put("Tag", "alpha");
+		r.put("Label", "Tag: not a tag");
+		r.put("Tag", "b\u00e9ta");
+		r.put("Tags", "not a tag either");
+		
+		byte[] b = r.toString().getBytes("UTF-8");
+		ReportHeaders h = ReportHeaders.scan(b, 0, b.length);
+		assertEquals(task, h.getTaskId());
+		assertEquals(r.get("Title").get(0), h.getTitle());
+		assertEquals(r.get("Tag"), h.getTags());
+		assertEquals(Arrays.asList("alpha", "b\u00e9ta"), h.getTags());
+	}
+	
+	@Test
+	public void testMissingFields() throws Exception {
+		byte[] b = "X-Trace Report ver 1.0\nAgent: test\nX-Trace: zz\n".getBytes("UTF-8");
+		ReportHeaders h = ReportHeaders.scan(b, 0, b.length);
+		assertNull(h.getTaskId());
+		assertNull(h.getTitle());
+		assertNull(h.getTags());
+	}
+	
+	@Test
+	public void testBinaryFrame() {
+		TaskID task = new TaskID(4);
+		Report r = new Report();
+		r.put("X-Trace", new XTraceMetadata(task, 1).toString());
+		r.put("Title", "binary");
+		r.put("Tag", "t");
+		byte[] b = r.toBinary();
+		ReportFrame frame = ReportFrame.copyOf(b, 0, b.length);
+		ReportHeaders h = ReportHeaders.scan(frame);
+		assertEquals(task, h.getTaskId());
+		assertEquals("binary", h.getTitle());
+		assertEquals(Arrays.asList("t"), h.getTags());
+		frame.release();
+	}
+}
@@ -0,0 +1,145 @@
+package edu.berkeley.xtrace.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Measures the reports/sec ceiling of the path between the report sources
+ * and the report store.  The old path is a fair ArrayBlockingQueue, a
+ * backplane thread, and a second ArrayBlockingQueue read one report at a
+ * time by the store.  The new path is a single RingBufferQueue that the
+ * store drains in batches.
+ */
+public final class RingBufferQueueLoadTest {
+	private static final int BATCH_SIZE = 256;
+	
+	private static int testDuration;
+	private static int numProducers;
+	private static volatile boolean shouldStop;
+
+	public static void main(String[] args) throws Exception {
+		out("Report queue load test");
+		
+		if (args.length != 2 || args[0].equalsIgnoreCase("--help")) {
+			usage();
+			System.exit(1);
+		}
+		testDuration = Integer.parseInt(args[0]);
+		numProducers = Integer.parseInt(args[1]);
+		
+		long before = testBackplane();
+		out("ArrayBlockingQueue + backplane: " + (before / testDuration) + " reports/sec");
+		long after = testRingBuffer();
+		out("RingBufferQueue, batched:       " + (after / testDuration) + " reports/sec");
+		System.exit(0);
+	}
+	
+	private static long testBackplane() throws InterruptedException {
+		final BlockingQueue<ReportFrame> incoming = new ArrayBlockingQueue<ReportFrame>(1024, true);
+		final BlockingQueue<ReportFrame> toStorage = new ArrayBlockingQueue<ReportFrame>(1024);
+		final AtomicLong consumed = new AtomicLong();
+		
+		Thread backplane = new Thread() {
+			public void run() {
+				while (!shouldStop) {
+					try {
+						toStorage.put(incoming.take());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		Thread store = new Thread() {
+			public void run() {
+				while (!shouldStop) {
+					try {
+						toStorage.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+					consumed.incrementAndGet();
+				}
+			}
+		};
+		return run(incoming, consumed, new Thread[] { backplane, store });
+	}
+	
+	private static long testRingBuffer() throws InterruptedException {
+		final RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(8192);
+		final AtomicLong consumed = new AtomicLong();
+		
+		Thread store = new Thread() {
+			public void run() {
+				List<ReportFrame> batch = new ArrayList<ReportFrame>(BATCH_SIZE);
+				while (!shouldStop) {
+					try {
+						q.takeBatch(batch, BATCH_SIZE);
+					} catch (InterruptedException e) {
+						return;
+					}
+					consumed.addAndGet(batch.size());
+					batch.clear();
+				}
+			}
+		};
+		return run(q, consumed, new Thread[] { store });
+	}
+	
+	private static long run(final BlockingQueue<ReportFrame> q, AtomicLong consumed,
+			Thread[] consumers) throws InterruptedException {
+		shouldStop = false;
+		final ReportFrame frame = ReportFrame.fromString("X-Trace Report ver 1.0\n");
+		
+		Thread[] producers = new Thread[numProducers];
+		for (int i = 0; i < producers.length; i++) {
+			producers[i] = new Thread() {
+				public void run() {
+					while (!shouldStop) {
+						try {
+							q.put(frame);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			};
+			producers[i].start();
+		}
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i].start();
+		}
+		
+		Thread.sleep(1000);
+		long start = consumed.get();
+		Thread.sleep(testDuration * 1000);
+		long total = consumed.get() - start;
+		
+		shouldStop = true;
+		for (int i = 0; i < producers.length; i++) {
+			producers[i].interrupt();
+		}
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i].interrupt();
+		}
+		return total;
+	}
+	
+	private static void usage() {
+		out("RingBufferQueueLoadTest --help");
+		out("RingBufferQueueLoadTest <testDuration> <numProducers>");
+	}
+	
+	private static void out(String s) {
+		System.out.println(s);
+	}
+	
+	@Test
+	public void nullTest() {
+	}
+}
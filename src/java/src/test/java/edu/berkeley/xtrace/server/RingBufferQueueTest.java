@@ -0,0 +1,146 @@
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+
+	@Test
+	public void testCapacity() {
+		RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(5);
+		assertEquals(8, q.remainingCapacity());
+		for (int i = 0; i < 8; i++) {
+			assertTrue(q.offer(i));
+		}
+		assertFalse(q.offer(8));
+		assertEquals(8, q.size());
+		assertEquals(Integer.valueOf(0), q.peek());
+		assertEquals(Integer.valueOf(0), q.poll());
+		assertTrue(q.offer(8));
+		assertFalse(q.offer(9));
+	}
+	
+	@Test
+	public void testOrderAcrossLaps() {
+		RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(4);
+		int next = 0;
+		for (int i = 0; i < 100; i++) {
+			assertTrue(q.offer(i));
+			if (i % 3 == 2) {
+				while (!q.isEmpty()) {
+					assertEquals(Integer.valueOf(next++), q.poll());
+				}
+			}
+		}
+		while (next < 100) {
+			assertEquals(Integer.valueOf(next++), q.poll());
+		}
+		assertNull(q.poll());
+	}
+	
+	@Test
+	public void testDrainTo() {
+		RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(16);
+		for (int i = 0; i < 10; i++) {
+			q.offer(i);
+		}
+		List<Integer> batch = new ArrayList<Integer>();
+		assertEquals(4, q.drainTo(batch, 4));
+		assertEquals(6, q.drainTo(batch));
+		assertEquals(10, batch.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Integer.valueOf(i), batch.get(i));
+		}
+		assertTrue(q.isEmpty());
+	}
+	
+	@Test
+	public void testOfferAll() {
+		RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(8);
+		List<Integer> batch = new ArrayList<Integer>();
+		for (int i = 0; i < 12; i++) {
+			batch.add(i);
+		}
+		assertEquals(3, q.offerAll(batch.subList(0, 3), 0));
+		// Only the first five of the rest fit
+		assertEquals(5, q.offerAll(batch, 3));
+		assertEquals(0, q.offerAll(batch, 8));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(Integer.valueOf(i), q.poll());
+		}
+		// Wraps around the end of the ring
+		assertEquals(4, q.offerAll(batch, 8));
+		for (int i = 4; i < 12; i++) {
+			assertEquals(Integer.valueOf(i), q.poll());
+		}
+		assertNull(q.poll());
+	}
+	
+	@Test
+	public void testTimedOperations() throws InterruptedException {
+		RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(1);
+		assertEquals(2, q.remainingCapacity());
+		assertNull(q.poll(10, TimeUnit.MILLISECONDS));
+		assertTrue(q.offer(1, 10, TimeUnit.MILLISECONDS));
+		assertTrue(q.offer(2, 10, TimeUnit.MILLISECONDS));
+		assertFalse(q.offer(3, 10, TimeUnit.MILLISECONDS));
+		assertEquals(Integer.valueOf(1), q.poll(10, TimeUnit.MILLISECONDS));
+	}
+	
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int numProducers = 4;
+		final int perProducer = 50000;
+		final RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(64);
+		
+		Thread[] producers = new Thread[numProducers];
+		for (int p = 0; p < numProducers; p++) {
+			final int base = p * perProducer;
+			producers[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < perProducer; i++) {
+							q.put(base + i);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			producers[p].start();
+		}
+		
+		boolean[] seen = new boolean[numProducers * perProducer];
+		int[] lastPerProducer = new int[numProducers];
+		for (int p = 0; p < numProducers; p++) {
+			lastPerProducer[p] = -1;
+		}
+		List<Integer> batch = new ArrayList<Integer>();
+		int received = 0;
+		while (received < seen.length) {
+			q.takeBatch(batch, 32);
+			for (int i = 0; i < batch.size(); i++) {
+				int v = batch.get(i);
+				assertFalse(seen[v]);
+				seen[v] = true;
+				// Each producer's elements must come out in order
+				int p = v / perProducer;
+				assertTrue(v > lastPerProducer[p]);
+				lastPerProducer[p] = v;
+			}
+			received += batch.size();
+			batch.clear();
+		}
+		for (int p = 0; p < numProducers; p++) {
+			producers[p].join();
+		}
+		assertTrue(q.isEmpty());
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class SegmentedLogReportStoreTest {
+	private static final int NUM_TASKS = 10;
+	private static final int NUM_REPORTS_PER_TASK = 20;
+
+	private File dir;
+	private SegmentedLogReportStore store;
+	private TaskID[] tasks;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.createStoreDir("xtrace-segments");
+		System.setProperty("xtrace.server.segmentsize", "2048");
+		store = open();
+
+		tasks = new TaskID[NUM_TASKS];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		store.shutdown();
+		System.clearProperty("xtrace.server.segmentsize");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testReportsComeBackInOrder() throws Exception {
+		ingest(0, NUM_REPORTS_PER_TASK);
+		assertTrue(new File(dir, "segments").list().length > 2);
+		checkReports(NUM_REPORTS_PER_TASK);
+		assertEquals(NUM_TASKS * NUM_REPORTS_PER_TASK, store.numReports());
+		assertEquals(NUM_TASKS, store.numTasks());
+		assertFalse(store.getReportsByTask(new TaskID(8)).hasNext());
+	}
+
+	@Test
+	public void testLargeReport() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("at some.Frame.method(Frame.java:" + i + ")\\n");
+		}
+		Report r = new Report();
+		r.put("X-Trace", new XTraceMetadata(tasks[0], 1).toString());
+		r.put("Exception", sb.toString());
+		byte[] b = r.toString().getBytes();
+		ReportFrame frame = ReportFrame.copyOf(b, 0, b.length);
+		store.receiveReport(frame);
+		frame.release();
+
+		Iterator<Report> it = store.getReportsByTask(tasks[0]);
+		assertEquals(sb.toString(), it.next().get("Exception").get(0));
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		ingest(0, NUM_REPORTS_PER_TASK);
+		store.shutdown();
+		store = open();
+		checkReports(NUM_REPORTS_PER_TASK);
+
+		// Lost segment indexes are rebuilt
+		File[] files = new File(dir, "segments").listFiles();
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(".idx")) {
+				files[i].delete();
+			}
+		}
+		store.shutdown();
+		store = open();
+		ingest(NUM_REPORTS_PER_TASK, 5);
+		checkReports(NUM_REPORTS_PER_TASK + 5);
+	}
+
+	@Test
+	public void testRescanFindsTasksLikeIngest() throws Exception {
+		// Keys are trimmed, so this report belongs to tasks[0]
+		byte[] b = ("X-Trace Report ver 1.0\n  X-Trace: "
+				+ new XTraceMetadata(tasks[0], 0) + "\nSeq: 0\n").getBytes("UTF-8");
+		ReportFrame frame = ReportFrame.copyOf(b, 0, b.length);
+		store.receiveReport(frame);
+		frame.release();
+		assertTrue(store.getReportsByTask(tasks[0]).hasNext());
+
+		// The reopened segment's index comes from a rescan
+		store.shutdown();
+		store = open();
+		Iterator<Report> it = store.getReportsByTask(tasks[0]);
+		assertTrue(it.hasNext());
+		assertEquals("0", it.next().get("Seq").get(0));
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testIncompleteRecordIsDropped() throws Exception {
+		ingest(0, 3);
+		store.shutdown();
+
+		// A report whose write was cut short
+		File last = lastSegment();
+		FileOutputStream out = new FileOutputStream(last, true);
+		out.write(new byte[] { 0, 0, 1, 0, 'X', '-' });
+		out.close();
+
+		store = open();
+		ingest(3, 2);
+		checkReports(5);
+	}
+
+	@Test
+	public void testRecoverFromPartialWrite() throws Exception {
+		ingest(0, 3);
+		store.sync();
+
+		// What a write that failed halfway leaves behind
+		File last = lastSegment();
+		long length = last.length();
+		FileOutputStream out = new FileOutputStream(last, true);
+		out.write(new byte[] { 0, 0, 1, 0, 'X', '-' });
+		out.close();
+		assertTrue(store.recover());
+		assertEquals(length, last.length());
+
+		ingest(3, 2);
+		checkReports(5);
+		store.shutdown();
+		store = open();
+		checkReports(5);
+	}
+
+	@Test
+	public void testUnreadableIndexIsRebuilt() throws Exception {
+		ingest(0, NUM_REPORTS_PER_TASK);
+		store.shutdown();
+
+		File[] files = new File(dir, "segments").listFiles();
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(".idx")) {
+				FileOutputStream out = new FileOutputStream(files[i]);
+				out.write(new byte[] { 'X', 'T', 'I', 'X', 0, 0, 0, 9 });
+				out.close();
+			}
+		}
+		store = open();
+		checkReports(NUM_REPORTS_PER_TASK);
+		assertFalse(store.getReportsByTask(new TaskID(8)).hasNext());
+	}
+
+	@Test
+	public void testReadErrorIsReported() throws Exception {
+		ingest(0, NUM_REPORTS_PER_TASK);
+
+		// Cut the oldest segment short under the store
+		File[] segments = new File(dir, "segments").listFiles();
+		File first = null;
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i].getName().endsWith(".log")
+					&& (first == null || segments[i].getName().compareTo(
+							first.getName()) < 0)) {
+				first = segments[i];
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(first, "rw");
+		raf.setLength(raf.length() / 2);
+		raf.close();
+
+		Iterator<Report> it = store.getReportsByTask(tasks[tasks.length - 1]);
+		try {
+			while (it.hasNext()) {
+				it.next();
+			}
+			fail("Expected the truncated segment to be reported");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	private File lastSegment() {
+		File[] segments = new File(dir, "segments").listFiles();
+		File last = null;
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i].getName().endsWith(".log")
+					&& (last == null || segments[i].getName().compareTo(
+							last.getName()) > 0)) {
+				last = segments[i];
+			}
+		}
+		return last;
+	}
+
+	private SegmentedLogReportStore open() throws Exception {
+		SegmentedLogReportStore s = new SegmentedLogReportStore();
+		s.initialize();
+		return s;
+	}
+
+	/* Interleaves reports of all tasks, alternating text and binary */
+	private void ingest(int first, int count) {
+		for (int j = first; j < first + count; j++) {
+			for (int i = 0; i < tasks.length; i++) {
+				Report r = new Report();
+				r.put("X-Trace", new XTraceMetadata(tasks[i], j).toString());
+				r.put("Agent", "test");
+				r.put("Seq", Integer.toString(j));
+				byte[] b = (i + j) % 2 == 0 ? r.toBinary() : r.toString()
+						.getBytes();
+				ReportFrame frame = ReportFrame.copyOf(b, 0, b.length);
+				store.receiveReport(frame);
+				frame.release();
+			}
+		}
+	}
+
+	private void checkReports(int count) {
+		for (int i = 0; i < tasks.length; i++) {
+			Iterator<Report> it = store.getReportsByTask(tasks[i]);
+			for (int j = 0; j < count; j++) {
+				assertTrue(it.hasNext());
+				Report r = it.next();
+				assertEquals(Integer.toString(j), r.get("Seq").get(0));
+				assertEquals(tasks[i], r.getMetadata().getTaskId());
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+import edu.berkeley.xtrace.server.SourceReportQueue.DropReason;
+
+public class SourceReportQueueTest {
+	
+	private static ReportFrame frame(TaskID task) {
+		Report r = new Report();
+		r.put("X-Trace", new XTraceMetadata(task, 0).toString());
+		return ReportFrame.fromString(r.toString());
+	}
+	
+	private static SourceReportQueue queue(RingBufferQueue<ReportFrame> q,
+			OverflowPolicy policy) {
+		return new SourceReportQueue("test", q, policy, 10, 0.5);
+	}
+
+	@Test
+	public void testDropNewest() {
+		RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(4);
+		SourceReportQueue sq = queue(q, OverflowPolicy.DROP_NEWEST);
+		TaskID task = new TaskID(8);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(sq.offer(frame(task)));
+		}
+		assertFalse(sq.offer(frame(task)));
+		assertEquals(4, sq.getAccepted());
+		assertEquals(1, sq.getDrops(DropReason.QUEUE_FULL));
+		assertEquals(1, sq.getTotalDrops());
+	}
+	
+	@Test
+	public void testOfferAll() {
+		RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(4);
+		SourceReportQueue sq = queue(q, OverflowPolicy.DROP_NEWEST);
+		TaskID task = new TaskID(8);
+		List<ReportFrame> batch = new ArrayList<ReportFrame>();
+		for (int i = 0; i < 6; i++) {
+			batch.add(frame(task));
+		}
+		assertEquals(4, sq.offerAll(batch));
+		assertEquals(4, q.size());
+		assertEquals(4, sq.getAccepted());
+		assertEquals(2, sq.getDrops(DropReason.QUEUE_FULL));
+	}
+	
+	@Test
+	public void testDropOldest() {
+		RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(2);
+		SourceReportQueue sq = queue(q, OverflowPolicy.DROP_OLDEST);
+		TaskID[] tasks = { new TaskID(8), new TaskID(8), new TaskID(8) };
+		for (int i = 0; i < tasks.length; i++) {
+			assertTrue(sq.offer(frame(tasks[i])));
+		}
+		assertEquals(1, sq.getDrops(DropReason.EVICTED));
+		assertEquals(tasks[1], q.poll().getTaskId());
+		assertEquals(tasks[2], q.poll().getTaskId());
+	}
+	
+	@Test
+	public void testEvictionsCountAgainstTheirSource() {
+		RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(2);
+		SourceReportQueue first = queue(q, OverflowPolicy.DROP_NEWEST);
+		SourceReportQueue second = queue(q, OverflowPolicy.DROP_OLDEST);
+		assertTrue(first.offer(frame(new TaskID(8))));
+		assertTrue(first.offer(frame(new TaskID(8))));
+		assertTrue(second.offer(frame(new TaskID(8))));
+		assertEquals(1, first.getDrops(DropReason.EVICTED));
+		assertEquals(0, second.getDrops(DropReason.EVICTED));
+	}
+	
+	@Test
+	public void testBlockTimeout() {
+		RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(2);
+		SourceReportQueue sq = queue(q, OverflowPolicy.BLOCK);
+		TaskID task = new TaskID(8);
+		assertTrue(sq.offer(frame(task)));
+		assertTrue(sq.offer(frame(task)));
+		assertFalse(sq.offer(frame(task)));
+		assertEquals(1, sq.getDrops(DropReason.TIMEOUT));
+	}
+	
+	@Test
+	public void testShedKeepsWholeTasks() {
+		RingBufferQueue<ReportFrame> q = new RingBufferQueue<ReportFrame>(1024);
+		SourceReportQueue sq = queue(q, OverflowPolicy.SHED);
+		
+		// Below the threshold nothing is shed
+		TaskID filler = new TaskID(8);
+		for (int i = 0; i < 512; i++) {
+			assertTrue(sq.offer(frame(filler)));
+		}
+		// Hold the fill level at 75%: half of the tasks should be shed,
+		// and each task should be either entirely kept or entirely shed
+		for (int i = 0; i < 256; i++) {
+			assertTrue(q.offer(frame(filler)));
+		}
+		int kept = 0;
+		for (int t = 0; t < 200; t++) {
+			TaskID task = new TaskID(8);
+			boolean first = offerAndRemove(q, sq, task);
+			for (int i = 0; i < 5; i++) {
+				assertEquals(first, offerAndRemove(q, sq, task));
+			}
+			if (first) {
+				kept++;
+			}
+		}
+		assertTrue("kept " + kept, kept > 50 && kept < 150);
+		assertEquals(0, sq.getDrops(DropReason.QUEUE_FULL));
+		assertEquals((200 - kept) * 6, sq.getDrops(DropReason.SHED));
+	}
+	
+	private static boolean offerAndRemove(RingBufferQueue<ReportFrame> q,
+			SourceReportQueue sq, TaskID task) {
+		if (sq.offer(frame(task))) {
+			q.poll().release();
+			return true;
+		}
+		return false;
+	}
+}
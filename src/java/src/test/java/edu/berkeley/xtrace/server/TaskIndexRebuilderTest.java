@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class TaskIndexRebuilderTest {
+	private static final int NUM_TASKS = 50;
+
+	private File dir;
+	private FileTreeReportStore store;
+	private TaskID[] tasks;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.createStoreDir("xtrace-rebuild");
+		System.setProperty("xtrace.server.index.rebuild.threads", "3");
+
+		store = new FileTreeReportStore();
+		store.initialize();
+		tasks = new TaskID[NUM_TASKS];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+			for (int j = 0; j <= i % 5; j++) {
+				Report r = new Report();
+				r.put("X-Trace", new XTraceMetadata(tasks[i], j).toString());
+				r.put("Timestamp", "1200000000." + (100 + j));
+				if (j == 0) {
+					r.put("Title", "first title");
+				} else {
+					r.put("Title", "task " + i);
+				}
+				r.put("Tag", i % 2 == 0 ? "even" : "odd");
+				store.receiveReport(r.toString());
+			}
+		}
+		store.sync();
+		// Some of the tasks are read back from compressed files
+		store.compactIdleTasks(System.currentTimeMillis() + 1);
+		for (int i = 0; i < tasks.length; i += 10) {
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(tasks[i], 99).toString());
+			r.put("Tag", "late");
+			store.receiveReport(r.toString());
+		}
+		store.shutdown();
+		store = null;
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null) {
+			store.shutdown();
+		}
+		System.clearProperty("xtrace.server.index.rebuild");
+		System.clearProperty("xtrace.server.index.rebuild.threads");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testMissingIndex() throws Exception {
+		TaskIndex.drop(dir);
+		store = new FileTreeReportStore();
+		store.initialize();
+		check();
+	}
+
+	@Test
+	public void testForcedRebuild() throws Exception {
+		System.setProperty("xtrace.server.index.rebuild", "true");
+		store = new FileTreeReportStore();
+		store.initialize();
+		check();
+	}
+
+	@Test
+	public void testUnfinishedRebuild() throws Exception {
+		// A rebuild that stopped after loading part of the records
+		TaskIndex index = new TaskIndex(dir, false);
+		assertTrue(index.isComplete());
+		index.beginBulkLoad();
+		index.load(Collections.singletonList(new TaskRecord(tasks[0],
+				new Date(), new Date(), 1, "partial", new ArrayList<String>())));
+		index.endBulkLoad(false);
+		assertFalse(index.isComplete());
+		index.close();
+
+		store = new FileTreeReportStore();
+		store.initialize();
+		check();
+	}
+
+	private void check() {
+		assertEquals(NUM_TASKS, store.numTasks());
+		assertEquals(NUM_TASKS * 3 + NUM_TASKS / 10, store.numReports());
+		for (int i = 0; i < tasks.length; i++) {
+			assertEquals(i % 5 + 1 + (i % 10 == 0 ? 1 : 0), store
+					.countByTaskId(tasks[i]));
+		}
+		assertEquals(NUM_TASKS / 2, store.getTasksByTag("odd", 0, 1000)
+				.size());
+		assertEquals(NUM_TASKS / 10, store.getTasksByTag("late", 0, 1000)
+				.size());
+
+		List<TaskRecord> recs = store.getTasksByTitle("task 7", 0, 10);
+		assertEquals(1, recs.size());
+		assertEquals(tasks[7], recs.get(0).getTaskId());
+		assertEquals(1200000000100L, recs.get(0).getFirstSeen().getTime());
+		assertEquals(NUM_TASKS / 5, store.getTasksByTitle("first title", 0,
+				1000).size());
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+
+public class TaskIndexTest {
+	private File dir;
+	private TaskIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.create("xtrace-taskindex");
+		// Only explicit flushes, so the tests see both sides of them
+		System.setProperty("xtrace.server.index.flushinterval", "0");
+		System.setProperty("xtrace.server.index.flushsize", "100000");
+		index = new TaskIndex(dir);
+	}
+
+	@After
+	public void tearDown() {
+		index.close();
+		System.clearProperty("xtrace.server.index.flushinterval");
+		System.clearProperty("xtrace.server.index.flushsize");
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testPendingRecordsAreVisible() {
+		TaskID task = new TaskID(8);
+		index.record(task, null, null);
+		index.record(task, "title", Arrays.asList("b", "a"));
+		index.record(task, null, null);
+
+		assertRecord(task, 3, "title", "a,b", index.getTask(task));
+		assertEquals(1, index.numTasks());
+		assertEquals(3, index.numReports());
+		assertEquals(1, index.getTasksByTag("a", 0, 10).size());
+		assertEquals(1, index.getTasksByTitle("TITLE", 0, 10).size());
+		assertEquals(1, index.getTasksByTitleSubstring("it", 0, 10).size());
+
+		index.flush();
+		assertRecord(task, 3, "title", "a,b", index.getTask(task));
+		assertEquals(1, index.numTasks());
+		assertEquals(3, index.numReports());
+	}
+
+	@Test
+	public void testDeltasMergeWithFlushedRecords() {
+		TaskID task = new TaskID(8);
+		TaskID other = new TaskID(8);
+		index.record(task, null, null);
+		index.record(other, "other", null);
+		index.flush();
+		assertRecord(task, 1, task.toString().toUpperCase(), "", index
+				.getTask(task));
+
+		index.record(task, "renamed", Arrays.asList("x"));
+		index.record(task, null, Arrays.asList("y"));
+		assertRecord(task, 3, "renamed", "x,y", index.getTask(task));
+		assertEquals(2, index.numTasks());
+		assertEquals(4, index.numReports());
+		assertEquals(task, index.getLatestTasks(0, 1).get(0).getTaskId());
+		assertEquals(0, index.getTasksByTitle(task.toString(), 0, 10).size());
+
+		index.flush();
+		index.record(task, null, Arrays.asList("z"));
+		assertRecord(task, 4, "renamed", "x,y,z", index.getTask(task));
+		index.flush();
+		assertRecord(task, 4, "renamed", "x,y,z", index.getTask(task));
+		assertRecord(other, 1, "other", "", index.getTask(other));
+		assertNull(index.getTask(new TaskID(8)));
+	}
+
+	@Test
+	public void testPendingRecordsMergeOutsideResults() {
+		// More pending tasks than one lookup query takes, none of them
+		// returned by the query itself
+		TaskID[] tasks = new TaskID[150];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+			index.record(tasks[i], "task " + i, Arrays.asList("old"));
+		}
+		index.flush();
+		for (int i = 0; i < tasks.length; i++) {
+			index.record(tasks[i], null, Arrays.asList("new"));
+		}
+
+		List<TaskRecord> recs = index.getTasksByTag("new", 0, 1000);
+		assertEquals(tasks.length, recs.size());
+		for (int i = 0; i < recs.size(); i++) {
+			TaskRecord r = recs.get(i);
+			assertEquals(2, r.getNumReports());
+			assertEquals(Arrays.asList("new", "old"), r.getTags());
+			assertTrue(r.getTitle().startsWith("task "));
+		}
+		assertEquals(tasks.length, index.numTasks());
+	}
+
+	@Test
+	public void testTotals() throws Exception {
+		TaskID a = new TaskID(8);
+		TaskID b = new TaskID(8);
+		TaskID c = new TaskID(8);
+		index.record(a, null, null);
+		index.record(a, null, null);
+		index.record(b, null, null);
+		assertEquals(2, index.numTasks());
+		index.flush();
+		assertEquals(2, index.numTasks());
+		assertEquals(3, index.numReports());
+
+		// One pending task has a record already, the other doesn't
+		index.record(a, null, null);
+		index.record(c, null, null);
+		assertEquals(3, index.numTasks());
+		assertEquals(5, index.numReports());
+		index.flush();
+		assertEquals(3, index.numTasks());
+		assertEquals(5, index.numReports());
+
+		// Seeded from the database when it is opened again
+		index.close();
+		index = new TaskIndex(dir);
+		assertEquals(3, index.numTasks());
+		assertEquals(5, index.numReports());
+
+		assertEquals(Arrays.asList(a), index.delete(Arrays.asList(a), System
+				.currentTimeMillis() + 1000));
+		assertEquals(2, index.numTasks());
+		assertEquals(2, index.numReports());
+	}
+
+	@Test
+	public void testPagination() throws Exception {
+		TaskID[] tasks = new TaskID[30];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+			index.record(tasks[i], null, null);
+			if (i == 14) {
+				index.flush();
+			}
+			Thread.sleep(2);
+		}
+		// Touch a flushed task so it moves to the front
+		index.record(tasks[3], null, null);
+
+		Set<TaskID> seen = new HashSet<TaskID>();
+		long last = Long.MAX_VALUE;
+		for (int offset = 0; offset < tasks.length; offset += 7) {
+			List<TaskRecord> page = index.getLatestTasks(offset, 7);
+			assertEquals(Math.min(7, tasks.length - offset), page.size());
+			for (TaskRecord rec : page) {
+				assertTrue(seen.add(rec.getTaskId()));
+				assertTrue(rec.getLastUpdated().getTime() <= last);
+				last = rec.getLastUpdated().getTime();
+			}
+		}
+		assertEquals(tasks.length, seen.size());
+		assertEquals(tasks[3], index.getLatestTasks(0, 1).get(0).getTaskId());
+		assertEquals(0, index.getLatestTasks(tasks.length, 5).size());
+	}
+
+	@Test
+	public void testCursorPagination() throws Exception {
+		TaskID[] tasks = new TaskID[30];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+			index.record(tasks[i], "page", Arrays.asList("all"));
+			if (i == 14) {
+				index.flush();
+			}
+			// Groups of tasks updated within the same millisecond
+			if (i % 4 == 3) {
+				Thread.sleep(2);
+			}
+		}
+		Thread.sleep(2);
+		index.record(tasks[3], null, null);
+
+		for (int pass = 0; pass < 3; pass++) {
+			Set<TaskID> seen = new HashSet<TaskID>();
+			List<TaskRecord> all = index.getLatestTasks(0, tasks.length);
+			TaskCursor after = null;
+			for (int page = 0;; page++) {
+				List<TaskRecord> lst;
+				if (pass == 0) {
+					lst = index.getLatestTasks(after, 7);
+				} else if (pass == 1) {
+					lst = index.getTasksByTag("ALL", after, 7);
+				} else {
+					lst = index.getTasksByTitle("page", after, 7);
+				}
+				for (int i = 0; i < lst.size(); i++) {
+					assertEquals(all.get(page * 7 + i).getTaskId(), lst.get(i)
+							.getTaskId());
+					assertTrue(seen.add(lst.get(i).getTaskId()));
+				}
+				if (lst.size() < 7) {
+					break;
+				}
+				// Cursors travel as tokens
+				after = TaskCursor.parse(TaskCursor.after(lst.get(6))
+						.toString());
+			}
+			assertEquals(tasks.length, seen.size());
+			index.flush();
+		}
+		assertEquals(tasks[3], index.getLatestTasks(null, 1).get(0).getTaskId());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedCursor() {
+		TaskCursor.parse("12-XYZ");
+	}
+
+	@Test
+	public void testTagLookup() throws Exception {
+		TaskID[] tasks = new TaskID[20];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskID(8);
+			index.record(tasks[i], null, Arrays.asList(i % 2 == 0 ? "Even"
+					: "odd", "all"));
+			if (i == 9) {
+				index.flush();
+			}
+			Thread.sleep(2);
+		}
+		// Substrings of a tag no longer match it
+		index.record(tasks[0], null, Arrays.asList("evening"));
+		index.flush();
+		// A flushed task moves to the front, as does a pending one
+		index.record(tasks[2], null, null);
+		index.flush();
+		index.record(tasks[4], null, null);
+
+		assertEquals(10, index.getTasksByTag("EVEN", 0, 100).size());
+		assertEquals(10, index.getTasksByTag("odd", 0, 100).size());
+		assertEquals(1, index.getTasksByTag("Evening", 0, 100).size());
+		assertEquals(0, index.getTasksByTag("eve", 0, 100).size());
+
+		List<TaskRecord> even = index.getTasksByTag("even", 0, 3);
+		assertEquals(tasks[4], even.get(0).getTaskId());
+		assertEquals(tasks[2], even.get(1).getTaskId());
+		assertEquals(tasks[0], even.get(2).getTaskId());
+
+		Set<TaskID> seen = new HashSet<TaskID>();
+		long last = Long.MAX_VALUE;
+		for (int offset = 0; offset < tasks.length; offset += 6) {
+			List<TaskRecord> page = index.getTasksByTag("all", offset, 6);
+			assertEquals(Math.min(6, tasks.length - offset), page.size());
+			for (TaskRecord rec : page) {
+				assertTrue(seen.add(rec.getTaskId()));
+				assertTrue(rec.getLastUpdated().getTime() <= last);
+				last = rec.getLastUpdated().getTime();
+			}
+		}
+		assertEquals(tasks.length, seen.size());
+
+		index.flush();
+		List<TaskID> old = Arrays.asList(tasks[1], tasks[3]);
+		assertEquals(old, index.delete(old, System.currentTimeMillis() + 1000));
+		assertEquals(8, index.getTasksByTag("odd", 0, 100).size());
+	}
+
+	@Test
+	public void testTitleLookup() {
+		TaskID get = new TaskID(8);
+		TaskID put = new TaskID(8);
+		TaskID percent = new TaskID(8);
+		index.record(get, "GET /index.html", null);
+		index.record(put, "PUT /upload", null);
+		index.record(percent, "50% done", null);
+		index.flush();
+
+		assertEquals(1, index.getTasksByTitle("get /INDEX.html", 0, 10).size());
+		assertEquals(0, index.getTasksByTitle("GET", 0, 10).size());
+		assertEquals(get, index.getTasksByTitleSubstring("index", 0, 10).get(0)
+				.getTaskId());
+		assertEquals(2, index.getTasksByTitleSubstring("T /", 0, 10).size());
+		assertEquals(2, index.getTasksByTitleSubstring("/", 0, 10).size());
+		assertEquals(0, index.getTasksByTitleSubstring("dex.htmlx", 0, 10)
+				.size());
+		// LIKE wildcards are matched literally
+		assertEquals(1, index.getTasksByTitleSubstring("0% D", 0, 10).size());
+		assertEquals(0, index.getTasksByTitleSubstring("_", 0, 10).size());
+		assertEquals(0, index.getTasksByTitleSubstring("G%X", 0, 10).size());
+
+		// Renaming a task replaces its trigrams, before and after a flush
+		index.record(get, "POST /form", null);
+		assertEquals(0, index.getTasksByTitleSubstring("index", 0, 10).size());
+		assertEquals(1, index.getTasksByTitleSubstring("post", 0, 10).size());
+		index.flush();
+		assertEquals(0, index.getTasksByTitleSubstring("index", 0, 10).size());
+		assertEquals(1, index.getTasksByTitleSubstring("post", 0, 10).size());
+		assertEquals(1, index.getTasksByTitle("post /form", 0, 10).size());
+
+		List<TaskID> old = Arrays.asList(put);
+		assertEquals(old, index.delete(old, System.currentTimeMillis() + 1000));
+		assertEquals(0, index.getTasksByTitleSubstring("upload", 0, 10).size());
+	}
+
+	private static void assertRecord(TaskID task, int numReports,
+			String title, String tags, TaskRecord rec) {
+		assertEquals(task, rec.getTaskId());
+		assertEquals(numReports, rec.getNumReports());
+		assertEquals(title, rec.getTitle());
+		assertEquals(Arrays.asList(tags.split(",")), rec.getTags());
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TcpReportSourceTest {
+	private static final int PORT = 17832;
+	
+	private TcpReportSource source;
+	
+	@After
+	public void tearDown() {
+		if (source != null) {
+			source.shutdown();
+		}
+		System.clearProperty("xtrace.backend.tcpport");
+		System.clearProperty("xtrace.backend.tcp.mode");
+		System.clearProperty("xtrace.backend.tcp.poolsize");
+	}
+	
+	@Test
+	public void testVirtualMode() throws Exception {
+		// Falls back to a pool on JVMs without virtual threads
+		BlockingQueue<ReportFrame> q = start("virtual", 4, PORT);
+		Socket s = new Socket("127.0.0.1", PORT);
+		DataOutputStream out = new DataOutputStream(s.getOutputStream());
+		for (int i = 0; i < 10; i++) {
+			send(out, "report " + i);
+		}
+		for (int i = 0; i < 10; i++) {
+			ReportFrame frame = q.poll(5, TimeUnit.SECONDS);
+			assertEquals("report " + i, frame.toString());
+			frame.release();
+		}
+		s.close();
+	}
+	
+	@Test
+	public void testPoolRejectsExtraConnections() throws Exception {
+		BlockingQueue<ReportFrame> q = start("pool", 1, PORT + 1);
+		Socket first = new Socket("127.0.0.1", PORT + 1);
+		DataOutputStream out = new DataOutputStream(first.getOutputStream());
+		send(out, "first");
+		q.poll(5, TimeUnit.SECONDS).release();
+		assertEquals(1, source.getActiveConnections());
+		
+		// The second connection is closed rather than left unread
+		Socket second = new Socket("127.0.0.1", PORT + 1);
+		assertEquals(-1, second.getInputStream().read());
+		assertEquals(1, source.getRejectedConnections());
+		second.close();
+		
+		// The first connection is still served
+		send(out, "again");
+		ReportFrame frame = q.poll(5, TimeUnit.SECONDS);
+		assertEquals("again", frame.toString());
+		frame.release();
+		first.close();
+	}
+	
+	private BlockingQueue<ReportFrame> start(String mode, int poolSize, int port)
+			throws Exception {
+		System.setProperty("xtrace.backend.tcpport", String.valueOf(port));
+		System.setProperty("xtrace.backend.tcp.mode", mode);
+		System.setProperty("xtrace.backend.tcp.poolsize", String.valueOf(poolSize));
+		BlockingQueue<ReportFrame> q = new ArrayBlockingQueue<ReportFrame>(100);
+		source = new TcpReportSource();
+		source.setReportQueue(q);
+		source.initialize();
+		Thread t = new Thread(source);
+		t.setDaemon(true);
+		t.start();
+		return q;
+	}
+	
+	private static void send(DataOutputStream out, String msg) throws Exception {
+		byte[] b = msg.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+		out.flush();
+	}
+}
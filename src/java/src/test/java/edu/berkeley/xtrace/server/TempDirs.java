@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Temporary directories for the tests that write files, such as the
+ * directory of a report store under test.
+ */
+final class TempDirs {
+	private static final String STORE_DIRECTORY = "xtrace.server.storedirectory";
+
+	private TempDirs() {
+	}
+
+	/**
+	 * Creates a new, empty directory
+	 */
+	static File create(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		if (!dir.mkdir()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Creates a new, empty directory and points
+	 * <code>xtrace.server.storedirectory</code> at it, for the report
+	 * stores created afterwards
+	 */
+	static File createStoreDir(String prefix) throws IOException {
+		File dir = create(prefix);
+		System.setProperty(STORE_DIRECTORY, dir.toString());
+		return dir;
+	}
+
+	/**
+	 * Deletes a directory and everything in it, and clears
+	 * <code>xtrace.server.storedirectory</code> in case it pointed there
+	 */
+	static void delete(File dir) {
+		System.clearProperty(STORE_DIRECTORY);
+		deleteAll(dir);
+	}
+
+	private static void deleteAll(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				deleteAll(children[i]);
+			}
+		}
+		f.delete();
+	}
+}
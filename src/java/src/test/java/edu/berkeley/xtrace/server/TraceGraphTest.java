@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.xtrace.TaskID;
+import edu.berkeley.xtrace.XTraceMetadata;
+import edu.berkeley.xtrace.reporting.Report;
+
+public class TraceGraphTest {
+	private File dir;
+	private TaskID task;
+
+	@Before
+	public void setUp() throws Exception {
+		BasicConfigurator.configure(new NullAppender());
+		dir = TempDirs.create("xtrace-graph");
+		task = new TaskID(8);
+	}
+
+	@After
+	public void tearDown() {
+		TempDirs.delete(dir);
+	}
+
+	@Test
+	public void testGraph() {
+		TraceGraph graph = new TraceGraph(task);
+		// A child may be stored before its parents
+		graph.add(report(3, "1.500", 1, 2));
+		graph.add(report(1, "1.000"));
+		graph.add(report(2, "1.250", 1));
+		graph.add(report(2, "1.300", 1));
+		graph.add(report(4, null, 3));
+
+		List<TraceGraph.Node> nodes = graph.getNodes();
+		assertEquals(4, nodes.size());
+		assertEquals(opId(1), nodes.get(0).opId);
+		assertEquals(opId(2), nodes.get(1).opId);
+		assertEquals(opId(3), nodes.get(2).opId);
+		assertEquals(opId(4), nodes.get(3).opId);
+		assertEquals(5, graph.getNumReports());
+		assertEquals(1, graph.getDuplicates());
+
+		assertEquals(500000, graph.getNode(opId(1)).getDuration());
+		assertEquals(250000, graph.getNode(opId(2)).getDuration());
+		assertEquals(0, graph.getNode(opId(3)).getDuration());
+		assertEquals(1500000, TraceGraph.parseTime("1.5"));
+
+		String json = graph.toJson();
+		assertTrue(json, json.startsWith("{\"taskId\":\"" + task
+				+ "\",\"reports\":5,\"duplicates\":1,\"start\":1000000,"
+				+ "\"end\":1500000,\"nodes\":[{\"id\":\"" + opId(1)
+				+ "\",\"label\":\"op \\\"1\\\"\",\"t\":0,\"d\":500000,\"p\":[]},"));
+		assertTrue(json, json.contains(",\"t\":500000,\"d\":0,\"p\":[0,1]}"));
+		assertTrue(json, json.endsWith("\"label\":\"op \\\"4\\\"\",\"p\":[2]}]}"));
+		assertSame(json, graph.toJson());
+	}
+
+	@Test
+	public void testCycle() {
+		TraceGraph graph = new TraceGraph(task);
+		graph.add(report(1, "1"));
+		graph.add(report(2, "2", 3));
+		graph.add(report(3, "3", 2));
+		graph.add(report(4, "4", 1));
+		List<TraceGraph.Node> nodes = graph.getNodes();
+		assertEquals(4, nodes.size());
+		assertEquals(opId(1), nodes.get(0).opId);
+		assertEquals(opId(4), nodes.get(1).opId);
+	}
+
+	@Test
+	public void testIncrementalCache() throws Exception {
+		System.setProperty("xtrace.server.storedirectory", dir.toString());
+		FileTreeReportStore store = new FileTreeReportStore();
+		store.initialize();
+		try {
+			TraceGraphCache cache = new TraceGraphCache(store, 1);
+			assertEquals(0, cache.get(task).getNodes().size());
+			assertEquals(0, cache.size());
+
+			store.receiveReport(report(1, "1").toString());
+			store.receiveReport(report(2, "2", 1).toString());
+			store.sync();
+			TraceGraph graph = cache.get(task);
+			assertEquals(2, graph.getNodes().size());
+			String json = graph.toJson();
+
+			// Unchanged, so served as it is
+			assertSame(graph, cache.get(task));
+			assertSame(json, cache.get(task).toJson());
+
+			store.receiveReport(report(3, "3", 2).toString());
+			store.sync();
+			assertSame(graph, cache.get(task));
+			assertEquals(3, graph.getNodes().size());
+			assertEquals(opId(3), graph.getNodes().get(2).opId);
+
+			// Another task takes the only place
+			TaskID other = new TaskID(8);
+			Report r = new Report();
+			r.put("X-Trace", new XTraceMetadata(other, 1).toString());
+			store.receiveReport(r.toString());
+			store.sync();
+			cache.get(other);
+			assertEquals(1, cache.size());
+			assertNotSame(graph, cache.get(task));
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	private Report report(int op, String timestamp, int... parents) {
+		Report r = new Report();
+		r.put("X-Trace", new XTraceMetadata(task, op).toString());
+		r.put("Label", "op \"" + op + "\"");
+		if (timestamp != null) {
+			r.put("Timestamp", timestamp);
+		}
+		for (int i = 0; i < parents.length; i++) {
+			r.put("Edge", new XTraceMetadata(task, parents[i]).getOpIdString());
+		}
+		return r;
+	}
+
+	private String opId(int op) {
+		return new XTraceMetadata(task, op).getOpIdString().toUpperCase();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2005,2006,2007 The Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of California, nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE UNIVERSITY OF CALIFORNIA ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.berkeley.xtrace.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class UdpReportSourceTest {
+	private static final int PORT = 17831;
+	
+	private UdpReportSource source;
+	
+	@After
+	public void tearDown() {
+		if (source != null) {
+			source.shutdown();
+		}
+		System.clearProperty("xtrace.udpsource");
+		System.clearProperty("xtrace.udpsource.mode");
+		System.clearProperty("xtrace.udpsource.receivers");
+		System.clearProperty("xtrace.udpsource.maxdatagram");
+	}
+	
+	@Test
+	public void testSocketMode() throws Exception {
+		BlockingQueue<ReportFrame> q = start("socket", 1, PORT);
+		send("X-Trace Report ver 1.0\nAgent: test\n", PORT);
+		ReportFrame frame = q.poll(5, TimeUnit.SECONDS);
+		assertEquals("X-Trace Report ver 1.0\nAgent: test\n", frame.toString());
+		frame.release();
+	}
+	
+	@Test
+	public void testChannelModeCountsTruncation() throws Exception {
+		BlockingQueue<ReportFrame> q = start("channel", 3, PORT + 1);
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			big.append('x');
+		}
+		send(big.toString(), PORT + 1);
+		for (int i = 0; i < 10; i++) {
+			send("report " + i, PORT + 1);
+		}
+		for (int i = 0; i < 10; i++) {
+			ReportFrame frame = q.poll(5, TimeUnit.SECONDS);
+			assertTrue(frame.toString().startsWith("report "));
+			frame.release();
+		}
+		assertEquals(10, source.getReceived());
+		assertEquals(1, source.getTruncated());
+	}
+	
+	@Test
+	public void testReadProcDrops() throws Exception {
+		File f = File.createTempFile("udp", null);
+		f.deleteOnExit();
+		FileWriter out = new FileWriter(f);
+		out.write("   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops\n");
+		out.write("  1: 0100007F:1E97 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 1 2 0000000000000000 5\n");
+		out.write("  2: 00000000:1E97 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 2 2 0000000000000000 7\n");
+		out.write("  3: 0100007F:0035 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 3 2 0000000000000000 100\n");
+		out.close();
+		assertEquals(12, UdpReportSource.readProcDrops(f, 7831));
+		assertEquals(-1, UdpReportSource.readProcDrops(new File(f.getPath() + ".missing"), 7831));
+	}
+	
+	private BlockingQueue<ReportFrame> start(String mode, int receivers, int port)
+			throws Exception {
+		System.setProperty("xtrace.udpsource", "127.0.0.1:" + port);
+		System.setProperty("xtrace.udpsource.mode", mode);
+		System.setProperty("xtrace.udpsource.receivers", String.valueOf(receivers));
+		System.setProperty("xtrace.udpsource.maxdatagram", "100");
+		BlockingQueue<ReportFrame> q = new ArrayBlockingQueue<ReportFrame>(100);
+		source = new UdpReportSource();
+		source.setReportQueue(q);
+		source.initialize();
+		Thread t = new Thread(source);
+		t.setDaemon(true);
+		t.start();
+		return q;
+	}
+	
+	private static void send(String msg, int port) throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		byte[] b = msg.getBytes("UTF-8");
+		socket.send(new DatagramPacket(b, b.length, InetAddress.getByName("127.0.0.1"), port));
+		socket.close();
+	}
+}
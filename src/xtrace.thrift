@@ -14,5 +14,11 @@ service XTraceReporter {
 
    void ping(),
 
-   void sendReport(1:string report)
+   void sendReport(1:string report),
+
+   /**
+    * Sends a batch of encoded reports (text or binary).  The call is async
+    * (one-way): the client does not wait for a reply.
+    */
+   async void sendReports(1:list<binary> reports)
 }